@@ -0,0 +1,54 @@
+package benchmarks;
+
+import com.google.protobuf.ByteString;
+import org.openjdk.jmh.annotations.*;
+import storage.ChunkLayout;
+import util.ChunkInfoUtil;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scaling of parallel chunk hashing with the number of threads; threads=1 is the serial baseline. Throughput should
+ * grow almost linearly up to the number of cores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkHashingBenchmark {
+
+  @Param({"1048576", "67108864"})
+  public int fileSize;
+
+  @Param({"1", "2", "4", "8"})
+  public int threads;
+
+  private List<ByteBuffer> chunks;
+  private ForkJoinPool pool;
+
+  @Setup
+  public void setUp() {
+    byte[] content = Fixtures.randomBytes(fileSize, fileSize);
+    chunks = new ArrayList<>();
+    for (int offset = 0; offset < fileSize; offset += ChunkLayout.CHUNK_SIZE) {
+      chunks.add(ByteBuffer.wrap(content, offset, Math.min(ChunkLayout.CHUNK_SIZE, fileSize - offset)));
+    }
+    pool = new ForkJoinPool(threads);
+  }
+
+  @TearDown
+  public void tearDown() {
+    pool.shutdown();
+  }
+
+  @Benchmark
+  public ByteString[] getChunkHashes() {
+    return ChunkInfoUtil.getChunkHashes(chunks, pool);
+  }
+}
@@ -0,0 +1,58 @@
+package benchmarks;
+
+import node.ChunkInfo;
+import org.openjdk.jmh.annotations.*;
+import storage.ChunkLayout;
+import storage.ChunkStore;
+import storage.ChunkingWriter;
+import util.ChunkInfoUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chunk hashing, through {@link ChunkInfoUtil} and through the writer uploads go through. Both use the common
+ * fork/join pool for large inputs; {@link ChunkHashingBenchmark} shows how they scale with threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkInfoBenchmark {
+
+  @Param({"1024", "1048576", "67108864"})
+  public int fileSize;
+
+  private byte[] content;
+  private List<ByteBuffer> chunks;
+  private ChunkStore store;
+
+  @Setup
+  public void setUp() {
+    content = Fixtures.randomBytes(fileSize, fileSize);
+    chunks = new ArrayList<>();
+    for (int offset = 0; offset < fileSize; offset += ChunkLayout.CHUNK_SIZE) {
+      chunks.add(ByteBuffer.wrap(content, offset, Math.min(ChunkLayout.CHUNK_SIZE, fileSize - offset)));
+    }
+    store = new ChunkStore();
+  }
+
+  @Benchmark
+  public List<ChunkInfo> getChunkInfos() {
+    return ChunkInfoUtil.getChunkInfos(chunks);
+  }
+
+  // the file is never published, so every invocation hashes and stores the full content again
+  @Benchmark
+  public ChunkingWriter chunkingWriter() throws IOException {
+    ChunkingWriter writer = store.createWriter(fileSize);
+    writer.write(content, 0, fileSize);
+    writer.getFileHash();
+    return writer;
+  }
+}
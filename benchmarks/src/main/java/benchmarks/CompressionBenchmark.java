@@ -0,0 +1,47 @@
+package benchmarks;
+
+import com.google.protobuf.ByteString;
+import org.openjdk.jmh.annotations.*;
+import util.PayloadCompressor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+/**
+ * Cost of compressing chunk and file data for peers that accept it. Random data stands for media and archives, which
+ * are given up on after the sample for large payloads and after one attempt for chunks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+  @Param({"1024", "1048576"})
+  public int size;
+
+  @Param({"log", "random"})
+  public String content;
+
+  private final PayloadCompressor compressor = new PayloadCompressor();
+  private ByteString data;
+  private ByteString deflated;
+
+  @Setup
+  public void setUp() {
+    data = ByteString.copyFrom(content.equals("log") ? Fixtures.logBytes(size, 1) : Fixtures.randomBytes(size, 1));
+    deflated = compressor.deflate(data);
+  }
+
+  @Benchmark
+  public ByteString deflate() {
+    return compressor.deflate(data);
+  }
+
+  @Benchmark
+  public ByteString inflate() throws DataFormatException {
+    return deflated == null ? data : compressor.inflate(deflated, size);
+  }
+}
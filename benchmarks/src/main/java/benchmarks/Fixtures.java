@@ -0,0 +1,131 @@
+package benchmarks;
+
+import com.google.protobuf.ByteString;
+import handlers.ChunkRequestHandler;
+import handlers.FileStatusRequestHandler;
+import handlers.LocalSearchRequestHandler;
+import handlers.UploadRequestHandler;
+import node.FileInfo;
+import node.Message;
+import node.NioServer;
+import node.NodeSettings;
+import node.UploadRequest;
+import storage.ChunkStore;
+import util.NodeMetrics;
+import util.PatternCache;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Stores and servers shared by the benchmarks. Content is random but seeded, so every run measures the same data.
+ */
+class Fixtures {
+
+  static final int SMALL_FILE_SIZE = 512;
+
+  static byte[] randomBytes(int size, long seed) {
+    byte[] bytes = new byte[size];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+
+  /**
+   * Log lines of the kind nodes store a lot of, which compress several times over.
+   */
+  static byte[] logBytes(int size, long seed) {
+    Random random = new Random(seed);
+    String[] levels = {"INFO", "FINE", "WARNING"};
+    StringBuilder builder = new StringBuilder(size + 128);
+    while (builder.length() < size) {
+      builder.append(String.format("2024-01-%02d 12:%02d:%02d.%03d %s node.TorrentNode request %d from 127.0.0.%d took %d us%n",
+          1 + random.nextInt(28), random.nextInt(60), random.nextInt(60), random.nextInt(1000),
+          levels[random.nextInt(levels.length)], random.nextInt(100000), 1 + random.nextInt(9), random.nextInt(5000)));
+    }
+    return builder.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+  }
+
+  static String smallFileName(int index) {
+    return String.format("file-%06d.txt", index);
+  }
+
+  static FileInfo upload(ChunkStore store, String fileName, byte[] data) {
+    UploadRequest uploadRequest = UploadRequest.newBuilder().
+        setFilename(fileName).
+        setData(ByteString.copyFrom(data)).
+        build();
+    Message message = Message.newBuilder().
+        setType(Message.Type.UPLOAD_REQUEST).
+        setUploadRequest(uploadRequest).
+        build();
+    return UploadRequestHandler.handleUploadRequest(message, store).getUploadResponse().getFileInfo();
+  }
+
+  /**
+   * A store holding fileCount small files, named by {@link #smallFileName(int)}.
+   */
+  static ChunkStore populate(int fileCount) {
+    ChunkStore store = new ChunkStore();
+    for (int i = 0; i < fileCount; i++) {
+      upload(store, smallFileName(i), randomBytes(SMALL_FILE_SIZE, i));
+    }
+    return store;
+  }
+
+  /**
+   * A peer on the loopback interface that serves chunks, file status and local searches out of the store.
+   */
+  static class Peer implements AutoCloseable {
+
+    private static final NodeSettings settings = new NodeSettings();
+    private static final PatternCache patternCache = new PatternCache(settings.getRegexCacheSize());
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+      Thread thread = new Thread(runnable, "benchmark-peer");
+      thread.setDaemon(true);
+      return thread;
+    });
+    private final NioServer server;
+
+    Peer(ChunkStore store) throws IOException {
+      server = new NioServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 100, false, 30000,
+          Integer.MAX_VALUE, (client, message) -> handle(store, message), message -> null, message -> executor,
+          (client, inputStream) -> null, executor, new NodeMetrics());
+      executor.execute(() -> {
+        try {
+          server.listen();
+        } catch (IOException e) {
+          throw new IllegalStateException(e);
+        }
+      });
+    }
+
+    InetSocketAddress getAddress() throws IOException {
+      return server.getLocalAddress();
+    }
+
+    private static Message handle(ChunkStore store, Message message) {
+      if (message.getType().equals(Message.Type.CHUNK_REQUEST)) {
+        return ChunkRequestHandler.handleChunkRequest(message, store);
+      } else if (message.getType().equals(Message.Type.CHUNK_BATCH_REQUEST)) {
+        return ChunkRequestHandler.handleChunkBatchRequest(message, store);
+      } else if (message.getType().equals(Message.Type.FILE_STATUS_REQUEST)) {
+        return FileStatusRequestHandler.handleFileStatusRequest(message, store);
+      } else if (message.getType().equals(Message.Type.LOCAL_SEARCH_REQUEST)) {
+        return LocalSearchRequestHandler.handleLocalSearchRequest(message, store, patternCache, settings);
+      }
+      return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+      server.close();
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,105 @@
+package benchmarks;
+
+import com.google.protobuf.ByteString;
+import node.DownloadResponse;
+import node.Message;
+import node.Status;
+import org.openjdk.jmh.annotations.*;
+import util.MessageUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Length-prefixed framing of a DownloadResponse, in memory and over a loopback connection to an echo server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FramingBenchmark {
+
+  @Param({"1024", "65536", "1048576"})
+  public int payloadSize;
+
+  private Message message;
+  private byte[] frame;
+  private ServerSocket echoServer;
+  private Socket socket;
+
+  @Setup
+  public void setUp() throws IOException {
+    DownloadResponse downloadResponse = DownloadResponse.newBuilder().
+        setStatus(Status.SUCCESS).
+        setData(ByteString.copyFrom(Fixtures.randomBytes(payloadSize, payloadSize))).
+        build();
+    message = Message.newBuilder().
+        setType(Message.Type.DOWNLOAD_RESPONSE).
+        setDownloadResponse(downloadResponse).
+        build();
+    ByteBuffer frameBuffer = MessageUtil.toFrame(message);
+    frame = new byte[frameBuffer.remaining()];
+    frameBuffer.get(frame);
+
+    echoServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    Thread echo = new Thread(this::echo, "benchmark-echo");
+    echo.setDaemon(true);
+    echo.start();
+    socket = new Socket(InetAddress.getLoopbackAddress(), echoServer.getLocalPort());
+    socket.setTcpNoDelay(true);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    socket.close();
+    echoServer.close();
+  }
+
+  @Benchmark
+  public ByteBuffer toFrame() throws IOException {
+    return MessageUtil.toFrame(message);
+  }
+
+  @Benchmark
+  public ByteBuffer[] toFrameBuffers() throws IOException {
+    return MessageUtil.toFrameBuffers(message);
+  }
+
+  @Benchmark
+  public Message readFrame() throws IOException {
+    InputStream inputStream = new ByteArrayInputStream(frame);
+    int messageSize = MessageUtil.readMessageSize(inputStream, Integer.MAX_VALUE);
+    return MessageUtil.parseMessage(MessageUtil.readMessageBytes(inputStream, messageSize));
+  }
+
+  @Benchmark
+  public byte[] loopbackRoundTrip() throws IOException {
+    MessageUtil.sendMessage(socket, message);
+    return MessageUtil.getMessageBytes(socket, Integer.MAX_VALUE);
+  }
+
+  // sends every frame back as it came
+  private void echo() {
+    try (Socket client = echoServer.accept()) {
+      client.setTcpNoDelay(true);
+      InputStream inputStream = client.getInputStream();
+      OutputStream outputStream = client.getOutputStream();
+      byte[] buffer = new byte[64 * 1024];
+      int read;
+      while ((read = inputStream.read(buffer)) > 0) {
+        outputStream.write(buffer, 0, read);
+      }
+    } catch (IOException e) {
+      // the benchmark closed the connection
+    }
+  }
+}
@@ -0,0 +1,169 @@
+package benchmarks;
+
+import com.google.protobuf.ByteString;
+import handlers.*;
+import node.*;
+import org.openjdk.jmh.annotations.*;
+import storage.ChunkStore;
+import util.ChunkResponseCache;
+import util.MessageUtil;
+import util.PatternCache;
+import util.PeerClient;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Handlers serving a node's own data, against a store holding many small files and one large one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class HandlerBenchmark {
+
+  @Param({"1000", "100000"})
+  public int fileCount;
+
+  @Param({"67108864"})
+  public int largeFileSize;
+
+  private static final int UPLOAD_SIZE = 1024 * 1024;
+  // chunks everyone asks for, all of them fit in the chunk cache
+  private static final int POPULAR_CHUNKS = 1024;
+
+  private final NodeSettings settings = new NodeSettings();
+  private final PatternCache patternCache = new PatternCache(settings.getRegexCacheSize());
+  private final AtomicInteger uploads = new AtomicInteger();
+  private final ChunkResponseCache chunkCache = new ChunkResponseCache(settings.getChunkCacheSize());
+
+  private ChunkStore store;
+  private PeerClient peerClient;
+  private FileInfo largeFile;
+  private byte[] uploadData;
+
+  @Setup
+  public void setUp() {
+    store = Fixtures.populate(fileCount);
+    largeFile = Fixtures.upload(store, "large.bin", Fixtures.randomBytes(largeFileSize, -1));
+    uploadData = Fixtures.randomBytes(UPLOAD_SIZE, -2);
+    peerClient = new PeerClient(settings);
+    for (int i = 0; i < POPULAR_CHUNKS; i++) {
+      ChunkRequestHandler.handleChunkRequest(chunkRequest(i), store, chunkCache, null);
+    }
+  }
+
+  @Benchmark
+  public Message localSearchExactName() {
+    return localSearch(Fixtures.smallFileName(fileCount / 2).replace(".", "\\."));
+  }
+
+  @Benchmark
+  public Message localSearchPrefix() {
+    return localSearch("file-0004.*");
+  }
+
+  @Benchmark
+  public Message localSearchScan() {
+    return localSearch(".*42.*");
+  }
+
+  // no peers, so only the local part of a search and its aggregation is measured
+  @Benchmark
+  public Message search() {
+    SearchRequest searchRequest = SearchRequest.newBuilder().
+        setRegex("file-0004.*").
+        build();
+    Message message = Message.newBuilder().
+        setType(Message.Type.SEARCH_REQUEST).
+        setSearchRequest(searchRequest).
+        build();
+    return SearchRequestHandler.handleSearchRequest(message, new NodeConfiguration("127.0.0.1", 0),
+        Collections.emptyList(), store, peerClient, patternCache, settings);
+  }
+
+  @Benchmark
+  public Message chunk() {
+    return ChunkRequestHandler.handleChunkRequest(chunkRequest(uploads.getAndIncrement() % largeFile.getChunksCount()), store);
+  }
+
+  // the popular chunks up to the bytes on the wire, handled and serialized for every request
+  @Benchmark
+  public ByteBuffer chunkFrame() throws IOException {
+    return MessageUtil.toFrame(ChunkRequestHandler.handleChunkRequest(chunkRequest(uploads.getAndIncrement() % POPULAR_CHUNKS), store));
+  }
+
+  // the same, served from the chunk cache
+  @Benchmark
+  public byte[] chunkFrameCached() {
+    return ChunkRequestHandler.getCachedResponse(chunkRequest(uploads.getAndIncrement() % POPULAR_CHUNKS), store, chunkCache);
+  }
+
+  @Benchmark
+  public Message download() {
+    return DownloadRequestHandler.handleDownloadRequest(downloadRequest(largeFile.getHash()), store);
+  }
+
+  @Benchmark
+  public Message fileStatus() {
+    FileStatusRequest fileStatusRequest = FileStatusRequest.newBuilder().
+        setFileHash(largeFile.getHash()).
+        build();
+    Message message = Message.newBuilder().
+        setType(Message.Type.FILE_STATUS_REQUEST).
+        setFileStatusRequest(fileStatusRequest).
+        build();
+    return FileStatusRequestHandler.handleFileStatusRequest(message, store);
+  }
+
+  // the content repeats, so after the first upload only the hashing and a new name are paid for
+  @Benchmark
+  public Message upload() {
+    UploadRequest uploadRequest = UploadRequest.newBuilder().
+        setFilename("upload-" + uploads.getAndIncrement()).
+        setData(ByteString.copyFrom(uploadData)).
+        build();
+    Message message = Message.newBuilder().
+        setType(Message.Type.UPLOAD_REQUEST).
+        setUploadRequest(uploadRequest).
+        build();
+    return UploadRequestHandler.handleUploadRequest(message, store);
+  }
+
+  private Message localSearch(String regex) {
+    LocalSearchRequest localSearchRequest = LocalSearchRequest.newBuilder().
+        setRegex(regex).
+        build();
+    Message message = Message.newBuilder().
+        setType(Message.Type.LOCAL_SEARCH_REQUEST).
+        setLocalSearchRequest(localSearchRequest).
+        build();
+    return LocalSearchRequestHandler.handleLocalSearchRequest(message, store, patternCache, settings);
+  }
+
+  private Message chunkRequest(int chunkIndex) {
+    ChunkRequest chunkRequest = ChunkRequest.newBuilder().
+        setFileHash(largeFile.getHash()).
+        setChunkIndex(chunkIndex).
+        build();
+    return Message.newBuilder().
+        setType(Message.Type.CHUNK_REQUEST).
+        setChunkRequest(chunkRequest).
+        build();
+  }
+
+  private static Message downloadRequest(ByteString fileHash) {
+    DownloadRequest downloadRequest = DownloadRequest.newBuilder().
+        setFileHash(fileHash).
+        build();
+    return Message.newBuilder().
+        setType(Message.Type.DOWNLOAD_REQUEST).
+        setDownloadRequest(downloadRequest).
+        build();
+  }
+}
@@ -0,0 +1,415 @@
+package benchmarks;
+
+import com.google.protobuf.ByteString;
+import node.*;
+import util.LatencyHistogram;
+import util.MessageUtil;
+import util.PeerClient;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Starts a cluster on the loopback interface and drives a mix of client traffic against it, then reports throughput and
+ * latency percentiles per request type.
+ * <p>
+ * Usage: {@code java -cp benchmarks.jar benchmarks.LoadGenerator [file.properties] [key=value ...]}. Besides the keys
+ * below, any node setting from torrent.conf (server-mode, keep-alive, storage-dir, ...) is passed on to the nodes.
+ * <ul>
+ * <li>nodes: configured cluster size (3)</li>
+ * <li>offline-fraction: share of the configured nodes that are never started, at least one always is (0)</li>
+ * <li>mode: in-process, or process to run every node in its own JVM (in-process)</li>
+ * <li>port-base: nodes listen on port-base + 1 to port-base + nodes (7000)</li>
+ * <li>clients: concurrent client threads (8)</li>
+ * <li>warmup-s, duration-s: seconds of unrecorded and recorded traffic (5, 30)</li>
+ * <li>seed-files: files uploaded before the warmup (16)</li>
+ * <li>mix: request weights (upload:1,replicate:1,search:2,chunk:10,download:2)</li>
+ * <li>file-sizes: upload size weights in bytes (1024:6,65536:3,1048576:1)</li>
+ * <li>client-timeout-ms: read timeout of the clients (60000)</li>
+ * <li>jvm-args: extra arguments for node JVMs in process mode</li>
+ * <li>log-level: level of this JVM's loggers, so in-process nodes do not drown the report (WARNING)</li>
+ * </ul>
+ */
+public class LoadGenerator {
+
+  private enum Operation {
+    UPLOAD(Message.Type.UPLOAD_REQUEST),
+    REPLICATE(Message.Type.REPLICATE_REQUEST),
+    SEARCH(Message.Type.SEARCH_REQUEST),
+    CHUNK(Message.Type.CHUNK_REQUEST),
+    DOWNLOAD(Message.Type.DOWNLOAD_REQUEST);
+
+    private final Message.Type type;
+
+    Operation(Message.Type type) {
+      this.type = type;
+    }
+  }
+
+  private static class KnownFile {
+    private final FileInfo fileInfo;
+    private final Set<Integer> holders = ConcurrentHashMap.newKeySet();
+
+    KnownFile(FileInfo fileInfo, int holder) {
+      this.fileInfo = fileInfo;
+      this.holders.add(holder);
+    }
+  }
+
+  private final Properties properties;
+  private final int portBase;
+  private final int clientTimeoutMillis;
+  private final List<NodeConfiguration> nodes = new ArrayList<>();
+  private final List<Integer> onlineNodes = new ArrayList<>();
+  private final Operation[] operations;
+  private final int[] operationWeights;
+  private final int[] fileSizes;
+  private final int[] fileSizeWeights;
+
+  private final List<TorrentNode> localNodes = new ArrayList<>();
+  private final List<Process> processes = new ArrayList<>();
+  private final PeerClient client;
+  private final List<KnownFile> knownFiles = new CopyOnWriteArrayList<>();
+  private final AtomicInteger uploadCount = new AtomicInteger();
+  private final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+  private final Map<Operation, LongAdder> errors = new EnumMap<>(Operation.class);
+  private volatile boolean recording;
+
+  private LoadGenerator(Properties properties) {
+    this.properties = properties;
+    this.portBase = getInt("port-base", 7000);
+    this.clientTimeoutMillis = getInt("client-timeout-ms", 60000);
+
+    int nodeCount = getInt("nodes", 3);
+    double offlineFraction = Double.parseDouble(properties.getProperty("offline-fraction", "0").trim());
+    int onlineCount = Math.max(1, nodeCount - (int) Math.round(nodeCount * offlineFraction));
+    for (int i = 0; i < nodeCount; i++) {
+      nodes.add(new NodeConfiguration("127.0.0.1", portBase + 1 + i));
+      if (i < onlineCount) {
+        onlineNodes.add(i);
+      }
+    }
+
+    String[] mix = properties.getProperty("mix", "upload:1,replicate:1,search:2,chunk:10,download:2").split(",");
+    operations = new Operation[mix.length];
+    operationWeights = new int[mix.length];
+    for (int i = 0; i < mix.length; i++) {
+      String[] entry = mix[i].trim().split(":");
+      operations[i] = Operation.valueOf(entry[0].trim().toUpperCase());
+      operationWeights[i] = Integer.parseInt(entry[1].trim());
+    }
+
+    String[] sizes = properties.getProperty("file-sizes", "1024:6,65536:3,1048576:1").split(",");
+    fileSizes = new int[sizes.length];
+    fileSizeWeights = new int[sizes.length];
+    for (int i = 0; i < sizes.length; i++) {
+      String[] entry = sizes[i].trim().split(":");
+      fileSizes[i] = Integer.parseInt(entry[0].trim());
+      fileSizeWeights[i] = Integer.parseInt(entry[1].trim());
+    }
+
+    for (Operation operation : Operation.values()) {
+      latencies.put(operation, new LatencyHistogram());
+      errors.put(operation, new LongAdder());
+    }
+    client = new PeerClient(new NodeSettings(properties));
+  }
+
+  public static void main(String[] args) throws Exception {
+    Properties properties = new Properties();
+    for (String arg : args) {
+      int separator = arg.indexOf('=');
+      if (separator > 0) {
+        properties.setProperty(arg.substring(0, separator).trim(), arg.substring(separator + 1).trim());
+      } else {
+        Properties fileProperties = new Properties();
+        try (FileReader reader = new FileReader(arg)) {
+          fileProperties.load(reader);
+        }
+        fileProperties.forEach(properties::putIfAbsent);
+      }
+    }
+
+    Logger.getLogger("").setLevel(Level.parse(properties.getProperty("log-level", "WARNING").trim()));
+    LoadGenerator generator = new LoadGenerator(properties);
+    try {
+      generator.startNodes();
+      generator.run();
+    } finally {
+      generator.stopNodes();
+    }
+  }
+
+  private void startNodes() throws Exception {
+    boolean separateProcesses = "process".equalsIgnoreCase(properties.getProperty("mode", "in-process").trim());
+    File directory = null;
+    if (separateProcesses) {
+      directory = Files.createTempDirectory("torrent-load").toFile();
+      writeConfiguration(new File(directory, "torrent.conf"));
+      System.out.println("Node configuration and logs in " + directory);
+    }
+
+    NodeSettings settings = new NodeSettings(properties);
+    for (int nodeIndex : onlineNodes) {
+      NodeConfiguration node = nodes.get(nodeIndex);
+      if (separateProcesses) {
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        String jvmArgs = properties.getProperty("jvm-args", "").trim();
+        if (!jvmArgs.isEmpty()) {
+          command.addAll(Arrays.asList(jvmArgs.split("\\s+")));
+        }
+        command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), TorrentNode.class.getName(),
+            "1:" + (node.getPort() - portBase)));
+        processes.add(new ProcessBuilder(command).
+            directory(directory).
+            redirectErrorStream(true).
+            redirectOutput(new File(directory, "node-" + node.getPort() + ".log")).
+            start());
+      } else {
+        List<NodeConfiguration> otherNodes = new ArrayList<>(nodes);
+        otherNodes.remove(node);
+        TorrentNode torrentNode = new TorrentNode(node, otherNodes, settings);
+        torrentNode.start();
+        localNodes.add(torrentNode);
+      }
+    }
+
+    for (int nodeIndex : onlineNodes) {
+      awaitListening(nodes.get(nodeIndex));
+    }
+    System.out.println("Started " + onlineNodes.size() + " of " + nodes.size() + " nodes " +
+        (separateProcesses ? "as processes" : "in process"));
+  }
+
+  private void writeConfiguration(File file) throws IOException {
+    Properties configuration = new Properties();
+    configuration.putAll(properties);
+    configuration.setProperty("ip-prefix", "127.0.0");
+    configuration.setProperty("ip-suffixes", "1");
+    configuration.setProperty("port-base", String.valueOf(portBase));
+    StringBuilder portOffsets = new StringBuilder();
+    for (NodeConfiguration node : nodes) {
+      portOffsets.append(portOffsets.length() == 0 ? "" : " ").append(node.getPort() - portBase);
+    }
+    configuration.setProperty("port-offsets", portOffsets.toString());
+    try (Writer writer = new FileWriter(file)) {
+      configuration.store(writer, "Generated by LoadGenerator");
+    }
+  }
+
+  private static void awaitListening(NodeConfiguration node) throws InterruptedException, IOException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+    while (true) {
+      try (Socket socket = new Socket()) {
+        socket.connect(new InetSocketAddress(node.getAddr(), node.getPort()), 1000);
+        return;
+      } catch (IOException e) {
+        if (System.nanoTime() > deadline) {
+          throw new IOException("Node " + node.getAddr() + ":" + node.getPort() + " did not start", e);
+        }
+        Thread.sleep(100);
+      }
+    }
+  }
+
+  private void stopNodes() throws IOException, InterruptedException {
+    client.close();
+    for (TorrentNode torrentNode : localNodes) {
+      torrentNode.stop();
+    }
+    for (Process process : processes) {
+      process.destroy();
+      if (!process.waitFor(10, TimeUnit.SECONDS)) {
+        process.destroyForcibly();
+      }
+    }
+  }
+
+  private void run() throws InterruptedException {
+    int seedFiles = getInt("seed-files", 16);
+    for (int i = 0; i < seedFiles; i++) {
+      perform(Operation.UPLOAD);
+    }
+    if (knownFiles.isEmpty()) {
+      throw new IllegalStateException("No seed file could be uploaded");
+    }
+
+    long warmupNanos = TimeUnit.SECONDS.toNanos(getInt("warmup-s", 5));
+    long durationNanos = TimeUnit.SECONDS.toNanos(getInt("duration-s", 30));
+    long start = System.nanoTime();
+    long end = start + warmupNanos + durationNanos;
+    List<Thread> clients = new ArrayList<>();
+    for (int i = 0; i < getInt("clients", 8); i++) {
+      Thread thread = new Thread(() -> {
+        while (System.nanoTime() < end) {
+          perform(operations[pick(operationWeights)]);
+        }
+      }, "load-client-" + i);
+      thread.start();
+      clients.add(thread);
+    }
+
+    Thread.sleep(TimeUnit.NANOSECONDS.toMillis(warmupNanos));
+    recording = true;
+    long recordingStart = System.nanoTime();
+    for (Thread thread : clients) {
+      thread.join();
+    }
+    recording = false;
+    report((System.nanoTime() - recordingStart) / 1e9);
+  }
+
+  private void perform(Operation operation) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    KnownFile knownFile = knownFiles.isEmpty() ? null : knownFiles.get(random.nextInt(knownFiles.size()));
+    if (knownFile == null && operation != Operation.UPLOAD && operation != Operation.SEARCH) {
+      operation = Operation.UPLOAD;
+    }
+
+    int target;
+    Message request;
+    switch (operation) {
+      case UPLOAD: {
+        byte[] data = new byte[fileSizes[pick(fileSizeWeights)]];
+        random.nextBytes(data);
+        target = onlineNodes.get(random.nextInt(onlineNodes.size()));
+        request = Message.newBuilder().
+            setType(Message.Type.UPLOAD_REQUEST).
+            setUploadRequest(UploadRequest.newBuilder().
+                setFilename("load-" + uploadCount.incrementAndGet() + ".bin").
+                setData(ByteString.copyFrom(data))).
+            build();
+        break;
+      }
+      case REPLICATE: {
+        List<Integer> candidates = new ArrayList<>(onlineNodes);
+        candidates.removeAll(knownFile.holders);
+        if (candidates.isEmpty()) {
+          // everyone has it already, which makes this the cheap path of a replication
+          candidates = onlineNodes;
+        }
+        target = candidates.get(random.nextInt(candidates.size()));
+        request = Message.newBuilder().
+            setType(Message.Type.REPLICATE_REQUEST).
+            setReplicateRequest(ReplicateRequest.newBuilder().setFileInfo(knownFile.fileInfo)).
+            build();
+        break;
+      }
+      case SEARCH:
+        target = onlineNodes.get(random.nextInt(onlineNodes.size()));
+        request = Message.newBuilder().
+            setType(Message.Type.SEARCH_REQUEST).
+            setSearchRequest(SearchRequest.newBuilder().setRegex("load-" + random.nextInt(1, 10) + ".*")).
+            build();
+        break;
+      case CHUNK:
+        target = pickHolder(knownFile);
+        request = Message.newBuilder().
+            setType(Message.Type.CHUNK_REQUEST).
+            setChunkRequest(ChunkRequest.newBuilder().
+                setFileHash(knownFile.fileInfo.getHash()).
+                setChunkIndex(random.nextInt(Math.max(1, knownFile.fileInfo.getChunksCount())))).
+            build();
+        break;
+      default:
+        target = pickHolder(knownFile);
+        request = Message.newBuilder().
+            setType(Message.Type.DOWNLOAD_REQUEST).
+            setDownloadRequest(DownloadRequest.newBuilder().setFileHash(knownFile.fileInfo.getHash())).
+            build();
+        break;
+    }
+
+    NodeConfiguration node = nodes.get(target);
+    boolean recorded = recording;
+    long start = System.nanoTime();
+    Message response = null;
+    try {
+      response = client.request(node, request, clientTimeoutMillis, clientTimeoutMillis);
+    } catch (IOException e) {
+      // counted below
+    }
+    long latency = System.nanoTime() - start;
+
+    boolean success = response != null && MessageUtil.getStatus(response) == Status.SUCCESS;
+    if (success && operation == Operation.UPLOAD) {
+      knownFiles.add(new KnownFile(response.getUploadResponse().getFileInfo(), target));
+    } else if (success && operation == Operation.REPLICATE) {
+      knownFile.holders.add(target);
+    }
+    if (recorded) {
+      latencies.get(operation).record(latency);
+      if (!success) {
+        errors.get(operation).increment();
+      }
+    }
+  }
+
+  private int pickHolder(KnownFile knownFile) {
+    Integer[] holders = knownFile.holders.toArray(new Integer[0]);
+    return holders[ThreadLocalRandom.current().nextInt(holders.length)];
+  }
+
+  private static int pick(int[] weights) {
+    int total = 0;
+    for (int weight : weights) {
+      total += weight;
+    }
+    int value = ThreadLocalRandom.current().nextInt(total);
+    for (int i = 0; i < weights.length; i++) {
+      value -= weights[i];
+      if (value < 0) {
+        return i;
+      }
+    }
+    return weights.length - 1;
+  }
+
+  private void report(double seconds) {
+    System.out.printf("%-20s %9s %8s %10s %10s %10s %10s %10s%n",
+        "type", "count", "errors", "ops/s", "p50 ms", "p99 ms", "p999 ms", "max ms");
+    long totalCount = 0;
+    long totalErrors = 0;
+    for (Operation operation : Operation.values()) {
+      LatencyHistogram histogram = latencies.get(operation);
+      long count = histogram.getCount();
+      long errorCount = errors.get(operation).sum();
+      totalCount += count;
+      totalErrors += errorCount;
+      if (count == 0) {
+        continue;
+      }
+      System.out.printf("%-20s %9d %8d %10.1f %10.3f %10.3f %10.3f %10.3f%n", operation.type, count, errorCount,
+          count / seconds, histogram.getPercentile(0.5) / 1e6, histogram.getPercentile(0.99) / 1e6,
+          histogram.getPercentile(0.999) / 1e6, histogram.getMax() / 1e6);
+    }
+    System.out.printf("%-20s %9d %8d %10.1f%n", "total", totalCount, totalErrors, totalCount / seconds);
+  }
+
+  private int getInt(String key, int defaultValue) {
+    String value = properties.getProperty(key);
+    return value == null ? defaultValue : Integer.parseInt(value.trim());
+  }
+}
@@ -0,0 +1,82 @@
+package benchmarks;
+
+import handlers.ReplicateRequestHandler;
+import handlers.SearchRequestHandler;
+import node.*;
+import org.openjdk.jmh.annotations.*;
+import storage.ChunkStore;
+import util.PatternCache;
+import util.PeerClient;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handlers that talk to other nodes, against one peer on the loopback interface.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class PeerBenchmark {
+
+  @Param({"1048576", "16777216"})
+  public int fileSize;
+
+  @Param({"10000"})
+  public int peerFileCount;
+
+  private final NodeSettings settings = new NodeSettings();
+  private final PatternCache patternCache = new PatternCache(settings.getRegexCacheSize());
+
+  private Fixtures.Peer peer;
+  private List<NodeConfiguration> peers;
+  private PeerClient peerClient;
+  private FileInfo fileInfo;
+
+  @Setup
+  public void setUp() throws IOException {
+    ChunkStore peerStore = Fixtures.populate(peerFileCount);
+    fileInfo = Fixtures.upload(peerStore, "replicated.bin", Fixtures.randomBytes(fileSize, fileSize));
+    peer = new Fixtures.Peer(peerStore);
+    InetSocketAddress address = peer.getAddress();
+    peers = Collections.singletonList(new NodeConfiguration(address.getAddress().getHostAddress(), address.getPort()));
+    peerClient = new PeerClient(settings);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    peer.close();
+  }
+
+  // every invocation replicates into an empty store, so nothing can be reused locally
+  @Benchmark
+  public Message replicate() {
+    ReplicateRequest replicateRequest = ReplicateRequest.newBuilder().
+        setFileInfo(fileInfo).
+        build();
+    Message message = Message.newBuilder().
+        setType(Message.Type.REPLICATE_REQUEST).
+        setReplicateRequest(replicateRequest).
+        build();
+    return ReplicateRequestHandler.handleReplicateRequest(message, peers, new ChunkStore(), peerClient, settings);
+  }
+
+  @Benchmark
+  public Message search() {
+    SearchRequest searchRequest = SearchRequest.newBuilder().
+        setRegex("file-00.*").
+        build();
+    Message message = Message.newBuilder().
+        setType(Message.Type.SEARCH_REQUEST).
+        setSearchRequest(searchRequest).
+        build();
+    return SearchRequestHandler.handleSearchRequest(message, new NodeConfiguration("127.0.0.1", 0), peers,
+        new ChunkStore(), peerClient, patternCache, settings);
+  }
+}
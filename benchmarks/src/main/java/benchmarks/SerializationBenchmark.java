@@ -0,0 +1,106 @@
+package benchmarks;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import node.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of the largest responses a node builds: a search over many nodes and files, and a replication with a
+ * status for every chunk request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+
+  private static final int NODE_COUNT = 24;
+  private static final int CHUNKS_PER_FILE = 16;
+
+  @Param({"100", "10000"})
+  public int entryCount;
+
+  private Message searchResponse;
+  private Message replicateResponse;
+  private byte[] searchResponseBytes;
+  private byte[] replicateResponseBytes;
+
+  @Setup
+  public void setUp() {
+    SearchResponse.Builder searchBuilder = SearchResponse.newBuilder().setStatus(Status.SUCCESS);
+    for (int nodeIndex = 0; nodeIndex < NODE_COUNT; nodeIndex++) {
+      NodeSearchResult.Builder result = NodeSearchResult.newBuilder().
+          setNode(node(nodeIndex)).
+          setStatus(Status.SUCCESS);
+      for (int fileIndex = 0; fileIndex < entryCount / NODE_COUNT; fileIndex++) {
+        result.addFiles(fileInfo(fileIndex));
+      }
+      searchBuilder.addResults(result);
+    }
+    searchResponse = Message.newBuilder().
+        setType(Message.Type.SEARCH_RESPONSE).
+        setSearchResponse(searchBuilder).
+        build();
+
+    ReplicateResponse.Builder replicateBuilder = ReplicateResponse.newBuilder().setStatus(Status.SUCCESS);
+    for (int i = 0; i < entryCount; i++) {
+      replicateBuilder.addNodeStatusList(NodeReplicationStatus.newBuilder().
+          setNode(node(i % NODE_COUNT)).
+          setChunkIndex(i).
+          setStatus(i % 10 == 0 ? Status.UNABLE_TO_COMPLETE : Status.SUCCESS));
+    }
+    replicateResponse = Message.newBuilder().
+        setType(Message.Type.REPLICATE_RESPONSE).
+        setReplicateResponse(replicateBuilder).
+        build();
+
+    searchResponseBytes = searchResponse.toByteArray();
+    replicateResponseBytes = replicateResponse.toByteArray();
+  }
+
+  @Benchmark
+  public byte[] serializeSearchResponse() {
+    return searchResponse.toByteArray();
+  }
+
+  @Benchmark
+  public Message parseSearchResponse() throws InvalidProtocolBufferException {
+    return Message.parseFrom(searchResponseBytes);
+  }
+
+  @Benchmark
+  public byte[] serializeReplicateResponse() {
+    return replicateResponse.toByteArray();
+  }
+
+  @Benchmark
+  public Message parseReplicateResponse() throws InvalidProtocolBufferException {
+    return Message.parseFrom(replicateResponseBytes);
+  }
+
+  private static Node node(int index) {
+    return Node.newBuilder().
+        setHost("127.0.0." + (1 + index / 3)).
+        setPort(5001 + index % 3).
+        build();
+  }
+
+  private static FileInfo fileInfo(int index) {
+    FileInfo.Builder builder = FileInfo.newBuilder().
+        setHash(ByteString.copyFrom(Fixtures.randomBytes(16, index))).
+        setSize(CHUNKS_PER_FILE * 1024).
+        setFilename(Fixtures.smallFileName(index));
+    for (int chunkIndex = 0; chunkIndex < CHUNKS_PER_FILE; chunkIndex++) {
+      builder.addChunks(ChunkInfo.newBuilder().
+          setIndex(chunkIndex).
+          setSize(1024).
+          setHash(ByteString.copyFrom(Fixtures.randomBytes(16, index * CHUNKS_PER_FILE + chunkIndex))));
+    }
+    return builder.build();
+  }
+}
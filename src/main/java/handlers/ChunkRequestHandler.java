@@ -1,14 +1,23 @@
 package handlers;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import node.ChunkBatchRequest;
+import node.ChunkBatchResponse;
+import node.ChunkData;
 import node.ChunkRequest;
 import node.ChunkResponse;
 import node.Message;
 import node.Status;
 
+import storage.ChunkStore;
+import storage.PendingFile;
+import storage.StoredFile;
+import util.ChunkResponseCache;
+import util.PayloadCompressor;
+
 import java.io.IOException;
-import java.util.List;
-import java.util.Map;
+import java.nio.ByteBuffer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -16,22 +25,53 @@ public class ChunkRequestHandler {
 
   private static final Logger logger = Logger.getLogger(ChunkRequestHandler.class.getName());
 
-  public static Message handleChunkRequest(Message message, Map<ByteString, List<byte[]>> localFiles) {
+  // a batch response stops growing after this much chunk data, or this many chunks
+  private static final int MAX_BATCH_BYTES = 1024 * 1024;
+  private static final int MAX_BATCH_CHUNKS = 4096;
+
+  public static Message handleChunkRequest(Message message, ChunkStore store) {
+    return handleChunkRequest(message, store, null, null);
+  }
+
+  /**
+   * The frame of a cached response to the request, or null if the request has to be handled.
+   */
+  public static byte[] getCachedResponse(Message message, ChunkStore store, ChunkResponseCache cache) {
+    ChunkRequest chunkRequest = message.getChunkRequest();
+    StoredFile storedFile = store.getFile(chunkRequest.getFileHash());
+    if (storedFile == null) {
+      return null;
+    }
+    byte[] frame = cache.get(chunkRequest.getFileHash(), chunkRequest.getChunkIndex(), chunkRequest.getAcceptDeflate());
+    if (frame != null) {
+      storedFile.recordAccess();
+    }
+    return frame;
+  }
+
+  // successful responses read from stored files go into the cache, if there is one; data is only compressed if there
+  // is a compressor
+  public static Message handleChunkRequest(Message message, ChunkStore store, ChunkResponseCache cache, PayloadCompressor compressor) {
     ChunkResponse.Builder builder = ChunkResponse.newBuilder();
+    StoredFile storedFile = null;
 
       ChunkRequest chunkRequest = message.getChunkRequest();
       ByteString fileHash = chunkRequest.getFileHash();
       int chunkIndex = chunkRequest.getChunkIndex();
 
-      if (fileHash.toByteArray().length != 16 || chunkIndex < 0) {
+      if (fileHash.size() != 16 || chunkIndex < 0) {
         logger.severe("Invalid file hash or chunk index");
         builder.setStatus(Status.MESSAGE_ERROR);
       } else {
-        List<byte[]> fileContent = localFiles.get(fileHash);
-        if (fileContent != null && fileContent.size() > 0) {
-          byte[] chunk = fileContent.get(chunkIndex);
+        storedFile = store.getFile(fileHash);
+        ByteBuffer chunk = getChunk(store, storedFile, fileHash, chunkIndex);
+        if (chunk != null) {
+          // stored chunks never change once written, so the response can share them
+          ByteString data = UnsafeByteOperations.unsafeWrap(chunk);
+          ByteString deflated = compressor != null && chunkRequest.getAcceptDeflate() ? compressor.deflate(data) : null;
           builder.setStatus(Status.SUCCESS).
-              setData(ByteString.copyFrom(chunk));
+              setData(deflated != null ? deflated : data).
+              setDeflated(deflated != null);
           logger.fine("SUCCESS " + fileHash + " " + chunkIndex);
         } else {
           logger.fine("FAILURE " + fileHash + " " + chunkIndex);
@@ -39,10 +79,94 @@ public class ChunkRequestHandler {
         }
       }
 
-    return Message.newBuilder().
+    Message response = Message.newBuilder().
         setType(Message.Type.CHUNK_RESPONSE).
         setChunkResponse(builder.build()).
         build();
+    if (cache != null && storedFile != null && builder.getStatus() == Status.SUCCESS) {
+      try {
+        cache.put(fileHash, chunkIndex, chunkRequest.getAcceptDeflate(), response);
+        // the store tells the cache about files that change from now on, but not about one that changed already
+        if (store.getFile(fileHash) != storedFile) {
+          cache.invalidate(fileHash);
+        }
+      } catch (IOException e) {
+        logger.log(Level.WARNING, e.getMessage(), e);
+      }
+    }
+    return response;
+  }
+
+  public static Message handleChunkBatchRequest(Message message, ChunkStore store) {
+    return handleChunkBatchRequest(message, store, null);
+  }
+
+  public static Message handleChunkBatchRequest(Message message, ChunkStore store, PayloadCompressor compressor) {
+    ChunkBatchResponse.Builder builder = ChunkBatchResponse.newBuilder();
+
+    ChunkBatchRequest chunkBatchRequest = message.getChunkBatchRequest();
+    ByteString fileHash = chunkBatchRequest.getFileHash();
+
+    if (fileHash.size() != 16) {
+      logger.severe("Invalid file hash");
+      builder.setStatus(Status.MESSAGE_ERROR);
+    } else {
+      StoredFile storedFile = store.getFile(fileHash);
+      int batchBytes = 0;
+      for (int chunkIndex : chunkBatchRequest.getChunkIndexesList()) {
+        if (batchBytes >= MAX_BATCH_BYTES || builder.getChunksCount() >= MAX_BATCH_CHUNKS) {
+          break;
+        }
+        ByteBuffer chunk = getChunk(store, storedFile, fileHash, chunkIndex);
+        if (chunk != null) {
+          builder.addChunks(ChunkData.newBuilder().
+              setChunkIndex(chunkIndex).
+              setStatus(Status.SUCCESS).
+              setData(UnsafeByteOperations.unsafeWrap(chunk)));
+          batchBytes += chunk.remaining();
+        } else {
+          builder.addChunks(ChunkData.newBuilder().
+              setChunkIndex(chunkIndex).
+              setStatus(Status.UNABLE_TO_COMPLETE));
+        }
+      }
+      builder.setStatus(Status.SUCCESS);
+      if (logger.isLoggable(Level.FINE)) {
+        logger.fine("Batch of " + builder.getChunksCount() + " chunks of " + fileHash + ", " + batchBytes + " bytes");
+      }
+      if (compressor != null && chunkBatchRequest.getAcceptDeflate()) {
+        deflateChunks(builder, compressor);
+      }
+    }
+
+    return Message.newBuilder().
+        setType(Message.Type.CHUNK_BATCH_RESPONSE).
+        setChunkBatchResponse(builder.build()).
+        build();
+  }
+
+  // one stream for the whole batch costs a fraction of one per chunk, and compresses better
+  private static void deflateChunks(ChunkBatchResponse.Builder builder, PayloadCompressor compressor) {
+    ByteString chunks = ChunkBatchResponse.newBuilder().
+        addAllChunks(builder.getChunksList()).
+        build().
+        toByteString();
+    ByteString deflated = compressor.deflate(chunks);
+    if (deflated != null) {
+      builder.clearChunks().
+          setDeflatedChunks(deflated).
+          setInflatedSize(chunks.size());
+    }
+  }
+
+  // a file still being replicated already serves the chunks it received
+  private static ByteBuffer getChunk(ChunkStore store, StoredFile storedFile, ByteString fileHash, int chunkIndex) {
+    if (storedFile != null) {
+      storedFile.recordAccess();
+      return storedFile.getChunk(chunkIndex);
+    }
+    PendingFile partialFile = store.getPartialFile(fileHash);
+    return partialFile != null ? partialFile.getChunkData(chunkIndex) : null;
   }
 
 }
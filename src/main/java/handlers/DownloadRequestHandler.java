@@ -5,36 +5,37 @@ import node.DownloadRequest;
 import node.DownloadResponse;
 import node.Message;
 import node.Status;
+import storage.ChunkStore;
+import storage.StoredFile;
+import util.PayloadCompressor;
 
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
 import java.util.logging.Logger;
 
 public class DownloadRequestHandler {
 
   private static final Logger logger = Logger.getLogger(DownloadRequestHandler.class.getName());
 
-  public static Message handleDownloadRequest(Message message, Map<ByteString, List<byte[]>> localFiles) {
+  public static Message handleDownloadRequest(Message message, ChunkStore store) {
+    return handleDownloadRequest(message, store, null);
+  }
+
+  public static Message handleDownloadRequest(Message message, ChunkStore store, PayloadCompressor compressor) {
     DownloadResponse.Builder builder = DownloadResponse.newBuilder();
 
     DownloadRequest downloadRequest = message.getDownloadRequest();
     ByteString fileHash = downloadRequest.getFileHash();
-    if (fileHash.toByteArray().length != 16) {
+    if (fileHash.size() != 16) {
       logger.severe("Invalid file hash");
       builder.setStatus(Status.MESSAGE_ERROR);
     } else {
-      List<ByteString> dataList = new LinkedList<>();
-
-      List<byte[]> fileContent = localFiles.get(fileHash);
-      if (fileContent != null && fileContent.size() > 0) {
-        for (int i = 0; i < fileContent.size(); i++) {
-          byte[] content = fileContent.get(i);
-          ByteString data = ByteString.copyFrom(content);
-          dataList.add(data);
-        }
+      StoredFile storedFile = store.getFile(fileHash);
+      if (storedFile != null) {
+        storedFile.recordAccess();
+        ByteString data = storedFile.getContent();
+        ByteString deflated = compressor != null && downloadRequest.getAcceptDeflate() ? compressor.deflate(data) : null;
         builder.setStatus(Status.SUCCESS).
-            setData(ByteString.copyFrom(dataList));
+            setData(deflated != null ? deflated : data).
+            setDeflated(deflated != null);
       } else {
         builder.setStatus(Status.UNABLE_TO_COMPLETE);
       }
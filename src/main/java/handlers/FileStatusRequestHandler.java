@@ -0,0 +1,59 @@
+package handlers;
+
+import com.google.protobuf.ByteString;
+import node.FileStatusRequest;
+import node.FileStatusResponse;
+import node.Message;
+import node.Status;
+import storage.ChunkStore;
+import storage.PendingFile;
+import storage.StoredFile;
+
+import java.util.BitSet;
+import java.util.logging.Logger;
+
+public class FileStatusRequestHandler {
+
+  private static final Logger logger = Logger.getLogger(FileStatusRequestHandler.class.getName());
+
+  public static Message handleFileStatusRequest(Message message, ChunkStore store) {
+    FileStatusResponse.Builder builder = FileStatusResponse.newBuilder();
+
+    FileStatusRequest fileStatusRequest = message.getFileStatusRequest();
+    ByteString fileHash = fileStatusRequest.getFileHash();
+
+    if (fileHash.size() != 16) {
+      logger.severe("Invalid file hash");
+      builder.setStatus(Status.MESSAGE_ERROR);
+    } else {
+      StoredFile storedFile = store.getFile(fileHash);
+      PendingFile partialFile = storedFile == null ? store.getPartialFile(fileHash) : null;
+      int chunkCount;
+      BitSet chunks;
+      if (storedFile != null) {
+        chunkCount = storedFile.getChunkCount();
+        chunks = new BitSet(chunkCount);
+        chunks.set(0, chunkCount);
+      } else if (partialFile != null) {
+        chunkCount = partialFile.getLayout().getChunkCount();
+        chunks = partialFile.getChunkBitmap();
+      } else {
+        chunkCount = 0;
+        chunks = new BitSet();
+      }
+      if (!chunks.isEmpty()) {
+        builder.setStatus(Status.SUCCESS).
+            setChunkCount(chunkCount).
+            setChunkBitmap(ByteString.copyFrom(chunks.toByteArray()));
+      } else {
+        builder.setStatus(Status.UNABLE_TO_COMPLETE);
+      }
+    }
+
+    return Message.newBuilder().
+        setType(Message.Type.FILE_STATUS_RESPONSE).
+        setFileStatusResponse(builder.build()).
+        build();
+  }
+
+}
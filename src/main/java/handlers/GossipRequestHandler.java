@@ -0,0 +1,24 @@
+package handlers;
+
+import node.GossipRequest;
+import node.GossipResponse;
+import node.Message;
+import node.Status;
+import util.GossipIndex;
+
+public class GossipRequestHandler {
+
+  public static Message handleGossipRequest(Message message, GossipIndex gossipIndex) {
+    GossipRequest gossipRequest = message.getGossipRequest();
+    GossipResponse gossipResponse = GossipResponse.newBuilder().
+        setStatus(Status.SUCCESS).
+        addAllUpdates(gossipIndex.getUpdates(gossipRequest.getDigestsList())).
+        build();
+
+    return Message.newBuilder().
+        setType(Message.Type.GOSSIP_RESPONSE).
+        setGossipResponse(gossipResponse).
+        build();
+  }
+
+}
@@ -1,68 +1,107 @@
 package handlers;
 
-import com.google.protobuf.ByteString;
 import node.*;
-import util.ChunkInfoUtil;
+import storage.ChunkStore;
+import util.FileNamePattern;
+import util.PatternCache;
 
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.logging.Level;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.PatternSyntaxException;
 
 public class LocalSearchRequestHandler {
 
   private static final Logger logger = Logger.getLogger(LocalSearchRequestHandler.class.getName());
 
-  public static Message handleLocalSearchRequest(Message message, Map<ByteString, List<byte[]>> localFiles, Map<String, ByteString> fileNameToHash) {
-    Message responseMessage = null;
+  public static Message handleLocalSearchRequest(Message message, ChunkStore store, PatternCache patternCache, NodeSettings settings) {
+    LocalSearchResponse.Builder builder = LocalSearchResponse.newBuilder();
+    LocalSearchRequest localSearchRequest = message.getLocalSearchRequest();
+    String regex = localSearchRequest.getRegex();
+
     try {
-      LocalSearchRequest localSearchRequest = message.getLocalSearchRequest();
-      String regex = localSearchRequest.getRegex();
-      List<String> foundFileNames = new ArrayList<>();
-      for (String fileName : fileNameToHash.keySet()) {
-        if (fileName.matches(regex)) {
-          foundFileNames.add(fileName);
+      FileNamePattern fileNamePattern = patternCache.get(regex);
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(settings.getSearchRegexBudgetMillis());
+      List<String> candidates = store.getFileNameCandidates(fileNamePattern.getPrefix(), fileNamePattern.getLiteral());
+      builder.setStatus(Status.SUCCESS).addAllFileInfo(match(fileNamePattern, candidates, store::getFileInfo, deadline));
+    } catch (PatternSyntaxException e) {
+      logger.fine("Invalid regex " + regex);
+      builder.setStatus(Status.MESSAGE_ERROR).setErrorMessage(e.getDescription());
+    } catch (BudgetExceededException e) {
+      logger.warning("Regex " + regex + " exceeded the search time budget");
+      builder.setStatus(Status.PROCESSING_ERROR).setErrorMessage("Search time budget exceeded");
+    }
+
+    return Message.newBuilder().
+        setType(Message.Type.LOCAL_SEARCH_RESPONSE).
+        setLocalSearchResponse(builder.build()).
+        build();
+  }
+
+  /**
+   * The FileInfos of the candidates the pattern matches, skipping names that have no FileInfo any more.
+   */
+  static List<FileInfo> match(FileNamePattern fileNamePattern, List<String> candidates, Function<String, FileInfo> fileInfos, long deadline) {
+    Matcher matcher = fileNamePattern.getPattern().matcher("");
+    List<FileInfo> matches = new ArrayList<>();
+    for (String fileName : candidates) {
+      if (matcher.reset(new BudgetedCharSequence(fileName, deadline)).matches()) {
+        FileInfo fileInfo = fileInfos.apply(fileName);
+        if (fileInfo != null) {
+          logger.fine(fileInfo.toString());
+          matches.add(fileInfo);
         }
       }
-      List<FileInfo> fileInfos = new ArrayList<>();
-      if (foundFileNames.size() > 0) {
-        for (String foundFileName : foundFileNames) {
-          ByteString fileHash = fileNameToHash.get(foundFileName);
-          List<byte[]> fileContent = localFiles.get(fileHash);
-
-          int fileSize = 0;
-          for (byte[] bytes : fileContent) {
-            fileSize += bytes.length;
-          }
-
-          List<ChunkInfo> chunkInfos = ChunkInfoUtil.getChunkInfos(fileContent);
-          logger.fine(chunkInfos.toString());
-
-          FileInfo fileInfo = FileInfo.newBuilder().
-              setHash(fileHash).
-              setSize(fileSize).
-              setFilename(foundFileName).
-              addAllChunks(chunkInfos).
-              build();
-          fileInfos.add(fileInfo);
-        }
+    }
+    return matches;
+  }
+
+  /**
+   * Filename view that gives up once the deadline has passed, so a pathological regex cannot backtrack forever.
+   */
+  private static class BudgetedCharSequence implements CharSequence {
+
+    private final String value;
+    private final long deadline;
+    private int reads;
+
+    BudgetedCharSequence(String value, long deadline) {
+      this.value = value;
+      this.deadline = deadline;
+    }
+
+    @Override
+    public char charAt(int index) {
+      if ((++reads & 0xfff) == 0 && System.nanoTime() > deadline) {
+        throw new BudgetExceededException();
       }
+      return value.charAt(index);
+    }
+
+    @Override
+    public int length() {
+      return value.length();
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+      return new BudgetedCharSequence(value.substring(start, end), deadline);
+    }
+
+    @Override
+    public String toString() {
+      return value;
+    }
+  }
+
+  static class BudgetExceededException extends RuntimeException {
 
-      LocalSearchResponse localSearchResponse = LocalSearchResponse.newBuilder().
-          setStatus(Status.SUCCESS).
-          addAllFileInfo(fileInfos).
-          build();
-
-      responseMessage = Message.newBuilder().
-          setType(Message.Type.LOCAL_SEARCH_RESPONSE).
-          setLocalSearchResponse(localSearchResponse).
-          build();
-    } catch (NoSuchAlgorithmException e) {
-      logger.log(Level.SEVERE, e.getMessage());
+    BudgetExceededException() {
+      super(null, null, false, false);
     }
-    return responseMessage;
   }
 
 }
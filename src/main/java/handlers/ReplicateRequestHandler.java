@@ -2,119 +2,109 @@ package handlers;
 
 import com.google.protobuf.ByteString;
 import node.*;
-import util.MessageUtil;
+import storage.ChunkLayout;
+import storage.ChunkStore;
+import storage.PendingFile;
+import util.GossipIndex;
+import util.PayloadCompressor;
+import util.PeerClient;
 
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.Socket;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 public class ReplicateRequestHandler {
 
   private static final Logger logger = Logger.getLogger(ReplicateRequestHandler.class.getName());
 
-  public static Message handleReplicateRequest(Message message, List<NodeConfiguration> otherNodes, Map<ByteString, List<byte[]>> localFiles, Map<String, ByteString> fileNameToHash) {
+  public static Message handleReplicateRequest(Message message, List<NodeConfiguration> otherNodes, ChunkStore store, PeerClient peerClient, NodeSettings settings) {
+    return handleReplicateRequest(message, otherNodes, store, peerClient, settings, null, null);
+  }
+
+  /**
+   * The gossiped index, if there is one, tells which nodes to ask for the chunks of a FileInfo that came without them.
+   * Chunks are asked for compressed if there is a compressor.
+   */
+  public static Message handleReplicateRequest(Message message, List<NodeConfiguration> otherNodes, ChunkStore store, PeerClient peerClient, NodeSettings settings, GossipIndex gossipIndex, PayloadCompressor compressor) {
     ReplicateResponse.Builder builder = ReplicateResponse.newBuilder();
     ReplicateRequest replicateRequest = message.getReplicateRequest();
-    try {
-      FileInfo fileInfo = replicateRequest.getFileInfo();
-      String filename = fileInfo.getFilename();
-      ByteString fileHash = fileInfo.getHash();
 
-      boolean done = false;
-      if (filename.isEmpty()) {
-        builder.setStatus(Status.MESSAGE_ERROR);
-        done = true;
-      } else if (fileNameToHash.containsKey(filename) || localFiles.containsKey(fileHash)) {
-        builder.setStatus(Status.SUCCESS);
-        done = true;
-      }
+    FileInfo fileInfo = replicateRequest.getFileInfo();
+    String filename = fileInfo.getFilename();
+    ByteString fileHash = fileInfo.getHash();
 
-      if (!done) {
-        List<ChunkInfo> chunkInfoList = fileInfo.getChunksList();
-        int lastValidNodeIndex = 0;
-        MessageDigest md = MessageDigest.getInstance("MD5");
-
-        for (ChunkInfo chunkInfo : chunkInfoList) {
-          int nodeIndex = lastValidNodeIndex;
-          NodeConfiguration otherNode = otherNodes.get(nodeIndex);
-          Socket socket = new Socket(InetAddress.getByName(otherNode.getAddr()), otherNode.getPort());
-
-          ChunkRequest chunkRequest = ChunkRequest.newBuilder().
-              setFileHash(fileHash).
-              setChunkIndex(chunkInfo.getIndex()).
-              build();
-          Message chunkRequestMessage = Message.newBuilder().
-              setType(Message.Type.CHUNK_REQUEST).
-              setChunkRequest(chunkRequest).
-              build();
-
-          while (nodeIndex < otherNodes.size()) {
-            try {
-              MessageUtil.sendMessage(socket, chunkRequestMessage);
-              byte[] buffer = MessageUtil.getMessageBytes(socket);
-              if (buffer != null) {
-                ChunkResponse chunkResponseMessage = Message.parseFrom(buffer).getChunkResponse();
-                if (chunkResponseMessage.getStatus().equals(Status.SUCCESS)) {
-                  lastValidNodeIndex = nodeIndex;
-                  byte[] digest;
-                  byte[] chunkData = chunkResponseMessage.getData().toByteArray();
-                  md.update(chunkData);
-                  digest = md.digest();
-                  if (!chunkInfo.getHash().equals(ByteString.copyFrom(digest)) || chunkData.length != chunkInfo.getSize()) {
-                    logger.severe("Invalid chunk hash or chunk data size");
-                    throw new IllegalArgumentException();
-                  }
-                  List<byte[]> fileContent = localFiles.computeIfAbsent(fileHash, k -> new LinkedList<>());
-                  fileContent.add(chunkData);
-                  fileNameToHash.put(filename, fileHash);
-                  logger.fine(chunkResponseMessage.toString());
-                } else if (chunkResponseMessage.getStatus().equals(Status.UNABLE_TO_COMPLETE)) {
-                  logger.fine("Unable to get chunk " + chunkInfo + " from node " + otherNode);
-                  throw new IllegalArgumentException();
-                }
-                Node node = Node.newBuilder().setPort(otherNode.getPort()).setHost(otherNode.getAddr()).build();
-                NodeReplicationStatus nodeReplicationStatus = NodeReplicationStatus.newBuilder().
-                    setNode(node).
-                    setChunkIndex(chunkRequest.getChunkIndex()).
-                    setStatus(Status.SUCCESS).
-                    build();
-                builder.addNodeStatusList(nodeReplicationStatus);
-              }
-
-              logger.fine(fileInfo.toString());
-              break;
-            } catch (IllegalArgumentException e) {
-              nodeIndex++;
-              socket.close();
-              otherNode = otherNodes.get(nodeIndex);
-              socket = new Socket(InetAddress.getByName(otherNode.getAddr()), otherNode.getPort());
-            }
-          }
+    if (!filename.isEmpty() && isMissingChunks(fileInfo) && !store.containsFileName(filename) && !store.containsFile(fileHash)) {
+      fileInfo = getManifest(fileInfo, otherNodes, peerClient, gossipIndex);
+    }
 
-          socket.close();
+    if (filename.isEmpty()) {
+      builder.setStatus(Status.MESSAGE_ERROR);
+    } else if (store.containsFileName(filename) || store.containsFile(fileHash)) {
+      builder.setStatus(Status.SUCCESS);
+    } else if (isMissingChunks(fileInfo)) {
+      logger.warning("No node lists the chunks of " + filename);
+      builder.setStatus(Status.UNABLE_TO_COMPLETE);
+    } else if (!hasValidChunkIndexes(fileInfo)) {
+      logger.severe("Invalid chunk indexes in " + filename);
+      builder.setStatus(Status.MESSAGE_ERROR);
+    } else if (getChunksSize(fileInfo) != Integer.toUnsignedLong(fileInfo.getSize())) {
+      logger.severe("Chunk sizes of " + filename + " do not add up to " + fileInfo.getSize());
+      builder.setStatus(Status.MESSAGE_ERROR);
+    } else {
+      PendingFile pendingFile = null;
+      try {
+        pendingFile = store.resumeFile(fileHash, getChunkLayout(fileInfo));
+        List<NodeConfiguration> peers = peerClient.getPeerHealth().rank(otherNodes);
+        ReplicationJob job = new ReplicationJob(fileInfo, pendingFile, peers, peerClient,
+            settings.getReplicateBatchSize(), compressor);
+        job.prepare();
+        // room is only needed for the chunks that neither an earlier attempt nor another file brought
+        if (!store.reserve(pendingFile)) {
+          logger.warning("Not enough capacity to replicate " + filename + " (" + fileInfo.getSize() + " bytes)");
+          builder.setStatus(Status.UNABLE_TO_COMPLETE);
+        } else {
+          int window = Math.min(settings.getReplicateWindow(), job.getScheduledChunks());
+          List<Future<?>> workers = new ArrayList<>(window);
+          for (int i = 0; i < window; i++) {
+            workers.add(peerClient.getExecutor().submit(job::run));
+          }
+          for (Future<?> worker : workers) {
+            worker.get();
+          }
 
-          if (nodeIndex == otherNodes.size()) {
+          builder.addAllNodeStatusList(job.getNodeStatusList());
+          if (job.isComplete()) {
+            store.publish(filename, fileHash, pendingFile);
+            logger.info("Replicated " + filename + ": fetched " + job.getFetchedBytes() + " bytes from peers in " +
+                job.getChunkRequests() + " chunk requests (" + job.getFailedChunkRequests() + " failed), resumed " +
+                job.getResumedBytes() + " bytes, reused " + pendingFile.getReusedBytes() + " bytes already stored");
+            builder.setStatus(Status.SUCCESS);
+          } else {
+            // the chunks received so far stay in the partial file for the next attempt
+            logger.info("Replicating " + filename + " stopped with " + pendingFile.getChunkBitmap().cardinality() + " of " +
+                fileInfo.getChunksCount() + " chunks");
             builder.setStatus(Status.UNABLE_TO_COMPLETE);
-            break;
           }
         }
+      } catch (IllegalArgumentException e) {
+        logger.severe(e.getMessage());
+        builder.setStatus(Status.MESSAGE_ERROR);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        builder.setStatus(Status.PROCESSING_ERROR);
+      } catch (IOException | ExecutionException e) {
+        logger.log(Level.SEVERE, e.getMessage(), e);
+        builder.setStatus(Status.PROCESSING_ERROR);
+      } finally {
+        if (pendingFile != null) {
+          store.closeFile(fileHash, pendingFile);
+        }
       }
-    } catch (IOException e) {
-      builder.setStatus(Status.UNABLE_TO_COMPLETE);
-      logger.log(Level.SEVERE, e.getMessage(), e);
-    } catch (NoSuchAlgorithmException e) {
-      logger.log(Level.SEVERE, e.getMessage(), e);
-    }
-
-    if (builder.getNodeStatusListBuilderList().size() != replicateRequest.getFileInfo().getChunksList().size()) {
-      builder.setStatus(Status.UNABLE_TO_COMPLETE);
     }
 
     return Message.newBuilder().
@@ -123,4 +113,73 @@ public class ReplicateRequestHandler {
         build();
   }
 
+  // search results answered from the gossiped index carry no chunks
+  private static boolean isMissingChunks(FileInfo fileInfo) {
+    return fileInfo.getChunksCount() == 0 && fileInfo.getSize() != 0;
+  }
+
+  // a node that has the file lists its chunks, and the index knows which nodes have it
+  private static FileInfo getManifest(FileInfo fileInfo, List<NodeConfiguration> otherNodes, PeerClient peerClient, GossipIndex gossipIndex) {
+    List<NodeConfiguration> candidates = new ArrayList<>();
+    if (gossipIndex != null) {
+      candidates.addAll(gossipIndex.getHolders(fileInfo.getFilename(), fileInfo.getHash()));
+    }
+    for (NodeConfiguration node : peerClient.getPeerHealth().rank(otherNodes)) {
+      if (!candidates.contains(node)) {
+        candidates.add(node);
+      }
+    }
+
+    Message localSearchRequestMessage = Message.newBuilder().
+        setType(Message.Type.LOCAL_SEARCH_REQUEST).
+        setLocalSearchRequest(LocalSearchRequest.newBuilder().setRegex(Pattern.quote(fileInfo.getFilename()))).
+        build();
+    for (NodeConfiguration node : candidates) {
+      Message responseMessage;
+      try {
+        responseMessage = peerClient.request(node, localSearchRequestMessage);
+      } catch (IOException e) {
+        logger.fine("No chunk list from node " + node.getAddr() + ":" + node.getPort());
+        continue;
+      }
+      if (responseMessage == null || !responseMessage.getType().equals(Message.Type.LOCAL_SEARCH_RESPONSE)) {
+        continue;
+      }
+      for (FileInfo candidate : responseMessage.getLocalSearchResponse().getFileInfoList()) {
+        if (candidate.getHash().equals(fileInfo.getHash()) && candidate.getSize() == fileInfo.getSize() && candidate.getChunksCount() > 0) {
+          return candidate.toBuilder().setFilename(fileInfo.getFilename()).build();
+        }
+      }
+    }
+    return fileInfo;
+  }
+
+  private static long getChunksSize(FileInfo fileInfo) {
+    long size = 0;
+    for (ChunkInfo chunkInfo : fileInfo.getChunksList()) {
+      size += Integer.toUnsignedLong(chunkInfo.getSize());
+    }
+    return size;
+  }
+
+  private static ChunkLayout getChunkLayout(FileInfo fileInfo) {
+    int[] chunkSizes = new int[fileInfo.getChunksCount()];
+    for (ChunkInfo chunkInfo : fileInfo.getChunksList()) {
+      chunkSizes[chunkInfo.getIndex()] = chunkInfo.getSize();
+    }
+    return ChunkLayout.fromChunkSizes(chunkSizes);
+  }
+
+  private static boolean hasValidChunkIndexes(FileInfo fileInfo) {
+    boolean[] seen = new boolean[fileInfo.getChunksCount()];
+    for (ChunkInfo chunkInfo : fileInfo.getChunksList()) {
+      int index = chunkInfo.getIndex();
+      if (index < 0 || index >= seen.length || seen[index] || chunkInfo.getSize() < 0) {
+        return false;
+      }
+      seen[index] = true;
+    }
+    return true;
+  }
+
 }
@@ -0,0 +1,516 @@
+package handlers;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import node.*;
+import storage.PendingFile;
+import util.PayloadCompressor;
+import util.PeerClient;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+
+/**
+ * State of one replication. {@link #prepare()} keeps the chunks an earlier attempt already received, reuses the chunks
+ * this node already holds, as part of any file, and asks every peer which chunks it has. Several workers then run
+ * {@link #run()} concurrently, each one claiming the next chunks, rarest first, and asking peers for them until one of
+ * them delivers valid data.
+ * <p>
+ * A worker claims a batch of chunks at a time and asks each first holder for its share in a single
+ * ChunkBatchRequest. Chunks a batch did not deliver are then asked for one by one, as are all chunks of peers that do
+ * not know batches.
+ * <p>
+ * Each chunk is first asked of the holder with the fewest chunks assigned so far, so the load is spread over every
+ * seeder. Other holders follow healthiest first, since peers come ranked by health, then peers that did not say what
+ * they hold, and finally peers that should not have the chunk at all. Unreachable peers are not asked again.
+ * <p>
+ * With a compressor, chunks are asked for compressed and inflated before their hash is checked.
+ */
+class ReplicationJob {
+
+  private static final Logger logger = Logger.getLogger(ReplicationJob.class.getName());
+
+  private static final int PEER_OK = 0;
+  private static final int PEER_LACKING = 1;
+  private static final int PEER_UNREACHABLE = 2;
+
+  private static final int PREFER_HOLDER = 0;
+  private static final int PREFER_UNKNOWN = 1;
+  private static final int PREFER_LACKING = 2;
+
+  private final FileInfo fileInfo;
+  private final PendingFile pendingFile;
+  private final List<NodeConfiguration> peers;
+  private final PeerClient peerClient;
+  private final int batchSize;
+  private final PayloadCompressor compressor;
+
+  // what each peer said it holds, indexed by chunk index; null if it did not say
+  private final BitSet[] haveMaps;
+  private int[] schedule = new int[0];
+  private int[] firstPeers;
+
+  private final AtomicInteger nextChunk = new AtomicInteger();
+  private final AtomicInteger chunkRequests = new AtomicInteger();
+  private final AtomicInteger failedChunkRequests = new AtomicInteger();
+  private final AtomicLong fetchedBytes = new AtomicLong();
+  private long resumedBytes;
+  private final AtomicIntegerArray peerStates;
+  // 1 for peers that dropped a batch request, they only get single chunk requests
+  private final AtomicIntegerArray noBatches;
+  private final ConcurrentLinkedQueue<NodeReplicationStatus> nodeStatusList = new ConcurrentLinkedQueue<>();
+
+  ReplicationJob(FileInfo fileInfo, PendingFile pendingFile, List<NodeConfiguration> peers, PeerClient peerClient,
+                 int batchSize, PayloadCompressor compressor) {
+    this.fileInfo = fileInfo;
+    this.pendingFile = pendingFile;
+    this.peers = peers;
+    this.peerClient = peerClient;
+    this.batchSize = Math.max(1, batchSize);
+    this.compressor = compressor;
+    this.peerStates = new AtomicIntegerArray(peers.size());
+    this.noBatches = new AtomicIntegerArray(peers.size());
+    this.haveMaps = new BitSet[peers.size()];
+  }
+
+  /**
+   * Must be called once, before any worker runs.
+   */
+  void prepare() throws InterruptedException, ExecutionException {
+    List<Integer> missing = new ArrayList<>();
+    for (int position = 0; position < fileInfo.getChunksCount(); position++) {
+      ChunkInfo chunkInfo = fileInfo.getChunks(position);
+      if (pendingFile.hasChunk(chunkInfo.getIndex(), chunkInfo.getHash())) {
+        resumedBytes += chunkInfo.getSize();
+      } else if (!pendingFile.reuseChunk(chunkInfo.getIndex(), chunkInfo.getHash())) {
+        missing.add(position);
+      }
+    }
+    if (missing.isEmpty()) {
+      return;
+    }
+
+    List<Future<BitSet>> futures = new ArrayList<>(peers.size());
+    for (int peerIndex = 0; peerIndex < peers.size(); peerIndex++) {
+      int index = peerIndex;
+      futures.add(peerClient.getExecutor().submit(() -> getHaveMap(index)));
+    }
+    for (int peerIndex = 0; peerIndex < peers.size(); peerIndex++) {
+      haveMaps[peerIndex] = futures.get(peerIndex).get();
+    }
+
+    int[] holders = new int[fileInfo.getChunksCount()];
+    for (int position : missing) {
+      for (BitSet haveMap : haveMaps) {
+        if (haveMap != null && haveMap.get(fileInfo.getChunks(position).getIndex())) {
+          holders[position]++;
+        }
+      }
+    }
+    missing.sort(Comparator.comparingInt((Integer position) -> holders[position]).thenComparingInt(position -> position));
+
+    schedule = new int[missing.size()];
+    firstPeers = new int[fileInfo.getChunksCount()];
+    int[] assigned = new int[peers.size()];
+    for (int i = 0; i < schedule.length; i++) {
+      int position = missing.get(i);
+      int chunkIndex = fileInfo.getChunks(position).getIndex();
+      int firstPeer = -1;
+      for (int peerIndex = 0; peerIndex < peers.size(); peerIndex++) {
+        BitSet haveMap = haveMaps[peerIndex];
+        if (haveMap != null && haveMap.get(chunkIndex) && (firstPeer < 0 || assigned[peerIndex] < assigned[firstPeer])) {
+          firstPeer = peerIndex;
+        }
+      }
+      if (firstPeer >= 0) {
+        assigned[firstPeer]++;
+      }
+      schedule[i] = position;
+      firstPeers[position] = firstPeer;
+    }
+  }
+
+  void run() {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+
+    int next;
+    while ((next = nextChunk.getAndAdd(batchSize)) < schedule.length) {
+      List<Integer> positions = new ArrayList<>(batchSize);
+      for (int i = next; i < Math.min(next + batchSize, schedule.length); i++) {
+        ChunkInfo chunkInfo = fileInfo.getChunks(schedule[i]);
+        // a concurrent replication of the same file may have fetched it meanwhile
+        if (!pendingFile.hasChunk(chunkInfo.getIndex(), chunkInfo.getHash())) {
+          positions.add(schedule[i]);
+        }
+      }
+      if (positions.size() > 1) {
+        fetchBatches(positions, md);
+      }
+      for (int position : positions) {
+        ChunkInfo chunkInfo = fileInfo.getChunks(position);
+        if (!pendingFile.hasChunk(chunkInfo.getIndex(), chunkInfo.getHash()) &&
+            !fetchChunk(chunkInfo, firstPeers[position], md)) {
+          logger.fine("No node could deliver chunk " + chunkInfo.getIndex() + " of " + fileInfo.getFilename());
+        }
+      }
+    }
+  }
+
+  // concurrent replications of the file share the partial file, so only it knows which chunks arrived
+  boolean isComplete() {
+    return pendingFile.isComplete();
+  }
+
+  int getScheduledChunks() {
+    return schedule.length;
+  }
+
+  long getResumedBytes() {
+    return resumedBytes;
+  }
+
+  long getFetchedBytes() {
+    return fetchedBytes.get();
+  }
+
+  int getChunkRequests() {
+    return chunkRequests.get();
+  }
+
+  int getFailedChunkRequests() {
+    return failedChunkRequests.get();
+  }
+
+  List<NodeReplicationStatus> getNodeStatusList() {
+    return new ArrayList<>(nodeStatusList);
+  }
+
+  // each first holder gets one batch request for its share of the chunks
+  private void fetchBatches(List<Integer> positions, MessageDigest md) {
+    if (peers.isEmpty()) {
+      return;
+    }
+    Map<Integer, List<ChunkInfo>> batches = new LinkedHashMap<>();
+    for (int position : positions) {
+      ChunkInfo chunkInfo = fileInfo.getChunks(position);
+      int peerIndex = getFirstPeer(chunkInfo, firstPeers[position]);
+      if (noBatches.get(peerIndex) == 0 && peerStates.get(peerIndex) != PEER_UNREACHABLE &&
+          getPreference(peerIndex, chunkInfo.getIndex()) != PREFER_LACKING) {
+        batches.computeIfAbsent(peerIndex, index -> new ArrayList<>()).add(chunkInfo);
+      }
+    }
+    for (Map.Entry<Integer, List<ChunkInfo>> batch : batches.entrySet()) {
+      if (batch.getValue().size() > 1) {
+        requestBatch(batch.getKey(), batch.getValue(), md);
+      }
+    }
+  }
+
+  private int getFirstPeer(ChunkInfo chunkInfo, int firstPeer) {
+    return firstPeer >= 0 ? firstPeer : chunkInfo.getIndex() % peers.size();
+  }
+
+  private boolean fetchChunk(ChunkInfo chunkInfo, int firstPeer, MessageDigest md) {
+    int peerCount = peers.size();
+    if (peerCount == 0) {
+      return false;
+    }
+    boolean[] tried = new boolean[peerCount];
+    for (int preference = PREFER_HOLDER; preference <= PREFER_LACKING; preference++) {
+      for (int attempt = -1; attempt < peerCount; attempt++) {
+        int peerIndex = attempt >= 0 ? attempt : getFirstPeer(chunkInfo, firstPeer);
+        if (tried[peerIndex] || peerStates.get(peerIndex) == PEER_UNREACHABLE ||
+            getPreference(peerIndex, chunkInfo.getIndex()) != preference) {
+          continue;
+        }
+        tried[peerIndex] = true;
+        if (requestChunk(peerIndex, chunkInfo, md)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private int getPreference(int peerIndex, int chunkIndex) {
+    BitSet haveMap = haveMaps[peerIndex];
+    if (haveMap != null) {
+      return haveMap.get(chunkIndex) ? PREFER_HOLDER : PREFER_LACKING;
+    }
+    return peerStates.get(peerIndex) == PEER_LACKING ? PREFER_LACKING : PREFER_UNKNOWN;
+  }
+
+  /**
+   * Returns the chunks the peer holds, falling back to a local search for peers that do not know FileStatusRequest.
+   * Returns null if the peer could not tell.
+   */
+  private BitSet getHaveMap(int peerIndex) {
+    NodeConfiguration peer = peers.get(peerIndex);
+    FileStatusRequest fileStatusRequest = FileStatusRequest.newBuilder().
+        setFileHash(fileInfo.getHash()).
+        build();
+    Message fileStatusRequestMessage = Message.newBuilder().
+        setType(Message.Type.FILE_STATUS_REQUEST).
+        setFileStatusRequest(fileStatusRequest).
+        build();
+    try {
+      Message responseMessage = peerClient.request(peer, fileStatusRequestMessage);
+      if (responseMessage != null && responseMessage.getType().equals(Message.Type.FILE_STATUS_RESPONSE)) {
+        FileStatusResponse fileStatusResponse = responseMessage.getFileStatusResponse();
+        if (fileStatusResponse.getStatus().equals(Status.UNABLE_TO_COMPLETE)) {
+          return new BitSet();
+        }
+        if (fileStatusResponse.getStatus().equals(Status.SUCCESS) &&
+            fileStatusResponse.getChunkCount() == fileInfo.getChunksCount()) {
+          return BitSet.valueOf(fileStatusResponse.getChunkBitmap().asReadOnlyByteBuffer());
+        }
+      }
+      return searchHaveMap(peer);
+    } catch (InvalidProtocolBufferException e) {
+      logger.fine("Invalid file status from node " + peer.getAddr() + ":" + peer.getPort() + ": " + e.getMessage());
+      return null;
+    } catch (IOException e) {
+      peerStates.set(peerIndex, PEER_UNREACHABLE);
+      return null;
+    }
+  }
+
+  // a peer that lists the file under its name holds every chunk of it
+  private BitSet searchHaveMap(NodeConfiguration peer) throws IOException {
+    LocalSearchRequest localSearchRequest = LocalSearchRequest.newBuilder().
+        setRegex(Pattern.quote(fileInfo.getFilename())).
+        build();
+    Message localSearchRequestMessage = Message.newBuilder().
+        setType(Message.Type.LOCAL_SEARCH_REQUEST).
+        setLocalSearchRequest(localSearchRequest).
+        build();
+    Message responseMessage = peerClient.request(peer, localSearchRequestMessage);
+    if (responseMessage == null || !responseMessage.getType().equals(Message.Type.LOCAL_SEARCH_RESPONSE) ||
+        !responseMessage.getLocalSearchResponse().getStatus().equals(Status.SUCCESS)) {
+      return null;
+    }
+    BitSet haveMap = new BitSet(fileInfo.getChunksCount());
+    for (FileInfo peerFileInfo : responseMessage.getLocalSearchResponse().getFileInfoList()) {
+      if (peerFileInfo.getHash().equals(fileInfo.getHash())) {
+        haveMap.set(0, fileInfo.getChunksCount());
+      }
+    }
+    return haveMap;
+  }
+
+  private boolean requestChunk(int peerIndex, ChunkInfo chunkInfo, MessageDigest md) {
+    NodeConfiguration peer = peers.get(peerIndex);
+    ChunkRequest chunkRequest = ChunkRequest.newBuilder().
+        setFileHash(fileInfo.getHash()).
+        setChunkIndex(chunkInfo.getIndex()).
+        setAcceptDeflate(compressor != null).
+        build();
+    Message chunkRequestMessage = Message.newBuilder().
+        setType(Message.Type.CHUNK_REQUEST).
+        setChunkRequest(chunkRequest).
+        build();
+
+    chunkRequests.incrementAndGet();
+    Message responseMessage;
+    try {
+      responseMessage = peerClient.request(peer, chunkRequestMessage);
+    } catch (InvalidProtocolBufferException e) {
+      addStatus(peer, chunkInfo, Status.MESSAGE_ERROR, e.getMessage());
+      return false;
+    } catch (IOException e) {
+      peerStates.set(peerIndex, PEER_UNREACHABLE);
+      addStatus(peer, chunkInfo, Status.NETWORK_ERROR, e.getMessage());
+      return false;
+    }
+
+    if (responseMessage == null || !responseMessage.getType().equals(Message.Type.CHUNK_RESPONSE)) {
+      addStatus(peer, chunkInfo, Status.MESSAGE_ERROR, "Missing or unexpected response");
+      return false;
+    }
+
+    ChunkResponse chunkResponse = responseMessage.getChunkResponse();
+    if (!chunkResponse.getStatus().equals(Status.SUCCESS)) {
+      if (chunkResponse.getStatus().equals(Status.UNABLE_TO_COMPLETE)) {
+        peerStates.compareAndSet(peerIndex, PEER_OK, PEER_LACKING);
+      }
+      logger.fine("Unable to get chunk " + chunkInfo.getIndex() + " from node " + peer.getAddr() + ":" + peer.getPort());
+      addStatus(peer, chunkInfo, chunkResponse.getStatus(), chunkResponse.getErrorMessage());
+      return false;
+    }
+
+    return acceptChunk(peerIndex, chunkInfo, chunkResponse.getData(), chunkResponse.getDeflated(), md);
+  }
+
+  /**
+   * Asks the peer for several chunks at once. Chunks it does not deliver are left for single chunk requests, which is
+   * also all that peers get once they dropped a batch request.
+   */
+  private void requestBatch(int peerIndex, List<ChunkInfo> chunkInfos, MessageDigest md) {
+    NodeConfiguration peer = peers.get(peerIndex);
+    ChunkBatchRequest.Builder chunkBatchRequest = ChunkBatchRequest.newBuilder().
+        setFileHash(fileInfo.getHash()).
+        setAcceptDeflate(compressor != null);
+    Map<Integer, ChunkInfo> requested = new HashMap<>();
+    for (ChunkInfo chunkInfo : chunkInfos) {
+      chunkBatchRequest.addChunkIndexes(chunkInfo.getIndex());
+      requested.put(chunkInfo.getIndex(), chunkInfo);
+    }
+    Message chunkBatchRequestMessage = Message.newBuilder().
+        setType(Message.Type.CHUNK_BATCH_REQUEST).
+        setChunkBatchRequest(chunkBatchRequest).
+        build();
+
+    chunkRequests.incrementAndGet();
+    Message responseMessage;
+    try {
+      responseMessage = peerClient.request(peer, chunkBatchRequestMessage);
+    } catch (InvalidProtocolBufferException e) {
+      logger.fine("Invalid batch response from node " + peer.getAddr() + ":" + peer.getPort() + ": " + e.getMessage());
+      addBatchStatus(peer, chunkInfos, Status.MESSAGE_ERROR, e.getMessage());
+      return;
+    } catch (IOException e) {
+      peerStates.set(peerIndex, PEER_UNREACHABLE);
+      addBatchStatus(peer, chunkInfos, Status.NETWORK_ERROR, e.getMessage());
+      return;
+    }
+
+    if (responseMessage == null || !responseMessage.getType().equals(Message.Type.CHUNK_BATCH_RESPONSE)) {
+      logger.fine("Node " + peer.getAddr() + ":" + peer.getPort() + " does not know batch requests");
+      noBatches.set(peerIndex, 1);
+      addBatchStatus(peer, chunkInfos, Status.MESSAGE_ERROR, "Missing or unexpected response");
+      return;
+    }
+
+    ChunkBatchResponse chunkBatchResponse = responseMessage.getChunkBatchResponse();
+    if (!chunkBatchResponse.getStatus().equals(Status.SUCCESS)) {
+      logger.fine("Unable to get a batch of chunks from node " + peer.getAddr() + ":" + peer.getPort());
+      addBatchStatus(peer, chunkInfos, chunkBatchResponse.getStatus(), chunkBatchResponse.getErrorMessage());
+      return;
+    }
+    List<ChunkData> chunks = chunkBatchResponse.getChunksList();
+    if (!chunkBatchResponse.getDeflatedChunks().isEmpty()) {
+      try {
+        chunks = inflateChunks(chunkBatchResponse, chunkInfos);
+      } catch (DataFormatException | InvalidProtocolBufferException e) {
+        logger.severe("Invalid compressed batch from node " + peer.getAddr() + ":" + peer.getPort() + ": " + e.getMessage());
+        addBatchStatus(peer, chunkInfos, Status.MESSAGE_ERROR, e.getMessage());
+        return;
+      }
+    }
+    for (ChunkData chunkData : chunks) {
+      ChunkInfo chunkInfo = requested.remove(chunkData.getChunkIndex());
+      if (chunkInfo == null) {
+        continue;
+      }
+      if (chunkData.getStatus().equals(Status.SUCCESS)) {
+        acceptChunk(peerIndex, chunkInfo, chunkData.getData(), false, md);
+      } else {
+        if (chunkData.getStatus().equals(Status.UNABLE_TO_COMPLETE)) {
+          peerStates.compareAndSet(peerIndex, PEER_OK, PEER_LACKING);
+        }
+        addStatus(peer, chunkInfo, chunkData.getStatus(), "");
+      }
+    }
+  }
+
+  // the chunks, with their framing, can only take so much more than the data asked for
+  private List<ChunkData> inflateChunks(ChunkBatchResponse chunkBatchResponse, List<ChunkInfo> chunkInfos)
+      throws DataFormatException, InvalidProtocolBufferException {
+    long limit = 0;
+    for (ChunkInfo chunkInfo : chunkInfos) {
+      limit += chunkInfo.getSize() + 32;
+    }
+    int inflatedSize = chunkBatchResponse.getInflatedSize();
+    if (compressor == null || inflatedSize < 0 || inflatedSize > limit) {
+      throw new DataFormatException("Unexpected compressed batch of " + Integer.toUnsignedLong(inflatedSize) + " bytes");
+    }
+    ByteString chunks = compressor.inflate(chunkBatchResponse.getDeflatedChunks(), inflatedSize);
+    return ChunkBatchResponse.parseFrom(chunks).getChunksList();
+  }
+
+  // stores the chunk if it is the data the manifest describes
+  private boolean acceptChunk(int peerIndex, ChunkInfo chunkInfo, ByteString data, boolean deflated, MessageDigest md) {
+    NodeConfiguration peer = peers.get(peerIndex);
+    if (deflated) {
+      try {
+        if (compressor == null) {
+          throw new DataFormatException("Compressed data was not asked for");
+        }
+        data = compressor.inflate(data, chunkInfo.getSize());
+      } catch (DataFormatException e) {
+        logger.severe("Invalid compressed chunk " + chunkInfo.getIndex() + ": " + e.getMessage());
+        addStatus(peer, chunkInfo, Status.MESSAGE_ERROR, e.getMessage());
+        return false;
+      }
+    }
+    md.update(data.asReadOnlyByteBuffer());
+    byte[] digest = md.digest();
+    if (data.size() != chunkInfo.getSize() || !chunkInfo.getHash().equals(ByteString.copyFrom(digest))) {
+      logger.severe("Invalid chunk hash or chunk data size");
+      addStatus(peer, chunkInfo, Status.MESSAGE_ERROR, "Invalid chunk hash or chunk data size");
+      return false;
+    }
+
+    peerStates.set(peerIndex, PEER_OK);
+    try {
+      // a chunk some other file or replication brought meanwhile takes no more space
+      if (pendingFile.putChunk(chunkInfo.getIndex(), chunkInfo.getHash(), data.asReadOnlyByteBuffer())) {
+        fetchedBytes.addAndGet(data.size());
+      }
+    } catch (IOException e) {
+      logger.severe("Unable to store chunk " + chunkInfo.getIndex() + ": " + e.getMessage());
+      addStatus(peer, chunkInfo, Status.PROCESSING_ERROR, e.getMessage());
+      return false;
+    }
+    addStatus(peer, chunkInfo, Status.SUCCESS, "");
+    return true;
+  }
+
+  private void addStatus(NodeConfiguration peer, ChunkInfo chunkInfo, Status status, String errorMessage) {
+    recordStatus(peer, chunkInfo, status, errorMessage);
+    if (status != Status.SUCCESS) {
+      failedChunkRequests.incrementAndGet();
+    }
+  }
+
+  // every chunk of a batch that failed as a whole gets the status, the batch counts as one failed request
+  private void addBatchStatus(NodeConfiguration peer, List<ChunkInfo> chunkInfos, Status status, String errorMessage) {
+    for (ChunkInfo chunkInfo : chunkInfos) {
+      recordStatus(peer, chunkInfo, status, errorMessage);
+    }
+    failedChunkRequests.incrementAndGet();
+  }
+
+  private void recordStatus(NodeConfiguration peer, ChunkInfo chunkInfo, Status status, String errorMessage) {
+    Node node = Node.newBuilder().setPort(peer.getPort()).setHost(peer.getAddr()).build();
+    NodeReplicationStatus nodeReplicationStatus = NodeReplicationStatus.newBuilder().
+        setNode(node).
+        setChunkIndex(chunkInfo.getIndex()).
+        setStatus(status).
+        setErrorMessage(errorMessage == null ? "" : errorMessage).
+        build();
+    nodeStatusList.add(nodeReplicationStatus);
+  }
+}
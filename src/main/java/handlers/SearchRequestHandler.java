@@ -1,80 +1,179 @@
 package handlers;
 
-import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
 import node.*;
-import util.MessageUtil;
+import storage.ChunkStore;
+import util.FileNamePattern;
+import util.GossipIndex;
+import util.PatternCache;
+import util.PeerClient;
+import util.SearchCache;
 
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.Socket;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.PatternSyntaxException;
 
 public class SearchRequestHandler {
 
   private static final Logger logger = Logger.getLogger(SearchRequestHandler.class.getName());
 
-  public static Message handleSearchRequest(Message message, NodeConfiguration localNode, List<NodeConfiguration> otherNodes, Map<ByteString, List<byte[]>> localFiles, Map<String, ByteString> fileNameToHash) {
+  /**
+   * Shares the response of identical searches through the cache, if there is one, and answers for the nodes the
+   * gossiped index is fresh for, if there is one. Live searches skip both.
+   */
+  public static Message handleSearchRequest(Message message, NodeConfiguration localNode, List<NodeConfiguration> otherNodes, ChunkStore store, PeerClient peerClient, PatternCache patternCache, NodeSettings settings, SearchCache searchCache, GossipIndex gossipIndex) {
+    if (searchCache == null || message.getSearchRequest().getLive()) {
+      return search(message, localNode, otherNodes, store, peerClient, patternCache, settings, gossipIndex);
+    }
+    // both only grow, so their sum changes whenever either does
+    long version = store.getNamespaceVersion() + (gossipIndex == null ? 0 : gossipIndex.getVersion());
+    try {
+      return searchCache.get(message.getSearchRequest().getRegex(), version,
+          () -> search(message, localNode, otherNodes, store, peerClient, patternCache, settings, gossipIndex));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return wrap(SearchResponse.newBuilder().setStatus(Status.PROCESSING_ERROR).setErrorMessage("Interrupted"));
+    }
+  }
+
+  public static Message handleSearchRequest(Message message, NodeConfiguration localNode, List<NodeConfiguration> otherNodes, ChunkStore store, PeerClient peerClient, PatternCache patternCache, NodeSettings settings) {
+    return search(message, localNode, otherNodes, store, peerClient, patternCache, settings, null);
+  }
+
+  private static Message search(Message message, NodeConfiguration localNode, List<NodeConfiguration> otherNodes, ChunkStore store, PeerClient peerClient, PatternCache patternCache, NodeSettings settings, GossipIndex gossipIndex) {
     SearchResponse.Builder builder = SearchResponse.newBuilder();
 
+    SearchRequest searchRequest = message.getSearchRequest();
+    String regex = searchRequest.getRegex();
+    boolean live = searchRequest.getLive() || gossipIndex == null;
+
+    FileNamePattern fileNamePattern;
     try {
-      SearchRequest searchRequest = message.getSearchRequest();
-      String regex = searchRequest.getRegex();
-
-      LocalSearchRequest localSearchRequest = LocalSearchRequest.newBuilder().
-          setRegex(regex).
-          build();
-      Message localSearchRequestMessage = Message.newBuilder().
-          setType(Message.Type.LOCAL_SEARCH_REQUEST).
-          setLocalSearchRequest(localSearchRequest).
-          build();
-
-      for (int nodeIndex = 0; nodeIndex < otherNodes.size(); nodeIndex++) {
-        NodeConfiguration otherNode = otherNodes.get(nodeIndex);
-
-        Socket socket = new Socket(InetAddress.getByName(otherNode.getAddr()), otherNode.getPort());
-        MessageUtil.sendMessage(socket, localSearchRequestMessage);
-        byte[] buffer = MessageUtil.getMessageBytes(socket);
-        if (buffer != null) {
-          LocalSearchResponse localSearchResponse = Message.parseFrom(buffer).getLocalSearchResponse();
-          if (localSearchResponse.getStatus().equals(Status.SUCCESS)) {
-            addSearchResult(otherNode, builder, localSearchResponse);
-          } else if (localSearchResponse.getStatus().equals(Status.UNABLE_TO_COMPLETE)) {
-            logger.fine("No search result from node " + otherNode);
-          }
-        }
+      fileNamePattern = patternCache.get(regex);
+    } catch (PatternSyntaxException e) {
+      logger.fine("Invalid regex " + regex);
+      builder.setStatus(Status.MESSAGE_ERROR).setErrorMessage(e.getDescription());
+      return wrap(builder);
+    }
+
+    LocalSearchRequest localSearchRequest = LocalSearchRequest.newBuilder().
+        setRegex(regex).
+        build();
+    Message localSearchRequestMessage = Message.newBuilder().
+        setType(Message.Type.LOCAL_SEARCH_REQUEST).
+        setLocalSearchRequest(localSearchRequest).
+        build();
+
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(settings.getSearchDeadlineMillis());
+    int nodeTimeout = settings.getSearchNodeTimeoutMillis();
+    List<Future<NodeSearchResult>> futures = new ArrayList<>(otherNodes.size());
+    for (NodeConfiguration otherNode : otherNodes) {
+      if (live || !gossipIndex.isFresh(otherNode)) {
+        futures.add(peerClient.getExecutor().submit(() -> searchNode(otherNode, localSearchRequestMessage, peerClient, nodeTimeout)));
+      } else {
+        futures.add(null);
       }
+    }
 
-      Message localSearchResponseMessage = LocalSearchRequestHandler.handleLocalSearchRequest(localSearchRequestMessage, localFiles, fileNameToHash);
+    Message localSearchResponseMessage = LocalSearchRequestHandler.handleLocalSearchRequest(localSearchRequestMessage, store, patternCache, settings);
+    if (localSearchResponseMessage != null) {
       LocalSearchResponse localSearchResponse = localSearchResponseMessage.getLocalSearchResponse();
-      if (localSearchResponse.getStatus().equals(Status.SUCCESS)) {
-        addSearchResult(localNode, builder, localSearchResponse);
+      builder.addResults(getSearchResult(localNode, localSearchResponse));
+    }
+
+    for (int nodeIndex = 0; nodeIndex < otherNodes.size(); nodeIndex++) {
+      NodeConfiguration otherNode = otherNodes.get(nodeIndex);
+      Future<NodeSearchResult> future = futures.get(nodeIndex);
+      NodeSearchResult nodeSearchResult;
+      if (future == null) {
+        builder.addResults(searchIndex(otherNode, fileNamePattern, gossipIndex, settings));
+        continue;
+      }
+      try {
+        nodeSearchResult = future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+      } catch (TimeoutException e) {
+        future.cancel(true);
+        nodeSearchResult = getErrorResult(otherNode, Status.NETWORK_ERROR, "Search deadline exceeded");
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        future.cancel(true);
+        nodeSearchResult = getErrorResult(otherNode, Status.PROCESSING_ERROR, "Interrupted");
+      } catch (ExecutionException e) {
+        logger.log(Level.SEVERE, e.getMessage(), e);
+        nodeSearchResult = getErrorResult(otherNode, Status.PROCESSING_ERROR, String.valueOf(e.getCause()));
       }
+      builder.addResults(nodeSearchResult);
+    }
+
+    builder.setStatus(Status.SUCCESS);
+    return wrap(builder);
+  }
 
-      builder.setStatus(Status.SUCCESS);
+  private static NodeSearchResult searchNode(NodeConfiguration otherNode, Message localSearchRequestMessage, PeerClient peerClient, int nodeTimeout) {
+    Message responseMessage;
+    try {
+      responseMessage = peerClient.request(otherNode, localSearchRequestMessage, nodeTimeout, nodeTimeout);
+    } catch (InvalidProtocolBufferException e) {
+      return getErrorResult(otherNode, Status.MESSAGE_ERROR, e.getMessage());
     } catch (IOException e) {
-      logger.log(Level.SEVERE, e.getMessage());
-      builder.setStatus(Status.PROCESSING_ERROR);
+      logger.fine("No search result from node " + otherNode.getAddr() + ":" + otherNode.getPort());
+      return getErrorResult(otherNode, Status.NETWORK_ERROR, e.getMessage());
+    }
+    if (responseMessage == null || !responseMessage.getType().equals(Message.Type.LOCAL_SEARCH_RESPONSE)) {
+      return getErrorResult(otherNode, Status.MESSAGE_ERROR, "Missing or unexpected response");
     }
+    return getSearchResult(otherNode, responseMessage.getLocalSearchResponse());
+  }
 
-    return Message.newBuilder().
-        setType(Message.Type.SEARCH_RESPONSE).
-        setSearchResponse(builder.build()).
-        build();
+  private static NodeSearchResult searchIndex(NodeConfiguration otherNode, FileNamePattern fileNamePattern, GossipIndex gossipIndex, NodeSettings settings) {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(settings.getSearchRegexBudgetMillis());
+    List<String> candidates = gossipIndex.getFileNameCandidates(otherNode, fileNamePattern.getPrefix(), fileNamePattern.getLiteral());
+    try {
+      List<FileInfo> fileInfos = LocalSearchRequestHandler.match(fileNamePattern, candidates,
+          fileName -> gossipIndex.getFileInfo(otherNode, fileName), deadline);
+      return getSearchResult(otherNode, LocalSearchResponse.newBuilder().
+          setStatus(Status.SUCCESS).
+          addAllFileInfo(fileInfos).
+          build());
+    } catch (LocalSearchRequestHandler.BudgetExceededException e) {
+      logger.warning("Regex " + fileNamePattern.getPattern() + " exceeded the search time budget");
+      return getErrorResult(otherNode, Status.PROCESSING_ERROR, "Search time budget exceeded");
+    }
   }
 
-  private static void addSearchResult(NodeConfiguration nodeConfiguration, SearchResponse.Builder builder, LocalSearchResponse localSearchResponse) {
+  private static NodeSearchResult getSearchResult(NodeConfiguration nodeConfiguration, LocalSearchResponse localSearchResponse) {
     Node node = Node.newBuilder().setPort(nodeConfiguration.getPort()).setHost(nodeConfiguration.getAddr()).build();
     List<FileInfo> fileInfos = localSearchResponse.getFileInfoList();
     logger.fine("Found " + fileInfos.toString() + " on " + node);
-    NodeSearchResult nodeSearchResult = NodeSearchResult.newBuilder().
+    return NodeSearchResult.newBuilder().
         setNode(node).
-        setStatus(Status.SUCCESS).
+        setStatus(localSearchResponse.getStatus()).
+        setErrorMessage(localSearchResponse.getErrorMessage()).
         addAllFiles(fileInfos).
         build();
-    builder.addResults(nodeSearchResult);
+  }
+
+  private static NodeSearchResult getErrorResult(NodeConfiguration nodeConfiguration, Status status, String errorMessage) {
+    Node node = Node.newBuilder().setPort(nodeConfiguration.getPort()).setHost(nodeConfiguration.getAddr()).build();
+    return NodeSearchResult.newBuilder().
+        setNode(node).
+        setStatus(status).
+        setErrorMessage(errorMessage == null ? "" : errorMessage).
+        build();
+  }
+
+  private static Message wrap(SearchResponse.Builder builder) {
+    return Message.newBuilder().
+        setType(Message.Type.SEARCH_RESPONSE).
+        setSearchResponse(builder.build()).
+        build();
   }
 
 }
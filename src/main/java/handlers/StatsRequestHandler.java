@@ -0,0 +1,96 @@
+package handlers;
+
+import node.LatencyStats;
+import node.Message;
+import node.MessageStats;
+import node.Node;
+import node.NodeConfiguration;
+import node.PeerStats;
+import node.Status;
+import node.StatsResponse;
+import storage.ChunkStore;
+import util.ChunkResponseCache;
+import util.LatencyHistogram;
+import util.NodeMetrics;
+import util.PayloadCompressor;
+import util.PeerHealth;
+import util.RequestMetrics;
+import util.SearchCache;
+
+import java.util.Map;
+
+public class StatsRequestHandler {
+
+  public static Message handleStatsRequest(Message message, NodeMetrics metrics, ChunkStore store,
+                                           ChunkResponseCache chunkCache, SearchCache searchCache, PayloadCompressor compressor,
+                                           PeerHealth peerHealth) {
+    StatsResponse.Builder builder = StatsResponse.newBuilder().
+        setStatus(Status.SUCCESS).
+        setBytesIn(metrics.getBytesIn()).
+        setBytesOut(metrics.getBytesOut()).
+        setActiveConnections((int) metrics.getActiveConnections()).
+        setFileCount(store.getFileCount()).
+        setLogicalBytes(store.getLogicalBytes()).
+        setStoredBytes(store.getStoredBytes()).
+        setPartialBytes(store.getPartialBytes()).
+        setSpilledBytes(store.getSpilledBytes()).
+        setEvictedFiles(store.getEvictedFiles()).
+        setQueueWait(getLatencyStats(metrics.getQueueWait()));
+    if (chunkCache != null) {
+      builder.setChunkCacheHits(chunkCache.getHits()).
+          setChunkCacheMisses(chunkCache.getMisses());
+    }
+    if (searchCache != null) {
+      builder.setSearchCacheHits(searchCache.getHits()).
+          setSearchesCoalesced(searchCache.getCoalesced()).
+          setSearchCacheMisses(searchCache.getMisses());
+    }
+    if (compressor != null) {
+      builder.setDeflatedBytes(compressor.getDeflatedBytes()).
+          setDeflatedWireBytes(compressor.getDeflatedWireBytes()).
+          setIncompressibleBytes(compressor.getIncompressibleBytes()).
+          setDeflateMicros(compressor.getDeflateMicros()).
+          setInflatedBytes(compressor.getInflatedBytes()).
+          setInflateMicros(compressor.getInflateMicros());
+    }
+
+    for (Message.Type type : Message.Type.values()) {
+      if (type == Message.Type.UNRECOGNIZED) {
+        continue;
+      }
+      RequestMetrics requestMetrics = metrics.getRequestMetrics(type);
+      if (requestMetrics != null && requestMetrics.getCount() > 0) {
+        builder.addMessages(MessageStats.newBuilder().
+            setType(type).
+            setLatency(getLatencyStats(requestMetrics)));
+      }
+    }
+
+    for (Map.Entry<NodeConfiguration, RequestMetrics> entry : metrics.getPeerMetrics().entrySet()) {
+      NodeConfiguration peer = entry.getKey();
+      builder.addPeers(PeerStats.newBuilder().
+          setNode(Node.newBuilder().setHost(peer.getAddr()).setPort(peer.getPort())).
+          setAvailable(peerHealth.isAvailable(peer)).
+          setLatency(getLatencyStats(entry.getValue())));
+    }
+
+    return Message.newBuilder().
+        setType(Message.Type.STATS_RESPONSE).
+        setStatsResponse(builder.build()).
+        build();
+  }
+
+  private static LatencyStats getLatencyStats(RequestMetrics requestMetrics) {
+    LatencyHistogram latencies = requestMetrics.getLatencies();
+    return LatencyStats.newBuilder().
+        setCount(latencies.getCount()).
+        setErrors(requestMetrics.getErrors()).
+        setMeanMicros((long) (latencies.getMean() / 1000)).
+        setP50Micros(latencies.getPercentile(0.5) / 1000).
+        setP99Micros(latencies.getPercentile(0.99) / 1000).
+        setP999Micros(latencies.getPercentile(0.999) / 1000).
+        setMaxMicros(latencies.getMax() / 1000).
+        build();
+  }
+
+}
@@ -1,14 +1,14 @@
 package handlers;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
 import node.*;
-import util.ChunkInfoUtil;
+import storage.ChunkStore;
+import storage.ChunkingWriter;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
+import java.io.IOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -16,47 +16,121 @@ public class UploadRequestHandler {
 
   private static final Logger logger = Logger.getLogger(UploadRequestHandler.class.getName());
 
-  public static Message handleUploadRequest(Message message, Map<ByteString, List<byte[]>> localFiles, Map<String, ByteString> fileNameToHash) {
-    UploadResponse.Builder builder = UploadResponse.newBuilder();
+  // large enough for the chunks of each read to be hashed in parallel
+  private static final int READ_SIZE = 256 * 1024;
 
+  public static Message handleUploadRequest(Message message, ChunkStore store) {
     UploadRequest uploadRequest = message.getUploadRequest();
     String fileName = uploadRequest.getFilename();
 
-    if (fileName == null || fileName.isEmpty()) {
+    ChunkingWriter writer = null;
+    IOException error = null;
+    if (!fileName.isEmpty() && !store.containsFileName(fileName)) {
+      ByteString data = uploadRequest.getData();
+      try {
+        writer = store.createWriter(data.size());
+        writer.write(data.asReadOnlyByteBuffer());
+      } catch (IOException e) {
+        error = e;
+      }
+    }
+    return getResponse(fileName, writer, error, store);
+  }
+
+  /**
+   * Handles an UploadRequest that is still being received. The stream must be limited to the UploadRequest itself;
+   * the data is written into storage as it is read, so memory use does not depend on the size of the file.
+   */
+  public static Message handleUploadStream(CodedInputStream in, ChunkStore store) throws IOException {
+    String fileName = "";
+    ChunkingWriter writer = null;
+    IOException error = null;
+
+    try {
+      int tag;
+      while ((tag = in.readTag()) != 0) {
+        boolean lengthDelimited = WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED;
+        int fieldNumber = WireFormat.getTagFieldNumber(tag);
+        if (lengthDelimited && fieldNumber == UploadRequest.FILENAME_FIELD_NUMBER) {
+          fileName = in.readStringRequireUtf8();
+        } else if (lengthDelimited && fieldNumber == UploadRequest.DATA_FIELD_NUMBER) {
+          int size = in.readRawVarint32();
+          if (size < 0 || size > in.getBytesUntilLimit()) {
+            throw new InvalidProtocolBufferException("Invalid upload data size " + size);
+          }
+          if (writer != null) {
+            store.discard(writer.getPendingFile());
+          }
+          writer = null;
+          if (!fileName.isEmpty() && store.containsFileName(fileName)) {
+            in.skipRawBytes(size);
+            continue;
+          }
+          writer = store.createWriter(size);
+          while (size > 0) {
+            int length = Math.min(size, READ_SIZE);
+            byte[] bytes = in.readRawBytes(length);
+            size -= length;
+            try {
+              writer.write(bytes, 0, length);
+            } catch (IOException e) {
+              error = e;
+              store.discard(writer.getPendingFile());
+              writer = null;
+              in.skipRawBytes(size);
+              break;
+            }
+          }
+        } else {
+          in.skipField(tag);
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      if (writer != null) {
+        store.discard(writer.getPendingFile());
+      }
+      throw e;
+    }
+    return getResponse(fileName, writer, error, store);
+  }
+
+  private static Message getResponse(String fileName, ChunkingWriter writer, IOException error, ChunkStore store) {
+    UploadResponse.Builder builder = UploadResponse.newBuilder();
+
+    if (fileName.isEmpty()) {
       logger.severe("Filename is empty");
       builder.setStatus(Status.MESSAGE_ERROR);
-    } else if (fileNameToHash.containsKey(fileName)) {
+    } else if (store.containsFileName(fileName)) {
       logger.fine("Already have the file");
       builder.setStatus(Status.SUCCESS);
     } else {
       try {
+        if (error != null) {
+          throw error;
+        }
+        if (writer == null) {
+          // proto3 leaves out empty data
+          writer = store.createWriter(0);
+        }
 
-        ByteString data = uploadRequest.getData();
-        byte[] bytes = data.toByteArray();
-
-        MessageDigest md = MessageDigest.getInstance("MD5");
-        byte[] digest;
-        md.update(bytes);
-        digest = md.digest();
-        List<byte[]> fileContent = new LinkedList<>();
-        localFiles.put(ByteString.copyFrom(digest), fileContent);
-        fileNameToHash.put(fileName, ByteString.copyFrom(digest));
-
-        List<ChunkInfo> chunkInfos = ChunkInfoUtil.getChunkInfos(bytes, fileContent);
-
-        FileInfo fileInfo = FileInfo.newBuilder().
-            setHash(ByteString.copyFrom(digest)).
-            setSize(data.size()).
-            setFilename(fileName).
-            addAllChunks(chunkInfos).
-            build();
+        ByteString fileHash = writer.getFileHash();
+        if (store.containsFile(fileHash)) {
+          store.publishUploadName(fileName, fileHash);
+        } else {
+          store.publishUpload(fileName, fileHash, writer.getPendingFile());
+        }
 
         builder.setStatus(Status.SUCCESS);
-        builder.setFileInfo(fileInfo);
-      } catch (NoSuchAlgorithmException e) {
-        logger.log(Level.SEVERE, e.getMessage());
+        builder.setFileInfo(store.getFileInfo(fileName));
+      } catch (IOException e) {
+        logger.log(Level.SEVERE, e.getMessage(), e);
+        builder.setStatus(Status.PROCESSING_ERROR).setErrorMessage(String.valueOf(e.getMessage()));
       }
     }
+    // a published file already gave its room back, any other one will never be published
+    if (writer != null) {
+      store.discard(writer.getPendingFile());
+    }
 
     return Message.newBuilder().
         setType(Message.Type.UPLOAD_RESPONSE).
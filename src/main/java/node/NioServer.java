@@ -0,0 +1,429 @@
+package node;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import util.MessageUtil;
+import util.NodeMetrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Selector based front end. A single thread accepts connections and reads the length prefixed frames without
+ * blocking; complete messages are handed to a worker and the response is written back by the selector thread, so a
+ * slow client only costs its buffers, never a thread. Frames too large to buffer are handed to a worker as soon as
+ * they start and fed to it through a small pipe; reading from the client pauses whenever the worker falls behind.
+ */
+public class NioServer {
+
+  private static final Logger logger = Logger.getLogger(NioServer.class.getName());
+
+  public interface MessageHandler {
+    Message handle(String client, Message message);
+  }
+
+  public interface StreamHandler {
+    Message handle(String client, InputStream inputStream) throws IOException;
+  }
+
+  private static final int PIPE_SIZE = 64 * 1024;
+
+  private final ServerSocketChannel serverChannel;
+  private final Selector selector;
+  private final MessageHandler handler;
+  private final Function<Message, byte[]> cachedResponses;
+  private final Function<Message, ExecutorService> executors;
+  private final StreamHandler streamHandler;
+  private final ExecutorService streamExecutor;
+  private final NodeMetrics metrics;
+  private final int maxFrameSize;
+  private final boolean keepAlive;
+  private final long idleTimeoutNanos;
+  private final Queue<Connection> completedResponses = new ConcurrentLinkedQueue<>();
+  private final Queue<Connection> resumedReads = new ConcurrentLinkedQueue<>();
+
+  public NioServer(InetSocketAddress address, int backlog, boolean keepAlive, int idleTimeoutMillis, int maxFrameSize,
+                   MessageHandler handler, Function<Message, byte[]> cachedResponses, Function<Message, ExecutorService> executors,
+                   StreamHandler streamHandler, ExecutorService streamExecutor, NodeMetrics metrics) throws IOException {
+    this.serverChannel = ServerSocketChannel.open();
+    this.serverChannel.bind(address, backlog);
+    this.serverChannel.configureBlocking(false);
+    this.selector = Selector.open();
+    this.serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    this.handler = handler;
+    this.cachedResponses = cachedResponses;
+    this.executors = executors;
+    this.streamHandler = streamHandler;
+    this.streamExecutor = streamExecutor;
+    this.metrics = metrics;
+    this.maxFrameSize = maxFrameSize;
+    this.keepAlive = keepAlive;
+    this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+  }
+
+  public InetSocketAddress getLocalAddress() throws IOException {
+    return (InetSocketAddress) serverChannel.getLocalAddress();
+  }
+
+  public void listen() throws IOException {
+    long lastSweep = System.nanoTime();
+    while (serverChannel.isOpen()) {
+      selector.select(1000);
+
+      Connection completed;
+      while ((completed = completedResponses.poll()) != null) {
+        write(completed);
+      }
+
+      Connection resumed;
+      while ((resumed = resumedReads.poll()) != null) {
+        if (resumed.key.isValid() && resumed.pipe != null && resumed.pipe.wantsData()) {
+          resumed.lastActivity = System.nanoTime();
+          resumed.key.interestOps(SelectionKey.OP_READ);
+        }
+      }
+
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+        if (!key.isValid()) {
+          continue;
+        }
+        try {
+          if (key.isAcceptable()) {
+            accept();
+          } else {
+            Connection connection = (Connection) key.attachment();
+            if (key.isReadable()) {
+              read(connection);
+            } else if (key.isWritable()) {
+              write(connection);
+            }
+          }
+        } catch (IOException e) {
+          logger.log(Level.FINE, e.getMessage());
+          close(key);
+        }
+      }
+
+      long now = System.nanoTime();
+      if (now - lastSweep > TimeUnit.SECONDS.toNanos(1)) {
+        closeIdleConnections(now);
+        lastSweep = now;
+      }
+    }
+  }
+
+  public void close() throws IOException {
+    serverChannel.close();
+    selector.wakeup();
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel;
+    while ((channel = serverChannel.accept()) != null) {
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+      key.attach(new Connection(key, channel));
+      metrics.connectionOpened();
+      logger.fine("New connection from " + channel.socket().getInetAddress().getHostAddress());
+    }
+  }
+
+  private void read(Connection connection) throws IOException {
+    connection.lastActivity = System.nanoTime();
+    if (connection.header.hasRemaining()) {
+      int headerBytes = connection.channel.read(connection.header);
+      if (headerBytes == -1) {
+        close(connection.key);
+        return;
+      }
+      metrics.recordBytesIn(headerBytes);
+      if (connection.header.hasRemaining()) {
+        return;
+      }
+      int messageSize = ((ByteBuffer) connection.header.flip()).getInt();
+      if (messageSize < 0 || messageSize > maxFrameSize) {
+        throw new IOException("Invalid message size " + messageSize);
+      }
+      if (messageSize > MessageUtil.BUFFERED_FRAME_SIZE) {
+        FramePipe pipe = new FramePipe(connection, messageSize);
+        connection.pipe = pipe;
+        long queued = System.nanoTime();
+        streamExecutor.execute(() -> dispatchStream(connection, pipe, queued));
+      } else {
+        connection.body = ByteBuffer.allocate(messageSize);
+      }
+    }
+    if (connection.pipe != null) {
+      int pipeBytes = connection.pipe.fill();
+      if (pipeBytes == -1) {
+        close(connection.key);
+        return;
+      }
+      metrics.recordBytesIn(pipeBytes);
+      if (!connection.pipe.wantsData()) {
+        connection.key.interestOps(0);
+      }
+      return;
+    }
+    if (connection.body.hasRemaining()) {
+      int bodyBytes = connection.channel.read(connection.body);
+      if (bodyBytes == -1) {
+        close(connection.key);
+        return;
+      }
+      metrics.recordBytesIn(bodyBytes);
+    }
+    if (connection.body.hasRemaining()) {
+      return;
+    }
+
+    Message message;
+    try {
+      message = MessageUtil.parseMessage(connection.body.array());
+    } catch (InvalidProtocolBufferException e) {
+      logger.log(Level.SEVERE, connection.client + " " + e.getMessage());
+      close(connection.key);
+      return;
+    }
+    connection.body = null;
+    // a response that is already serialized goes out right away instead of waiting for a worker
+    byte[] cached = cachedResponses.apply(message);
+    if (cached != null) {
+      connection.response = new ByteBuffer[]{ByteBuffer.wrap(cached)};
+      write(connection);
+      return;
+    }
+    connection.key.interestOps(0);
+    long queued = System.nanoTime();
+    executors.apply(message).execute(() -> dispatch(connection, message, queued));
+  }
+
+  private void dispatch(Connection connection, Message message, long queued) {
+    metrics.recordQueueWait(System.nanoTime() - queued);
+    try {
+      Message responseMessage = handler.handle(connection.client, message);
+      connection.response = responseMessage == null ? null : toFrameBuffers(responseMessage);
+    } catch (IOException | RuntimeException e) {
+      logger.log(Level.SEVERE, e.getMessage(), e);
+      connection.response = null;
+    }
+    completedResponses.add(connection);
+    selector.wakeup();
+  }
+
+  private void dispatchStream(Connection connection, FramePipe pipe, long queued) {
+    metrics.recordQueueWait(System.nanoTime() - queued);
+    try {
+      Message responseMessage = streamHandler.handle(connection.client, pipe);
+      // a frame that was not read to the end leaves the connection out of step, so it is closed instead
+      connection.response = responseMessage == null || !pipe.isConsumed() ? null : toFrameBuffers(responseMessage);
+    } catch (IOException | RuntimeException e) {
+      logger.log(Level.SEVERE, connection.client + " " + e.getMessage());
+      connection.response = null;
+    }
+    completedResponses.add(connection);
+    selector.wakeup();
+  }
+
+  // every response on a kept-alive connection says so, or the other node would not send another request on it
+  private ByteBuffer[] toFrameBuffers(Message responseMessage) throws IOException {
+    return MessageUtil.toFrameBuffers(keepAlive ? MessageUtil.withKeepAlive(responseMessage) : responseMessage);
+  }
+
+  private void write(Connection connection) {
+    SelectionKey key = connection.key;
+    if (!key.isValid()) {
+      return;
+    }
+    if (connection.response == null) {
+      close(key);
+      return;
+    }
+    ByteBuffer[] response = connection.response;
+    try {
+      long written = connection.channel.write(response, connection.responseIndex, response.length - connection.responseIndex);
+      metrics.recordBytesOut(written);
+    } catch (IOException e) {
+      logger.log(Level.FINE, e.getMessage());
+      close(key);
+      return;
+    }
+    connection.lastActivity = System.nanoTime();
+    // a download may be split over many chunk buffers, so later writes skip the ones already sent
+    while (connection.responseIndex < response.length - 1 && !response[connection.responseIndex].hasRemaining()) {
+      connection.responseIndex++;
+    }
+    if (response[response.length - 1].hasRemaining()) {
+      key.interestOps(SelectionKey.OP_WRITE);
+    } else if (keepAlive) {
+      connection.response = null;
+      connection.responseIndex = 0;
+      connection.pipe = null;
+      connection.header.clear();
+      key.interestOps(SelectionKey.OP_READ);
+    } else {
+      close(key);
+    }
+  }
+
+  private void closeIdleConnections(long now) {
+    for (SelectionKey key : selector.keys()) {
+      Object attachment = key.attachment();
+      if (attachment instanceof Connection) {
+        Connection connection = (Connection) attachment;
+        // interestOps is 0 while a worker is handling the message
+        if (key.isValid() && key.interestOps() != 0 && now - connection.lastActivity > idleTimeoutNanos) {
+          logger.fine(connection.client + " idle, closing");
+          close(key);
+        }
+      }
+    }
+  }
+
+  private void close(SelectionKey key) {
+    Object attachment = key.attachment();
+    if (attachment instanceof Connection) {
+      if (((Connection) attachment).pipe != null) {
+        ((Connection) attachment).pipe.fail();
+      }
+      if (key.isValid()) {
+        metrics.connectionClosed();
+      }
+    }
+    key.cancel();
+    try {
+      key.channel().close();
+    } catch (IOException e) {
+      logger.log(Level.FINE, e.getMessage());
+    }
+  }
+
+  private static class Connection {
+    private final SelectionKey key;
+    private final SocketChannel channel;
+    private final String client;
+    private final ByteBuffer header = ByteBuffer.allocate(4);
+    private ByteBuffer body;
+    private FramePipe pipe;
+    private volatile ByteBuffer[] response;
+    private int responseIndex;
+    private long lastActivity = System.nanoTime();
+
+    Connection(SelectionKey key, SocketChannel channel) {
+      this.key = key;
+      this.channel = channel;
+      this.client = String.valueOf(channel.socket().getRemoteSocketAddress());
+    }
+  }
+
+  /**
+   * Body of a large frame on its way from the selector thread to a worker.
+   */
+  private class FramePipe extends InputStream {
+
+    private final Connection connection;
+    private final byte[] ring = new byte[PIPE_SIZE];
+    private int head;
+    private int count;
+    // bytes of the frame not yet read from the client, and not yet read by the worker
+    private int unreceived;
+    private int unconsumed;
+    private boolean paused;
+    private boolean failed;
+
+    FramePipe(Connection connection, int size) {
+      this.connection = connection;
+      this.unreceived = size;
+      this.unconsumed = size;
+    }
+
+    synchronized int fill() throws IOException {
+      int tail = (head + count) % ring.length;
+      int length = Math.min(Math.min(ring.length - count, ring.length - tail), unreceived);
+      int bytesRead = length == 0 ? 0 : connection.channel.read(ByteBuffer.wrap(ring, tail, length));
+      if (bytesRead > 0) {
+        count += bytesRead;
+        unreceived -= bytesRead;
+        notifyAll();
+      }
+      if (unreceived > 0 && count == ring.length) {
+        paused = true;
+      }
+      return bytesRead;
+    }
+
+    synchronized boolean wantsData() {
+      return unreceived > 0 && !paused;
+    }
+
+    synchronized boolean isConsumed() {
+      return unconsumed == 0;
+    }
+
+    synchronized void fail() {
+      failed = true;
+      notifyAll();
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (unconsumed == 0) {
+        return -1;
+      }
+      while (count == 0) {
+        if (failed) {
+          throw new IOException("Connection closed with " + unconsumed + " bytes of the message missing");
+        }
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        }
+      }
+      int length = Math.min(len, Math.min(count, ring.length - head));
+      System.arraycopy(ring, head, b, off, length);
+      head = (head + length) % ring.length;
+      count -= length;
+      unconsumed -= length;
+      if (paused && count <= ring.length / 2) {
+        paused = false;
+        resumedReads.add(connection);
+        selector.wakeup();
+      }
+      return length;
+    }
+
+    @Override
+    public synchronized int available() {
+      return count;
+    }
+  }
+}
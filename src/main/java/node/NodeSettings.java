@@ -0,0 +1,245 @@
+package node;
+
+import storage.EvictionPolicy;
+
+import java.util.Properties;
+
+public class NodeSettings {
+
+  private static final String replicateWindowKey = "replicate-window";
+  private static final String replicateBatchSizeKey = "replicate-batch-size";
+  private static final String connectTimeoutKey = "connect-timeout-ms";
+  private static final String readTimeoutKey = "read-timeout-ms";
+  private static final String searchNodeTimeoutKey = "search-node-timeout-ms";
+  private static final String searchDeadlineKey = "search-deadline-ms";
+  private static final String searchCacheTtlKey = "search-cache-ttl-ms";
+  private static final String searchCacheSizeKey = "search-cache-size";
+  private static final String gossipIntervalKey = "gossip-interval-ms";
+  private static final String gossipFanoutKey = "gossip-fanout";
+  private static final String gossipStaleKey = "gossip-stale-ms";
+  private static final String keepAliveKey = "keep-alive";
+  private static final String keepAliveIdleTimeoutKey = "keep-alive-idle-timeout-ms";
+  private static final String keepAlivePoolSizeKey = "keep-alive-pool-size";
+  private static final String serverModeKey = "server-mode";
+  private static final String workerThreadsKey = "worker-threads";
+  private static final String storageDirKey = "storage-dir";
+  private static final String storageSegmentSizeKey = "storage-segment-size-mb";
+  private static final String storageOffHeapKey = "storage-off-heap";
+  private static final String storageCapacityKey = "storage-capacity-mb";
+  private static final String evictionPolicyKey = "eviction-policy";
+  private static final String pinUploadsKey = "pin-uploads";
+  private static final String spillDirKey = "spill-dir";
+  private static final String partialFileTtlKey = "partial-file-ttl-ms";
+  private static final String maxFrameSizeKey = "max-frame-size-mb";
+  private static final String regexCacheSizeKey = "regex-cache-size";
+  private static final String chunkCacheSizeKey = "chunk-cache-size-mb";
+  private static final String compressionKey = "compression";
+  private static final String searchRegexBudgetKey = "search-regex-budget-ms";
+  private static final String circuitFailureThresholdKey = "circuit-failure-threshold";
+  private static final String circuitProbeIntervalKey = "circuit-probe-interval-ms";
+
+  private int replicateWindow = 8;
+  private int replicateBatchSize = 256;
+  private int connectTimeoutMillis = 1000;
+  private int readTimeoutMillis = 5000;
+  private int searchNodeTimeoutMillis = 1000;
+  private int searchDeadlineMillis = 2000;
+  private int searchCacheTtlMillis = 1000;
+  private int searchCacheSize = 256;
+  private int gossipIntervalMillis = 1000;
+  private int gossipFanout = 2;
+  private int gossipStaleMillis = 5000;
+  private boolean keepAlive = false;
+  private int keepAliveIdleTimeoutMillis = 30000;
+  private int keepAlivePoolSize = 8;
+  private String serverMode = "nio";
+  private int workerThreads = Runtime.getRuntime().availableProcessors();
+  private String storageDir = "";
+  private int storageSegmentSizeMegabytes = 256;
+  private boolean storageOffHeap = false;
+  private int storageCapacityMegabytes = 0;
+  private String evictionPolicy = "lru";
+  private boolean pinUploads = true;
+  private String spillDir = "";
+  private int partialFileTtlMillis = 600000;
+  private int maxFrameSizeMegabytes = 1024;
+  private int regexCacheSize = 256;
+  private int chunkCacheSizeMegabytes = 4;
+  private boolean compression = true;
+  private int searchRegexBudgetMillis = 500;
+  private int circuitFailureThreshold = 3;
+  private int circuitProbeIntervalMillis = 5000;
+
+  public NodeSettings() {
+  }
+
+  public NodeSettings(Properties properties) {
+    this.replicateWindow = getInt(properties, replicateWindowKey, replicateWindow);
+    this.replicateBatchSize = getInt(properties, replicateBatchSizeKey, replicateBatchSize);
+    this.connectTimeoutMillis = getInt(properties, connectTimeoutKey, connectTimeoutMillis);
+    this.readTimeoutMillis = getInt(properties, readTimeoutKey, readTimeoutMillis);
+    this.searchNodeTimeoutMillis = getInt(properties, searchNodeTimeoutKey, searchNodeTimeoutMillis);
+    this.searchDeadlineMillis = getInt(properties, searchDeadlineKey, searchDeadlineMillis);
+    this.searchCacheTtlMillis = getInt(properties, searchCacheTtlKey, searchCacheTtlMillis);
+    this.searchCacheSize = getInt(properties, searchCacheSizeKey, searchCacheSize);
+    this.gossipIntervalMillis = getInt(properties, gossipIntervalKey, gossipIntervalMillis);
+    this.gossipFanout = getInt(properties, gossipFanoutKey, gossipFanout);
+    this.gossipStaleMillis = getInt(properties, gossipStaleKey, gossipStaleMillis);
+    this.keepAlive = Boolean.parseBoolean(properties.getProperty(keepAliveKey, String.valueOf(keepAlive)).trim());
+    this.keepAliveIdleTimeoutMillis = getInt(properties, keepAliveIdleTimeoutKey, keepAliveIdleTimeoutMillis);
+    this.keepAlivePoolSize = getInt(properties, keepAlivePoolSizeKey, keepAlivePoolSize);
+    this.serverMode = properties.getProperty(serverModeKey, serverMode).trim();
+    this.workerThreads = getInt(properties, workerThreadsKey, workerThreads);
+    this.storageDir = properties.getProperty(storageDirKey, storageDir).trim();
+    this.storageSegmentSizeMegabytes = getInt(properties, storageSegmentSizeKey, storageSegmentSizeMegabytes);
+    this.storageOffHeap = Boolean.parseBoolean(properties.getProperty(storageOffHeapKey, String.valueOf(storageOffHeap)).trim());
+    this.storageCapacityMegabytes = getInt(properties, storageCapacityKey, storageCapacityMegabytes);
+    this.evictionPolicy = properties.getProperty(evictionPolicyKey, evictionPolicy).trim();
+    this.pinUploads = Boolean.parseBoolean(properties.getProperty(pinUploadsKey, String.valueOf(pinUploads)).trim());
+    this.spillDir = properties.getProperty(spillDirKey, spillDir).trim();
+    this.partialFileTtlMillis = getInt(properties, partialFileTtlKey, partialFileTtlMillis);
+    this.maxFrameSizeMegabytes = getInt(properties, maxFrameSizeKey, maxFrameSizeMegabytes);
+    this.regexCacheSize = getInt(properties, regexCacheSizeKey, regexCacheSize);
+    this.chunkCacheSizeMegabytes = getInt(properties, chunkCacheSizeKey, chunkCacheSizeMegabytes);
+    this.compression = Boolean.parseBoolean(properties.getProperty(compressionKey, String.valueOf(compression)).trim());
+    this.searchRegexBudgetMillis = getInt(properties, searchRegexBudgetKey, searchRegexBudgetMillis);
+    this.circuitFailureThreshold = getInt(properties, circuitFailureThresholdKey, circuitFailureThreshold);
+    this.circuitProbeIntervalMillis = getInt(properties, circuitProbeIntervalKey, circuitProbeIntervalMillis);
+  }
+
+  public int getReplicateWindow() {
+    return replicateWindow;
+  }
+
+  // chunks asked of a peer in one request, 1 to only send single chunk requests
+  public int getReplicateBatchSize() {
+    return replicateBatchSize;
+  }
+
+  public int getConnectTimeoutMillis() {
+    return connectTimeoutMillis;
+  }
+
+  public int getReadTimeoutMillis() {
+    return readTimeoutMillis;
+  }
+
+  public int getSearchNodeTimeoutMillis() {
+    return searchNodeTimeoutMillis;
+  }
+
+  public int getSearchDeadlineMillis() {
+    return searchDeadlineMillis;
+  }
+
+  // 0 still lets identical concurrent searches share one fan-out, but keeps no response
+  public int getSearchCacheTtlMillis() {
+    return searchCacheTtlMillis;
+  }
+
+  public int getSearchCacheSize() {
+    return searchCacheSize;
+  }
+
+  // 0 turns the gossiped index off, and every search asks every node again
+  public int getGossipIntervalMillis() {
+    return gossipIntervalMillis;
+  }
+
+  public int getGossipFanout() {
+    return gossipFanout;
+  }
+
+  public int getGossipStaleMillis() {
+    return gossipStaleMillis;
+  }
+
+  public boolean isKeepAlive() {
+    return keepAlive;
+  }
+
+  public int getKeepAliveIdleTimeoutMillis() {
+    return keepAliveIdleTimeoutMillis;
+  }
+
+  public int getKeepAlivePoolSize() {
+    return keepAlivePoolSize;
+  }
+
+  public boolean isNioServer() {
+    return "nio".equalsIgnoreCase(serverMode);
+  }
+
+  public int getWorkerThreads() {
+    return workerThreads;
+  }
+
+  public String getStorageDir() {
+    return storageDir;
+  }
+
+  public int getStorageSegmentSizeMegabytes() {
+    return storageSegmentSizeMegabytes;
+  }
+
+  public boolean isStorageOffHeap() {
+    return storageOffHeap;
+  }
+
+  // 0 means no limit
+  public long getStorageCapacity() {
+    return storageCapacityMegabytes * 1024L * 1024L;
+  }
+
+  public EvictionPolicy getEvictionPolicy() {
+    return EvictionPolicy.valueOf(evictionPolicy.toUpperCase());
+  }
+
+  public boolean isPinUploads() {
+    return pinUploads;
+  }
+
+  public String getSpillDir() {
+    return spillDir;
+  }
+
+  // how long the chunks of a replication that stopped are kept for the next attempt, 0 until room is needed
+  public int getPartialFileTtlMillis() {
+    return partialFileTtlMillis;
+  }
+
+  public int getMaxFrameSize() {
+    return (int) Math.min(Integer.MAX_VALUE, maxFrameSizeMegabytes * 1024L * 1024L);
+  }
+
+  public int getRegexCacheSize() {
+    return regexCacheSize;
+  }
+
+  // bytes of chunk responses kept serialized, 0 turns the cache off
+  public long getChunkCacheSize() {
+    return chunkCacheSizeMegabytes * 1024L * 1024L;
+  }
+
+  // whether chunk and file data is compressed for the peers that accept it, and asked for compressed
+  public boolean isCompression() {
+    return compression;
+  }
+
+  public int getSearchRegexBudgetMillis() {
+    return searchRegexBudgetMillis;
+  }
+
+  public int getCircuitFailureThreshold() {
+    return circuitFailureThreshold;
+  }
+
+  public int getCircuitProbeIntervalMillis() {
+    return circuitProbeIntervalMillis;
+  }
+
+  static int getInt(Properties properties, String key, int defaultValue) {
+    String value = properties.getProperty(key);
+    return value == null ? defaultValue : Integer.parseInt(value.trim());
+  }
+}
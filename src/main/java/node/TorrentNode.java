@@ -1,22 +1,38 @@
 package node;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
 import handlers.*;
+import storage.ChunkStore;
+import storage.MappedStorageEngine;
+import storage.MemoryStorageEngine;
+import storage.StorageEngine;
+import util.ChunkResponseCache;
+import util.FrameInputStream;
+import util.GossipIndex;
 import util.MessageUtil;
+import util.NodeMetrics;
+import util.PatternCache;
+import util.PayloadCompressor;
+import util.PeerClient;
+import util.SearchCache;
 
-import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Properties;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,6 +41,7 @@ public class TorrentNode {
   private static final Logger logger = Logger.getLogger(TorrentNode.class.getName());
 
   private ServerSocket server;
+  private NioServer nioServer;
 
   private static final String confFile = "torrent.conf";
   private static final String ipPrefixKey = "ip-prefix";
@@ -34,75 +51,162 @@ public class TorrentNode {
 
   private NodeConfiguration localNode;
   private List<NodeConfiguration> otherNodes;
-  private Map<ByteString, List<byte[]>> localFiles;
-  private Map<String, ByteString> fileNameToHash;
+  private NodeSettings settings;
+  private ChunkStore store;
+  private PeerClient peerClient;
+  private PatternCache patternCache;
+  private ChunkResponseCache chunkCache;
+  private SearchCache searchCache;
+  private GossipIndex gossipIndex;
+  private PayloadCompressor compressor;
+  private NodeMetrics metrics;
 
-  private ExecutorService executor = Executors.newFixedThreadPool(5);
-  private ReentrantLock lock = new ReentrantLock();
+  private ExecutorService executor;
+  private ExecutorService coordinatorExecutor;
+  private Thread listener;
+  private volatile boolean stopped;
 
-  public TorrentNode(NodeConfiguration nodeConfiguration, List<NodeConfiguration> otherNodes) throws Exception {
+  public TorrentNode(NodeConfiguration nodeConfiguration, List<NodeConfiguration> otherNodes, NodeSettings settings) throws Exception {
     this.localNode = nodeConfiguration;
-    this.server = new ServerSocket(nodeConfiguration.getPort(), 100, InetAddress.getByName(nodeConfiguration.getAddr()));
     this.otherNodes = otherNodes;
-    this.localFiles = new HashMap<>();
-    this.fileNameToHash = new HashMap<>();
+    this.settings = settings;
+    // several nodes may share one configuration, so each one keeps its own directories
+    String nodeDir = nodeConfiguration.getAddr() + "-" + nodeConfiguration.getPort();
+    int segmentSize = settings.getStorageSegmentSizeMegabytes() * 1024 * 1024;
+    StorageEngine storageEngine = settings.getStorageDir().isEmpty() ?
+        new MemoryStorageEngine(settings.isStorageOffHeap()) :
+        new MappedStorageEngine(Paths.get(settings.getStorageDir(), nodeDir), segmentSize);
+    StorageEngine spillEngine = settings.getSpillDir().isEmpty() ? null :
+        new MappedStorageEngine(Paths.get(settings.getSpillDir(), nodeDir), segmentSize);
+    this.store = new ChunkStore(storageEngine, spillEngine, settings.getStorageCapacity(),
+        settings.getEvictionPolicy(), settings.isPinUploads(), settings.getPartialFileTtlMillis());
+    this.metrics = new NodeMetrics();
+    this.peerClient = new PeerClient(settings, metrics);
+    this.patternCache = new PatternCache(settings.getRegexCacheSize());
+    this.searchCache = new SearchCache(settings.getSearchCacheSize(), settings.getSearchCacheTtlMillis());
+    if (settings.getChunkCacheSize() > 0) {
+      this.chunkCache = new ChunkResponseCache(settings.getChunkCacheSize(), settings.isKeepAlive());
+      store.addListener(chunkCache::invalidate);
+    }
+    if (settings.isCompression()) {
+      this.compressor = new PayloadCompressor();
+    }
+    if (settings.getGossipIntervalMillis() > 0) {
+      this.gossipIndex = new GossipIndex(nodeConfiguration, otherNodes, store, peerClient, settings);
+    }
+    if (settings.isNioServer()) {
+      InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(nodeConfiguration.getAddr()), nodeConfiguration.getPort());
+      this.executor = Executors.newFixedThreadPool(settings.getWorkerThreads());
+      this.coordinatorExecutor = Executors.newCachedThreadPool();
+      this.nioServer = new NioServer(address, 100, settings.isKeepAlive(), settings.getKeepAliveIdleTimeoutMillis(),
+          settings.getMaxFrameSize(), this::handleMessage, this::getCachedResponse, this::getExecutor, this::handleStream, coordinatorExecutor, metrics);
+    } else {
+      this.server = new ServerSocket(nodeConfiguration.getPort(), 100, InetAddress.getByName(nodeConfiguration.getAddr()));
+      // kept-alive connections hold their thread while idle, so they cannot share a small fixed pool
+      this.executor = settings.isKeepAlive() ? Executors.newCachedThreadPool() : Executors.newFixedThreadPool(5);
+    }
+    metrics.register(nodeConfiguration.getAddr() + "-" + nodeConfiguration.getPort(), store, chunkCache, searchCache, compressor);
+  }
+
+  /**
+   * Serves requests on a background thread until {@link #stop()} is called.
+   */
+  public void start() {
+    listener = new Thread(() -> {
+      try {
+        listen();
+      } catch (IOException e) {
+        if (!stopped) {
+          logger.log(Level.SEVERE, e.getMessage(), e);
+        }
+      }
+    }, "torrent-node-" + localNode.getPort());
+    listener.start();
   }
 
-  private void listen() throws Exception {
-    while (true) {
-      logger.info("Waiting for connection");
+  public void stop() throws IOException, InterruptedException {
+    stopped = true;
+    if (nioServer != null) {
+      nioServer.close();
+    } else {
+      server.close();
+    }
+    if (listener != null) {
+      listener.join();
+    }
+    if (gossipIndex != null) {
+      gossipIndex.close();
+    }
+    executor.shutdownNow();
+    if (coordinatorExecutor != null) {
+      coordinatorExecutor.shutdownNow();
+    }
+    peerClient.close();
+    store.close();
+    metrics.unregister();
+  }
+
+  private void listen() throws IOException {
+    if (nioServer != null) {
+      nioServer.listen();
+      return;
+    }
+    while (!stopped) {
       Socket clientSocket = this.server.accept();
-      executor.submit(() -> handleClient(clientSocket));
+      long queued = System.nanoTime();
+      executor.submit(() -> handleClient(clientSocket, queued));
     }
   }
 
-  private void handleClient(Socket clientSocket) {
-    String clientAddress = clientSocket.getInetAddress().getHostAddress();
-    logger.info("New connection from " + clientAddress);
+  private void handleClient(Socket clientSocket, long queued) {
+    metrics.recordQueueWait(System.nanoTime() - queued);
+    metrics.connectionOpened();
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine("New connection from " + clientSocket.getInetAddress().getHostAddress());
+    }
     try {
-      byte[] buffer = MessageUtil.getMessageBytes(clientSocket);
-      if (buffer != null) {
-        Message message = Message.parseFrom(buffer);
+      if (settings.isKeepAlive()) {
+        clientSocket.setSoTimeout(settings.getKeepAliveIdleTimeoutMillis());
+        clientSocket.setTcpNoDelay(true);
+      }
+      InputStream inputStream = clientSocket.getInputStream();
+      int messageSize;
+      while ((messageSize = MessageUtil.readMessageSize(inputStream, settings.getMaxFrameSize())) >= 0) {
+        metrics.recordBytesIn(4 + messageSize);
         Message responseMessage = null;
-        logger.fine(clientSocket + " " + message.toString());
-        if (message.getType().equals(Message.Type.LOCAL_SEARCH_REQUEST)) {
-          logger.info(clientSocket + " Local search request");
-          lock.lock();
-          responseMessage = LocalSearchRequestHandler.handleLocalSearchRequest(message, localFiles, fileNameToHash);
-          lock.unlock();
-        } else if (message.getType().equals(Message.Type.SEARCH_REQUEST)) {
-          logger.info(clientSocket + " Search request");
-          lock.lock();
-          responseMessage = SearchRequestHandler.handleSearchRequest(message, localNode, otherNodes, localFiles, fileNameToHash);
-          lock.unlock();
-        } else if (message.getType().equals(Message.Type.UPLOAD_REQUEST)) {
-          logger.info(clientSocket + " Upload request");
-          lock.lock();
-          responseMessage = UploadRequestHandler.handleUploadRequest(message, localFiles, fileNameToHash);
-          lock.unlock();
-        } else if (message.getType().equals(Message.Type.REPLICATE_REQUEST)) {
-          logger.info(clientSocket + " Replicate request");
-          lock.lock();
-          responseMessage = ReplicateRequestHandler.handleReplicateRequest(message, otherNodes, localFiles, fileNameToHash);
-          lock.unlock();
-        } else if (message.getType().equals(Message.Type.CHUNK_REQUEST)) {
-          logger.info(clientSocket + " Chunk request");
-          lock.lock();
-          responseMessage = ChunkRequestHandler.handleChunkRequest(message, localFiles);
-          lock.unlock();
-        } else if (message.getType().equals(Message.Type.DOWNLOAD_REQUEST)) {
-          logger.info(clientSocket + " Download request");
-          lock.lock();
-          responseMessage = DownloadRequestHandler.handleDownloadRequest(message, localFiles);
-          lock.unlock();
+        byte[] cached = null;
+        if (messageSize <= MessageUtil.BUFFERED_FRAME_SIZE) {
+          byte[] buffer = MessageUtil.readMessageBytes(inputStream, messageSize);
+          Message message = MessageUtil.parseMessage(buffer);
+          cached = getCachedResponse(message);
+          if (cached == null) {
+            responseMessage = handleMessage(clientSocket.toString(), message);
+          }
+        } else {
+          responseMessage = handleStream(clientSocket.toString(), new FrameInputStream(inputStream, messageSize));
         }
-        if (responseMessage != null) {
+        if (cached != null) {
+          clientSocket.getOutputStream().write(cached);
+          metrics.recordBytesOut(cached.length);
+        } else if (responseMessage == null) {
+          break;
+        } else {
+          if (settings.isKeepAlive()) {
+            responseMessage = MessageUtil.withKeepAlive(responseMessage);
+          }
           MessageUtil.sendMessage(clientSocket, responseMessage);
+          metrics.recordBytesOut(4 + responseMessage.getSerializedSize());
+        }
+        if (!settings.isKeepAlive()) {
+          break;
         }
       }
+    } catch (SocketTimeoutException e) {
+      logger.fine(clientSocket + " idle, closing");
     } catch (IOException e) {
       logger.log(Level.SEVERE, e.getMessage());
     } finally {
+      metrics.connectionClosed();
       try {
         clientSocket.close();
       } catch (IOException e) {
@@ -111,12 +215,108 @@ public class TorrentNode {
     }
   }
 
-  public InetAddress getSocketAddress() {
-    return this.server.getInetAddress();
+  // search and replicate mostly wait on other nodes, so they must not occupy the workers serving local data
+  private ExecutorService getExecutor(Message message) {
+    if (message.getType().equals(Message.Type.SEARCH_REQUEST) || message.getType().equals(Message.Type.REPLICATE_REQUEST)) {
+      return coordinatorExecutor;
+    }
+    return executor;
+  }
+
+  // popular chunks are answered from the cache, without a handler or protobuf
+  private byte[] getCachedResponse(Message message) {
+    if (chunkCache == null || !message.getType().equals(Message.Type.CHUNK_REQUEST)) {
+      return null;
+    }
+    long start = System.nanoTime();
+    byte[] frame = ChunkRequestHandler.getCachedResponse(message, store, chunkCache);
+    if (frame != null) {
+      metrics.recordRequest(Message.Type.CHUNK_REQUEST, System.nanoTime() - start, false);
+    }
+    return frame;
   }
 
-  public int getPort() {
-    return this.server.getLocalPort();
+  private Message handleMessage(String clientSocket, Message message) {
+    long start = System.nanoTime();
+    Message responseMessage = dispatch(clientSocket, message);
+    metrics.recordRequest(message.getType(), System.nanoTime() - start, responseMessage);
+    return responseMessage;
+  }
+
+  // runs for every request, so no log line is built unless it will be written
+  private Message dispatch(String clientSocket, Message message) {
+    Message responseMessage = null;
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine(clientSocket + " " + message.getType());
+    }
+    if (message.getType().equals(Message.Type.LOCAL_SEARCH_REQUEST)) {
+      responseMessage = LocalSearchRequestHandler.handleLocalSearchRequest(message, store, patternCache, settings);
+    } else if (message.getType().equals(Message.Type.SEARCH_REQUEST)) {
+      responseMessage = SearchRequestHandler.handleSearchRequest(message, localNode, otherNodes, store, peerClient, patternCache, settings, searchCache, gossipIndex);
+    } else if (message.getType().equals(Message.Type.UPLOAD_REQUEST)) {
+      responseMessage = UploadRequestHandler.handleUploadRequest(message, store);
+    } else if (message.getType().equals(Message.Type.REPLICATE_REQUEST)) {
+      responseMessage = ReplicateRequestHandler.handleReplicateRequest(message, otherNodes, store, peerClient, settings, gossipIndex, compressor);
+    } else if (message.getType().equals(Message.Type.CHUNK_REQUEST)) {
+      responseMessage = ChunkRequestHandler.handleChunkRequest(message, store, chunkCache, compressor);
+    } else if (message.getType().equals(Message.Type.CHUNK_BATCH_REQUEST)) {
+      responseMessage = ChunkRequestHandler.handleChunkBatchRequest(message, store, compressor);
+    } else if (message.getType().equals(Message.Type.DOWNLOAD_REQUEST)) {
+      responseMessage = DownloadRequestHandler.handleDownloadRequest(message, store, compressor);
+    } else if (message.getType().equals(Message.Type.FILE_STATUS_REQUEST)) {
+      responseMessage = FileStatusRequestHandler.handleFileStatusRequest(message, store);
+    } else if (message.getType().equals(Message.Type.GOSSIP_REQUEST)) {
+      if (gossipIndex != null) {
+        responseMessage = GossipRequestHandler.handleGossipRequest(message, gossipIndex);
+      }
+    } else if (message.getType().equals(Message.Type.STATS_REQUEST)) {
+      responseMessage = StatsRequestHandler.handleStatsRequest(message, metrics, store, chunkCache, searchCache, compressor, peerClient.getPeerHealth());
+    }
+    return responseMessage;
+  }
+
+  /**
+   * Handles a frame too large to buffer while it is still being received. Uploads go straight into storage; any
+   * other message is collected and handled as usual.
+   */
+  private Message handleStream(String clientSocket, InputStream inputStream) throws IOException {
+    CodedInputStream codedInputStream = CodedInputStream.newInstance(inputStream);
+    ByteString.Output otherFields = ByteString.newOutput();
+    CodedOutputStream otherFieldsStream = CodedOutputStream.newInstance(otherFields);
+    Message.Type type = null;
+    int tag;
+    while ((tag = codedInputStream.readTag()) != 0) {
+      int fieldNumber = WireFormat.getTagFieldNumber(tag);
+      if (fieldNumber == Message.TYPE_FIELD_NUMBER && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_VARINT) {
+        int typeValue = codedInputStream.readEnum();
+        type = Message.Type.forNumber(typeValue);
+        otherFieldsStream.writeEnum(Message.TYPE_FIELD_NUMBER, typeValue);
+      } else if (fieldNumber == Message.UPLOADREQUEST_FIELD_NUMBER && type == Message.Type.UPLOAD_REQUEST &&
+          WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+        logger.fine(clientSocket + " UPLOAD_REQUEST, streamed");
+        long start = System.nanoTime();
+        int oldLimit = codedInputStream.pushLimit(codedInputStream.readRawVarint32());
+        Message responseMessage = UploadRequestHandler.handleUploadStream(codedInputStream, store);
+        codedInputStream.popLimit(oldLimit);
+        metrics.recordRequest(Message.Type.UPLOAD_REQUEST, System.nanoTime() - start, responseMessage);
+        while ((tag = codedInputStream.readTag()) != 0) {
+          codedInputStream.skipField(tag);
+        }
+        return responseMessage;
+      } else {
+        codedInputStream.skipField(tag, otherFieldsStream);
+      }
+    }
+    otherFieldsStream.flush();
+    return handleMessage(clientSocket, Message.parseFrom(otherFields.toByteString()));
+  }
+
+  public InetAddress getSocketAddress() throws IOException {
+    return nioServer != null ? nioServer.getLocalAddress().getAddress() : this.server.getInetAddress();
+  }
+
+  public int getPort() throws IOException {
+    return nioServer != null ? nioServer.getLocalAddress().getPort() : this.server.getLocalPort();
   }
 
   public static void main(String[] args) throws Exception {
@@ -124,23 +324,14 @@ public class TorrentNode {
     int portBase = 0;
     String[] ipSuffixes = new String[0];
     String[] portOffsets = new String[0];
+    Properties properties = new Properties();
 
-    try (BufferedReader br = new BufferedReader(new FileReader(confFile))) {
-      for (int i = 0; i < 4; i++) {
-        String sCurrentLine = br.readLine();
-        String[] lineElements = sCurrentLine.split("=");
-        String key = lineElements[0];
-        String value = lineElements[1];
-        if (key.equals(ipPrefixKey)) {
-          ipPrefix = value;
-        } else if (key.equals(portBaseKey)) {
-          portBase = Integer.parseInt(value);
-        } else if (key.equals(ipSuffixesKey)) {
-          ipSuffixes = value.split(" ");
-        } else if (key.equals(portOffsetsKey)) {
-          portOffsets = value.split(" ");
-        }
-      }
+    try (FileReader reader = new FileReader(confFile)) {
+      properties.load(reader);
+      ipPrefix = properties.getProperty(ipPrefixKey, ipPrefix).trim();
+      portBase = Integer.parseInt(properties.getProperty(portBaseKey, "0").trim());
+      ipSuffixes = properties.getProperty(ipSuffixesKey, "").trim().split(" ");
+      portOffsets = properties.getProperty(portOffsetsKey, "").trim().split(" ");
     } catch (IOException e) {
       logger.log(Level.SEVERE, e.getMessage());
     }
@@ -160,7 +351,7 @@ public class TorrentNode {
       logger.log(Level.SEVERE, "Invalid node configuration");
     } else {
       otherNodes.remove(currentConfiguration);
-      TorrentNode app = new TorrentNode(currentConfiguration, otherNodes);
+      TorrentNode app = new TorrentNode(currentConfiguration, otherNodes, new NodeSettings(properties));
 
       logger.info("Running Server: " +
           "Host=" + app.getSocketAddress().getHostAddress() +
@@ -0,0 +1,232 @@
+package storage;
+
+import com.google.protobuf.ByteString;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * The stored chunks by MD5, with the number of files using each. A map of objects would cost a node, a key, a hash
+ * array and a counter for every chunk, several times the few bytes it describes; here the hashes sit in a long array
+ * of an open addressing table, next to an int array of counts and the extents, so a chunk only takes its extent and
+ * 24 bytes of table, or up to 64 with the free slots.
+ * <p>
+ * The table is split in stripes by hash, each behind a lock of its own, so lookups rarely wait for one another.
+ */
+class ChunkIndex {
+
+  private static final int STRIPES = 64;
+
+  private final Stripe[] stripes = new Stripe[STRIPES];
+
+  ChunkIndex() {
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe();
+    }
+  }
+
+  /**
+   * The extent of the chunk, or null if no file holds it.
+   */
+  Extent get(ByteString hash) {
+    if (hash.size() != StoredFile.HASH_SIZE) {
+      return null;
+    }
+    long high = getLong(hash, 0);
+    long low = getLong(hash, 8);
+    Stripe stripe = stripeOf(low);
+    synchronized (stripe) {
+      int slot = stripe.find(high, low);
+      return slot < 0 ? null : stripe.extents[slot];
+    }
+  }
+
+  /**
+   * Counts one more file using the chunk. Returns the extent the chunk already had, or null if it is new and now
+   * stored in the given extent.
+   */
+  Extent add(ByteString hash, Extent extent) {
+    if (hash.size() != StoredFile.HASH_SIZE) {
+      throw new IllegalArgumentException("Chunk hash has " + hash.size() + " bytes");
+    }
+    long high = getLong(hash, 0);
+    long low = getLong(hash, 8);
+    Stripe stripe = stripeOf(low);
+    synchronized (stripe) {
+      int slot = stripe.find(high, low);
+      if (slot >= 0) {
+        stripe.references[slot]++;
+        return stripe.extents[slot];
+      }
+      stripe.insert(high, low, extent);
+      return null;
+    }
+  }
+
+  /**
+   * Counts one file less using the chunk. Returns its extent once no file uses it any more, otherwise null.
+   */
+  Extent remove(ByteString hash) {
+    if (hash.size() != StoredFile.HASH_SIZE) {
+      return null;
+    }
+    long high = getLong(hash, 0);
+    long low = getLong(hash, 8);
+    Stripe stripe = stripeOf(low);
+    synchronized (stripe) {
+      int slot = stripe.find(high, low);
+      if (slot < 0 || --stripe.references[slot] > 0) {
+        return null;
+      }
+      Extent extent = stripe.extents[slot];
+      stripe.delete(slot);
+      return extent;
+    }
+  }
+
+  /**
+   * Moves the chunk to the copy, unless it is no longer in the expected extent.
+   */
+  boolean replace(ByteString hash, Extent expected, Extent copy) {
+    long high = getLong(hash, 0);
+    long low = getLong(hash, 8);
+    Stripe stripe = stripeOf(low);
+    synchronized (stripe) {
+      int slot = stripe.find(high, low);
+      if (slot < 0 || stripe.extents[slot] != expected) {
+        return false;
+      }
+      stripe.extents[slot] = copy;
+      return true;
+    }
+  }
+
+  /**
+   * The hashes of the chunks whose extents match, at the time each stripe was looked at.
+   */
+  List<ByteString> select(Predicate<Extent> filter) {
+    List<ByteString> hashes = new ArrayList<>();
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        for (int slot = 0; slot < stripe.extents.length; slot++) {
+          if (stripe.extents[slot] != null && filter.test(stripe.extents[slot])) {
+            hashes.add(toHash(stripe.hashes[2 * slot], stripe.hashes[2 * slot + 1]));
+          }
+        }
+      }
+    }
+    return hashes;
+  }
+
+  int size() {
+    int size = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        size += stripe.size;
+      }
+    }
+    return size;
+  }
+
+  // MD5 bits are evenly spread, so they pick the stripe and the slot as they are
+  private Stripe stripeOf(long low) {
+    return stripes[(int) (low >>> 58)];
+  }
+
+  private static long getLong(ByteString hash, int offset) {
+    long value = 0;
+    for (int i = offset; i < offset + 8; i++) {
+      value = (value << 8) | (hash.byteAt(i) & 0xff);
+    }
+    return value;
+  }
+
+  private static ByteString toHash(long high, long low) {
+    byte[] hash = new byte[StoredFile.HASH_SIZE];
+    for (int i = 7; i >= 0; i--) {
+      hash[i] = (byte) high;
+      hash[i + 8] = (byte) low;
+      high >>>= 8;
+      low >>>= 8;
+    }
+    return ByteString.copyFrom(hash);
+  }
+
+  // linear probing; a slot is free while it has no extent, and deleting shifts later entries back instead of
+  // leaving markers
+  private static class Stripe {
+    private long[] hashes = new long[2 * 16];
+    private int[] references = new int[16];
+    private Extent[] extents = new Extent[16];
+    private int size;
+
+    int find(long high, long low) {
+      int mask = extents.length - 1;
+      for (int slot = (int) low & mask; extents[slot] != null; slot = (slot + 1) & mask) {
+        if (hashes[2 * slot] == high && hashes[2 * slot + 1] == low) {
+          return slot;
+        }
+      }
+      return -1;
+    }
+
+    void insert(long high, long low, Extent extent) {
+      if (4 * (size + 1) > 3 * extents.length) {
+        grow();
+      }
+      int mask = extents.length - 1;
+      int slot = (int) low & mask;
+      while (extents[slot] != null) {
+        slot = (slot + 1) & mask;
+      }
+      hashes[2 * slot] = high;
+      hashes[2 * slot + 1] = low;
+      references[slot] = 1;
+      extents[slot] = extent;
+      size++;
+    }
+
+    void delete(int slot) {
+      int mask = extents.length - 1;
+      int free = slot;
+      for (int next = (slot + 1) & mask; extents[next] != null; next = (next + 1) & mask) {
+        int home = (int) hashes[2 * next + 1] & mask;
+        // an entry may fill the free slot if that slot lies on its probe path, from its home slot up to where it is
+        if (((next - home) & mask) >= ((next - free) & mask)) {
+          hashes[2 * free] = hashes[2 * next];
+          hashes[2 * free + 1] = hashes[2 * next + 1];
+          references[free] = references[next];
+          extents[free] = extents[next];
+          free = next;
+        }
+      }
+      extents[free] = null;
+      references[free] = 0;
+      size--;
+    }
+
+    private void grow() {
+      long[] oldHashes = hashes;
+      int[] oldReferences = references;
+      Extent[] oldExtents = extents;
+      hashes = new long[2 * 2 * oldExtents.length];
+      references = new int[2 * oldExtents.length];
+      extents = new Extent[2 * oldExtents.length];
+      int mask = extents.length - 1;
+      for (int i = 0; i < oldExtents.length; i++) {
+        if (oldExtents[i] == null) {
+          continue;
+        }
+        int slot = (int) oldHashes[2 * i + 1] & mask;
+        while (extents[slot] != null) {
+          slot = (slot + 1) & mask;
+        }
+        hashes[2 * slot] = oldHashes[2 * i];
+        hashes[2 * slot + 1] = oldHashes[2 * i + 1];
+        references[slot] = oldReferences[i];
+        extents[slot] = oldExtents[i];
+      }
+    }
+  }
+}
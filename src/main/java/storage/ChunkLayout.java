@@ -0,0 +1,88 @@
+package storage;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+public class ChunkLayout {
+
+  public static final int CHUNK_SIZE = 1024;
+
+  private final int size;
+  private final int chunkCount;
+  // offsets of every chunk plus the end of the file, only kept when the chunks are not all CHUNK_SIZE long
+  private final int[] chunkOffsets;
+
+  private ChunkLayout(int size, int chunkCount, int[] chunkOffsets) {
+    this.size = size;
+    this.chunkCount = chunkCount;
+    this.chunkOffsets = chunkOffsets;
+  }
+
+  public static ChunkLayout standard(int size) {
+    return new ChunkLayout(size, (size + CHUNK_SIZE - 1) / CHUNK_SIZE, null);
+  }
+
+  public static ChunkLayout fromChunkSizes(int[] chunkSizes) {
+    int[] chunkOffsets = new int[chunkSizes.length + 1];
+    boolean standard = true;
+    for (int i = 0; i < chunkSizes.length; i++) {
+      int chunkSize = chunkSizes[i];
+      if (chunkSize < 0 || chunkOffsets[i] + (long) chunkSize > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+      }
+      boolean last = i == chunkSizes.length - 1;
+      if (last ? chunkSize == 0 || chunkSize > CHUNK_SIZE : chunkSize != CHUNK_SIZE) {
+        standard = false;
+      }
+      chunkOffsets[i + 1] = chunkOffsets[i] + chunkSize;
+    }
+    int size = chunkOffsets[chunkSizes.length];
+    return standard ? standard(size) : new ChunkLayout(size, chunkSizes.length, chunkOffsets);
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  public int getChunkCount() {
+    return chunkCount;
+  }
+
+  public boolean isStandard() {
+    return chunkOffsets == null;
+  }
+
+  public int getChunkOffset(int chunkIndex) {
+    return chunkOffsets == null ? chunkIndex * CHUNK_SIZE : chunkOffsets[chunkIndex];
+  }
+
+  public int getChunkSize(int chunkIndex) {
+    if (chunkOffsets == null) {
+      return Math.min(CHUNK_SIZE, size - chunkIndex * CHUNK_SIZE);
+    }
+    return chunkOffsets[chunkIndex + 1] - chunkOffsets[chunkIndex];
+  }
+
+  public int[] getChunkSizes() {
+    int[] chunkSizes = new int[chunkCount];
+    for (int i = 0; i < chunkCount; i++) {
+      chunkSizes[i] = getChunkSize(i);
+    }
+    return chunkSizes;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    ChunkLayout that = (ChunkLayout) o;
+    return size == that.size &&
+        chunkCount == that.chunkCount &&
+        Arrays.equals(chunkOffsets, that.chunkOffsets);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * Objects.hash(size, chunkCount) + Arrays.hashCode(chunkOffsets);
+  }
+}
@@ -0,0 +1,723 @@
+package storage;
+
+import com.google.protobuf.ByteString;
+import node.FileInfo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Thread-safe replacement for the localFiles / fileNameToHash maps.
+ * Files are immutable once published, so readers never take a lock; a file only becomes visible after all of its
+ * chunks are present, and its hash is always published before any filename that points to it. Chunks are stored once
+ * per distinct MD5 and counted by the files that reference them; the content itself lives wherever the
+ * {@link StorageEngine} put it.
+ * FileInfos are built from the manifests of stored files, so searches never touch file contents, and every filename
+ * is added to a {@link FileNameIndex} so searches only run their regex against plausible names. Manifests and the
+ * chunk index keep hashes packed in arrays rather than an object per chunk, see {@link ChunkIndex}.
+ * Files being replicated are kept as partial files until they are published, so a replication that failed part of
+ * the way resumes where it stopped, and the chunks already received can be served to other nodes in the meantime.
+ * Partial files live in memory only and are lost on restart. One that no replication wrote into for the partial file
+ * TTL is discarded.
+ * The chunks of partial files and of uploads still being written count as partial bytes. With a capacity, a
+ * replication first reserves room for the chunks it still needs; partial files nobody is writing into are discarded
+ * once the stored, partial and reserved bytes go over it, oldest first, then replicated files are evicted in the order
+ * of the {@link EvictionPolicy}; uploaded files can be pinned so they are never evicted. An evicted file either
+ * disappears together with its names, so searches stop finding it, or moves to a spill engine, where it keeps its
+ * names and is still served.
+ * Chunks no file uses any more are freed in the storage engine. Once that leaves storage mostly free but not given
+ * back, the chunks still in it are moved, see {@link StorageEngine#isFragmented}.
+ */
+public class ChunkStore {
+
+  private static final Logger logger = Logger.getLogger(ChunkStore.class.getName());
+
+  public static final long DEFAULT_PARTIAL_FILE_TTL_MILLIS = 10 * 60 * 1000;
+
+  private final StorageEngine storageEngine;
+  private final StorageEngine spillEngine;
+  private final long capacity;
+  private final EvictionPolicy evictionPolicy;
+  private final boolean pinUploads;
+  private final long partialFileTtlNanos;
+  private final ConcurrentMap<ByteString, StoredFile> localFiles = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, ByteString> fileNameToHash = new ConcurrentHashMap<>();
+  private final FileNameIndex fileNameIndex = new FileNameIndex();
+  private final ChunkIndex chunks = new ChunkIndex();
+  private final ConcurrentMap<ByteString, PendingFile> partialFiles = new ConcurrentHashMap<>();
+  // spilled files are never evicted again, so their chunks are never let go of
+  private final ChunkIndex spilledChunks = new ChunkIndex();
+  // held while files are evicted and while names are added, so a name never points to an evicted file
+  private final Object evictionLock = new Object();
+  // content of every published file, and the part of it that actually takes space
+  private final AtomicLong logicalBytes = new AtomicLong();
+  private final AtomicLong storedBytes = new AtomicLong();
+  // chunks only pending files hold so far, and the room reserved for the chunks they still need
+  private final AtomicLong partialBytes = new AtomicLong();
+  private final AtomicLong reservedBytes = new AtomicLong();
+  private final AtomicLong spilledBytes = new AtomicLong();
+  private final AtomicLong evictedFiles = new AtomicLong();
+  // changes whenever a name is added or removed
+  private final AtomicLong namespaceVersion = new AtomicLong();
+  private final List<FileListener> listeners = new CopyOnWriteArrayList<>();
+
+  /**
+   * Told about every stored file that is dropped, spilled or has its chunks moved, after the store changed it.
+   */
+  public interface FileListener {
+    void fileChanged(ByteString fileHash);
+  }
+
+  public ChunkStore() {
+    this.storageEngine = new MemoryStorageEngine();
+    this.spillEngine = null;
+    this.capacity = 0;
+    this.evictionPolicy = EvictionPolicy.LRU;
+    this.pinUploads = false;
+    this.partialFileTtlNanos = DEFAULT_PARTIAL_FILE_TTL_MILLIS * 1000000;
+  }
+
+  public ChunkStore(StorageEngine storageEngine) throws IOException {
+    this(storageEngine, null, 0, EvictionPolicy.LRU, false);
+  }
+
+  public ChunkStore(StorageEngine storageEngine, StorageEngine spillEngine, long capacity, EvictionPolicy evictionPolicy,
+                    boolean pinUploads) throws IOException {
+    this(storageEngine, spillEngine, capacity, evictionPolicy, pinUploads, DEFAULT_PARTIAL_FILE_TTL_MILLIS);
+  }
+
+  /**
+   * @param spillEngine           where evicted files go, or null to drop them
+   * @param capacity              stored and partial bytes above which files are evicted, 0 for no limit
+   * @param partialFileTtlMillis  how long a partial file nobody writes into is kept, 0 to keep it until room is needed
+   */
+  public ChunkStore(StorageEngine storageEngine, StorageEngine spillEngine, long capacity, EvictionPolicy evictionPolicy,
+                    boolean pinUploads, long partialFileTtlMillis) throws IOException {
+    this.storageEngine = storageEngine;
+    this.spillEngine = spillEngine;
+    this.capacity = capacity;
+    this.evictionPolicy = evictionPolicy;
+    this.pinUploads = pinUploads;
+    this.partialFileTtlNanos = partialFileTtlMillis * 1000000;
+    long start = System.nanoTime();
+    storageEngine.recover(new StorageEngine.RecoveryListener() {
+      @Override
+      public void fileRecovered(ByteString fileHash, ChunkLayout layout, ByteString chunkHashes, List<Extent> chunks) {
+        StoredFile storedFile = new StoredFile(fileHash, layout, chunkHashes, chunks.toArray(new Extent[0]));
+        if (localFiles.putIfAbsent(fileHash, storedFile) == null) {
+          addReferences(storedFile, new HashSet<>());
+        }
+      }
+
+      @Override
+      public void nameRecovered(String fileName, ByteString fileHash) {
+        if (localFiles.containsKey(fileHash) && fileNameToHash.putIfAbsent(fileName, fileHash) == null) {
+          fileNameIndex.add(fileName);
+        }
+      }
+
+      @Override
+      public void fileRemoved(ByteString fileHash) {
+        StoredFile storedFile = localFiles.remove(fileHash);
+        if (storedFile != null) {
+          removeNames(fileHash);
+          removeReferences(storedFile);
+        }
+      }
+    });
+    if (spillEngine != null) {
+      spillEngine.recover(new StorageEngine.RecoveryListener() {
+        @Override
+        public void fileRecovered(ByteString fileHash, ChunkLayout layout, ByteString chunkHashes, List<Extent> chunks) {
+          StoredFile storedFile = new StoredFile(fileHash, layout, chunkHashes, chunks.toArray(new Extent[0]), true);
+          if (localFiles.putIfAbsent(fileHash, storedFile) == null) {
+            addSpilledReferences(storedFile);
+          }
+        }
+
+        @Override
+        public void nameRecovered(String fileName, ByteString fileHash) {
+          StoredFile storedFile = localFiles.get(fileHash);
+          if (storedFile != null && storedFile.isSpilled() && fileNameToHash.putIfAbsent(fileName, fileHash) == null) {
+            fileNameIndex.add(fileName);
+          }
+        }
+
+        @Override
+        public void fileRemoved(ByteString fileHash) {
+        }
+      });
+    }
+    logger.info("Recovered " + localFiles.size() + " files in " + (System.nanoTime() - start) / 1000000 + " ms, " +
+        getDedupSummary());
+  }
+
+  public void addListener(FileListener listener) {
+    listeners.add(listener);
+  }
+
+  public StoredFile getFile(ByteString fileHash) {
+    return localFiles.get(fileHash);
+  }
+
+  public boolean containsFile(ByteString fileHash) {
+    return localFiles.containsKey(fileHash);
+  }
+
+  public ByteString getFileHash(String fileName) {
+    return fileNameToHash.get(fileName);
+  }
+
+  public FileInfo getFileInfo(String fileName) {
+    ByteString fileHash = fileNameToHash.get(fileName);
+    StoredFile storedFile = fileHash == null ? null : localFiles.get(fileHash);
+    return storedFile == null ? null : buildFileInfo(fileName, storedFile);
+  }
+
+  public boolean containsFileName(String fileName) {
+    return fileNameToHash.containsKey(fileName);
+  }
+
+  public Set<String> getFileNames() {
+    return fileNameToHash.keySet();
+  }
+
+  public List<String> getFileNameCandidates(String prefix, String literal) {
+    return fileNameIndex.getCandidates(prefix, literal);
+  }
+
+  public int getFileCount() {
+    return localFiles.size();
+  }
+
+  public PendingFile createFile(ChunkLayout layout) {
+    return new PendingFile(this, layout);
+  }
+
+  /**
+   * The partial file of an earlier or concurrent replication of this file, or a new one that later replications will
+   * find. A partial file with another layout belongs to a different manifest for the same hash; it is left alone and
+   * the caller gets a file of its own. Every file resumed must be closed with {@link #closeFile}.
+   */
+  public PendingFile resumeFile(ByteString fileHash, ChunkLayout layout) {
+    expirePartialFiles();
+    PendingFile[] resumed = new PendingFile[1];
+    partialFiles.compute(fileHash, (hash, existing) -> {
+      PendingFile partialFile = existing != null ? existing : createFile(layout);
+      if (partialFile.getLayout().equals(layout)) {
+        partialFile.addUser();
+        resumed[0] = partialFile;
+      }
+      return partialFile;
+    });
+    if (resumed[0] == null) {
+      resumed[0] = createFile(layout);
+      resumed[0].addUser();
+    }
+    return resumed[0];
+  }
+
+  /**
+   * Ends a replication into a file from {@link #resumeFile}. A partial file nobody writes into any more is kept for
+   * the next replication until it expires or its room is needed; a file of its own is discarded right away.
+   */
+  public void closeFile(ByteString fileHash, PendingFile pendingFile) {
+    if (pendingFile.removeUser() > 0) {
+      return;
+    }
+    if (partialFiles.get(fileHash) != pendingFile) {
+      discard(pendingFile);
+      compact();
+      return;
+    }
+    // another replication reserves only after it started using the file, under the same lock
+    synchronized (evictionLock) {
+      if (pendingFile.getUsers() == 0) {
+        reservedBytes.addAndGet(-pendingFile.releaseReservation());
+      }
+    }
+  }
+
+  /**
+   * Gives back the room a pending file took, once it is clear the file will not be published.
+   */
+  public void discard(PendingFile pendingFile) {
+    discard(pendingFile, Collections.emptySet());
+  }
+
+  // the chunks the store took over when the file was published are the store's to free, even if compaction moved
+  // them meanwhile
+  private void discard(PendingFile pendingFile, Set<Extent> adopted) {
+    if (!pendingFile.release()) {
+      return;
+    }
+    for (Extent extent : pendingFile.getOwnChunks().values()) {
+      if (!adopted.contains(extent)) {
+        storageEngine.free(extent);
+      }
+    }
+  }
+
+  public PendingFile getPartialFile(ByteString fileHash) {
+    return partialFiles.get(fileHash);
+  }
+
+  public ChunkingWriter createWriter(int size) {
+    return new ChunkingWriter(createFile(ChunkLayout.standard(size)));
+  }
+
+  public boolean containsChunk(ByteString chunkHash) {
+    return chunks.get(chunkHash) != null;
+  }
+
+  public long getLogicalBytes() {
+    return logicalBytes.get();
+  }
+
+  public long getStoredBytes() {
+    return storedBytes.get();
+  }
+
+  public long getPartialBytes() {
+    return partialBytes.get();
+  }
+
+  public long getReservedBytes() {
+    return reservedBytes.get();
+  }
+
+  public long getSpilledBytes() {
+    return spilledBytes.get();
+  }
+
+  public long getEvictedFiles() {
+    return evictedFiles.get();
+  }
+
+  public long getNamespaceVersion() {
+    return namespaceVersion.get();
+  }
+
+  /**
+   * Reserves room for the chunks the file does not have yet, evicting files until they fit under the capacity; false
+   * if they still do not. Chunks the file stores use the reservation up, and the rest of it is given back once the
+   * file is published or discarded, or nobody writes into it any more.
+   */
+  public boolean reserve(PendingFile pendingFile) throws IOException {
+    if (capacity <= 0) {
+      return true;
+    }
+    synchronized (evictionLock) {
+      long bytes = pendingFile.getUnreservedBytes();
+      if (bytes > capacity) {
+        return false;
+      }
+      evict(capacity - bytes, null);
+      if (getUsedBytes() + bytes > capacity) {
+        return false;
+      }
+      if (pendingFile.addReservation(bytes)) {
+        reservedBytes.addAndGet(bytes);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Publishes an uploaded file, which is pinned if uploads are.
+   */
+  public StoredFile publishUpload(String fileName, ByteString fileHash, PendingFile pendingFile) throws IOException {
+    return publish(fileName, fileHash, pendingFile, pinUploads);
+  }
+
+  /**
+   * Adds a name to a file that is already stored, which is pinned if uploads are.
+   */
+  public void publishUploadName(String fileName, ByteString fileHash) throws IOException {
+    synchronized (evictionLock) {
+      StoredFile storedFile = localFiles.get(fileHash);
+      if (storedFile != null && pinUploads) {
+        storedFile.setPinned(true);
+      }
+      publishName(fileName, fileHash);
+    }
+  }
+
+  public StoredFile publish(String fileName, ByteString fileHash, PendingFile pendingFile) throws IOException {
+    return publish(fileName, fileHash, pendingFile, false);
+  }
+
+  private StoredFile publish(String fileName, ByteString fileHash, PendingFile pendingFile, boolean pinned) throws IOException {
+    if (!pendingFile.isComplete()) {
+      throw new IllegalArgumentException("Chunks of " + fileName + " are missing");
+    }
+    ChunkLayout layout = pendingFile.getLayout();
+    ByteString chunkHashes = pendingFile.getChunkHashes();
+    Extent[] extents = new Extent[layout.getChunkCount()];
+    for (int i = 0; i < extents.length; i++) {
+      Extent stored = chunks.get(chunkHashes.substring(i * StoredFile.HASH_SIZE, (i + 1) * StoredFile.HASH_SIZE));
+      extents[i] = stored != null ? stored : pendingFile.getChunk(i);
+    }
+
+    StoredFile storedFile = new StoredFile(fileHash, layout, chunkHashes, extents);
+    storedFile.setPinned(pinned);
+    // extents are compared by identity
+    Set<Extent> adopted = new HashSet<>();
+    StoredFile previous = localFiles.putIfAbsent(fileHash, storedFile);
+    if (previous != null) {
+      storedFile = previous;
+      if (pinned) {
+        storedFile.setPinned(true);
+      }
+    } else {
+      long newBytes = addReferences(storedFile, adopted);
+      try {
+        storageEngine.persistFile(fileHash, layout, chunkHashes, Arrays.asList(extents));
+      } catch (IOException e) {
+        localFiles.remove(fileHash, storedFile);
+        fileChanged(fileHash);
+        removeReferences(storedFile);
+        throw e;
+      }
+      if (logger.isLoggable(Level.FINE)) {
+        logger.fine("Stored " + newBytes + " new bytes for " + fileName + " (" + layout.getSize() + " bytes), " +
+            getDedupSummary());
+      }
+    }
+    PendingFile partialFile = partialFiles.remove(fileHash);
+    synchronized (evictionLock) {
+      discard(pendingFile, adopted);
+      if (partialFile != null && partialFile != pendingFile && partialFile.getUsers() == 0) {
+        discard(partialFile);
+      }
+      publishName(fileName, fileHash);
+      if (capacity > 0) {
+        evict(capacity, fileHash);
+      }
+    }
+    logger.fine("Published " + fileName + " " + fileHash);
+    return storedFile;
+  }
+
+  public void publishName(String fileName, ByteString fileHash) throws IOException {
+    synchronized (evictionLock) {
+      StoredFile storedFile = localFiles.get(fileHash);
+      if (storedFile == null) {
+        throw new IOException("File " + fileHash + " was evicted before it got the name " + fileName);
+      }
+      if (fileNameToHash.putIfAbsent(fileName, fileHash) == null) {
+        fileNameIndex.add(fileName);
+        namespaceVersion.incrementAndGet();
+        (storedFile.isSpilled() ? spillEngine : storageEngine).persistName(fileName, fileHash);
+      }
+    }
+  }
+
+  // discards partial files nobody writes into, then evicts unpinned files except the one just published, until the
+  // stored and partial bytes are within the limit
+  private void evict(long limit, ByteString keep) throws IOException {
+    boolean evicted = false;
+    while (getUsedBytes() > limit) {
+      evicted = true;
+      Map.Entry<ByteString, PendingFile> oldest = null;
+      for (Map.Entry<ByteString, PendingFile> entry : partialFiles.entrySet()) {
+        if (entry.getValue().getUsers() == 0 &&
+            (oldest == null || entry.getValue().getLastUsed() - oldest.getValue().getLastUsed() < 0)) {
+          oldest = entry;
+        }
+      }
+      if (oldest != null) {
+        if (removePartialFile(oldest.getKey(), oldest.getValue())) {
+          logger.info("Discarded the partial file of " + oldest.getKey() + ", freed " + oldest.getValue().getOwnBytes() +
+              " bytes");
+        }
+        continue;
+      }
+
+      StoredFile victim = null;
+      for (StoredFile storedFile : localFiles.values()) {
+        if (!storedFile.isPinned() && !storedFile.isSpilled() && !storedFile.getHash().equals(keep) &&
+            (victim == null || evictionPolicy.getOrder().compare(storedFile, victim) < 0)) {
+          victim = storedFile;
+        }
+      }
+      if (victim == null) {
+        logger.warning("Stored, partial and reserved bytes " + getUsedBytes() + " are over the capacity of " +
+            capacity + " and no file can be evicted");
+        break;
+      }
+      long before = getUsedBytes();
+      List<String> names = getNames(victim.getHash());
+      if (spillEngine != null) {
+        spill(victim);
+      } else {
+        drop(victim);
+      }
+      evictedFiles.incrementAndGet();
+      logger.info((spillEngine != null ? "Spilled " : "Dropped ") + names + ", freed " +
+          (before - getUsedBytes()) + " bytes, " + getDedupSummary());
+    }
+    if (evicted) {
+      compact();
+    }
+  }
+
+  /**
+   * Moves the chunks that keep fragmented space from being given back. A file published meanwhile may still point to
+   * the old copy, which stays valid; it only takes its space a little longer.
+   */
+  private void compact() {
+    synchronized (evictionLock) {
+      if (!storageEngine.needsCompaction()) {
+        return;
+      }
+      Map<Extent, Extent> moved = new HashMap<>();
+      Set<Extent> copies = new HashSet<>();
+      long movedBytes = 0;
+      try {
+        // the copies may fill the storage they went to and leave the part before it fragmented, so that is looked
+        // at once more; a copy is never moved again
+        int found;
+        do {
+          found = moved.size();
+          for (ByteString chunkHash : chunks.select(storageEngine::isFragmented)) {
+            Extent extent = chunks.get(chunkHash);
+            if (extent == null || copies.contains(extent) || !storageEngine.isFragmented(extent)) {
+              continue;
+            }
+            Extent copy = storageEngine.allocate(extent.getSize());
+            copy.getBuffer().duplicate().put(extent.getBuffer().duplicate());
+            if (chunks.replace(chunkHash, extent, copy)) {
+              moved.put(extent, copy);
+              copies.add(copy);
+              movedBytes += extent.getSize();
+            } else {
+              storageEngine.free(copy);
+            }
+          }
+        } while (moved.size() > found);
+        for (StoredFile storedFile : localFiles.values()) {
+          if (storedFile.isSpilled()) {
+            continue;
+          }
+          Extent[] extents = storedFile.getChunkExtents();
+          Extent[] relocated = null;
+          for (int i = 0; i < extents.length; i++) {
+            Extent copy = moved.get(extents[i]);
+            if (copy != null) {
+              if (relocated == null) {
+                relocated = extents.clone();
+              }
+              relocated[i] = copy;
+            }
+          }
+          if (relocated != null && localFiles.replace(storedFile.getHash(), storedFile, storedFile.moveTo(relocated, false))) {
+            fileChanged(storedFile.getHash());
+            storageEngine.persistFile(storedFile.getHash(), storedFile.getLayout(), storedFile.getChunkHashes(),
+                Arrays.asList(relocated));
+          }
+        }
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Compaction stopped: " + e.getMessage(), e);
+      }
+      for (Extent extent : moved.keySet()) {
+        storageEngine.free(extent);
+      }
+      if (movedBytes > 0) {
+        logger.info("Moved " + movedBytes + " bytes of chunks out of fragmented storage");
+      }
+    }
+  }
+
+  // partial files nobody wrote into for a while are most likely never finished
+  private void expirePartialFiles() {
+    if (partialFileTtlNanos <= 0) {
+      return;
+    }
+    long now = System.nanoTime();
+    boolean expired = false;
+    for (Map.Entry<ByteString, PendingFile> entry : partialFiles.entrySet()) {
+      if (now - entry.getValue().getLastUsed() > partialFileTtlNanos && removePartialFile(entry.getKey(), entry.getValue())) {
+        logger.info("Expired the partial file of " + entry.getKey() + " with " + entry.getValue().getOwnBytes() + " bytes");
+        expired = true;
+      }
+    }
+    if (expired) {
+      compact();
+    }
+  }
+
+  // only a partial file nobody writes into is removed
+  private boolean removePartialFile(ByteString fileHash, PendingFile partialFile) {
+    boolean[] removed = new boolean[1];
+    partialFiles.computeIfPresent(fileHash, (hash, existing) -> {
+      if (existing != partialFile || existing.getUsers() > 0) {
+        return existing;
+      }
+      removed[0] = true;
+      return null;
+    });
+    if (removed[0]) {
+      discard(partialFile);
+    }
+    return removed[0];
+  }
+
+  private long getUsedBytes() {
+    return storedBytes.get() + partialBytes.get() + reservedBytes.get();
+  }
+
+  // the names go first, so a file is never found by a search without being served
+  private void drop(StoredFile storedFile) throws IOException {
+    ByteString fileHash = storedFile.getHash();
+    removeNames(fileHash);
+    localFiles.remove(fileHash, storedFile);
+    fileChanged(fileHash);
+    removeReferences(storedFile);
+    storageEngine.removeFile(fileHash);
+  }
+
+  private void spill(StoredFile storedFile) throws IOException {
+    ByteString fileHash = storedFile.getHash();
+    Extent[] extents = storedFile.getChunkExtents();
+    Extent[] spilled = new Extent[extents.length];
+    for (int i = 0; i < extents.length; i++) {
+      spilled[i] = spilledChunks.get(storedFile.getChunkHash(i));
+      if (spilled[i] == null) {
+        spilled[i] = spillEngine.allocate(storedFile.getLayout().getChunkSize(i));
+        spilled[i].getBuffer().duplicate().put(extents[i].getBuffer().duplicate());
+      }
+    }
+    spillEngine.persistFile(fileHash, storedFile.getLayout(), storedFile.getChunkHashes(), Arrays.asList(spilled));
+    for (String fileName : getNames(fileHash)) {
+      spillEngine.persistName(fileName, fileHash);
+    }
+
+    StoredFile moved = storedFile.moveTo(spilled, true);
+    addSpilledReferences(moved);
+    localFiles.replace(fileHash, storedFile, moved);
+    fileChanged(fileHash);
+    removeReferences(storedFile);
+    storageEngine.removeFile(fileHash);
+  }
+
+  private void fileChanged(ByteString fileHash) {
+    for (FileListener listener : listeners) {
+      listener.fileChanged(fileHash);
+    }
+  }
+
+  private List<String> getNames(ByteString fileHash) {
+    List<String> names = new ArrayList<>();
+    for (Map.Entry<String, ByteString> entry : fileNameToHash.entrySet()) {
+      if (entry.getValue().equals(fileHash)) {
+        names.add(entry.getKey());
+      }
+    }
+    return names;
+  }
+
+  private void removeNames(ByteString fileHash) {
+    for (String fileName : getNames(fileHash)) {
+      if (fileNameToHash.remove(fileName, fileHash)) {
+        fileNameIndex.remove(fileName);
+        namespaceVersion.incrementAndGet();
+      }
+    }
+  }
+
+  private static FileInfo buildFileInfo(String fileName, StoredFile storedFile) {
+    return FileInfo.newBuilder().
+        setHash(storedFile.getHash()).
+        setSize(storedFile.getSize()).
+        setFilename(fileName).
+        addAllChunks(storedFile.getChunkInfos()).
+        build();
+  }
+
+  Extent allocate(int size) throws IOException {
+    return storageEngine.allocate(size);
+  }
+
+  // bytes a pending file stored, the part of them that was reserved before
+  void addPartialBytes(long bytes, long reserved) {
+    partialBytes.addAndGet(bytes);
+    reservedBytes.addAndGet(-reserved);
+  }
+
+  void free(Extent extent) {
+    storageEngine.free(extent);
+  }
+
+  Extent getChunkExtent(ByteString chunkHash) {
+    return chunks.get(chunkHash);
+  }
+
+  // returns the bytes of chunks that were not stored before, whose extents go into adopted; chunks stored already,
+  // maybe by a file published at the same time, are shared
+  private long addReferences(StoredFile storedFile, Set<Extent> adopted) {
+    long newBytes = 0;
+    Extent[] extents = storedFile.getChunkExtents();
+    for (int i = 0; i < extents.length; i++) {
+      Extent shared = chunks.add(storedFile.getChunkHash(i), extents[i]);
+      if (shared == null) {
+        adopted.add(extents[i]);
+        newBytes += storedFile.getLayout().getChunkSize(i);
+      } else {
+        extents[i] = shared;
+      }
+    }
+    logicalBytes.addAndGet(storedFile.getSize());
+    storedBytes.addAndGet(newBytes);
+    return newBytes;
+  }
+
+  private void removeReferences(StoredFile storedFile) {
+    for (int i = 0; i < storedFile.getChunkCount(); i++) {
+      Extent unused = chunks.remove(storedFile.getChunkHash(i));
+      if (unused != null) {
+        storedBytes.addAndGet(-storedFile.getLayout().getChunkSize(i));
+        storageEngine.free(unused);
+      }
+    }
+    logicalBytes.addAndGet(-storedFile.getSize());
+  }
+
+  private void addSpilledReferences(StoredFile storedFile) {
+    Extent[] extents = storedFile.getChunkExtents();
+    for (int i = 0; i < extents.length; i++) {
+      if (spilledChunks.add(storedFile.getChunkHash(i), extents[i]) == null) {
+        spilledBytes.addAndGet(storedFile.getLayout().getChunkSize(i));
+      }
+    }
+    logicalBytes.addAndGet(storedFile.getSize());
+  }
+
+  private String getDedupSummary() {
+    long logical = logicalBytes.get();
+    long stored = storedBytes.get() + spilledBytes.get();
+    return String.format("%d bytes of files in %d stored bytes, %d bytes saved, dedup ratio %.2f",
+        logical, stored, logical - stored, stored == 0 ? 1.0 : (double) logical / stored);
+  }
+
+  public void close() throws IOException {
+    storageEngine.close();
+    if (spillEngine != null) {
+      spillEngine.close();
+    }
+  }
+
+}
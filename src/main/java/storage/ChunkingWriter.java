@@ -0,0 +1,125 @@
+package storage;
+
+import com.google.protobuf.ByteString;
+import util.ChunkInfoUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Writes the content of a new file into storage as it arrives, computing the file MD5 and the MD5 of every standard
+ * chunk in the same pass, so the content never has to be held or read again. Chunks that arrive whole are hashed
+ * straight from the caller's buffer, on other threads when there are many of them, while this thread feeds the file
+ * digest, which has to see the bytes in order. Only chunks split between writes are assembled in a small buffer
+ * first. Either way, chunks the store already holds are never written at all.
+ */
+public class ChunkingWriter {
+
+  // whole chunks in one write worth handing to the fork/join pool
+  private static final int PARALLEL_CHUNKS = 64;
+
+  private final PendingFile pendingFile;
+  private final ChunkLayout layout;
+  private final MessageDigest fileDigest;
+  private final ByteBuffer chunk = ByteBuffer.allocate(ChunkLayout.CHUNK_SIZE);
+  private int chunkIndex;
+  private int written;
+
+  ChunkingWriter(PendingFile pendingFile) {
+    this.pendingFile = pendingFile;
+    this.layout = pendingFile.getLayout();
+    try {
+      this.fileDigest = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public void write(ByteBuffer data) throws IOException {
+    if (data.remaining() > layout.getSize() - written) {
+      throw new IllegalArgumentException("Content is longer than " + layout.getSize() + " bytes");
+    }
+    while (data.hasRemaining()) {
+      if (chunk.position() == 0 && writeWholeChunks(data)) {
+        continue;
+      }
+      int length = Math.min(data.remaining(), layout.getChunkSize(chunkIndex) - chunk.position());
+      ByteBuffer piece = data.duplicate();
+      piece.limit(piece.position() + length);
+      fileDigest.update(piece.duplicate());
+      chunk.put(piece);
+      data.position(data.position() + length);
+      written += length;
+      if (chunk.position() == layout.getChunkSize(chunkIndex)) {
+        chunk.flip();
+        pendingFile.putChunk(chunkIndex, ChunkInfoUtil.md5(chunk), chunk);
+        chunk.clear();
+        chunkIndex++;
+      }
+    }
+  }
+
+  // returns false when the data does not hold the whole next chunk
+  private boolean writeWholeChunks(ByteBuffer data) throws IOException {
+    List<ByteBuffer> chunks = new ArrayList<>();
+    int offset = data.position();
+    while (chunkIndex + chunks.size() < layout.getChunkCount() &&
+        layout.getChunkSize(chunkIndex + chunks.size()) <= data.limit() - offset) {
+      ByteBuffer wholeChunk = data.duplicate();
+      wholeChunk.position(offset);
+      offset += layout.getChunkSize(chunkIndex + chunks.size());
+      wholeChunk.limit(offset);
+      chunks.add(wholeChunk);
+    }
+    if (chunks.isEmpty()) {
+      return false;
+    }
+
+    ByteBuffer range = data.duplicate();
+    range.limit(offset);
+    ByteString[] hashes;
+    if (chunks.size() >= PARALLEL_CHUNKS) {
+      ForkJoinTask<ByteString[]> hashing = ForkJoinPool.commonPool().submit(() -> ChunkInfoUtil.getChunkHashes(chunks));
+      fileDigest.update(range);
+      hashes = hashing.join();
+    } else {
+      fileDigest.update(range);
+      hashes = new ByteString[chunks.size()];
+      for (int i = 0; i < hashes.length; i++) {
+        hashes[i] = ChunkInfoUtil.md5(chunks.get(i));
+      }
+    }
+    for (int i = 0; i < hashes.length; i++) {
+      pendingFile.putChunk(chunkIndex + i, hashes[i], chunks.get(i));
+    }
+    chunkIndex += hashes.length;
+    written += offset - data.position();
+    data.position(offset);
+    return true;
+  }
+
+  public void write(byte[] data, int offset, int length) throws IOException {
+    write(ByteBuffer.wrap(data, offset, length));
+  }
+
+  public boolean isComplete() {
+    return written == layout.getSize();
+  }
+
+  public PendingFile getPendingFile() {
+    return pendingFile;
+  }
+
+  /**
+   * Only valid once the writer is complete.
+   */
+  public ByteString getFileHash() {
+    return ByteString.copyFrom(fileDigest.digest());
+  }
+}
@@ -0,0 +1,24 @@
+package storage;
+
+import java.util.Comparator;
+
+/**
+ * Order in which files are evicted once the store is over capacity, first to go first.
+ */
+public enum EvictionPolicy {
+
+  // least recently served
+  LRU(Comparator.comparingLong(StoredFile::getLastAccess)),
+  // least often served, the least recently served among equals
+  LFU(Comparator.comparingLong(StoredFile::getAccesses).thenComparingLong(StoredFile::getLastAccess));
+
+  private final Comparator<StoredFile> order;
+
+  EvictionPolicy(Comparator<StoredFile> order) {
+    this.order = order;
+  }
+
+  Comparator<StoredFile> getOrder() {
+    return order;
+  }
+}
@@ -0,0 +1,47 @@
+package storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The region a storage engine reserved for one chunk. It keeps the buffer of the whole segment rather than a view of
+ * its own, which would cost another object for every chunk; {@link #getBuffer} cuts the view when it is needed.
+ */
+public class Extent {
+
+  private final int segment;
+  private final long offset;
+  private final int size;
+  private final ByteBuffer segmentBuffer;
+
+  /**
+   * @param segmentBuffer the whole segment, whose position and limit must never change
+   */
+  public Extent(int segment, long offset, int size, ByteBuffer segmentBuffer) {
+    this.segment = segment;
+    this.offset = offset;
+    this.size = size;
+    this.segmentBuffer = segmentBuffer;
+  }
+
+  public int getSegment() {
+    return segment;
+  }
+
+  public long getOffset() {
+    return offset;
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * A new view of the chunk.
+   */
+  public ByteBuffer getBuffer() {
+    ByteBuffer buffer = segmentBuffer.duplicate();
+    buffer.position((int) offset);
+    buffer.limit((int) offset + size);
+    return buffer.slice();
+  }
+}
@@ -0,0 +1,93 @@
+package storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Filenames kept sorted for prefix lookups, plus a trigram index for literal substrings. Used to narrow the names a
+ * search regex has to be run against.
+ */
+public class FileNameIndex {
+
+  private static final int GRAM = 3;
+
+  private final ConcurrentSkipListSet<String> names = new ConcurrentSkipListSet<>();
+  private final ConcurrentMap<String, Set<String>> grams = new ConcurrentHashMap<>();
+
+  // postings change inside compute, so a posting is never dropped for being empty while a name goes into it
+  public void add(String fileName) {
+    if (names.add(fileName)) {
+      for (int i = 0; i + GRAM <= fileName.length(); i++) {
+        grams.compute(fileName.substring(i, i + GRAM), (gram, posting) -> {
+          Set<String> added = posting != null ? posting : ConcurrentHashMap.newKeySet();
+          added.add(fileName);
+          return added;
+        });
+      }
+    }
+  }
+
+  public void remove(String fileName) {
+    if (names.remove(fileName)) {
+      for (int i = 0; i + GRAM <= fileName.length(); i++) {
+        grams.computeIfPresent(fileName.substring(i, i + GRAM), (gram, posting) -> {
+          posting.remove(fileName);
+          return posting.isEmpty() ? null : posting;
+        });
+      }
+    }
+  }
+
+  /**
+   * Returns the names that start with the prefix and contain the literal; either may be empty.
+   */
+  public List<String> getCandidates(String prefix, String literal) {
+    Iterable<String> source = null;
+    if (literal.length() >= GRAM) {
+      Set<String> smallest = null;
+      for (int i = 0; i + GRAM <= literal.length(); i++) {
+        Set<String> posting = grams.get(literal.substring(i, i + GRAM));
+        if (posting == null || posting.isEmpty()) {
+          return new ArrayList<>();
+        }
+        if (smallest == null || posting.size() < smallest.size()) {
+          smallest = posting;
+        }
+      }
+      source = smallest;
+    }
+
+    List<String> candidates = new ArrayList<>();
+    if (source == null && !prefix.isEmpty()) {
+      for (String fileName : names.tailSet(prefix)) {
+        if (!fileName.startsWith(prefix)) {
+          break;
+        }
+        if (fileName.contains(literal)) {
+          candidates.add(fileName);
+        }
+      }
+      return candidates;
+    }
+
+    for (String fileName : source == null ? names : source) {
+      if (fileName.startsWith(prefix) && fileName.contains(literal)) {
+        candidates.add(fileName);
+      }
+    }
+    return candidates;
+  }
+
+  public int size() {
+    return names.size();
+  }
+
+  // trigrams that still have names
+  int getGramCount() {
+    return grams.size();
+  }
+}
@@ -0,0 +1,298 @@
+package storage;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Disk backed storage. Chunks are appended to fixed size segment files that stay memory mapped, so stored data lives
+ * in the page cache instead of the heap. An append-only index log records the hash and location of every chunk of
+ * every file; reopening a store only replays that log, the segments are mapped but never read.
+ *
+ * Index records are framed as [length][crc32][payload]; a torn record at the end of the log is discarded.
+ */
+public class MappedStorageEngine implements StorageEngine {
+
+  private static final Logger logger = Logger.getLogger(MappedStorageEngine.class.getName());
+
+  private static final String indexFileName = "index.log";
+  private static final String segmentFileFormat = "segment-%05d.dat";
+
+  private static final byte FILE_RECORD = 1;
+  private static final byte NAME_RECORD = 2;
+  // a FILE_RECORD followed by the MD5 of every chunk
+  private static final byte FILE_WITH_CHUNKS_RECORD = 3;
+  // the MD5 and location of every chunk, which may belong to other files as well
+  private static final byte FILE_MANIFEST_RECORD = 4;
+  // the file was evicted; a later manifest for the same hash brings it back
+  private static final byte REMOVE_RECORD = 5;
+
+  private final Path directory;
+  private final int segmentSize;
+  private final List<MappedByteBuffer> segments = new CopyOnWriteArrayList<>();
+  private int segmentEnd;
+  private FileChannel indexChannel;
+
+  public MappedStorageEngine(Path directory, int segmentSize) throws IOException {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    Files.createDirectories(directory);
+  }
+
+  @Override
+  public synchronized Extent allocate(int size) throws IOException {
+    if (size == 0) {
+      return new Extent(-1, 0, 0, ByteBuffer.allocate(0));
+    }
+    int current = segments.size() - 1;
+    if (current < 0 || segmentEnd + size > segments.get(current).capacity()) {
+      current = openSegment(segments.size(), Math.max(segmentSize, size));
+      segmentEnd = 0;
+    }
+    int offset = segmentEnd;
+    segmentEnd += size;
+    return new Extent(current, offset, size, segments.get(current));
+  }
+
+  // segments are append-only, their space is never reused
+  @Override
+  public void free(Extent extent) {
+  }
+
+  @Override
+  public boolean isFragmented(Extent extent) {
+    return false;
+  }
+
+  @Override
+  public boolean needsCompaction() {
+    return false;
+  }
+
+  @Override
+  public void persistFile(ByteString fileHash, ChunkLayout layout, ByteString chunkHashes, List<Extent> chunks) throws IOException {
+    Set<Integer> touchedSegments = new HashSet<>();
+    for (Extent chunk : chunks) {
+      if (chunk.getSegment() >= 0 && touchedSegments.add(chunk.getSegment())) {
+        segments.get(chunk.getSegment()).force();
+      }
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream record = new DataOutputStream(bytes);
+    record.writeByte(FILE_MANIFEST_RECORD);
+    writeHash(record, fileHash);
+    record.writeInt(layout.getSize());
+    record.writeInt(layout.getChunkCount());
+    record.writeBoolean(layout.isStandard());
+    if (!layout.isStandard()) {
+      for (int chunkSize : layout.getChunkSizes()) {
+        record.writeInt(chunkSize);
+      }
+    }
+    for (int i = 0; i < layout.getChunkCount(); i++) {
+      writeHash(record, chunkHashes.substring(i * StoredFile.HASH_SIZE, (i + 1) * StoredFile.HASH_SIZE));
+      record.writeInt(chunks.get(i).getSegment());
+      record.writeLong(chunks.get(i).getOffset());
+    }
+    appendRecord(bytes.toByteArray());
+  }
+
+  @Override
+  public void persistName(String fileName, ByteString fileHash) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream record = new DataOutputStream(bytes);
+    record.writeByte(NAME_RECORD);
+    record.writeUTF(fileName);
+    writeHash(record, fileHash);
+    appendRecord(bytes.toByteArray());
+  }
+
+  @Override
+  public void removeFile(ByteString fileHash) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream record = new DataOutputStream(bytes);
+    record.writeByte(REMOVE_RECORD);
+    writeHash(record, fileHash);
+    appendRecord(bytes.toByteArray());
+  }
+
+  @Override
+  public synchronized void recover(RecoveryListener listener) throws IOException {
+    int segmentId = 0;
+    Path segmentPath;
+    while (Files.exists(segmentPath = directory.resolve(String.format(segmentFileFormat, segmentId)))) {
+      openSegment(segmentId, (int) Files.size(segmentPath));
+      segmentId++;
+    }
+
+    Path indexPath = directory.resolve(indexFileName);
+    indexChannel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    long validLength = 0;
+    try (DataInputStream index = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPath)))) {
+      while (true) {
+        byte[] payload = readRecord(index);
+        if (payload == null) {
+          break;
+        }
+        DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = record.readByte();
+        if (type == FILE_RECORD || type == FILE_WITH_CHUNKS_RECORD) {
+          recoverContiguousFile(type, record, listener);
+        } else if (type == FILE_MANIFEST_RECORD) {
+          ByteString fileHash = readHash(record);
+          int size = record.readInt();
+          ChunkLayout layout = readLayout(record, size, record.readInt());
+          byte[] chunkHashes = new byte[layout.getChunkCount() * StoredFile.HASH_SIZE];
+          List<Extent> chunks = new ArrayList<>(layout.getChunkCount());
+          for (int i = 0; i < layout.getChunkCount(); i++) {
+            readChunkHash(record, chunkHashes, i);
+            chunks.add(recoverExtent(record.readInt(), record.readLong(), layout.getChunkSize(i)));
+          }
+          listener.fileRecovered(fileHash, layout, UnsafeByteOperations.unsafeWrap(chunkHashes), chunks);
+        } else if (type == NAME_RECORD) {
+          String fileName = record.readUTF();
+          listener.nameRecovered(fileName, readHash(record));
+        } else if (type == REMOVE_RECORD) {
+          listener.fileRemoved(readHash(record));
+        }
+        validLength += 8 + payload.length;
+      }
+    }
+    if (validLength < indexChannel.size()) {
+      logger.warning("Discarding " + (indexChannel.size() - validLength) + " bytes of incomplete index records");
+      indexChannel.truncate(validLength);
+    }
+    indexChannel.position(validLength);
+  }
+
+  // files written before chunks were deduplicated occupy one extent, split here along the layout
+  private void recoverContiguousFile(byte type, DataInputStream record, RecoveryListener listener) throws IOException {
+    ByteString fileHash = readHash(record);
+    int size = record.readInt();
+    int segment = record.readInt();
+    long offset = record.readLong();
+    ChunkLayout layout = readLayout(record, size, record.readInt());
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    byte[] chunkHashes = new byte[layout.getChunkCount() * StoredFile.HASH_SIZE];
+    List<Extent> chunks = new ArrayList<>(layout.getChunkCount());
+    for (int i = 0; i < layout.getChunkCount(); i++) {
+      Extent chunk = recoverExtent(segment, offset + layout.getChunkOffset(i), layout.getChunkSize(i));
+      if (type == FILE_WITH_CHUNKS_RECORD) {
+        readChunkHash(record, chunkHashes, i);
+      } else {
+        md.update(chunk.getBuffer().duplicate());
+        System.arraycopy(md.digest(), 0, chunkHashes, i * StoredFile.HASH_SIZE, StoredFile.HASH_SIZE);
+      }
+      chunks.add(chunk);
+    }
+    listener.fileRecovered(fileHash, layout, UnsafeByteOperations.unsafeWrap(chunkHashes), chunks);
+  }
+
+  private ChunkLayout readLayout(DataInputStream record, int size, int chunkCount) throws IOException {
+    if (record.readBoolean()) {
+      return ChunkLayout.standard(size);
+    }
+    int[] chunkSizes = new int[chunkCount];
+    for (int i = 0; i < chunkCount; i++) {
+      chunkSizes[i] = record.readInt();
+    }
+    return ChunkLayout.fromChunkSizes(chunkSizes);
+  }
+
+  private Extent recoverExtent(int segment, long offset, int size) {
+    if (segment < 0 || size == 0) {
+      return new Extent(-1, 0, 0, ByteBuffer.allocate(0));
+    }
+    if (segment == segments.size() - 1) {
+      segmentEnd = Math.max(segmentEnd, (int) offset + size);
+    }
+    return new Extent(segment, offset, size, segments.get(segment));
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (indexChannel != null) {
+      indexChannel.close();
+    }
+    for (MappedByteBuffer segment : segments) {
+      segment.force();
+    }
+  }
+
+  private int openSegment(int segmentId, int size) throws IOException {
+    Path segmentPath = directory.resolve(String.format(segmentFileFormat, segmentId));
+    try (FileChannel channel = FileChannel.open(segmentPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      // the mapping stays valid after the channel is closed
+      segments.add(channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+    }
+    return segmentId;
+  }
+
+  private synchronized void appendRecord(byte[] payload) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    ByteBuffer record = ByteBuffer.allocate(8 + payload.length);
+    record.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+    record.flip();
+    while (record.hasRemaining()) {
+      indexChannel.write(record);
+    }
+    indexChannel.force(false);
+  }
+
+  private static byte[] readRecord(DataInputStream index) throws IOException {
+    try {
+      int length = index.readInt();
+      int checksum = index.readInt();
+      if (length < 0 || length > 64 * 1024 * 1024) {
+        return null;
+      }
+      byte[] payload = new byte[length];
+      index.readFully(payload);
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      return (int) crc.getValue() == checksum ? payload : null;
+    } catch (EOFException e) {
+      return null;
+    }
+  }
+
+  private static void writeHash(DataOutputStream record, ByteString fileHash) throws IOException {
+    record.writeShort(fileHash.size());
+    fileHash.writeTo(record);
+  }
+
+  private static void readChunkHash(DataInputStream record, byte[] chunkHashes, int chunkIndex) throws IOException {
+    if (record.readUnsignedShort() != StoredFile.HASH_SIZE) {
+      throw new IOException("Index record has a chunk hash that is no MD5");
+    }
+    record.readFully(chunkHashes, chunkIndex * StoredFile.HASH_SIZE, StoredFile.HASH_SIZE);
+  }
+
+  private static ByteString readHash(DataInputStream record) throws IOException {
+    byte[] hash = new byte[record.readUnsignedShort()];
+    record.readFully(hash);
+    return ByteString.copyFrom(hash);
+  }
+}
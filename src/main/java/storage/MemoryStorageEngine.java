@@ -0,0 +1,128 @@
+package storage;
+
+import com.google.protobuf.ByteString;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps chunks in memory. Chunks are carved out of larger slabs so that millions of them do not each cost a buffer
+ * object; anything bigger than a quarter slab gets a buffer of its own.
+ * <p>
+ * Freed space in a slab is never handed out again, since responses may still be sending the old chunk. A slab goes to
+ * the garbage collector once none of its chunks is in use; one that is mostly free is reported as fragmented, so the
+ * store moves its last chunks elsewhere.
+ */
+public class MemoryStorageEngine implements StorageEngine {
+
+  private static final int SLAB_SIZE = 1024 * 1024;
+  // slabs with less than this in use are worth emptying
+  private static final int FRAGMENTED_BYTES = SLAB_SIZE / 4;
+
+  private final boolean offHeap;
+  private ByteBuffer slab;
+  private int slabId = -1;
+  private int slabEnd;
+  // bytes of each slab that are still in use, by slab id
+  private final Map<Integer, Integer> liveBytes = new HashMap<>();
+
+  public MemoryStorageEngine() {
+    this(false);
+  }
+
+  public MemoryStorageEngine(boolean offHeap) {
+    this.offHeap = offHeap;
+  }
+
+  @Override
+  public synchronized Extent allocate(int size) {
+    if (size > SLAB_SIZE / 4) {
+      return new Extent(-1, 0, size, newBuffer(size));
+    }
+    if (slab == null || SLAB_SIZE - slabEnd < size) {
+      if (liveBytes.getOrDefault(slabId, -1) == 0) {
+        liveBytes.remove(slabId);
+      }
+      slab = newBuffer(SLAB_SIZE);
+      slabId++;
+      slabEnd = 0;
+      liveBytes.put(slabId, 0);
+    }
+    int offset = slabEnd;
+    slabEnd += size;
+    liveBytes.merge(slabId, size, Integer::sum);
+    return new Extent(slabId, offset, size, slab);
+  }
+
+  // chunks with a buffer of their own are simply left to the garbage collector
+  @Override
+  public synchronized void free(Extent extent) {
+    Integer live = liveBytes.get(extent.getSegment());
+    if (live == null) {
+      return;
+    }
+    live -= extent.getSize();
+    if (live > 0 || extent.getSegment() == slabId) {
+      liveBytes.put(extent.getSegment(), live);
+    } else {
+      liveBytes.remove(extent.getSegment());
+    }
+  }
+
+  @Override
+  public synchronized boolean isFragmented(Extent extent) {
+    Integer live = liveBytes.get(extent.getSegment());
+    return live != null && extent.getSegment() != slabId && live < FRAGMENTED_BYTES;
+  }
+
+  @Override
+  public synchronized boolean needsCompaction() {
+    for (Map.Entry<Integer, Integer> entry : liveBytes.entrySet()) {
+      if (entry.getKey() != slabId && entry.getValue() < FRAGMENTED_BYTES) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // the slabs that still hold chunks in use, which is the memory the engine really takes
+  public synchronized int getSlabCount() {
+    return liveBytes.size();
+  }
+
+  // bytes of chunks in the slabs, which only match what the store holds if every chunk is freed exactly once
+  synchronized long getLiveBytes() {
+    long bytes = 0;
+    for (int live : liveBytes.values()) {
+      bytes += live;
+    }
+    return bytes;
+  }
+
+  @Override
+  public void persistFile(ByteString fileHash, ChunkLayout layout, ByteString chunkHashes, List<Extent> chunks) {
+  }
+
+  @Override
+  public void persistName(String fileName, ByteString fileHash) {
+  }
+
+  // the chunks of the file were freed one by one
+  @Override
+  public void removeFile(ByteString fileHash) {
+  }
+
+  @Override
+  public void recover(RecoveryListener listener) {
+  }
+
+  @Override
+  public void close() {
+  }
+
+  private ByteBuffer newBuffer(int size) {
+    return offHeap ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+  }
+}
@@ -0,0 +1,232 @@
+package storage;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A file being written into storage. Chunks may be written concurrently and in any order; a chunk the store already
+ * holds, or that an earlier index of this file already has, is referenced instead of being stored again. The file only
+ * becomes visible once it is published through {@link ChunkStore#publish(String, ByteString, PendingFile)}, but the
+ * chunks of a file being replicated can already be served one by one, see {@link ChunkStore#resumeFile}.
+ * <p>
+ * Chunks the file had to store itself count against the capacity of the store until the file is published or
+ * discarded; after that no more chunks can be written into it. They use up the room reserved for the file first.
+ */
+public class PendingFile {
+
+  private final ChunkStore store;
+  private final ChunkLayout layout;
+  private final AtomicReferenceArray<Extent> chunks;
+  private final AtomicReferenceArray<ByteString> chunkHashes;
+  private final ConcurrentMap<ByteString, Extent> ownChunks = new ConcurrentHashMap<>();
+  private final AtomicLong reusedBytes = new AtomicLong();
+  // replications writing into the file, and when one last started or stopped
+  private final AtomicInteger users = new AtomicInteger();
+  private volatile long lastUsed = System.nanoTime();
+  // guarded by this
+  private long ownBytes;
+  private long reservedBytes;
+  private boolean released;
+
+  PendingFile(ChunkStore store, ChunkLayout layout) {
+    this.store = store;
+    this.layout = layout;
+    this.chunks = new AtomicReferenceArray<>(layout.getChunkCount());
+    this.chunkHashes = new AtomicReferenceArray<>(layout.getChunkCount());
+  }
+
+  public ChunkLayout getLayout() {
+    return layout;
+  }
+
+  /**
+   * Fills the chunk from data already in storage, returning false when no chunk with that hash is held.
+   */
+  public boolean reuseChunk(int chunkIndex, ByteString hash) {
+    Extent extent = findChunk(hash);
+    if (extent == null || extent.getSize() != layout.getChunkSize(chunkIndex)) {
+      return false;
+    }
+    setChunk(chunkIndex, hash, extent);
+    reusedBytes.addAndGet(layout.getChunkSize(chunkIndex));
+    return true;
+  }
+
+  /**
+   * Returns true if the data was stored, false if a chunk with the same hash was already held.
+   */
+  public boolean putChunk(int chunkIndex, ByteString hash, ByteBuffer data) throws IOException {
+    if (data.remaining() != layout.getChunkSize(chunkIndex)) {
+      throw new IllegalArgumentException("Chunk " + chunkIndex + " has " + data.remaining() + " bytes");
+    }
+    if (hash.size() != StoredFile.HASH_SIZE) {
+      throw new IllegalArgumentException("Chunk " + chunkIndex + " has a hash of " + hash.size() + " bytes");
+    }
+    if (reuseChunk(chunkIndex, hash)) {
+      return false;
+    }
+    Extent extent = store.allocate(data.remaining());
+    extent.getBuffer().duplicate().put(data.duplicate());
+    Extent previous = ownChunks.putIfAbsent(hash, extent);
+    if (previous == null) {
+      try {
+        addOwnBytes(data.remaining());
+      } catch (IOException e) {
+        ownChunks.remove(hash, extent);
+        store.free(extent);
+        throw e;
+      }
+    } else {
+      store.free(extent);
+    }
+    setChunk(chunkIndex, hash, previous == null ? extent : previous);
+    return previous == null;
+  }
+
+  /**
+   * Returns true if the chunk is present with the given hash.
+   */
+  public boolean hasChunk(int chunkIndex, ByteString hash) {
+    return chunks.get(chunkIndex) != null && hash.equals(chunkHashes.get(chunkIndex));
+  }
+
+  /**
+   * The content of a chunk already present, or null. Chunks never change once present.
+   */
+  public ByteBuffer getChunkData(int chunkIndex) {
+    if (chunkIndex < 0 || chunkIndex >= layout.getChunkCount()) {
+      return null;
+    }
+    Extent extent = chunks.get(chunkIndex);
+    return extent == null ? null : extent.getBuffer().asReadOnlyBuffer();
+  }
+
+  public BitSet getChunkBitmap() {
+    BitSet bitmap = new BitSet(layout.getChunkCount());
+    for (int i = 0; i < layout.getChunkCount(); i++) {
+      if (chunks.get(i) != null) {
+        bitmap.set(i);
+      }
+    }
+    return bitmap;
+  }
+
+  public long getReusedBytes() {
+    return reusedBytes.get();
+  }
+
+  public boolean isComplete() {
+    for (int i = 0; i < layout.getChunkCount(); i++) {
+      if (chunks.get(i) == null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // chunks the file stored itself, since the store did not hold them yet
+  public synchronized long getOwnBytes() {
+    return ownBytes;
+  }
+
+  private synchronized void addOwnBytes(long bytes) throws IOException {
+    if (released) {
+      throw new IOException("The file was already published or discarded");
+    }
+    long reserved = Math.min(reservedBytes, bytes);
+    reservedBytes -= reserved;
+    ownBytes += bytes;
+    store.addPartialBytes(bytes, reserved);
+  }
+
+  // the chunks not present yet, less the room already reserved for them
+  synchronized long getUnreservedBytes() {
+    long missing = 0;
+    for (int i = 0; i < layout.getChunkCount(); i++) {
+      if (chunks.get(i) == null) {
+        missing += layout.getChunkSize(i);
+      }
+    }
+    return Math.max(0, missing - reservedBytes);
+  }
+
+  synchronized boolean addReservation(long bytes) {
+    if (released) {
+      return false;
+    }
+    reservedBytes += bytes;
+    return true;
+  }
+
+  synchronized long releaseReservation() {
+    long reserved = reservedBytes;
+    reservedBytes = 0;
+    return reserved;
+  }
+
+  // gives the room of the file back to the store; false if that already happened
+  synchronized boolean release() {
+    if (released) {
+      return false;
+    }
+    released = true;
+    store.addPartialBytes(-ownBytes, reservedBytes);
+    reservedBytes = 0;
+    return true;
+  }
+
+  Map<ByteString, Extent> getOwnChunks() {
+    return ownChunks;
+  }
+
+  void addUser() {
+    users.incrementAndGet();
+    lastUsed = System.nanoTime();
+  }
+
+  int removeUser() {
+    lastUsed = System.nanoTime();
+    return users.decrementAndGet();
+  }
+
+  int getUsers() {
+    return users.get();
+  }
+
+  long getLastUsed() {
+    return lastUsed;
+  }
+
+  // the manifest of a complete file, see StoredFile#getChunkHashes
+  ByteString getChunkHashes() {
+    byte[] packed = new byte[layout.getChunkCount() * StoredFile.HASH_SIZE];
+    for (int i = 0; i < layout.getChunkCount(); i++) {
+      chunkHashes.get(i).copyTo(packed, i * StoredFile.HASH_SIZE);
+    }
+    return UnsafeByteOperations.unsafeWrap(packed);
+  }
+
+  Extent getChunk(int chunkIndex) {
+    return chunks.get(chunkIndex);
+  }
+
+  private Extent findChunk(ByteString hash) {
+    Extent extent = store.getChunkExtent(hash);
+    return extent != null ? extent : ownChunks.get(hash);
+  }
+
+  private void setChunk(int chunkIndex, ByteString hash, Extent extent) {
+    chunkHashes.set(chunkIndex, hash);
+    chunks.set(chunkIndex, extent);
+  }
+}
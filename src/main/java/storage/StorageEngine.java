@@ -0,0 +1,55 @@
+package storage;
+
+import com.google.protobuf.ByteString;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Space for chunks plus a record of which chunks make up each file. A chunk shared by several files is stored once,
+ * so the extents of one file may be spread over the storage and shared with other files.
+ */
+public interface StorageEngine extends Closeable {
+
+  interface RecoveryListener {
+    // the chunk hashes are packed like those of a StoredFile
+    void fileRecovered(ByteString fileHash, ChunkLayout layout, ByteString chunkHashes, List<Extent> chunks);
+
+    void nameRecovered(String fileName, ByteString fileHash);
+
+    // the file and every name pointing to it were removed
+    void fileRemoved(ByteString fileHash);
+  }
+
+  Extent allocate(int size) throws IOException;
+
+  /**
+   * No file uses the chunk any more. Engines that can give its space back do so once no other chunk shares it.
+   */
+  void free(Extent extent);
+
+  /**
+   * True if the chunk keeps otherwise free space from being given back, so it is worth moving.
+   */
+  boolean isFragmented(Extent extent);
+
+  /**
+   * True if some chunks are fragmented.
+   */
+  boolean needsCompaction();
+
+  /**
+   * Records the manifest of a file, see {@link StoredFile#getChunkHashes}, and where each of its chunks is.
+   */
+  void persistFile(ByteString fileHash, ChunkLayout layout, ByteString chunkHashes, List<Extent> chunks) throws IOException;
+
+  void persistName(String fileName, ByteString fileHash) throws IOException;
+
+  /**
+   * Records that the file and its names are gone. Its chunks are freed separately, unless other files use them.
+   */
+  void removeFile(ByteString fileHash) throws IOException;
+
+  void recover(RecoveryListener listener) throws IOException;
+}
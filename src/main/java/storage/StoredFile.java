@@ -0,0 +1,165 @@
+package storage;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import node.ChunkInfo;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A published file: its manifest of chunk hashes and the stored chunks they resolve to. It also keeps how often and
+ * how recently it was served, which decides what is evicted when the store runs out of capacity.
+ * <p>
+ * The manifest keeps the hashes packed one after the other, so a chunk costs its 16 bytes and no objects; ChunkInfos
+ * are only built when asked for.
+ */
+public class StoredFile {
+
+  public static final int HASH_SIZE = 16;
+
+  private final ByteString hash;
+  private final ChunkLayout layout;
+  private final ByteString chunkHashes;
+  private final Extent[] chunks;
+  private final boolean spilled;
+  private final AtomicLong accesses = new AtomicLong();
+  private volatile long lastAccess = System.nanoTime();
+  private volatile boolean pinned;
+
+  StoredFile(ByteString hash, ChunkLayout layout, ByteString chunkHashes, Extent[] chunks) {
+    this(hash, layout, chunkHashes, chunks, false);
+  }
+
+  StoredFile(ByteString hash, ChunkLayout layout, ByteString chunkHashes, Extent[] chunks, boolean spilled) {
+    if (chunkHashes.size() != layout.getChunkCount() * HASH_SIZE) {
+      throw new IllegalArgumentException("Manifest has " + chunkHashes.size() + " bytes of hashes for " +
+          layout.getChunkCount() + " chunks");
+    }
+    this.hash = hash;
+    this.layout = layout;
+    this.chunkHashes = chunkHashes;
+    this.chunks = chunks;
+    this.spilled = spilled;
+  }
+
+  public ByteString getHash() {
+    return hash;
+  }
+
+  public ChunkLayout getLayout() {
+    return layout;
+  }
+
+  public int getChunkCount() {
+    return layout.getChunkCount();
+  }
+
+  public int getSize() {
+    return layout.getSize();
+  }
+
+  public ByteBuffer getChunk(int chunkIndex) {
+    if (chunkIndex < 0 || chunkIndex >= layout.getChunkCount()) {
+      return null;
+    }
+    return chunks[chunkIndex].getBuffer().asReadOnlyBuffer();
+  }
+
+  public List<ByteBuffer> getChunks() {
+    List<ByteBuffer> result = new ArrayList<>(layout.getChunkCount());
+    for (int i = 0; i < layout.getChunkCount(); i++) {
+      result.add(getChunk(i));
+    }
+    return result;
+  }
+
+  public ByteString getChunkHash(int chunkIndex) {
+    return chunkHashes.substring(chunkIndex * HASH_SIZE, (chunkIndex + 1) * HASH_SIZE);
+  }
+
+  /**
+   * The MD5 of every chunk in order, 16 bytes each.
+   */
+  public ByteString getChunkHashes() {
+    return chunkHashes;
+  }
+
+  /**
+   * A new list on every call.
+   */
+  public List<ChunkInfo> getChunkInfos() {
+    List<ChunkInfo> chunkInfos = new ArrayList<>(layout.getChunkCount());
+    for (int i = 0; i < layout.getChunkCount(); i++) {
+      chunkInfos.add(ChunkInfo.newBuilder().
+          setIndex(i).
+          setSize(layout.getChunkSize(i)).
+          setHash(getChunkHash(i)).
+          build());
+    }
+    return chunkInfos;
+  }
+
+  /**
+   * The whole content as a view of the stored chunks, nothing is copied.
+   */
+  public ByteString getContent() {
+    return concat(0, layout.getChunkCount());
+  }
+
+  /**
+   * Counts a chunk or download request served from this file.
+   */
+  public void recordAccess() {
+    accesses.incrementAndGet();
+    lastAccess = System.nanoTime();
+  }
+
+  long getAccesses() {
+    return accesses.get();
+  }
+
+  long getLastAccess() {
+    return lastAccess;
+  }
+
+  public boolean isPinned() {
+    return pinned;
+  }
+
+  void setPinned(boolean pinned) {
+    this.pinned = pinned;
+  }
+
+  // true if the chunks live in the spill tier
+  boolean isSpilled() {
+    return spilled;
+  }
+
+  // the same file with its chunks somewhere else, keeping its usage
+  StoredFile moveTo(Extent[] chunks, boolean spilled) {
+    StoredFile moved = new StoredFile(hash, layout, chunkHashes, chunks, spilled);
+    moved.accesses.set(accesses.get());
+    moved.lastAccess = lastAccess;
+    moved.pinned = pinned;
+    return moved;
+  }
+
+  Extent[] getChunkExtents() {
+    return chunks;
+  }
+
+  // balanced, so the rope stays shallow however many chunks there are
+  private ByteString concat(int from, int to) {
+    if (to - from == 0) {
+      return ByteString.EMPTY;
+    }
+    if (to - from == 1) {
+      return UnsafeByteOperations.unsafeWrap(getChunk(from));
+    }
+    int middle = (from + to) >>> 1;
+    return concat(from, middle).concat(concat(middle, to));
+  }
+}
@@ -3,85 +3,106 @@ package util;
 import com.google.protobuf.ByteString;
 import node.ChunkInfo;
 
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Chunk hashing. Chunks are hashed in place, straight from the buffers they arrive in, with one MD5 digest per thread;
+ * many chunks at once are spread over a fork/join pool.
+ */
 public class ChunkInfoUtil {
 
   private static final Logger logger = Logger.getLogger(ChunkInfoUtil.class.getName());
 
-  public static List<ChunkInfo> getChunkInfos(byte[] bytes, List<byte[]> fileContent) throws NoSuchAlgorithmException {
-    MessageDigest md = MessageDigest.getInstance("MD5");
-    byte[] digest;
-    List<ChunkInfo> chunkInfos = new ArrayList<>();
-    int blockSize = 1024;
-    int blockCount = (bytes.length + blockSize - 1) / blockSize;
+  // chunks a task hashes itself instead of splitting them further, about 30 microseconds of work
+  private static final int TASK_CHUNKS = 16;
 
-    byte[] range = null;
-
-    for (int i = 0; i < blockCount - 1; i++) {
-      int idx = i * blockSize;
-      range = Arrays.copyOfRange(bytes, idx, idx + blockSize);
+  private static final ThreadLocal<MessageDigest> md5 = ThreadLocal.withInitial(() -> {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  });
+
+  /**
+   * MD5 of the bytes between the position and the limit of the buffer, which is left as it was.
+   */
+  public static ByteString md5(ByteBuffer data) {
+    MessageDigest digest = md5.get();
+    digest.update(data.duplicate());
+    return ByteString.copyFrom(digest.digest());
+  }
 
-      md.update(range);
-      digest = md.digest();
+  public static List<ChunkInfo> getChunkInfos(List<ByteBuffer> fileContent) {
+    ByteString[] hashes = getChunkHashes(fileContent);
+    List<ChunkInfo> chunkInfos = new ArrayList<>(hashes.length);
 
+    for (int i = 0; i < hashes.length; i++) {
       ChunkInfo chunkInfo = ChunkInfo.newBuilder().
           setIndex(i).
-          setSize(blockSize).
-          setHash(ByteString.copyFrom(digest)).
+          setSize(fileContent.get(i).remaining()).
+          setHash(hashes[i]).
           build();
-      fileContent.add(range);
-      logger.fine("Chunk " + i + ": " + Arrays.toString(range));
+      if (logger.isLoggable(Level.FINE)) {
+        logger.fine("Chunk " + chunkInfo.toString());
+      }
       chunkInfos.add(chunkInfo);
     }
 
-    int end;
-    if (bytes.length % blockSize == 0) {
-      end = bytes.length;
+    return chunkInfos;
+  }
+
+  public static ByteString[] getChunkHashes(List<ByteBuffer> chunks) {
+    return getChunkHashes(chunks, ForkJoinPool.commonPool());
+  }
+
+  public static ByteString[] getChunkHashes(List<ByteBuffer> chunks, ForkJoinPool pool) {
+    ByteString[] hashes = new ByteString[chunks.size()];
+    if (chunks.size() <= TASK_CHUNKS) {
+      hashRange(chunks, hashes, 0, chunks.size());
     } else {
-      end = bytes.length % blockSize + blockSize * (blockCount - 1);
+      pool.invoke(new HashTask(chunks, hashes, 0, chunks.size()));
     }
-    range = Arrays.copyOfRange(bytes, (blockCount - 1) * blockSize, end);
-
-    md.update(range);
-    digest = md.digest();
-
-    ChunkInfo chunkInfo = ChunkInfo.newBuilder().
-        setIndex(blockCount - 1).
-        setSize(end - ((blockCount - 1) * blockSize)).
-        setHash(ByteString.copyFrom(digest)).
-        build();
-    fileContent.add(range);
-    logger.fine("Chunk " + blockCount + ": " + Arrays.toString(range));
-    chunkInfos.add(chunkInfo);
-    return chunkInfos;
+    return hashes;
   }
 
-  public static List<ChunkInfo> getChunkInfos(List<byte[]> fileContent) throws NoSuchAlgorithmException {
-    MessageDigest md = MessageDigest.getInstance("MD5");
-    byte[] digest;
-    List<ChunkInfo> chunkInfos = new ArrayList<>();
+  private static void hashRange(List<ByteBuffer> chunks, ByteString[] hashes, int from, int to) {
+    for (int i = from; i < to; i++) {
+      hashes[i] = md5(chunks.get(i));
+    }
+  }
 
-    for (int i = 0; i < fileContent.size(); i++) {
-      byte[] content = fileContent.get(i);
-      md.update(content);
-      digest = md.digest();
+  private static class HashTask extends RecursiveAction {
 
-      ChunkInfo chunkInfo = ChunkInfo.newBuilder().
-          setIndex(i).
-          setSize(content.length).
-          setHash(ByteString.copyFrom(digest)).
-          build();
-      logger.fine("Chunk " + chunkInfo.toString());
-      chunkInfos.add(chunkInfo);
+    private final List<ByteBuffer> chunks;
+    private final ByteString[] hashes;
+    private final int from;
+    private final int to;
+
+    HashTask(List<ByteBuffer> chunks, ByteString[] hashes, int from, int to) {
+      this.chunks = chunks;
+      this.hashes = hashes;
+      this.from = from;
+      this.to = to;
     }
 
-    return chunkInfos;
+    @Override
+    protected void compute() {
+      if (to - from <= TASK_CHUNKS) {
+        hashRange(chunks, hashes, from, to);
+      } else {
+        int middle = (from + to) >>> 1;
+        invokeAll(new HashTask(chunks, hashes, from, middle), new HashTask(chunks, hashes, middle, to));
+      }
+    }
   }
 
 }
@@ -0,0 +1,171 @@
+package util;
+
+import com.google.protobuf.ByteString;
+import node.Message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of successful chunk responses, kept as the complete frames that go on the wire, so a popular chunk is
+ * answered with one write and no protobuf or compression work. Responses for peers that accept compressed data are
+ * kept apart from the others.
+ * <p>
+ * Lookups take no lock and change nothing but a flag on the frame. Once the frames take more than the limit, a clock
+ * sweeps over them: a frame read since the last sweep gets another round, any other is dropped. The store tells the
+ * cache about every file it drops, spills or moves, see {@link #invalidate}, so frames of a file that changed are
+ * never served and nothing here keeps its storage reachable.
+ */
+public class ChunkResponseCache {
+
+  private final long maxBytes;
+  private final boolean keepAlive;
+  private final ConcurrentMap<Key, CachedFrame> frames = new ConcurrentHashMap<>();
+  private final AtomicLong bytes = new AtomicLong();
+  private final AtomicBoolean sweeping = new AtomicBoolean();
+  // the clock hand, only used by the thread that is sweeping
+  private Iterator<Map.Entry<Key, CachedFrame>> hand;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  public ChunkResponseCache(long maxBytes) {
+    this(maxBytes, false);
+  }
+
+  /**
+   * @param keepAlive whether the node keeps connections alive, which every frame has to say
+   */
+  public ChunkResponseCache(long maxBytes, boolean keepAlive) {
+    this.maxBytes = maxBytes;
+    this.keepAlive = keepAlive;
+  }
+
+  /**
+   * The frame of the response for this chunk of the file, or null. The array is shared and must not be changed.
+   */
+  public byte[] get(ByteString fileHash, int chunkIndex, boolean acceptDeflate) {
+    CachedFrame cached = frames.get(new Key(fileHash, chunkIndex, acceptDeflate));
+    if (cached == null) {
+      misses.increment();
+      return null;
+    }
+    if (!cached.referenced) {
+      cached.referenced = true;
+    }
+    hits.increment();
+    return cached.frame;
+  }
+
+  /**
+   * Keeps the response for a chunk read from the file the store has under the hash. The caller must make sure the
+   * store still had that file once this returns, or invalidate it.
+   */
+  public void put(ByteString fileHash, int chunkIndex, boolean acceptDeflate, Message response) throws IOException {
+    ByteBuffer frame = MessageUtil.toFrame(keepAlive ? MessageUtil.withKeepAlive(response) : response);
+    CachedFrame cached = new CachedFrame(frame.array());
+    CachedFrame previous = frames.put(new Key(fileHash, chunkIndex, acceptDeflate), cached);
+    bytes.addAndGet(cached.frame.length - (previous == null ? 0 : previous.frame.length));
+    if (bytes.get() > maxBytes) {
+      sweep();
+    }
+  }
+
+  /**
+   * Drops every frame of the file.
+   */
+  public void invalidate(ByteString fileHash) {
+    for (Map.Entry<Key, CachedFrame> entry : frames.entrySet()) {
+      if (entry.getKey().fileHash.equals(fileHash)) {
+        remove(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getBytes() {
+    return bytes.get();
+  }
+
+  // one thread sweeps at a time, the others go on even if the cache is a little over its limit meanwhile
+  private void sweep() {
+    if (!sweeping.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      // two rounds take the flag of every frame, so the sweep always ends
+      for (int steps = 2 * frames.size() + 2; bytes.get() > maxBytes && steps > 0; steps--) {
+        if (hand == null || !hand.hasNext()) {
+          hand = frames.entrySet().iterator();
+          if (!hand.hasNext()) {
+            break;
+          }
+        }
+        Map.Entry<Key, CachedFrame> entry = hand.next();
+        CachedFrame cached = entry.getValue();
+        if (cached.referenced) {
+          cached.referenced = false;
+        } else {
+          remove(entry.getKey(), cached);
+        }
+      }
+    } finally {
+      sweeping.set(false);
+    }
+  }
+
+  private void remove(Key key, CachedFrame cached) {
+    if (frames.remove(key, cached)) {
+      bytes.addAndGet(-cached.frame.length);
+    }
+  }
+
+  private static class Key {
+    private final ByteString fileHash;
+    private final int chunkIndex;
+    private final boolean acceptDeflate;
+
+    Key(ByteString fileHash, int chunkIndex, boolean acceptDeflate) {
+      this.fileHash = fileHash;
+      this.chunkIndex = chunkIndex;
+      this.acceptDeflate = acceptDeflate;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      Key key = (Key) o;
+      return chunkIndex == key.chunkIndex && acceptDeflate == key.acceptDeflate && Objects.equals(fileHash, key.fileHash);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(fileHash, chunkIndex, acceptDeflate);
+    }
+  }
+
+  private static class CachedFrame {
+    private final byte[] frame;
+    // read since the clock last passed
+    private volatile boolean referenced;
+
+    CachedFrame(byte[] frame) {
+      this.frame = frame;
+    }
+  }
+}
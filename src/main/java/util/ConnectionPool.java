@@ -0,0 +1,125 @@
+package util;
+
+import node.NodeConfiguration;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Idle keep-alive connections to other nodes, grouped by node. Nodes whose responses do not say that the connection
+ * stays open only speak the one-shot protocol and are remembered so they are no longer offered pooled connections,
+ * until a response says otherwise.
+ */
+public class ConnectionPool {
+
+  private static final Logger logger = Logger.getLogger(ConnectionPool.class.getName());
+
+  private final int maxIdlePerNode;
+  private final long maxIdleNanos;
+  private final ConcurrentMap<NodeConfiguration, Deque<Connection>> idleConnections = new ConcurrentHashMap<>();
+  private final Set<NodeConfiguration> oneShotNodes = ConcurrentHashMap.newKeySet();
+
+  public ConnectionPool(int maxIdlePerNode, long maxIdleMillis) {
+    this.maxIdlePerNode = maxIdlePerNode;
+    this.maxIdleNanos = TimeUnit.MILLISECONDS.toNanos(maxIdleMillis);
+  }
+
+  public Connection borrow(NodeConfiguration node) {
+    Deque<Connection> connections = idleConnections.get(node);
+    if (connections == null) {
+      return null;
+    }
+    Connection connection;
+    while ((connection = connections.pollFirst()) != null) {
+      if (System.nanoTime() - connection.lastUsed < maxIdleNanos && !connection.socket.isClosed()) {
+        return connection;
+      }
+      connection.close();
+    }
+    return null;
+  }
+
+  public Connection open(NodeConfiguration node, int connectTimeoutMillis) throws IOException {
+    Socket socket = new Socket();
+    try {
+      socket.setTcpNoDelay(true);
+      socket.connect(new InetSocketAddress(node.getAddr(), node.getPort()), connectTimeoutMillis);
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+    return new Connection(node, socket);
+  }
+
+  public void release(Connection connection) {
+    connection.lastUsed = System.nanoTime();
+    Deque<Connection> connections = idleConnections.computeIfAbsent(connection.node, k -> new ConcurrentLinkedDeque<>());
+    if (connections.size() < maxIdlePerNode) {
+      connections.offerFirst(connection);
+    } else {
+      connection.close();
+    }
+  }
+
+  public boolean isOneShot(NodeConfiguration node) {
+    return oneShotNodes.contains(node);
+  }
+
+  public void markOneShot(NodeConfiguration node) {
+    if (oneShotNodes.add(node)) {
+      logger.info("Node " + node.getAddr() + ":" + node.getPort() + " does not keep connections alive");
+      Deque<Connection> connections = idleConnections.remove(node);
+      if (connections != null) {
+        connections.forEach(Connection::close);
+      }
+    }
+  }
+
+  public void markKeepAlive(NodeConfiguration node) {
+    if (oneShotNodes.remove(node)) {
+      logger.info("Node " + node.getAddr() + ":" + node.getPort() + " keeps connections alive again");
+    }
+  }
+
+  public void close() {
+    for (Deque<Connection> connections : idleConnections.values()) {
+      Connection connection;
+      while ((connection = connections.pollFirst()) != null) {
+        connection.close();
+      }
+    }
+  }
+
+  public static class Connection {
+    private final NodeConfiguration node;
+    private final Socket socket;
+    private long lastUsed;
+
+    Connection(NodeConfiguration node, Socket socket) {
+      this.node = node;
+      this.socket = socket;
+      this.lastUsed = System.nanoTime();
+    }
+
+    public Socket getSocket() {
+      return socket;
+    }
+
+    public void close() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        logger.log(Level.FINE, e.getMessage());
+      }
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package util;
+
+import java.util.regex.Pattern;
+
+/**
+ * A compiled search regex together with the literal text every matching filename must contain. Since searches use
+ * {@link java.util.regex.Matcher#matches()}, the literal run at the start of the regex is also a prefix of every
+ * match. Anything the extraction does not fully understand (alternation, inline flags, escapes with arguments) yields
+ * no literals at all, which only makes the prefilter less selective, never wrong.
+ */
+public class FileNamePattern {
+
+  private final Pattern pattern;
+  private final String prefix;
+  private final String literal;
+
+  private FileNamePattern(Pattern pattern, String prefix, String literal) {
+    this.pattern = pattern;
+    this.prefix = prefix;
+    this.literal = literal;
+  }
+
+  public static FileNamePattern compile(String regex) {
+    Pattern pattern = Pattern.compile(regex);
+    if (regex.contains("|") || regex.contains("(?") || regex.contains("\\Q")) {
+      return new FileNamePattern(pattern, "", "");
+    }
+
+    String prefix = null;
+    String longest = "";
+    StringBuilder run = new StringBuilder();
+    int length = regex.length();
+    int i = regex.startsWith("^") ? 1 : 0;
+    while (i < length) {
+      char c = regex.charAt(i);
+      int next = i + 1;
+      boolean isLiteral = false;
+      if (c == '\\') {
+        char escaped = regex.charAt(i + 1);
+        next = i + 2;
+        if (!Character.isLetterOrDigit(escaped)) {
+          c = escaped;
+          isLiteral = true;
+        } else if ("dDsSwWbBhHvVRXAGzZtnrfae".indexOf(escaped) < 0) {
+          return new FileNamePattern(pattern, "", "");
+        }
+      } else if (c == '[') {
+        next = skipClass(regex, i);
+      } else if (c == '(') {
+        next = skipGroup(regex, i);
+      } else if (c == '{') {
+        next = regex.indexOf('}', i) + 1;
+      } else if (".$^?*+".indexOf(c) < 0) {
+        isLiteral = true;
+      }
+
+      char quantifier = next < length ? regex.charAt(next) : 0;
+      boolean optional = quantifier == '?' || quantifier == '*' || quantifier == '{';
+      if (isLiteral && !optional) {
+        run.append(c);
+      }
+      if (!isLiteral || optional || quantifier == '+') {
+        if (prefix == null) {
+          prefix = run.toString();
+        }
+        if (run.length() > longest.length()) {
+          longest = run.toString();
+        }
+        run.setLength(0);
+      }
+      i = next;
+    }
+    if (prefix == null) {
+      prefix = run.toString();
+    }
+    if (run.length() > longest.length()) {
+      longest = run.toString();
+    }
+    return new FileNamePattern(pattern, prefix, longest);
+  }
+
+  public Pattern getPattern() {
+    return pattern;
+  }
+
+  public String getPrefix() {
+    return prefix;
+  }
+
+  public String getLiteral() {
+    return literal;
+  }
+
+  private static int skipClass(String regex, int start) {
+    int i = start + 1;
+    if (i < regex.length() && regex.charAt(i) == '^') {
+      i++;
+    }
+    if (i < regex.length() && regex.charAt(i) == ']') {
+      i++;
+    }
+    while (i < regex.length()) {
+      char c = regex.charAt(i);
+      if (c == '\\') {
+        i += 2;
+      } else if (c == '[') {
+        i = skipClass(regex, i);
+      } else if (c == ']') {
+        return i + 1;
+      } else {
+        i++;
+      }
+    }
+    return i;
+  }
+
+  private static int skipGroup(String regex, int start) {
+    int depth = 0;
+    int i = start;
+    while (i < regex.length()) {
+      char c = regex.charAt(i);
+      if (c == '\\') {
+        i += 2;
+        continue;
+      }
+      if (c == '[') {
+        i = skipClass(regex, i);
+        continue;
+      }
+      if (c == '(') {
+        depth++;
+      } else if (c == ')' && --depth == 0) {
+        return i + 1;
+      }
+      i++;
+    }
+    return i;
+  }
+}
@@ -0,0 +1,65 @@
+package util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The body of one frame: reads end at the frame boundary and closing it leaves the connection open.
+ */
+public class FrameInputStream extends FilterInputStream {
+
+  private int remaining;
+
+  public FrameInputStream(InputStream in, int size) {
+    super(in);
+    this.remaining = size;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (remaining == 0) {
+      return -1;
+    }
+    int value = in.read();
+    if (value == -1) {
+      throw new IOException("Connection closed with " + remaining + " bytes of the message missing");
+    }
+    remaining--;
+    return value;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (remaining == 0) {
+      return -1;
+    }
+    int bytesRead = in.read(b, off, Math.min(len, remaining));
+    if (bytesRead == -1) {
+      throw new IOException("Connection closed with " + remaining + " bytes of the message missing");
+    }
+    remaining -= bytesRead;
+    return bytesRead;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    long skipped = in.skip(Math.min(n, remaining));
+    remaining -= skipped;
+    return skipped;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return Math.min(in.available(), remaining);
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  @Override
+  public void close() {
+  }
+}
@@ -0,0 +1,358 @@
+package util;
+
+import com.google.protobuf.ByteString;
+import node.ChunkInfo;
+import node.FileInfo;
+import node.GossipRequest;
+import node.IndexEntry;
+import node.Message;
+import node.Node;
+import node.NodeConfiguration;
+import node.NodeSettings;
+import node.OriginDigest;
+import node.OriginUpdate;
+import node.Status;
+import storage.ChunkLayout;
+import storage.ChunkStore;
+import storage.FileNameIndex;
+import storage.StoredFile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The filenames and manifests of the files every node has, learned by gossip so a search does not have to ask each
+ * node. A manifest is kept as the packed chunk hashes, so an entry costs a few objects whatever the file size. Each
+ * origin node versions its own entries and keeps tombstones for the names it lost. Every round the node advances its
+ * heartbeat and pulls from a few random peers: it sends what it knows of each origin and gets back only the newer
+ * entries, so changes spread in a logarithmic number of rounds and anything missed is repaired by the next exchange.
+ * An origin whose heartbeat has not advanced for a while is stale, and searches ask it directly again.
+ */
+public class GossipIndex {
+
+  private static final Logger logger = Logger.getLogger(GossipIndex.class.getName());
+  private static final int HASH_SIZE = StoredFile.HASH_SIZE;
+  // how long a peer that dropped a gossip request is left alone, it may have been upgraded since
+  private static final long SILENT_RETRY_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+  private final NodeConfiguration localNode;
+  private final List<NodeConfiguration> peers;
+  private final ChunkStore store;
+  private final PeerClient peerClient;
+  private final int fanout;
+  private final long staleNanos;
+  private final Origin local = new Origin(System.currentTimeMillis());
+  private final ConcurrentMap<NodeConfiguration, Origin> origins = new ConcurrentHashMap<>();
+  // when peers that dropped a gossip request, most likely because they do not know it, are asked again; only the
+  // gossip thread uses it
+  private final Map<NodeConfiguration, Long> silentPeers = new HashMap<>();
+  private final ScheduledExecutorService gossiper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "gossip");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private long namespaceVersion = -1;
+  // advanced whenever the entries of another origin change
+  private volatile long version;
+
+  public GossipIndex(NodeConfiguration localNode, List<NodeConfiguration> peers, ChunkStore store, PeerClient peerClient, NodeSettings settings) {
+    this.localNode = localNode;
+    this.peers = peers;
+    this.store = store;
+    this.peerClient = peerClient;
+    this.fanout = Math.max(1, settings.getGossipFanout());
+    this.staleNanos = TimeUnit.MILLISECONDS.toNanos(settings.getGossipStaleMillis());
+    origins.put(localNode, local);
+    int interval = settings.getGossipIntervalMillis();
+    gossiper.scheduleWithFixedDelay(this::gossip, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * True if the node's heartbeat advanced recently, so its entries can answer searches.
+   */
+  public boolean isFresh(NodeConfiguration node) {
+    Origin origin = origins.get(node);
+    return origin != null && origin.heartbeat > 0 && System.nanoTime() - origin.heardAt < staleNanos;
+  }
+
+  public List<String> getFileNameCandidates(NodeConfiguration node, String prefix, String literal) {
+    Origin origin = origins.get(node);
+    return origin == null ? Collections.emptyList() : origin.names.getCandidates(prefix, literal);
+  }
+
+  /**
+   * The file the node has under the name, chunks included; null if it has none.
+   */
+  public FileInfo getFileInfo(NodeConfiguration node, String fileName) {
+    Origin origin = origins.get(node);
+    IndexEntry entry = origin == null ? null : origin.entries.get(fileName);
+    if (entry == null || entry.getRemoved()) {
+      return null;
+    }
+    ChunkLayout layout = getLayout(entry);
+    if (entry.getChunkHashes().size() != layout.getChunkCount() * HASH_SIZE) {
+      logger.fine("Entry " + fileName + " of " + node.getAddr() + ":" + node.getPort() + " has no valid manifest");
+      return null;
+    }
+    FileInfo.Builder builder = FileInfo.newBuilder().
+        setFilename(entry.getFilename()).
+        setHash(entry.getHash()).
+        setSize(entry.getSize());
+    for (int i = 0; i < layout.getChunkCount(); i++) {
+      builder.addChunks(ChunkInfo.newBuilder().
+          setIndex(i).
+          setSize(layout.getChunkSize(i)).
+          setHash(entry.getChunkHashes().substring(i * HASH_SIZE, (i + 1) * HASH_SIZE)));
+    }
+    return builder.build();
+  }
+
+  /**
+   * Changes whenever what the index knows about other nodes does.
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * The other nodes known to have the file under the name, fresh or not.
+   */
+  public List<NodeConfiguration> getHolders(String fileName, ByteString fileHash) {
+    List<NodeConfiguration> holders = new ArrayList<>();
+    for (Map.Entry<NodeConfiguration, Origin> entry : origins.entrySet()) {
+      IndexEntry indexEntry = entry.getValue().entries.get(fileName);
+      if (entry.getValue() != local && indexEntry != null && !indexEntry.getRemoved() && indexEntry.getHash().equals(fileHash)) {
+        holders.add(entry.getKey());
+      }
+    }
+    return holders;
+  }
+
+  /**
+   * The entries the sender of these digests is missing, for every origin it knows less about than this node.
+   */
+  public List<OriginUpdate> getUpdates(List<OriginDigest> digests) {
+    refreshLocal();
+    Map<NodeConfiguration, OriginDigest> known = new HashMap<>();
+    for (OriginDigest digest : digests) {
+      known.put(new NodeConfiguration(digest.getNode().getHost(), digest.getNode().getPort()), digest);
+    }
+
+    List<OriginUpdate> updates = new ArrayList<>();
+    for (Map.Entry<NodeConfiguration, Origin> entry : origins.entrySet()) {
+      Origin origin = entry.getValue();
+      OriginDigest digest = known.get(entry.getKey());
+      if (digest != null && digest.getIncarnation() > origin.incarnation) {
+        continue;
+      }
+      boolean whole = digest == null || digest.getIncarnation() < origin.incarnation;
+      // entries are stored before the version moves past them, so everything up to this version gets sent
+      OriginDigest current = getDigest(entry.getKey(), origin);
+      if (!whole && digest.getVersion() >= current.getVersion() && digest.getHeartbeat() >= current.getHeartbeat()) {
+        continue;
+      }
+      long since = whole ? 0 : digest.getVersion();
+      OriginUpdate.Builder update = OriginUpdate.newBuilder().setOrigin(current);
+      for (IndexEntry indexEntry : origin.entries.values()) {
+        if (indexEntry.getVersion() > since && !(whole && indexEntry.getRemoved())) {
+          update.addEntries(indexEntry);
+        }
+      }
+      updates.add(update.build());
+    }
+    return updates;
+  }
+
+  public void close() {
+    gossiper.shutdownNow();
+  }
+
+  // only the gossip thread merges, so the tables of other origins have a single writer
+  void merge(List<OriginUpdate> updates) {
+    for (OriginUpdate update : updates) {
+      OriginDigest digest = update.getOrigin();
+      NodeConfiguration node = new NodeConfiguration(digest.getNode().getHost(), digest.getNode().getPort());
+      if (node.equals(localNode)) {
+        continue;
+      }
+      Origin origin = origins.get(node);
+      if (origin == null || digest.getIncarnation() > origin.incarnation) {
+        if (origin != null) {
+          logger.info("Node " + node.getAddr() + ":" + node.getPort() + " restarted, dropping its index entries");
+        }
+        origin = new Origin(digest.getIncarnation());
+        origins.put(node, origin);
+        version++;
+      } else if (digest.getIncarnation() < origin.incarnation) {
+        continue;
+      }
+
+      for (IndexEntry entry : update.getEntriesList()) {
+        IndexEntry existing = origin.entries.get(entry.getFilename());
+        if (existing == null || entry.getVersion() > existing.getVersion()) {
+          origin.put(entry);
+          version++;
+        }
+      }
+      if (digest.getVersion() > origin.version) {
+        origin.version = digest.getVersion();
+      }
+      if (digest.getHeartbeat() > origin.heartbeat) {
+        origin.heartbeat = digest.getHeartbeat();
+        origin.heardAt = System.nanoTime();
+      }
+    }
+  }
+
+  // brings the local entries in line with the store, once per namespace change
+  private void refreshLocal() {
+    synchronized (local) {
+      long currentVersion = store.getNamespaceVersion();
+      if (currentVersion == namespaceVersion) {
+        return;
+      }
+      namespaceVersion = currentVersion;
+
+      for (String fileName : store.getFileNames()) {
+        ByteString fileHash = store.getFileHash(fileName);
+        StoredFile storedFile = fileHash == null ? null : store.getFile(fileHash);
+        IndexEntry entry = local.entries.get(fileName);
+        if (storedFile != null && (entry == null || entry.getRemoved() || !entry.getHash().equals(fileHash))) {
+          local.put(newEntry(fileName, storedFile, local.version + 1));
+          local.version++;
+        }
+      }
+      for (IndexEntry entry : local.entries.values()) {
+        if (!entry.getRemoved() && !store.containsFileName(entry.getFilename())) {
+          local.put(IndexEntry.newBuilder(entry).
+              setRemoved(true).
+              setVersion(local.version + 1).
+              build());
+          local.version++;
+        }
+      }
+    }
+  }
+
+  private void gossip() {
+    try {
+      refreshLocal();
+      local.heartbeat++;
+
+      GossipRequest.Builder request = GossipRequest.newBuilder();
+      for (Map.Entry<NodeConfiguration, Origin> entry : origins.entrySet()) {
+        request.addDigests(getDigest(entry.getKey(), entry.getValue()));
+      }
+      Message requestMessage = Message.newBuilder().
+          setType(Message.Type.GOSSIP_REQUEST).
+          setGossipRequest(request).
+          build();
+
+      long now = System.nanoTime();
+      List<NodeConfiguration> targets = new ArrayList<>(peers);
+      targets.removeIf(peer -> silentPeers.containsKey(peer) && now - silentPeers.get(peer) < 0);
+      Collections.shuffle(targets, ThreadLocalRandom.current());
+      for (NodeConfiguration peer : targets.subList(0, Math.min(fanout, targets.size()))) {
+        pull(peer, requestMessage);
+      }
+    } catch (RuntimeException e) {
+      // an exception escaping would cancel every later round
+      logger.log(Level.SEVERE, e.getMessage(), e);
+    }
+  }
+
+  private void pull(NodeConfiguration peer, Message requestMessage) {
+    Message responseMessage;
+    try {
+      responseMessage = peerClient.request(peer, requestMessage);
+    } catch (IOException e) {
+      logger.fine("No gossip from " + peer.getAddr() + ":" + peer.getPort() + ": " + e.getMessage());
+      return;
+    }
+    if (responseMessage == null) {
+      if (silentPeers.put(peer, System.nanoTime() + SILENT_RETRY_NANOS) == null) {
+        logger.info("Node " + peer.getAddr() + ":" + peer.getPort() + " does not gossip, it will be searched live");
+      }
+      return;
+    }
+    if (silentPeers.remove(peer) != null) {
+      logger.info("Node " + peer.getAddr() + ":" + peer.getPort() + " answers gossip requests now");
+    }
+    if (!responseMessage.getType().equals(Message.Type.GOSSIP_RESPONSE) ||
+        responseMessage.getGossipResponse().getStatus() != Status.SUCCESS) {
+      logger.fine("Unexpected gossip response from " + peer.getAddr() + ":" + peer.getPort());
+    } else {
+      merge(responseMessage.getGossipResponse().getUpdatesList());
+    }
+  }
+
+  private static IndexEntry newEntry(String fileName, StoredFile storedFile, long version) {
+    IndexEntry.Builder builder = IndexEntry.newBuilder().
+        setFilename(fileName).
+        setHash(storedFile.getHash()).
+        setSize(storedFile.getSize()).
+        setVersion(version).
+        setChunkHashes(storedFile.getChunkHashes());
+    ChunkLayout layout = storedFile.getLayout();
+    if (!layout.isStandard()) {
+      for (int chunkSize : layout.getChunkSizes()) {
+        builder.addChunkSizes(chunkSize);
+      }
+    }
+    return builder.build();
+  }
+
+  private static ChunkLayout getLayout(IndexEntry entry) {
+    if (entry.getChunkSizesCount() == 0) {
+      return ChunkLayout.standard(entry.getSize());
+    }
+    int[] chunkSizes = new int[entry.getChunkSizesCount()];
+    for (int i = 0; i < chunkSizes.length; i++) {
+      chunkSizes[i] = entry.getChunkSizes(i);
+    }
+    return ChunkLayout.fromChunkSizes(chunkSizes);
+  }
+
+  private static OriginDigest getDigest(NodeConfiguration node, Origin origin) {
+    return OriginDigest.newBuilder().
+        setNode(Node.newBuilder().setHost(node.getAddr()).setPort(node.getPort())).
+        setIncarnation(origin.incarnation).
+        setVersion(origin.version).
+        setHeartbeat(origin.heartbeat).
+        build();
+  }
+
+  private static class Origin {
+    private final long incarnation;
+    private final ConcurrentMap<String, IndexEntry> entries = new ConcurrentHashMap<>();
+    private final FileNameIndex names = new FileNameIndex();
+    private volatile long version;
+    private volatile long heartbeat;
+    private volatile long heardAt;
+
+    Origin(long incarnation) {
+      this.incarnation = incarnation;
+    }
+
+    void put(IndexEntry entry) {
+      entries.put(entry.getFilename(), entry);
+      if (entry.getRemoved()) {
+        names.remove(entry.getFilename());
+      } else {
+        names.add(entry.getFilename());
+      }
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values, typically latencies in nanoseconds. Buckets are log-linear: values below
+ * 128 are exact, larger ones land in one of 64 buckets per power of two, so percentiles are within 1.6% of the truth
+ * while recording stays a couple of atomic increments.
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 7;
+  private static final int HALF_SUB_BUCKETS = 1 << (SUB_BUCKET_BITS - 1);
+  private static final int BUCKET_COUNT = getIndex(Long.MAX_VALUE) + 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    counts.incrementAndGet(getIndex(value));
+    sum.addAndGet(value);
+    long previous;
+    while (value > (previous = max.get()) && !max.compareAndSet(previous, value)) {
+      // retry until no larger value raced in
+    }
+  }
+
+  public long getCount() {
+    long count = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      count += counts.get(i);
+    }
+    return count;
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public double getMean() {
+    long count = getCount();
+    return count == 0 ? 0 : (double) sum.get() / count;
+  }
+
+  /**
+   * Returns the value below which the given fraction (0 to 1) of the recorded values fall, rounded up to the end of its
+   * bucket; 0 if nothing was recorded.
+   */
+  public long getPercentile(double fraction) {
+    long[] snapshot = new long[BUCKET_COUNT];
+    long count = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      snapshot[i] = counts.get(i);
+      count += snapshot[i];
+    }
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(fraction * count));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return Math.min(getUpperBound(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  private static int getIndex(long value) {
+    if (value < 1 << SUB_BUCKET_BITS) {
+      return (int) value;
+    }
+    int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return ((shift + 1) << (SUB_BUCKET_BITS - 1)) + (int) (value >>> shift) - HALF_SUB_BUCKETS;
+  }
+
+  private static long getUpperBound(int index) {
+    if (index < 1 << SUB_BUCKET_BITS) {
+      return index;
+    }
+    int shift = (index >> (SUB_BUCKET_BITS - 1)) - 1;
+    long lowerBound = (long) ((index & (HALF_SUB_BUCKETS - 1)) + HALF_SUB_BUCKETS) << shift;
+    return lowerBound + (1L << shift) - 1;
+  }
+}
@@ -1,41 +1,174 @@
 package util;
 
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.WireFormat;
+import node.DownloadResponse;
 import node.Message;
+import node.Status;
 
 import java.io.*;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.List;
 import java.util.logging.Logger;
 
 public class MessageUtil {
 
   private static final Logger logger = Logger.getLogger(MessageUtil.class.getName());
 
-  public static byte[] getMessageBytes(Socket socket) throws IOException {
+  // larger frames are parsed while they are read instead of being buffered whole
+  public static final int BUFFERED_FRAME_SIZE = 64 * 1024;
+
+  private static final int STREAM_BUFFER_SIZE = 8192;
+
+  public static byte[] getMessageBytes(Socket socket, int maxFrameSize) throws IOException {
+    InputStream inputStream = socket.getInputStream();
+    int messageSize = readMessageSize(inputStream, maxFrameSize);
+    return messageSize < 0 ? null : readMessageBytes(inputStream, messageSize);
+  }
+
+  // -1 when the connection was closed before another message started
+  public static int readMessageSize(InputStream inputStream, int maxFrameSize) throws IOException {
     byte[] size = new byte[4];
-    InputStream clientInputStream = new BufferedInputStream(socket.getInputStream());
-    int bytesRead = clientInputStream.read(size, 0, 4);
+    DataInputStream dataInputStream = new DataInputStream(inputStream);
+    int bytesRead = dataInputStream.read(size, 0, 1);
+    if (bytesRead == -1) {
+      logger.fine("Connection closed before a message was received");
+      return -1;
+    }
+    dataInputStream.readFully(size, 1, 3);
     ByteBuffer wrapped = ByteBuffer.wrap(size); // big-endian by default
     int messageSize = wrapped.getInt();
-    int offset = 0;
-    byte[] data = new byte[messageSize];
-    while ((bytesRead = clientInputStream.read(data, offset, data.length - offset))
-            != -1) {
-      offset += bytesRead;
-      if (offset >= data.length) {
-        break;
-      }
+    if (messageSize < 0 || messageSize > maxFrameSize) {
+      throw new IOException("Invalid message size " + messageSize);
     }
+    return messageSize;
+  }
+
+  public static byte[] readMessageBytes(InputStream inputStream, int messageSize) throws IOException {
+    byte[] data = new byte[messageSize];
+    new DataInputStream(inputStream).readFully(data);
     return data;
   }
 
+  // bytes fields of the parsed message share the buffer instead of copying it, so the buffer must not be reused
+  public static Message parseMessage(byte[] buffer) throws InvalidProtocolBufferException {
+    CodedInputStream codedInputStream = CodedInputStream.newInstance(buffer);
+    codedInputStream.enableAliasing(true);
+    return Message.parser().parseFrom(codedInputStream);
+  }
+
+  /**
+   * The response, telling the other node that the connection stays open for another request.
+   */
+  public static Message withKeepAlive(Message response) {
+    return response.getKeepAlive() ? response : response.toBuilder().setKeepAlive(true).build();
+  }
+
   public static void sendMessage(Socket socket, Message message) throws IOException {
-    OutputStream outputStream = new BufferedOutputStream(socket.getOutputStream());
-    byte[] responseMessageSize = ByteBuffer.allocate(4).order(ByteOrder.BIG_ENDIAN).putInt(message.toByteArray().length).array();
-    outputStream.write(responseMessageSize);
-    outputStream.write(message.toByteArray());
-    outputStream.flush();
+    // protobuf streams the message through its own small buffer, large bytes fields are never copied as a whole
+    CodedOutputStream codedOutputStream = CodedOutputStream.newInstance(socket.getOutputStream(), STREAM_BUFFER_SIZE);
+    codedOutputStream.writeRawBytes(ByteBuffer.allocate(4).order(ByteOrder.BIG_ENDIAN).putInt(message.getSerializedSize()).array());
+    message.writeTo(codedOutputStream);
+    codedOutputStream.flush();
+  }
+
+  /**
+   * Frames a message for a gathering write. A download response is split into a small header and the file content
+   * itself, which is written straight from storage; the bytes on the wire are the same as {@link #toFrame(Message)}.
+   */
+  public static ByteBuffer[] toFrameBuffers(Message message) throws IOException {
+    if (message.getType() == Message.Type.DOWNLOAD_RESPONSE && message.getDownloadResponse().getData().size() > STREAM_BUFFER_SIZE) {
+      DownloadResponse downloadResponse = message.getDownloadResponse();
+      ByteString data = downloadResponse.getData();
+      // keepAlive is numbered after the download response, so it follows the data
+      byte[] trailer = Message.newBuilder().setKeepAlive(message.getKeepAlive()).build().toByteArray();
+      ByteBuffer header = getHeader(message.toBuilder().clearDownloadResponse().clearKeepAlive().build(), Message.DOWNLOADRESPONSE_FIELD_NUMBER,
+          downloadResponse.toBuilder().clearData().build(), DownloadResponse.DATA_FIELD_NUMBER, data.size(), trailer.length);
+      if (header != null && header.remaining() - 4 + data.size() + trailer.length == message.getSerializedSize()) {
+        // stored files are made of separate chunks, which go out as they are
+        List<ByteBuffer> dataBuffers = data.asReadOnlyByteBufferList();
+        ByteBuffer[] buffers = new ByteBuffer[1 + dataBuffers.size() + (trailer.length > 0 ? 1 : 0)];
+        buffers[0] = header;
+        for (int i = 0; i < dataBuffers.size(); i++) {
+          buffers[1 + i] = dataBuffers.get(i);
+        }
+        if (trailer.length > 0) {
+          buffers[buffers.length - 1] = ByteBuffer.wrap(trailer);
+        }
+        return buffers;
+      }
+    }
+    return new ByteBuffer[]{toFrame(message)};
+  }
+
+  // everything up to the data, which must be the last field of a body that is itself followed by nothing but the
+  // trailer
+  private static ByteBuffer getHeader(Message messageHead, int bodyField, MessageLite bodyHead, int dataField, int dataSize,
+                                      int trailerSize) throws IOException {
+    if (!messageHead.getUnknownFields().asMap().isEmpty()) {
+      return null;
+    }
+    int bodySize = bodyHead.getSerializedSize() + CodedOutputStream.computeTagSize(dataField) +
+        CodedOutputStream.computeUInt32SizeNoTag(dataSize) + dataSize;
+    int messageSize = messageHead.getSerializedSize() + CodedOutputStream.computeTagSize(bodyField) +
+        CodedOutputStream.computeUInt32SizeNoTag(bodySize) + bodySize + trailerSize;
+    byte[] header = new byte[4 + messageSize - dataSize - trailerSize];
+    ByteBuffer.wrap(header).order(ByteOrder.BIG_ENDIAN).putInt(messageSize);
+    CodedOutputStream codedOutputStream = CodedOutputStream.newInstance(header, 4, header.length - 4);
+    messageHead.writeTo(codedOutputStream);
+    codedOutputStream.writeTag(bodyField, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    codedOutputStream.writeUInt32NoTag(bodySize);
+    bodyHead.writeTo(codedOutputStream);
+    codedOutputStream.writeTag(dataField, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    codedOutputStream.writeUInt32NoTag(dataSize);
+    codedOutputStream.checkNoSpaceLeft();
+    return ByteBuffer.wrap(header);
+  }
+
+  /**
+   * Status reported by a response message; null if the message is not a response.
+   */
+  public static Status getStatus(Message message) {
+    switch (message.getType()) {
+      case LOCAL_SEARCH_RESPONSE:
+        return message.getLocalSearchResponse().getStatus();
+      case SEARCH_RESPONSE:
+        return message.getSearchResponse().getStatus();
+      case UPLOAD_RESPONSE:
+        return message.getUploadResponse().getStatus();
+      case REPLICATE_RESPONSE:
+        return message.getReplicateResponse().getStatus();
+      case CHUNK_RESPONSE:
+        return message.getChunkResponse().getStatus();
+      case DOWNLOAD_RESPONSE:
+        return message.getDownloadResponse().getStatus();
+      case FILE_STATUS_RESPONSE:
+        return message.getFileStatusResponse().getStatus();
+      case STATS_RESPONSE:
+        return message.getStatsResponse().getStatus();
+      case CHUNK_BATCH_RESPONSE:
+        return message.getChunkBatchResponse().getStatus();
+      case GOSSIP_RESPONSE:
+        return message.getGossipResponse().getStatus();
+      default:
+        return null;
+    }
+  }
+
+  public static ByteBuffer toFrame(Message message) throws IOException {
+    int messageSize = message.getSerializedSize();
+    byte[] frame = new byte[4 + messageSize];
+    ByteBuffer.wrap(frame).order(ByteOrder.BIG_ENDIAN).putInt(messageSize);
+    CodedOutputStream codedOutputStream = CodedOutputStream.newInstance(frame, 4, messageSize);
+    message.writeTo(codedOutputStream);
+    codedOutputStream.checkNoSpaceLeft();
+    return ByteBuffer.wrap(frame);
   }
 
 }
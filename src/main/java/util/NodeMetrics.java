@@ -0,0 +1,302 @@
+package util;
+
+import node.Message;
+import node.NodeConfiguration;
+import node.Status;
+import storage.ChunkStore;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Everything a node counts about its own traffic: latency and errors per request type, time spent waiting for a
+ * worker, bytes on the wire, open connections, and the latency and errors of the requests it sends to each peer.
+ * Recording only touches adders and histograms that already exist, so it allocates nothing and stays on all the
+ * time; reading walks the histograms and is meant for the occasional STATS request or JMX poll.
+ */
+public class NodeMetrics {
+
+  private static final Logger logger = Logger.getLogger(NodeMetrics.class.getName());
+
+  private static final String DOMAIN = "Torrent";
+
+  private final Map<Message.Type, RequestMetrics> requests = new EnumMap<>(Message.Type.class);
+  private final RequestMetrics queueWait = new RequestMetrics();
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+  private final LongAdder activeConnections = new LongAdder();
+  private final ConcurrentMap<NodeConfiguration, RequestMetrics> peers = new ConcurrentHashMap<>();
+  private final List<ObjectName> registeredNames = new CopyOnWriteArrayList<>();
+  private volatile String nodeName;
+
+  public NodeMetrics() {
+    for (Message.Type type : Message.Type.values()) {
+      requests.put(type, new RequestMetrics());
+    }
+  }
+
+  /**
+   * Records a handled request; it failed if there was no response or the response reports an error.
+   */
+  public void recordRequest(Message.Type type, long latencyNanos, Message response) {
+    recordRequest(type, latencyNanos, isFailure(response));
+  }
+
+  public void recordRequest(Message.Type type, long latencyNanos, boolean failed) {
+    RequestMetrics metrics = requests.get(type);
+    if (metrics != null) {
+      metrics.record(latencyNanos, failed);
+    }
+  }
+
+  public void recordQueueWait(long waitNanos) {
+    queueWait.record(waitNanos, false);
+  }
+
+  public void recordBytesIn(long bytes) {
+    bytesIn.add(bytes);
+  }
+
+  public void recordBytesOut(long bytes) {
+    bytesOut.add(bytes);
+  }
+
+  public void connectionOpened() {
+    activeConnections.increment();
+  }
+
+  public void connectionClosed() {
+    activeConnections.decrement();
+  }
+
+  public void recordPeerRequest(NodeConfiguration peer, long latencyNanos, boolean failed) {
+    RequestMetrics metrics = peers.get(peer);
+    if (metrics == null) {
+      metrics = peers.computeIfAbsent(peer, this::createPeerMetrics);
+    }
+    metrics.record(latencyNanos, failed);
+  }
+
+  private RequestMetrics createPeerMetrics(NodeConfiguration peer) {
+    RequestMetrics metrics = new RequestMetrics();
+    String registeredNode = nodeName;
+    if (registeredNode != null) {
+      register(getPeerName(registeredNode, peer), metrics);
+    }
+    return metrics;
+  }
+
+  // UNABLE_TO_COMPLETE only means the node did not have what was asked for
+  private static boolean isFailure(Message response) {
+    if (response == null) {
+      return true;
+    }
+    Status status = MessageUtil.getStatus(response);
+    return status != Status.SUCCESS && status != Status.UNABLE_TO_COMPLETE;
+  }
+
+  public RequestMetrics getRequestMetrics(Message.Type type) {
+    return requests.get(type);
+  }
+
+  public RequestMetrics getQueueWait() {
+    return queueWait;
+  }
+
+  public Map<NodeConfiguration, RequestMetrics> getPeerMetrics() {
+    return peers;
+  }
+
+  public long getBytesIn() {
+    return bytesIn.sum();
+  }
+
+  public long getBytesOut() {
+    return bytesOut.sum();
+  }
+
+  public long getActiveConnections() {
+    return activeConnections.sum();
+  }
+
+  /**
+   * Exposes the metrics through the platform MBean server, as Torrent:type=Node, type=QueueWait, one type=Request per
+   * request type and one type=Peer per peer, all tagged with node=nodeName. The caches and the compressor may be null.
+   */
+  public void register(String nodeName, ChunkStore store, ChunkResponseCache chunkCache, SearchCache searchCache,
+                       PayloadCompressor compressor) {
+    this.nodeName = nodeName;
+    register(DOMAIN + ":type=Node,node=" + nodeName, new NodeView(this, store, chunkCache, searchCache, compressor));
+    register(DOMAIN + ":type=QueueWait,node=" + nodeName, queueWait);
+    for (Map.Entry<Message.Type, RequestMetrics> entry : requests.entrySet()) {
+      if (entry.getKey().name().endsWith("_REQUEST")) {
+        register(DOMAIN + ":type=Request,node=" + nodeName + ",message=" + entry.getKey(), entry.getValue());
+      }
+    }
+    for (Map.Entry<NodeConfiguration, RequestMetrics> entry : peers.entrySet()) {
+      register(getPeerName(nodeName, entry.getKey()), entry.getValue());
+    }
+  }
+
+  public void unregister() {
+    nodeName = null;
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    for (ObjectName name : registeredNames) {
+      try {
+        server.unregisterMBean(name);
+      } catch (JMException e) {
+        logger.log(Level.FINE, e.getMessage());
+      }
+    }
+    registeredNames.clear();
+  }
+
+  private static String getPeerName(String nodeName, NodeConfiguration peer) {
+    return DOMAIN + ":type=Peer,node=" + nodeName + ",peer=" + peer.getAddr() + "-" + peer.getPort();
+  }
+
+  private void register(String name, Object bean) {
+    try {
+      ObjectName objectName = new ObjectName(name);
+      ManagementFactory.getPlatformMBeanServer().registerMBean(bean, objectName);
+      registeredNames.add(objectName);
+    } catch (JMException e) {
+      logger.log(Level.WARNING, "Cannot register " + name + ": " + e.getMessage());
+    }
+  }
+
+  private static class NodeView implements NodeMetricsMXBean {
+
+    private final NodeMetrics metrics;
+    private final ChunkStore store;
+    private final ChunkResponseCache chunkCache;
+    private final SearchCache searchCache;
+    private final PayloadCompressor compressor;
+
+    NodeView(NodeMetrics metrics, ChunkStore store, ChunkResponseCache chunkCache, SearchCache searchCache,
+             PayloadCompressor compressor) {
+      this.metrics = metrics;
+      this.store = store;
+      this.chunkCache = chunkCache;
+      this.searchCache = searchCache;
+      this.compressor = compressor;
+    }
+
+    @Override
+    public long getBytesIn() {
+      return metrics.getBytesIn();
+    }
+
+    @Override
+    public long getBytesOut() {
+      return metrics.getBytesOut();
+    }
+
+    @Override
+    public long getActiveConnections() {
+      return metrics.getActiveConnections();
+    }
+
+    @Override
+    public int getFileCount() {
+      return store.getFileCount();
+    }
+
+    @Override
+    public long getLogicalBytes() {
+      return store.getLogicalBytes();
+    }
+
+    @Override
+    public long getStoredBytes() {
+      return store.getStoredBytes();
+    }
+
+    @Override
+    public long getPartialBytes() {
+      return store.getPartialBytes();
+    }
+
+    @Override
+    public long getSpilledBytes() {
+      return store.getSpilledBytes();
+    }
+
+    @Override
+    public long getEvictedFiles() {
+      return store.getEvictedFiles();
+    }
+
+    @Override
+    public long getChunkCacheHits() {
+      return chunkCache == null ? 0 : chunkCache.getHits();
+    }
+
+    @Override
+    public long getChunkCacheMisses() {
+      return chunkCache == null ? 0 : chunkCache.getMisses();
+    }
+
+    @Override
+    public long getSearchCacheHits() {
+      return searchCache == null ? 0 : searchCache.getHits();
+    }
+
+    @Override
+    public long getSearchesCoalesced() {
+      return searchCache == null ? 0 : searchCache.getCoalesced();
+    }
+
+    @Override
+    public long getSearchCacheMisses() {
+      return searchCache == null ? 0 : searchCache.getMisses();
+    }
+
+    @Override
+    public long getDeflatedBytes() {
+      return compressor == null ? 0 : compressor.getDeflatedBytes();
+    }
+
+    @Override
+    public long getDeflatedWireBytes() {
+      return compressor == null ? 0 : compressor.getDeflatedWireBytes();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+      long wireBytes = getDeflatedWireBytes();
+      return wireBytes == 0 ? 1 : (double) getDeflatedBytes() / wireBytes;
+    }
+
+    @Override
+    public long getIncompressibleBytes() {
+      return compressor == null ? 0 : compressor.getIncompressibleBytes();
+    }
+
+    @Override
+    public long getDeflateMicros() {
+      return compressor == null ? 0 : compressor.getDeflateMicros();
+    }
+
+    @Override
+    public long getInflatedBytes() {
+      return compressor == null ? 0 : compressor.getInflatedBytes();
+    }
+
+    @Override
+    public long getInflateMicros() {
+      return compressor == null ? 0 : compressor.getInflateMicros();
+    }
+  }
+}
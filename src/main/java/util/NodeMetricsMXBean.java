@@ -0,0 +1,50 @@
+package util;
+
+/**
+ * Traffic and storage totals of a node. Per request latencies are exposed by separate {@link RequestMetricsMXBean}s.
+ */
+public interface NodeMetricsMXBean {
+
+  long getBytesIn();
+
+  long getBytesOut();
+
+  long getActiveConnections();
+
+  int getFileCount();
+
+  long getLogicalBytes();
+
+  long getStoredBytes();
+
+  long getPartialBytes();
+
+  long getSpilledBytes();
+
+  long getEvictedFiles();
+
+  long getChunkCacheHits();
+
+  long getChunkCacheMisses();
+
+  long getSearchCacheHits();
+
+  long getSearchesCoalesced();
+
+  long getSearchCacheMisses();
+
+  long getDeflatedBytes();
+
+  long getDeflatedWireBytes();
+
+  // deflated bytes over their compressed size, 1 until something was compressed
+  double getCompressionRatio();
+
+  long getIncompressibleBytes();
+
+  long getDeflateMicros();
+
+  long getInflatedBytes();
+
+  long getInflateMicros();
+}
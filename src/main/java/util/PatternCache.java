@@ -0,0 +1,37 @@
+package util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Bounded LRU cache of compiled search regexes, so repeated searches do not recompile their pattern.
+ */
+public class PatternCache {
+
+  private final Map<String, FileNamePattern> patterns;
+
+  public PatternCache(int maxSize) {
+    this.patterns = new LinkedHashMap<String, FileNamePattern>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, FileNamePattern> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  public FileNamePattern get(String regex) throws PatternSyntaxException {
+    synchronized (patterns) {
+      FileNamePattern pattern = patterns.get(regex);
+      if (pattern != null) {
+        return pattern;
+      }
+    }
+    // compile outside the lock; a race only compiles the same regex twice
+    FileNamePattern pattern = FileNamePattern.compile(regex);
+    synchronized (patterns) {
+      patterns.put(regex, pattern);
+    }
+    return pattern;
+  }
+}
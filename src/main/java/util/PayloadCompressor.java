@@ -0,0 +1,198 @@
+package util;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * zlib compression of chunk and file data for the peers that ask for it. Data is only sent compressed if it shrinks by
+ * a tenth or more. Data whose first bytes take nearly every byte value, as media and archives do, is sent as it is
+ * without trying, and larger data is first tried on a sample. Data over MAX_SIZE, such as most whole files, is always
+ * sent as it is, so it streams from storage instead of being compressed into one more copy. Inflating never produces
+ * more than the size the caller expects, so a peer cannot make this node inflate a small payload into an arbitrarily
+ * large one.
+ */
+public class PayloadCompressor {
+
+  // smaller data barely shrinks once the zlib header and checksum are added
+  private static final int MIN_SIZE = 256;
+  // room for a full chunk batch
+  private static final int MAX_SIZE = 2 * 1024 * 1024;
+  // random bytes take about 220 distinct values in this many, text well under 100
+  private static final int HISTOGRAM_SIZE = 512;
+  private static final int MAX_DISTINCT_BYTES = 192;
+  private static final int SAMPLE_SIZE = 16 * 1024;
+  private static final int BLOCK_SIZE = 64 * 1024;
+
+  private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+  private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+  private static final ThreadLocal<byte[]> blocks = ThreadLocal.withInitial(() -> new byte[BLOCK_SIZE]);
+
+  private final LongAdder deflatedBytes = new LongAdder();
+  private final LongAdder deflatedWireBytes = new LongAdder();
+  private final LongAdder incompressibleBytes = new LongAdder();
+  private final LongAdder deflateNanos = new LongAdder();
+  private final LongAdder inflatedBytes = new LongAdder();
+  private final LongAdder inflateNanos = new LongAdder();
+
+  /**
+   * The compressed data, or null if it is not worth sending compressed.
+   */
+  public ByteString deflate(ByteString data) {
+    int size = data.size();
+    if (size < MIN_SIZE) {
+      incompressibleBytes.add(size);
+      return null;
+    }
+    if (size > MAX_SIZE) {
+      return null;
+    }
+    long start = System.nanoTime();
+    Deflater deflater = deflaters.get();
+    try {
+      if (looksCompressed(data)) {
+        incompressibleBytes.add(size);
+        return null;
+      }
+      if (size > SAMPLE_SIZE && deflate(deflater, data.substring(0, SAMPLE_SIZE), new byte[SAMPLE_SIZE * 9 / 10]) < 0) {
+        incompressibleBytes.add(size);
+        return null;
+      }
+      byte[] output = new byte[size * 9 / 10];
+      int length = deflate(deflater, data, output);
+      if (length < 0) {
+        incompressibleBytes.add(size);
+        return null;
+      }
+      deflatedBytes.add(size);
+      deflatedWireBytes.add(length);
+      return UnsafeByteOperations.unsafeWrap(output, 0, length);
+    } finally {
+      deflateNanos.add(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * The inflated data, which must be exactly the given size.
+   */
+  public ByteString inflate(ByteString data, int size) throws DataFormatException {
+    long start = System.nanoTime();
+    Inflater inflater = inflaters.get();
+    try {
+      inflater.reset();
+      byte[] block = blocks.get();
+      byte[] output = new byte[size];
+      int length = 0;
+      // input left over once the stream ended
+      int trailing = 0;
+      for (ByteBuffer piece : data.asReadOnlyByteBufferList()) {
+        if (inflater.finished() || inflater.needsDictionary()) {
+          trailing += piece.remaining();
+          continue;
+        }
+        while (piece.hasRemaining() && !inflater.finished() && !inflater.needsDictionary()) {
+          int blockLength = Math.min(block.length, piece.remaining());
+          piece.get(block, 0, blockLength);
+          inflater.setInput(block, 0, blockLength);
+          length = inflate(inflater, output, length);
+        }
+        trailing += piece.remaining();
+      }
+      trailing += inflater.getRemaining();
+      if (length != size || !inflater.finished() || trailing > 0) {
+        throw new DataFormatException("Compressed data does not inflate to " + size + " bytes");
+      }
+      inflatedBytes.add(size);
+      return UnsafeByteOperations.unsafeWrap(output);
+    } finally {
+      inflateNanos.add(System.nanoTime() - start);
+    }
+  }
+
+  // inflates the last input into the output, and fails if the stream holds more than fits
+  private static int inflate(Inflater inflater, byte[] output, int length) throws DataFormatException {
+    while (!inflater.finished() && !inflater.needsInput() && !inflater.needsDictionary()) {
+      if (length == output.length) {
+        // the end of the stream may only be read once the output is full
+        if (inflater.inflate(new byte[1]) > 0) {
+          throw new DataFormatException("Compressed data inflates to more than " + output.length + " bytes");
+        }
+      } else {
+        length += inflater.inflate(output, length, output.length - length);
+      }
+    }
+    return length;
+  }
+
+  private static boolean looksCompressed(ByteString data) {
+    boolean[] seen = new boolean[256];
+    int distinct = 0;
+    ByteString.ByteIterator bytes = data.substring(0, Math.min(HISTOGRAM_SIZE, data.size())).iterator();
+    while (bytes.hasNext()) {
+      int value = bytes.nextByte() & 0xff;
+      if (!seen[value]) {
+        seen[value] = true;
+        distinct++;
+      }
+    }
+    return distinct > MAX_DISTINCT_BYTES;
+  }
+
+  // compresses into the output, or returns -1 as soon as it does not fit
+  private static int deflate(Deflater deflater, ByteString data, byte[] output) {
+    deflater.reset();
+    byte[] block = blocks.get();
+    int length = 0;
+    for (ByteBuffer piece : data.asReadOnlyByteBufferList()) {
+      while (piece.hasRemaining()) {
+        int blockLength = Math.min(block.length, piece.remaining());
+        piece.get(block, 0, blockLength);
+        deflater.setInput(block, 0, blockLength);
+        while (!deflater.needsInput()) {
+          if (length == output.length) {
+            return -1;
+          }
+          length += deflater.deflate(output, length, output.length - length);
+        }
+      }
+    }
+    deflater.finish();
+    while (!deflater.finished()) {
+      if (length == output.length) {
+        return -1;
+      }
+      length += deflater.deflate(output, length, output.length - length);
+    }
+    return length;
+  }
+
+  public long getDeflatedBytes() {
+    return deflatedBytes.sum();
+  }
+
+  public long getDeflatedWireBytes() {
+    return deflatedWireBytes.sum();
+  }
+
+  public long getIncompressibleBytes() {
+    return incompressibleBytes.sum();
+  }
+
+  public long getDeflateMicros() {
+    return TimeUnit.NANOSECONDS.toMicros(deflateNanos.sum());
+  }
+
+  public long getInflatedBytes() {
+    return inflatedBytes.sum();
+  }
+
+  public long getInflateMicros() {
+    return TimeUnit.NANOSECONDS.toMicros(inflateNanos.sum());
+  }
+}
@@ -0,0 +1,195 @@
+package util;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import node.ChunkRequest;
+import node.Message;
+import node.NodeConfiguration;
+import node.NodeSettings;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+public class PeerClient {
+
+  private static final Logger logger = Logger.getLogger(PeerClient.class.getName());
+
+  private final int connectTimeoutMillis;
+  private final int readTimeoutMillis;
+  private final int maxFrameSize;
+  private final ConnectionPool connectionPool;
+  private final PeerHealth peerHealth;
+  private final NodeMetrics metrics;
+  private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+    Thread thread = new Thread(runnable, "peer-client");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  public PeerClient(NodeSettings settings) {
+    this(settings, new NodeMetrics());
+  }
+
+  public PeerClient(NodeSettings settings, NodeMetrics metrics) {
+    this.connectTimeoutMillis = settings.getConnectTimeoutMillis();
+    this.readTimeoutMillis = settings.getReadTimeoutMillis();
+    this.maxFrameSize = settings.getMaxFrameSize();
+    if (settings.isKeepAlive()) {
+      // stop reusing connections well before the other node's idle timeout closes them
+      this.connectionPool = new ConnectionPool(settings.getKeepAlivePoolSize(), settings.getKeepAliveIdleTimeoutMillis() / 2);
+    } else {
+      this.connectionPool = null;
+    }
+    this.peerHealth = new PeerHealth(settings.getCircuitFailureThreshold(), settings.getCircuitProbeIntervalMillis(), this::probe);
+    this.metrics = metrics;
+  }
+
+  public Message request(NodeConfiguration node, Message message) throws IOException {
+    return request(node, message, connectTimeoutMillis, readTimeoutMillis);
+  }
+
+  /**
+   * Sends the message and waits for the response, which is null if the node closed the connection without one. Nodes
+   * whose circuit is open fail right away.
+   */
+  public Message request(NodeConfiguration node, Message message, int connectTimeoutMillis, int readTimeoutMillis) throws IOException {
+    if (!peerHealth.isAvailable(node)) {
+      throw new ConnectException("Circuit open for " + node.getAddr() + ":" + node.getPort());
+    }
+    return measure(node, message, connectTimeoutMillis, readTimeoutMillis);
+  }
+
+  private Message measure(NodeConfiguration node, Message message, int connectTimeoutMillis, int readTimeoutMillis) throws IOException {
+    long start = System.nanoTime();
+    Message response;
+    try {
+      response = send(node, message, connectTimeoutMillis, readTimeoutMillis);
+    } catch (InvalidProtocolBufferException e) {
+      // the node is up, it just answered with garbage
+      metrics.recordPeerRequest(node, System.nanoTime() - start, true);
+      throw e;
+    } catch (IOException e) {
+      metrics.recordPeerRequest(node, System.nanoTime() - start, true);
+      peerHealth.recordFailure(node);
+      throw e;
+    }
+    // a node that closes without answering is still up; it may just not know the message
+    long latency = System.nanoTime() - start;
+    metrics.recordPeerRequest(node, latency, false);
+    peerHealth.recordSuccess(node, latency);
+    return response;
+  }
+
+  // asks for a chunk of a file nobody has, which any node answers without doing real work
+  private void probe(NodeConfiguration node) {
+    Message probeMessage = Message.newBuilder().
+        setType(Message.Type.CHUNK_REQUEST).
+        setChunkRequest(ChunkRequest.newBuilder().setFileHash(ByteString.copyFrom(new byte[16]))).
+        build();
+    try {
+      measure(node, probeMessage, connectTimeoutMillis, connectTimeoutMillis);
+    } catch (IOException e) {
+      logger.fine("Probe of " + node.getAddr() + ":" + node.getPort() + " failed: " + e.getMessage());
+    }
+  }
+
+  private Message send(NodeConfiguration node, Message message, int connectTimeoutMillis, int readTimeoutMillis) throws IOException {
+    if (connectionPool == null || connectionPool.isOneShot(node)) {
+      Message response = requestOneShot(node, message, connectTimeoutMillis, readTimeoutMillis);
+      if (connectionPool != null && response != null && response.getKeepAlive()) {
+        connectionPool.markKeepAlive(node);
+      }
+      return response;
+    }
+
+    // pooled connections only come from nodes that said they keep them open, so one closed before the response
+    // started was most likely closed while it sat idle, and the request is sent again on a new one; anything else,
+    // a timeout above all, may mean the node is still working on the request
+    ConnectionPool.Connection connection = connectionPool.borrow(node);
+    if (connection != null) {
+      try {
+        Message response = exchange(connection.getSocket(), message, readTimeoutMillis);
+        if (response != null) {
+          finish(node, connection, response);
+          return response;
+        }
+        logger.fine("Stale connection to " + node.getAddr() + ":" + node.getPort() + ": closed");
+      } catch (IOException e) {
+        connection.close();
+        if (!isClosedByNode(e)) {
+          throw e;
+        }
+        logger.fine("Stale connection to " + node.getAddr() + ":" + node.getPort() + ": " + e.getMessage());
+      }
+      connection.close();
+    }
+
+    connection = connectionPool.open(node, connectTimeoutMillis);
+    try {
+      Message response = exchange(connection.getSocket(), message, readTimeoutMillis);
+      finish(node, connection, response);
+      return response;
+    } catch (IOException e) {
+      connection.close();
+      throw e;
+    }
+  }
+
+  // a node closing without a response most likely did not know the message, which says nothing about keep-alive
+  private void finish(NodeConfiguration node, ConnectionPool.Connection connection, Message response) {
+    if (response != null && response.getKeepAlive()) {
+      connectionPool.release(connection);
+      return;
+    }
+    connection.close();
+    if (response != null) {
+      connectionPool.markOneShot(node);
+    }
+  }
+
+  private static boolean isClosedByNode(IOException e) {
+    String message = e.getMessage();
+    return e instanceof SocketException && message != null &&
+        (message.contains("Connection reset") || message.contains("Broken pipe"));
+  }
+
+  private Message requestOneShot(NodeConfiguration node, Message message, int connectTimeoutMillis, int readTimeoutMillis) throws IOException {
+    try (Socket socket = new Socket()) {
+      socket.connect(new InetSocketAddress(node.getAddr(), node.getPort()), connectTimeoutMillis);
+      Message response = exchange(socket, message, readTimeoutMillis);
+      if (response == null) {
+        logger.fine("No response from " + node.getAddr() + ":" + node.getPort());
+      }
+      return response;
+    }
+  }
+
+  private Message exchange(Socket socket, Message message, int readTimeoutMillis) throws IOException {
+    socket.setSoTimeout(readTimeoutMillis);
+    MessageUtil.sendMessage(socket, message);
+    byte[] buffer = MessageUtil.getMessageBytes(socket, maxFrameSize);
+    return buffer == null ? null : MessageUtil.parseMessage(buffer);
+  }
+
+  public void close() {
+    executor.shutdownNow();
+    peerHealth.close();
+    if (connectionPool != null) {
+      connectionPool.close();
+    }
+  }
+
+  public PeerHealth getPeerHealth() {
+    return peerHealth;
+  }
+
+  public ExecutorService getExecutor() {
+    return executor;
+  }
+}
@@ -0,0 +1,162 @@
+package util;
+
+import node.NodeConfiguration;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Health of every peer this node talks to, shared by all requests. Each peer keeps moving averages of its latency and
+ * error rate. After a number of consecutive failures its circuit opens and no request is sent to it; a background probe
+ * checks it periodically and closes the circuit again once it answers.
+ */
+public class PeerHealth {
+
+  private static final Logger logger = Logger.getLogger(PeerHealth.class.getName());
+
+  private static final double ALPHA = 0.2;
+
+  private final int failureThreshold;
+  private final long probeIntervalNanos;
+  private final Consumer<NodeConfiguration> probe;
+  private final ConcurrentMap<NodeConfiguration, PeerState> peers = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService prober = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "peer-probe");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /**
+   * The probe sends one cheap request to the peer, which is expected to report the outcome back here.
+   */
+  public PeerHealth(int failureThreshold, int probeIntervalMillis, Consumer<NodeConfiguration> probe) {
+    this.failureThreshold = Math.max(1, failureThreshold);
+    this.probeIntervalNanos = TimeUnit.MILLISECONDS.toNanos(probeIntervalMillis);
+    this.probe = probe;
+    prober.scheduleWithFixedDelay(this::probeOpenCircuits, probeIntervalMillis, probeIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public void recordSuccess(NodeConfiguration peer, long latencyNanos) {
+    PeerState state = getState(peer);
+    boolean closed;
+    synchronized (state) {
+      double latencyMillis = latencyNanos / 1e6;
+      state.latencyMillis = state.samples == 0 ? latencyMillis : state.latencyMillis + ALPHA * (latencyMillis - state.latencyMillis);
+      state.errorRate -= ALPHA * state.errorRate;
+      state.samples++;
+      state.consecutiveFailures = 0;
+      closed = state.open;
+      state.open = false;
+    }
+    if (closed) {
+      logger.info("Circuit closed for " + peer.getAddr() + ":" + peer.getPort());
+    }
+  }
+
+  public void recordFailure(NodeConfiguration peer) {
+    PeerState state = getState(peer);
+    boolean opened = false;
+    synchronized (state) {
+      state.errorRate += ALPHA * (1 - state.errorRate);
+      state.consecutiveFailures++;
+      if (!state.open && state.consecutiveFailures >= failureThreshold) {
+        state.open = true;
+        opened = true;
+      }
+      if (state.open) {
+        state.lastAttempt = System.nanoTime();
+      }
+    }
+    if (opened) {
+      logger.warning("Circuit opened for " + peer.getAddr() + ":" + peer.getPort() + " after " + failureThreshold + " failures");
+    }
+  }
+
+  /**
+   * Returns false while the peer's circuit is open.
+   */
+  public boolean isAvailable(NodeConfiguration peer) {
+    PeerState state = peers.get(peer);
+    if (state == null) {
+      return true;
+    }
+    synchronized (state) {
+      return !state.open;
+    }
+  }
+
+  /**
+   * Returns the available peers, healthiest first. Peers not heard from yet rank ahead of those with known latency, so
+   * every peer gets a chance to be measured.
+   */
+  public List<NodeConfiguration> rank(List<NodeConfiguration> candidates) {
+    List<NodeConfiguration> ranked = new ArrayList<>(candidates.size());
+    Map<NodeConfiguration, Double> scores = new HashMap<>();
+    for (NodeConfiguration peer : candidates) {
+      PeerState state = peers.get(peer);
+      if (state == null) {
+        ranked.add(peer);
+        scores.put(peer, 0.0);
+        continue;
+      }
+      synchronized (state) {
+        if (!state.open) {
+          ranked.add(peer);
+          // recent errors weigh like a second of latency, so flaky peers sink below merely slow ones
+          scores.put(peer, state.latencyMillis + 1000 * state.errorRate);
+        }
+      }
+    }
+    ranked.sort(Comparator.comparingDouble(scores::get));
+    return ranked;
+  }
+
+  public void close() {
+    prober.shutdownNow();
+  }
+
+  private PeerState getState(NodeConfiguration peer) {
+    return peers.computeIfAbsent(peer, key -> new PeerState());
+  }
+
+  private void probeOpenCircuits() {
+    long now = System.nanoTime();
+    for (ConcurrentMap.Entry<NodeConfiguration, PeerState> entry : peers.entrySet()) {
+      PeerState state = entry.getValue();
+      synchronized (state) {
+        if (!state.open || now - state.lastAttempt < probeIntervalNanos) {
+          continue;
+        }
+        state.lastAttempt = now;
+      }
+      NodeConfiguration peer = entry.getKey();
+      logger.fine("Probing " + peer.getAddr() + ":" + peer.getPort());
+      try {
+        probe.accept(peer);
+      } catch (RuntimeException e) {
+        // an exception escaping would cancel every later probe
+        logger.fine("Probe of " + peer.getAddr() + ":" + peer.getPort() + " failed: " + e.getMessage());
+      }
+    }
+  }
+
+  private static class PeerState {
+    private double latencyMillis;
+    private double errorRate;
+    // latency samples only; failures carry no latency
+    private long samples;
+    private int consecutiveFailures;
+    private boolean open;
+    private long lastAttempt;
+  }
+}
@@ -0,0 +1,58 @@
+package util;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies of one kind of request, in nanoseconds, and how many of them failed. Recording allocates nothing.
+ */
+public class RequestMetrics implements RequestMetricsMXBean {
+
+  private final LatencyHistogram latencies = new LatencyHistogram();
+  private final LongAdder errors = new LongAdder();
+
+  public void record(long latencyNanos, boolean failed) {
+    latencies.record(latencyNanos);
+    if (failed) {
+      errors.increment();
+    }
+  }
+
+  public LatencyHistogram getLatencies() {
+    return latencies;
+  }
+
+  @Override
+  public long getCount() {
+    return latencies.getCount();
+  }
+
+  @Override
+  public long getErrors() {
+    return errors.sum();
+  }
+
+  @Override
+  public double getMeanMillis() {
+    return latencies.getMean() / 1e6;
+  }
+
+  @Override
+  public double getP50Millis() {
+    return latencies.getPercentile(0.5) / 1e6;
+  }
+
+  @Override
+  public double getP99Millis() {
+    return latencies.getPercentile(0.99) / 1e6;
+  }
+
+  @Override
+  public double getP999Millis() {
+    return latencies.getPercentile(0.999) / 1e6;
+  }
+
+  @Override
+  public double getMaxMillis() {
+    return latencies.getMax() / 1e6;
+  }
+}
@@ -0,0 +1,21 @@
+package util;
+
+/**
+ * Request counts and latencies, in milliseconds, of one kind of request.
+ */
+public interface RequestMetricsMXBean {
+
+  long getCount();
+
+  long getErrors();
+
+  double getMeanMillis();
+
+  double getP50Millis();
+
+  double getP99Millis();
+
+  double getP999Millis();
+
+  double getMaxMillis();
+}
@@ -0,0 +1,133 @@
+package util;
+
+import node.Message;
+import node.SearchResponse;
+import node.Status;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded LRU cache of distributed search responses by regex. Identical searches that arrive while one is running
+ * wait for it instead of starting their own fan-out, and a successful response is reused for a short time. A response
+ * is only reused while the namespace it was built from is unchanged, so local uploads and replications, and whatever
+ * the gossiped index learns, show up right away; other changes on other nodes show up once the response expires. A
+ * search that fails answers everyone waiting for it with a PROCESSING_ERROR and is not kept.
+ */
+public class SearchCache {
+
+  private static final Logger logger = Logger.getLogger(SearchCache.class.getName());
+
+  private final long ttlNanos;
+  private final Map<String, CachedSearch> entries;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder coalesced = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  public SearchCache(int maxSize, int ttlMillis) {
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    this.entries = new LinkedHashMap<String, CachedSearch>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedSearch> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * The response of a recent or running search for the regex, or of a new one.
+   */
+  public Message get(String regex, long namespaceVersion, Supplier<Message> search) throws InterruptedException {
+    CachedSearch entry;
+    boolean owner = false;
+    synchronized (entries) {
+      entry = entries.get(regex);
+      if (entry != null && entry.response.isDone()) {
+        if (System.nanoTime() - entry.completed < ttlNanos && entry.namespaceVersion == namespaceVersion) {
+          hits.increment();
+          return entry.response.getNow(null);
+        }
+        entry = null;
+      }
+      if (entry == null) {
+        entry = new CachedSearch(namespaceVersion);
+        entries.put(regex, entry);
+        owner = true;
+      }
+    }
+
+    if (!owner) {
+      coalesced.increment();
+      try {
+        return entry.response.get();
+      } catch (ExecutionException e) {
+        return getErrorResponse(String.valueOf(e.getCause()));
+      }
+    }
+
+    misses.increment();
+    Message response;
+    try {
+      response = search.get();
+    } catch (RuntimeException e) {
+      logger.log(Level.SEVERE, "Search for " + regex + " failed", e);
+      response = getErrorResponse(String.valueOf(e));
+    }
+    entry.completed = System.nanoTime();
+    if (ttlNanos <= 0 || !isSuccess(response)) {
+      remove(regex, entry);
+    }
+    entry.response.complete(response);
+    return response;
+  }
+
+  private void remove(String regex, CachedSearch entry) {
+    synchronized (entries) {
+      entries.remove(regex, entry);
+    }
+  }
+
+  private static Message getErrorResponse(String errorMessage) {
+    return Message.newBuilder().
+        setType(Message.Type.SEARCH_RESPONSE).
+        setSearchResponse(SearchResponse.newBuilder().
+            setStatus(Status.PROCESSING_ERROR).
+            setErrorMessage(errorMessage)).
+        build();
+  }
+
+  private static boolean isSuccess(Message response) {
+    return response != null && response.getType() == Message.Type.SEARCH_RESPONSE &&
+        response.getSearchResponse().getStatus() == Status.SUCCESS;
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getCoalesced() {
+    return coalesced.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  private static class CachedSearch {
+    private final long namespaceVersion;
+    private final CompletableFuture<Message> response = new CompletableFuture<>();
+    // only read once the response is complete
+    private volatile long completed;
+
+    CachedSearch(long namespaceVersion) {
+      this.namespaceVersion = namespaceVersion;
+    }
+  }
+}
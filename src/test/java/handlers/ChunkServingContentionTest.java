@@ -0,0 +1,170 @@
+package handlers;
+
+import com.google.protobuf.ByteString;
+import node.ChunkRequest;
+import node.ChunkResponse;
+import node.DownloadRequest;
+import node.DownloadResponse;
+import node.FileInfo;
+import node.Message;
+import node.ReplicateResponse;
+import node.Status;
+import node.UploadRequest;
+import org.junit.Test;
+import storage.ChunkLayout;
+import storage.ChunkStore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Serves chunks from a store while replications write into it. Every chunk served, from a published file or from a
+ * file still being replicated, must be exactly the chunk that was uploaded, and serving must keep going while the
+ * replications wait on the network.
+ */
+public class ChunkServingContentionTest {
+
+  private static final int FILE_COUNT = 6;
+  private static final int FILE_SIZE = 256 * 1024 + 100;
+  private static final int READERS = 4;
+  private static final long BASELINE_MILLIS = 500;
+
+  @Test
+  public void servesIntactChunksWhileReplicating() throws Exception {
+    Random random = new Random(1);
+    try (SourceNode source = new SourceNode()) {
+      List<FileInfo> fileInfos = new ArrayList<>();
+      List<byte[]> contents = new ArrayList<>();
+      for (int i = 0; i < FILE_COUNT; i++) {
+        byte[] content = randomBytes(random, FILE_SIZE);
+        fileInfos.add(source.upload("file-" + i, content));
+        contents.add(content);
+      }
+
+      ChunkStore store = new ChunkStore();
+      byte[] hotContent = randomBytes(random, FILE_SIZE);
+      FileInfo hotFile = UploadRequestHandler.handleUploadRequest(Message.newBuilder().
+          setType(Message.Type.UPLOAD_REQUEST).
+          setUploadRequest(UploadRequest.newBuilder().
+              setFilename("hot").
+              setData(ByteString.copyFrom(hotContent))).
+          build(), store).getUploadResponse().getFileInfo();
+      fileInfos.add(hotFile);
+      contents.add(hotContent);
+      int hotIndex = fileInfos.size() - 1;
+
+      AtomicBoolean stopped = new AtomicBoolean();
+      AtomicBoolean replicating = new AtomicBoolean();
+      AtomicLong hotServed = new AtomicLong();
+      AtomicLong partialServed = new AtomicLong();
+      AtomicInteger wrongChunks = new AtomicInteger();
+      ExecutorService readers = Executors.newFixedThreadPool(READERS);
+      List<Future<?>> readerFutures = new ArrayList<>();
+      for (int i = 0; i < READERS; i++) {
+        readerFutures.add(readers.submit(() -> {
+          ThreadLocalRandom threadRandom = ThreadLocalRandom.current();
+          while (!stopped.get()) {
+            int fileIndex = replicating.get() ? threadRandom.nextInt(fileInfos.size()) : hotIndex;
+            FileInfo fileInfo = fileInfos.get(fileIndex);
+            int chunkIndex = threadRandom.nextInt(fileInfo.getChunksCount());
+            ChunkResponse chunkResponse = requestChunk(store, fileInfo, chunkIndex);
+            if (chunkResponse.getStatus() != Status.SUCCESS) {
+              continue;
+            }
+            if (!chunkResponse.getData().equals(getChunk(contents.get(fileIndex), chunkIndex))) {
+              wrongChunks.incrementAndGet();
+            }
+            if (fileIndex == hotIndex) {
+              hotServed.incrementAndGet();
+            } else if (!store.containsFile(fileInfo.getHash())) {
+              partialServed.incrementAndGet();
+            }
+          }
+        }));
+      }
+
+      Thread.sleep(BASELINE_MILLIS);
+      double baselineRate = hotServed.getAndSet(0) * 1000.0 / BASELINE_MILLIS;
+
+      replicating.set(true);
+      long start = System.nanoTime();
+      ExecutorService replicators = Executors.newFixedThreadPool(FILE_COUNT);
+      List<Future<Message>> replications = new ArrayList<>();
+      for (int i = 0; i < FILE_COUNT; i++) {
+        Message replicateRequest = SourceNode.replicateRequest(fileInfos.get(i));
+        replications.add(replicators.submit(() -> ReplicateRequestHandler.handleReplicateRequest(replicateRequest,
+            source.getPeers(), store, source.getPeerClient(), source.getSettings())));
+      }
+      for (Future<Message> replication : replications) {
+        ReplicateResponse replicateResponse = replication.get().getReplicateResponse();
+        assertEquals(Status.SUCCESS, replicateResponse.getStatus());
+      }
+      double replicationMillis = (System.nanoTime() - start) / 1e6;
+      double replicatingRate = hotServed.get() * 1000.0 / replicationMillis;
+      long servedDuringReplication = hotServed.get() + partialServed.get();
+      stopped.set(true);
+      for (Future<?> readerFuture : readerFutures) {
+        readerFuture.get();
+      }
+      readers.shutdown();
+      replicators.shutdown();
+
+      System.out.printf("Served %.0f chunks/s before and %.0f chunks/s during %.0f ms of replication, " +
+              "%d chunks of files still being replicated%n",
+          baselineRate, replicatingRate, replicationMillis, partialServed.get());
+      assertEquals("Chunks served with the wrong content", 0, wrongChunks.get());
+      assertTrue("No chunk was served while replicating", servedDuringReplication > 0);
+      // with a lock held across the network calls of a replication, serving all but stops
+      assertTrue("Serving dropped to " + replicatingRate + " chunks/s from " + baselineRate,
+          replicatingRate > baselineRate / 20);
+
+      for (int i = 0; i < FILE_COUNT; i++) {
+        FileInfo fileInfo = fileInfos.get(i);
+        assertNotNull("File " + i + " was not published", store.getFile(fileInfo.getHash()));
+        for (int chunkIndex = 0; chunkIndex < fileInfo.getChunksCount(); chunkIndex++) {
+          ChunkResponse chunkResponse = requestChunk(store, fileInfo, chunkIndex);
+          assertEquals(Status.SUCCESS, chunkResponse.getStatus());
+          assertEquals(getChunk(contents.get(i), chunkIndex), chunkResponse.getData());
+        }
+        DownloadResponse downloadResponse = DownloadRequestHandler.handleDownloadRequest(Message.newBuilder().
+            setType(Message.Type.DOWNLOAD_REQUEST).
+            setDownloadRequest(DownloadRequest.newBuilder().setFileHash(fileInfo.getHash())).
+            build(), store).getDownloadResponse();
+        assertArrayEquals(contents.get(i), downloadResponse.getData().toByteArray());
+      }
+    }
+  }
+
+  private static ChunkResponse requestChunk(ChunkStore store, FileInfo fileInfo, int chunkIndex) {
+    return ChunkRequestHandler.handleChunkRequest(Message.newBuilder().
+        setType(Message.Type.CHUNK_REQUEST).
+        setChunkRequest(ChunkRequest.newBuilder().
+            setFileHash(fileInfo.getHash()).
+            setChunkIndex(chunkIndex)).
+        build(), store).getChunkResponse();
+  }
+
+  private static ByteString getChunk(byte[] content, int chunkIndex) {
+    int offset = chunkIndex * ChunkLayout.CHUNK_SIZE;
+    return ByteString.copyFrom(content, offset, Math.min(ChunkLayout.CHUNK_SIZE, content.length - offset));
+  }
+
+  private static byte[] randomBytes(Random random, int size) {
+    byte[] bytes = new byte[size];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,71 @@
+package handlers;
+
+import com.google.protobuf.ByteString;
+import node.LocalSearchRequest;
+import node.LocalSearchResponse;
+import node.Message;
+import node.NodeSettings;
+import node.Status;
+import node.UploadRequest;
+import org.junit.Test;
+import storage.ChunkStore;
+import util.PatternCache;
+
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LocalSearchRequestHandlerTest {
+
+  /**
+   * A regex that backtracks exponentially on a name that gets past the prefilter stops at the time budget instead of
+   * holding the handler thread.
+   */
+  @Test
+  public void catastrophicRegexStopsAtTheBudget() {
+    ChunkStore store = new ChunkStore();
+    upload(store, "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaab!");
+    upload(store, "abc");
+    Properties properties = new Properties();
+    properties.setProperty("search-regex-budget-ms", "100");
+    NodeSettings settings = new NodeSettings(properties);
+    PatternCache patternCache = new PatternCache(16);
+
+    long start = System.nanoTime();
+    LocalSearchResponse response = search(store, patternCache, settings, "(.*a){20}b");
+    long elapsedMillis = (System.nanoTime() - start) / 1000000;
+    assertEquals(Status.PROCESSING_ERROR, response.getStatus());
+    assertEquals("Search time budget exceeded", response.getErrorMessage());
+    assertTrue("Search took " + elapsedMillis + " ms", elapsedMillis < 2000);
+
+    // a harmless regex on the same store still answers
+    response = search(store, patternCache, settings, "a.c");
+    assertEquals(Status.SUCCESS, response.getStatus());
+    assertEquals(1, response.getFileInfoCount());
+    assertEquals("abc", response.getFileInfo(0).getFilename());
+  }
+
+  @Test
+  public void invalidRegexIsAMessageError() {
+    LocalSearchResponse response = search(new ChunkStore(), new PatternCache(16), new NodeSettings(), "a{b");
+    assertEquals(Status.MESSAGE_ERROR, response.getStatus());
+  }
+
+  private static void upload(ChunkStore store, String fileName) {
+    UploadRequestHandler.handleUploadRequest(Message.newBuilder().
+        setType(Message.Type.UPLOAD_REQUEST).
+        setUploadRequest(UploadRequest.newBuilder().
+            setFilename(fileName).
+            setData(ByteString.copyFromUtf8(fileName))).
+        build(), store);
+  }
+
+  private static LocalSearchResponse search(ChunkStore store, PatternCache patternCache, NodeSettings settings,
+                                            String regex) {
+    return LocalSearchRequestHandler.handleLocalSearchRequest(Message.newBuilder().
+        setType(Message.Type.LOCAL_SEARCH_REQUEST).
+        setLocalSearchRequest(LocalSearchRequest.newBuilder().setRegex(regex)).
+        build(), store, patternCache, settings).getLocalSearchResponse();
+  }
+}
@@ -0,0 +1,87 @@
+package handlers;
+
+import com.google.protobuf.ByteString;
+import node.DownloadRequest;
+import node.FileInfo;
+import node.Message;
+import node.NodeReplicationStatus;
+import node.ReplicateResponse;
+import node.Status;
+import node.UploadRequest;
+import org.junit.Test;
+import storage.ChunkLayout;
+import storage.ChunkStore;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Replicates a file that differs from one already stored in a few chunks. Only those chunks may come from the peer,
+ * the rest must be taken from the stored file, and both files must read back exactly as uploaded.
+ */
+public class NearDuplicateReplicationTest {
+
+  private static final int CHUNK_COUNT = 64;
+  private static final int[] CHANGED_CHUNKS = {0, 17, 40};
+
+  @Test
+  public void reusesSharedChunks() throws Exception {
+    byte[] original = new byte[CHUNK_COUNT * ChunkLayout.CHUNK_SIZE + 300];
+    Random random = new Random(12);
+    random.nextBytes(original);
+    byte[] edited = original.clone();
+    for (int chunkIndex : CHANGED_CHUNKS) {
+      edited[chunkIndex * ChunkLayout.CHUNK_SIZE + 5] ^= 1;
+    }
+    // the last chunk grows, so it is changed as well
+    edited = Arrays.copyOf(edited, edited.length + 100);
+    Set<Integer> changedChunks = new HashSet<>();
+    for (int chunkIndex : CHANGED_CHUNKS) {
+      changedChunks.add(chunkIndex);
+    }
+    changedChunks.add(CHUNK_COUNT);
+
+    ChunkStore store = new ChunkStore();
+    FileInfo originalInfo = UploadRequestHandler.handleUploadRequest(Message.newBuilder().
+        setType(Message.Type.UPLOAD_REQUEST).
+        setUploadRequest(UploadRequest.newBuilder().
+            setFilename("original").
+            setData(ByteString.copyFrom(original))).
+        build(), store).getUploadResponse().getFileInfo();
+    long storedBytes = store.getStoredBytes();
+
+    try (SourceNode source = new SourceNode()) {
+      FileInfo editedInfo = source.upload("edited", edited);
+      ReplicateResponse replicateResponse = ReplicateRequestHandler.handleReplicateRequest(
+          SourceNode.replicateRequest(editedInfo), source.getPeers(), store, source.getPeerClient(),
+          source.getSettings()).getReplicateResponse();
+      assertEquals(Status.SUCCESS, replicateResponse.getStatus());
+
+      Set<Integer> fetchedChunks = new HashSet<>();
+      for (NodeReplicationStatus nodeStatus : replicateResponse.getNodeStatusListList()) {
+        assertEquals(Status.SUCCESS, nodeStatus.getStatus());
+        fetchedChunks.add(nodeStatus.getChunkIndex());
+      }
+      assertEquals("Chunks fetched from the peer", changedChunks, fetchedChunks);
+
+      long changedBytes = CHANGED_CHUNKS.length * (long) ChunkLayout.CHUNK_SIZE + edited.length % ChunkLayout.CHUNK_SIZE;
+      assertEquals("Only the changed chunks take more space", storedBytes + changedBytes, store.getStoredBytes());
+      assertEquals(original.length + edited.length, store.getLogicalBytes());
+
+      assertArrayEquals(edited, download(store, editedInfo));
+      assertArrayEquals(original, download(store, originalInfo));
+    }
+  }
+
+  private static byte[] download(ChunkStore store, FileInfo fileInfo) {
+    return DownloadRequestHandler.handleDownloadRequest(Message.newBuilder().
+        setType(Message.Type.DOWNLOAD_REQUEST).
+        setDownloadRequest(DownloadRequest.newBuilder().setFileHash(fileInfo.getHash())).
+        build(), store).getDownloadResponse().getData().toByteArray();
+  }
+}
@@ -0,0 +1,342 @@
+package handlers;
+
+import com.google.protobuf.ByteString;
+import node.ChunkInfo;
+import node.FileInfo;
+import node.Message;
+import node.ChunkResponse;
+import node.FileStatusResponse;
+import node.LocalSearchResponse;
+import node.NodeConfiguration;
+import node.NodeReplicationStatus;
+import node.NodeSettings;
+import node.Status;
+import node.UploadRequest;
+import org.junit.Test;
+import storage.ChunkLayout;
+import storage.ChunkStore;
+import storage.PendingFile;
+import util.MessageUtil;
+import util.PeerClient;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReplicationJobTest {
+
+  /**
+   * A replication of the same file running at the same time may fill chunks this job has claimed but not fetched
+   * yet. The job must still see the file complete.
+   */
+  @Test
+  public void completeWhenAnotherReplicationFillsClaimedChunks() throws Exception {
+    byte[] content = new byte[16 * ChunkLayout.CHUNK_SIZE + 10];
+    new Random(3).nextBytes(content);
+    FileInfo fileInfo = UploadRequestHandler.handleUploadRequest(Message.newBuilder().
+        setType(Message.Type.UPLOAD_REQUEST).
+        setUploadRequest(UploadRequest.newBuilder().
+            setFilename("file").
+            setData(ByteString.copyFrom(content))).
+        build(), new ChunkStore()).getUploadResponse().getFileInfo();
+
+    CountDownLatch batchRequested = new CountDownLatch(1);
+    CountDownLatch chunksFilled = new CountDownLatch(1);
+    PeerClient peerClient = new PeerClient(new NodeSettings());
+    try (ServerSocket server = new ServerSocket(0, 10, InetAddress.getLoopbackAddress())) {
+      // answers nothing, and holds the batch request until the chunks arrived from elsewhere
+      Thread peer = new Thread(() -> {
+        try {
+          while (true) {
+            try (Socket socket = server.accept()) {
+              byte[] request = MessageUtil.getMessageBytes(socket, 1024 * 1024);
+              if (request != null && MessageUtil.parseMessage(request).getType() == Message.Type.CHUNK_BATCH_REQUEST) {
+                batchRequested.countDown();
+                chunksFilled.await(10, TimeUnit.SECONDS);
+              }
+            }
+          }
+        } catch (IOException | InterruptedException e) {
+          // the server socket was closed
+        }
+      });
+      peer.setDaemon(true);
+      peer.start();
+
+      ChunkStore store = new ChunkStore();
+      PendingFile pendingFile = store.resumeFile(fileInfo.getHash(), ChunkLayout.standard(content.length));
+      NodeConfiguration peerConfiguration = new NodeConfiguration("127.0.0.1", server.getLocalPort());
+      ReplicationJob job = new ReplicationJob(fileInfo, pendingFile, Collections.singletonList(peerConfiguration),
+          peerClient, 256, null);
+      job.prepare();
+      Thread worker = new Thread(job::run);
+      worker.start();
+
+      assertTrue(batchRequested.await(10, TimeUnit.SECONDS));
+      for (ChunkInfo chunkInfo : fileInfo.getChunksList()) {
+        int offset = chunkInfo.getIndex() * ChunkLayout.CHUNK_SIZE;
+        pendingFile.putChunk(chunkInfo.getIndex(), chunkInfo.getHash(), ByteBuffer.wrap(content, offset, chunkInfo.getSize()));
+      }
+      chunksFilled.countDown();
+      worker.join(10000);
+
+      assertTrue(pendingFile.isComplete());
+      assertTrue("The job missed chunks filled by another replication", job.isComplete());
+    } finally {
+      peerClient.close();
+    }
+  }
+
+  /**
+   * A peer that drops the batch request still serves single chunks. Every chunk of the dropped batch must report the
+   * failure, and a chunk that repeats an earlier one of the file is fetched but takes no more space.
+   */
+  @Test
+  public void failedBatchIsReportedPerChunk() throws Exception {
+    byte[] content = new byte[8 * ChunkLayout.CHUNK_SIZE];
+    new Random(4).nextBytes(content);
+    System.arraycopy(content, 2 * ChunkLayout.CHUNK_SIZE, content, 5 * ChunkLayout.CHUNK_SIZE, ChunkLayout.CHUNK_SIZE);
+    FileInfo fileInfo = UploadRequestHandler.handleUploadRequest(Message.newBuilder().
+        setType(Message.Type.UPLOAD_REQUEST).
+        setUploadRequest(UploadRequest.newBuilder().
+            setFilename("file").
+            setData(ByteString.copyFrom(content))).
+        build(), new ChunkStore()).getUploadResponse().getFileInfo();
+
+    PeerClient peerClient = new PeerClient(new NodeSettings());
+    try (ServerSocket server = new ServerSocket(0, 10, InetAddress.getLoopbackAddress())) {
+      // closes on anything but a single chunk request
+      Thread peer = new Thread(() -> {
+        try {
+          while (true) {
+            try (Socket socket = server.accept()) {
+              byte[] request = MessageUtil.getMessageBytes(socket, 1024 * 1024);
+              Message message = request == null ? null : MessageUtil.parseMessage(request);
+              if (message != null && message.getType() == Message.Type.CHUNK_REQUEST) {
+                int offset = message.getChunkRequest().getChunkIndex() * ChunkLayout.CHUNK_SIZE;
+                MessageUtil.sendMessage(socket, Message.newBuilder().
+                    setType(Message.Type.CHUNK_RESPONSE).
+                    setChunkResponse(ChunkResponse.newBuilder().
+                        setStatus(Status.SUCCESS).
+                        setData(ByteString.copyFrom(content, offset, ChunkLayout.CHUNK_SIZE))).
+                    build());
+              }
+            }
+          }
+        } catch (IOException e) {
+          // the server socket was closed
+        }
+      });
+      peer.setDaemon(true);
+      peer.start();
+
+      ChunkStore store = new ChunkStore();
+      PendingFile pendingFile = store.resumeFile(fileInfo.getHash(), ChunkLayout.standard(content.length));
+      NodeConfiguration peerConfiguration = new NodeConfiguration("127.0.0.1", server.getLocalPort());
+      ReplicationJob job = new ReplicationJob(fileInfo, pendingFile, Collections.singletonList(peerConfiguration),
+          peerClient, 256, null);
+      job.prepare();
+      job.run();
+
+      assertTrue(job.isComplete());
+      Set<Integer> failedChunks = new HashSet<>();
+      Set<Integer> fetchedChunks = new HashSet<>();
+      for (NodeReplicationStatus nodeStatus : job.getNodeStatusList()) {
+        if (nodeStatus.getStatus() == Status.SUCCESS) {
+          fetchedChunks.add(nodeStatus.getChunkIndex());
+        } else {
+          assertEquals(Status.MESSAGE_ERROR, nodeStatus.getStatus());
+          failedChunks.add(nodeStatus.getChunkIndex());
+        }
+      }
+      assertEquals(8, failedChunks.size());
+      assertEquals(8, fetchedChunks.size());
+      assertEquals("The batch is one failed request", 1, job.getFailedChunkRequests());
+      assertEquals(7 * ChunkLayout.CHUNK_SIZE, job.getFetchedBytes());
+    } finally {
+      peerClient.close();
+    }
+  }
+
+  /**
+   * Chunks few peers hold are fetched before the ones every peer has, and each goes to the holder with the fewest
+   * chunks assigned so far.
+   */
+  @Test
+  public void rarerChunksAreClaimedFirst() throws Exception {
+    byte[] content = new byte[4 * ChunkLayout.CHUNK_SIZE];
+    new Random(5).nextBytes(content);
+    FileInfo fileInfo = upload(content);
+
+    List<Integer> requested = Collections.synchronizedList(new ArrayList<>());
+    BitSet all = new BitSet();
+    all.set(0, 4);
+    BitSet firstHalf = new BitSet();
+    firstHalf.set(0, 2);
+    PeerClient peerClient = new PeerClient(new NodeSettings());
+    try (ScriptedPeer seeder = new ScriptedPeer(message -> answer(message, all, content, requested));
+         ScriptedPeer partial = new ScriptedPeer(message -> answer(message, firstHalf, content, requested))) {
+      ChunkStore store = new ChunkStore();
+      PendingFile pendingFile = store.resumeFile(fileInfo.getHash(), ChunkLayout.standard(content.length));
+      // one chunk at a time, so the requests follow the schedule
+      ReplicationJob job = new ReplicationJob(fileInfo, pendingFile,
+          Arrays.asList(seeder.getConfiguration(), partial.getConfiguration()), peerClient, 1, null);
+      job.prepare();
+      job.run();
+
+      assertTrue(job.isComplete());
+      assertEquals(Arrays.asList(2, 3, 0, 1), requested);
+      assertEquals(Arrays.asList(2, 3), seeder.getChunkIndexes());
+      assertEquals(Arrays.asList(0, 1), partial.getChunkIndexes());
+    } finally {
+      peerClient.close();
+    }
+  }
+
+  /**
+   * A peer from before file status and batch requests closes the connection on both. The job learns what it holds from
+   * a local search and then asks for its chunks one by one.
+   */
+  @Test
+  public void peersWithoutFileStatusGetSingleChunkRequests() throws Exception {
+    byte[] content = new byte[4 * ChunkLayout.CHUNK_SIZE];
+    new Random(6).nextBytes(content);
+    FileInfo fileInfo = upload(content);
+
+    PeerClient peerClient = new PeerClient(new NodeSettings());
+    try (ScriptedPeer peer = new ScriptedPeer(message -> {
+      if (message.getType() == Message.Type.LOCAL_SEARCH_REQUEST) {
+        return Message.newBuilder().
+            setType(Message.Type.LOCAL_SEARCH_RESPONSE).
+            setLocalSearchResponse(LocalSearchResponse.newBuilder().
+                setStatus(Status.SUCCESS).
+                addFileInfo(fileInfo)).
+            build();
+      }
+      return message.getType() == Message.Type.CHUNK_REQUEST ? chunkResponse(message, content) : null;
+    })) {
+      ChunkStore store = new ChunkStore();
+      PendingFile pendingFile = store.resumeFile(fileInfo.getHash(), ChunkLayout.standard(content.length));
+      ReplicationJob job = new ReplicationJob(fileInfo, pendingFile, Collections.singletonList(peer.getConfiguration()),
+          peerClient, 256, null);
+      job.prepare();
+      job.run();
+
+      assertTrue(job.isComplete());
+      assertEquals(Arrays.asList(Message.Type.FILE_STATUS_REQUEST, Message.Type.LOCAL_SEARCH_REQUEST,
+          Message.Type.CHUNK_BATCH_REQUEST, Message.Type.CHUNK_REQUEST, Message.Type.CHUNK_REQUEST,
+          Message.Type.CHUNK_REQUEST, Message.Type.CHUNK_REQUEST), peer.getTypes());
+      assertEquals(Arrays.asList(0, 1, 2, 3), peer.getChunkIndexes());
+    } finally {
+      peerClient.close();
+    }
+  }
+
+  private static FileInfo upload(byte[] content) {
+    return UploadRequestHandler.handleUploadRequest(Message.newBuilder().
+        setType(Message.Type.UPLOAD_REQUEST).
+        setUploadRequest(UploadRequest.newBuilder().
+            setFilename("file").
+            setData(ByteString.copyFrom(content))).
+        build(), new ChunkStore()).getUploadResponse().getFileInfo();
+  }
+
+  // a peer that holds the chunks of the bitmap and says so when asked
+  private static Message answer(Message message, BitSet haveMap, byte[] content, List<Integer> requested) {
+    if (message.getType() == Message.Type.FILE_STATUS_REQUEST) {
+      return Message.newBuilder().
+          setType(Message.Type.FILE_STATUS_RESPONSE).
+          setFileStatusResponse(FileStatusResponse.newBuilder().
+              setStatus(Status.SUCCESS).
+              setChunkCount(content.length / ChunkLayout.CHUNK_SIZE).
+              setChunkBitmap(ByteString.copyFrom(haveMap.toByteArray()))).
+          build();
+    }
+    if (message.getType() == Message.Type.CHUNK_REQUEST) {
+      requested.add(message.getChunkRequest().getChunkIndex());
+      return chunkResponse(message, content);
+    }
+    return null;
+  }
+
+  private static Message chunkResponse(Message message, byte[] content) {
+    int offset = message.getChunkRequest().getChunkIndex() * ChunkLayout.CHUNK_SIZE;
+    return Message.newBuilder().
+        setType(Message.Type.CHUNK_RESPONSE).
+        setChunkResponse(ChunkResponse.newBuilder().
+            setStatus(Status.SUCCESS).
+            setData(ByteString.copyFrom(content, offset, ChunkLayout.CHUNK_SIZE))).
+        build();
+  }
+
+  // answers each request as the script says, or closes the connection where it says null, and notes what was asked
+  private static class ScriptedPeer implements AutoCloseable {
+    private final ServerSocket server;
+    private final Function<Message, Message> script;
+    private final List<Message.Type> types = Collections.synchronizedList(new ArrayList<>());
+    private final List<Integer> chunkIndexes = Collections.synchronizedList(new ArrayList<>());
+
+    ScriptedPeer(Function<Message, Message> script) throws IOException {
+      this.server = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+      this.script = script;
+      Thread thread = new Thread(this::serve);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    private void serve() {
+      while (!server.isClosed()) {
+        try (Socket socket = server.accept()) {
+          byte[] request = MessageUtil.getMessageBytes(socket, 1024 * 1024);
+          if (request == null) {
+            continue;
+          }
+          Message message = MessageUtil.parseMessage(request);
+          types.add(message.getType());
+          if (message.getType() == Message.Type.CHUNK_REQUEST) {
+            chunkIndexes.add(message.getChunkRequest().getChunkIndex());
+          }
+          Message response = script.apply(message);
+          if (response != null) {
+            MessageUtil.sendMessage(socket, response);
+          }
+        } catch (IOException e) {
+          // the connection or the server was closed
+        }
+      }
+    }
+
+    NodeConfiguration getConfiguration() {
+      return new NodeConfiguration("127.0.0.1", server.getLocalPort());
+    }
+
+    List<Message.Type> getTypes() {
+      return new ArrayList<>(types);
+    }
+
+    List<Integer> getChunkIndexes() {
+      return new ArrayList<>(chunkIndexes);
+    }
+
+    @Override
+    public void close() throws IOException {
+      server.close();
+    }
+  }
+}
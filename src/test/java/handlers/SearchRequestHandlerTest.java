@@ -0,0 +1,203 @@
+package handlers;
+
+import com.google.protobuf.ByteString;
+import node.Message;
+import node.NodeConfiguration;
+import node.NodeSearchResult;
+import node.NodeSettings;
+import node.SearchRequest;
+import node.SearchResponse;
+import node.Status;
+import node.UploadRequest;
+import org.junit.Test;
+import storage.ChunkStore;
+import util.GossipIndex;
+import util.MessageUtil;
+import util.PatternCache;
+import util.PeerClient;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SearchRequestHandlerTest {
+
+  /**
+   * A node that takes the request and never answers must not hold the search past its deadline. The search reports
+   * the node as a network error next to the results of the nodes that did answer.
+   */
+  @Test
+  public void silentNodeIsCutOffAtTheDeadline() throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty("search-deadline-ms", "300");
+    // far beyond the deadline, so only the deadline can end the wait
+    properties.setProperty("search-node-timeout-ms", "10000");
+    NodeSettings settings = new NodeSettings(properties);
+    PeerClient peerClient = new PeerClient(settings);
+    try (SourceNode sourceNode = new SourceNode(); FakeNode silentNode = new FakeNode(message -> null)) {
+      sourceNode.upload("report.txt", new byte[100]);
+      NodeConfiguration localNode = new NodeConfiguration("127.0.0.1", 1);
+      NodeConfiguration answering = sourceNode.getPeers().get(0);
+      NodeConfiguration silent = silentNode.getConfiguration();
+      Message message = searchRequest("report.*", false);
+
+      long start = System.nanoTime();
+      SearchResponse response = SearchRequestHandler.handleSearchRequest(message, localNode,
+          Arrays.asList(silent, answering), new ChunkStore(), peerClient, new PatternCache(16), settings).
+          getSearchResponse();
+      long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+      assertTrue("Search took " + elapsedMillis + " ms", elapsedMillis < 2000);
+      assertEquals(Status.SUCCESS, response.getStatus());
+      assertEquals(3, response.getResultsCount());
+      assertEquals(Status.SUCCESS, response.getResults(0).getStatus());
+      NodeSearchResult silentResult = response.getResults(1);
+      assertEquals(silent.getPort(), silentResult.getNode().getPort());
+      assertEquals(Status.NETWORK_ERROR, silentResult.getStatus());
+      assertEquals("Search deadline exceeded", silentResult.getErrorMessage());
+      NodeSearchResult answeringResult = response.getResults(2);
+      assertEquals(Status.SUCCESS, answeringResult.getStatus());
+      assertEquals(1, answeringResult.getFilesCount());
+      assertEquals("report.txt", answeringResult.getFiles(0).getFilename());
+    } finally {
+      peerClient.close();
+    }
+  }
+
+  /**
+   * Nodes the gossiped index is fresh for are searched in the index and never asked, unless the client wants a live
+   * search.
+   */
+  @Test
+  public void freshNodesAreSearchedInTheIndex() throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty("search-deadline-ms", "300");
+    properties.setProperty("search-node-timeout-ms", "10000");
+    properties.setProperty("gossip-interval-ms", "50");
+    NodeSettings settings = new NodeSettings(properties);
+    PeerClient peerClient = new PeerClient(settings);
+    ChunkStore silentStore = new ChunkStore();
+    UploadRequestHandler.handleUploadRequest(Message.newBuilder().
+        setType(Message.Type.UPLOAD_REQUEST).
+        setUploadRequest(UploadRequest.newBuilder().
+            setFilename("report.txt").
+            setData(ByteString.copyFrom(new byte[100]))).
+        build(), silentStore);
+    GossipIndex silentIndex = null;
+    GossipIndex gossipIndex = null;
+    try (FakeNode silentNode = new FakeNode(message -> null)) {
+      NodeConfiguration localNode = new NodeConfiguration("127.0.0.1", 1);
+      NodeConfiguration silent = silentNode.getConfiguration();
+      // the silent node only gossips, through a peer that passes on what its index says
+      silentIndex = new GossipIndex(silent, Collections.emptyList(), silentStore, peerClient, settings);
+      GossipIndex relayed = silentIndex;
+      try (FakeNode relay = new FakeNode(message -> GossipRequestHandler.handleGossipRequest(message, relayed))) {
+        gossipIndex = new GossipIndex(localNode, Collections.singletonList(relay.getConfiguration()), new ChunkStore(),
+            peerClient, settings);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while ((!gossipIndex.isFresh(silent) || gossipIndex.getFileInfo(silent, "report.txt") == null) &&
+            System.nanoTime() < deadline) {
+          Thread.sleep(20);
+        }
+        assertTrue(gossipIndex.isFresh(silent));
+      }
+
+      SearchResponse response = search(searchRequest("report.*", false), localNode, silent, peerClient, settings,
+          gossipIndex);
+      NodeSearchResult silentResult = response.getResults(1);
+      assertEquals(Status.SUCCESS, silentResult.getStatus());
+      assertEquals(1, silentResult.getFilesCount());
+      assertEquals(silentStore.getFileInfo("report.txt"), silentResult.getFiles(0));
+      assertEquals("The index answered, the node was not asked", 0, silentNode.connections.get());
+
+      response = search(searchRequest("report.*", true), localNode, silent, peerClient, settings, gossipIndex);
+      assertEquals(Status.NETWORK_ERROR, response.getResults(1).getStatus());
+      assertEquals(1, silentNode.connections.get());
+    } finally {
+      if (gossipIndex != null) {
+        gossipIndex.close();
+      }
+      if (silentIndex != null) {
+        silentIndex.close();
+      }
+      peerClient.close();
+    }
+  }
+
+  private static SearchResponse search(Message message, NodeConfiguration localNode, NodeConfiguration otherNode,
+                                       PeerClient peerClient, NodeSettings settings, GossipIndex gossipIndex) {
+    return SearchRequestHandler.handleSearchRequest(message, localNode, Collections.singletonList(otherNode),
+        new ChunkStore(), peerClient, new PatternCache(16), settings, null, gossipIndex).getSearchResponse();
+  }
+
+  private static Message searchRequest(String regex, boolean live) {
+    return Message.newBuilder().
+        setType(Message.Type.SEARCH_REQUEST).
+        setSearchRequest(SearchRequest.newBuilder().
+            setRegex(regex).
+            setLive(live)).
+        build();
+  }
+
+  // answers each request as the function says, or keeps the connection open without a word where it says null
+  private static class FakeNode implements AutoCloseable {
+    private final ServerSocket server;
+    private final Function<Message, Message> answer;
+    private final List<Socket> held = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger connections = new AtomicInteger();
+
+    FakeNode(Function<Message, Message> answer) throws IOException {
+      this.server = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+      this.answer = answer;
+      Thread thread = new Thread(this::serve);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    private void serve() {
+      while (!server.isClosed()) {
+        try {
+          Socket socket = server.accept();
+          connections.incrementAndGet();
+          byte[] request = MessageUtil.getMessageBytes(socket, 1024 * 1024);
+          Message response = request == null ? null : answer.apply(MessageUtil.parseMessage(request));
+          if (response == null) {
+            held.add(socket);
+            continue;
+          }
+          try {
+            MessageUtil.sendMessage(socket, response);
+          } finally {
+            socket.close();
+          }
+        } catch (IOException e) {
+          // the connection or the server was closed
+        }
+      }
+    }
+
+    NodeConfiguration getConfiguration() {
+      return new NodeConfiguration("127.0.0.1", server.getLocalPort());
+    }
+
+    @Override
+    public void close() throws IOException {
+      server.close();
+      for (Socket socket : new ArrayList<>(held)) {
+        socket.close();
+      }
+    }
+  }
+}
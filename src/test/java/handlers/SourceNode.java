@@ -0,0 +1,79 @@
+package handlers;
+
+import com.google.protobuf.ByteString;
+import node.FileInfo;
+import node.Message;
+import node.NodeConfiguration;
+import node.NodeSettings;
+import node.ReplicateRequest;
+import node.Status;
+import node.TorrentNode;
+import node.UploadRequest;
+import node.UploadResponse;
+import util.PeerClient;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * A node on the loopback interface that tests replicate from, plus the client that talks to it.
+ */
+class SourceNode implements AutoCloseable {
+
+  private final TorrentNode node;
+  private final NodeConfiguration configuration;
+  private final NodeSettings settings;
+  private final PeerClient peerClient;
+
+  SourceNode() throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty("gossip-interval-ms", "0");
+    this.settings = new NodeSettings(properties);
+    this.node = new TorrentNode(new NodeConfiguration("127.0.0.1", 0), new ArrayList<>(), settings);
+    node.start();
+    this.configuration = new NodeConfiguration("127.0.0.1", node.getPort());
+    this.peerClient = new PeerClient(settings);
+  }
+
+  FileInfo upload(String fileName, byte[] content) throws IOException {
+    Message message = Message.newBuilder().
+        setType(Message.Type.UPLOAD_REQUEST).
+        setUploadRequest(UploadRequest.newBuilder().
+            setFilename(fileName).
+            setData(ByteString.copyFrom(content))).
+        build();
+    UploadResponse uploadResponse = peerClient.request(configuration, message).getUploadResponse();
+    if (uploadResponse.getStatus() != Status.SUCCESS) {
+      throw new IOException("Upload of " + fileName + " failed with " + uploadResponse.getStatus());
+    }
+    return uploadResponse.getFileInfo();
+  }
+
+  List<NodeConfiguration> getPeers() {
+    return Collections.singletonList(configuration);
+  }
+
+  NodeSettings getSettings() {
+    return settings;
+  }
+
+  PeerClient getPeerClient() {
+    return peerClient;
+  }
+
+  static Message replicateRequest(FileInfo fileInfo) {
+    return Message.newBuilder().
+        setType(Message.Type.REPLICATE_REQUEST).
+        setReplicateRequest(ReplicateRequest.newBuilder().setFileInfo(fileInfo)).
+        build();
+  }
+
+  @Override
+  public void close() throws Exception {
+    peerClient.close();
+    node.stop();
+  }
+}
@@ -0,0 +1,73 @@
+package handlers;
+
+import com.google.protobuf.ByteString;
+import node.ChunkRequest;
+import node.LatencyStats;
+import node.LocalSearchRequest;
+import node.Message;
+import node.MessageStats;
+import node.NodeConfiguration;
+import node.StatsRequest;
+import node.StatsResponse;
+import node.Status;
+import org.junit.Test;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StatsRequestHandlerTest {
+
+  /**
+   * A STATS request reports what the node handled before it: one entry per request type with its count and failures,
+   * the files it stores and the traffic it saw.
+   */
+  @Test
+  public void statsCountEveryHandledRequest() throws Exception {
+    try (SourceNode sourceNode = new SourceNode()) {
+      NodeConfiguration node = sourceNode.getPeers().get(0);
+      sourceNode.upload("file", new byte[3000]);
+      Message searchResponse = sourceNode.getPeerClient().request(node, Message.newBuilder().
+          setType(Message.Type.LOCAL_SEARCH_REQUEST).
+          setLocalSearchRequest(LocalSearchRequest.newBuilder().setRegex("a{b")).
+          build());
+      assertEquals(Status.MESSAGE_ERROR, searchResponse.getLocalSearchResponse().getStatus());
+      Message chunkResponse = sourceNode.getPeerClient().request(node, Message.newBuilder().
+          setType(Message.Type.CHUNK_REQUEST).
+          setChunkRequest(ChunkRequest.newBuilder().setFileHash(ByteString.copyFrom(new byte[16]))).
+          build());
+      assertEquals(Status.UNABLE_TO_COMPLETE, chunkResponse.getChunkResponse().getStatus());
+
+      Message statsResponseMessage = sourceNode.getPeerClient().request(node, Message.newBuilder().
+          setType(Message.Type.STATS_REQUEST).
+          setStatsRequest(StatsRequest.getDefaultInstance()).
+          build());
+      assertEquals(Message.Type.STATS_RESPONSE, statsResponseMessage.getType());
+      StatsResponse stats = statsResponseMessage.getStatsResponse();
+      assertEquals(Status.SUCCESS, stats.getStatus());
+
+      Map<Message.Type, LatencyStats> messages = new EnumMap<>(Message.Type.class);
+      for (MessageStats messageStats : stats.getMessagesList()) {
+        messages.put(messageStats.getType(), messageStats.getLatency());
+      }
+      assertEquals(3, messages.size());
+      assertEquals(1, messages.get(Message.Type.UPLOAD_REQUEST).getCount());
+      assertEquals(0, messages.get(Message.Type.UPLOAD_REQUEST).getErrors());
+      assertEquals(1, messages.get(Message.Type.LOCAL_SEARCH_REQUEST).getErrors());
+      // not having a chunk is an answer, not a failure
+      assertEquals(0, messages.get(Message.Type.CHUNK_REQUEST).getErrors());
+      assertFalse(messages.containsKey(Message.Type.STATS_REQUEST));
+      LatencyStats upload = messages.get(Message.Type.UPLOAD_REQUEST);
+      assertTrue(upload.getP50Micros() <= upload.getMaxMicros());
+
+      assertEquals(1, stats.getFileCount());
+      assertEquals(3000, stats.getLogicalBytes());
+      assertTrue(stats.getBytesIn() > 3000);
+      assertTrue(stats.getBytesOut() > 0);
+      assertTrue(stats.getQueueWait().getCount() >= 3);
+    }
+  }
+}
@@ -0,0 +1,185 @@
+package node;
+
+import com.google.protobuf.ByteString;
+import org.junit.After;
+import org.junit.Test;
+import util.MessageUtil;
+import util.NodeMetrics;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NioServerTest {
+
+  private static final int MAX_FRAME_SIZE = 4 * 1024 * 1024;
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(2);
+  private final ExecutorService streamExecutor = Executors.newCachedThreadPool();
+  private NioServer server;
+
+  @After
+  public void tearDown() throws IOException {
+    if (server != null) {
+      server.close();
+    }
+    executor.shutdownNow();
+    streamExecutor.shutdownNow();
+  }
+
+  /**
+   * A client that sends half a frame and stops costs the server no thread, so other clients are answered meanwhile.
+   */
+  @Test
+  public void slowClientDoesNotHoldOthers() throws Exception {
+    start(false);
+    try (Socket slow = connect(); Socket fast = connect()) {
+      byte[] frame = MessageUtil.toFrame(chunkRequest(1)).array();
+      slow.getOutputStream().write(frame, 0, 2);
+      slow.getOutputStream().flush();
+
+      MessageUtil.sendMessage(fast, chunkRequest(2));
+      assertEquals(ByteString.copyFromUtf8("chunk 2"), receive(fast).getChunkResponse().getData());
+
+      // the rest of the slow frame, a byte at a time
+      for (int i = 2; i < frame.length; i++) {
+        slow.getOutputStream().write(frame[i]);
+        slow.getOutputStream().flush();
+        Thread.sleep(5);
+      }
+      assertEquals(ByteString.copyFromUtf8("chunk 1"), receive(slow).getChunkResponse().getData());
+    }
+  }
+
+  @Test
+  public void keptAliveConnectionServesSeveralRequests() throws Exception {
+    start(true);
+    try (Socket socket = connect()) {
+      for (int i = 0; i < 3; i++) {
+        MessageUtil.sendMessage(socket, chunkRequest(i));
+        Message response = receive(socket);
+        assertTrue(response.getKeepAlive());
+        assertEquals(ByteString.copyFromUtf8("chunk " + i), response.getChunkResponse().getData());
+      }
+    }
+  }
+
+  @Test
+  public void connectionClosesAfterTheResponseWithoutKeepAlive() throws Exception {
+    start(false);
+    try (Socket socket = connect()) {
+      MessageUtil.sendMessage(socket, chunkRequest(1));
+      assertFalse(receive(socket).getKeepAlive());
+      assertNull(MessageUtil.getMessageBytes(socket, MAX_FRAME_SIZE));
+    }
+  }
+
+  /**
+   * A frame larger than the pipe reaches the worker whole and in order, even though the worker reads slower than the
+   * client sends and the selector has to stop reading from the client in between.
+   */
+  @Test
+  public void largeFrameIsStreamedToAWorker() throws Exception {
+    start(false);
+    byte[] body = new byte[1024 * 1024];
+    new Random(7).nextBytes(body);
+    try (Socket socket = connect()) {
+      DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+      outputStream.writeInt(body.length);
+      outputStream.write(body);
+      outputStream.flush();
+      Message response = receive(socket);
+      assertArrayEquals(MessageDigest.getInstance("MD5").digest(body), response.getChunkResponse().getData().toByteArray());
+    }
+  }
+
+  @Test
+  public void oversizedFrameClosesTheConnection() throws Exception {
+    start(false);
+    try (Socket socket = connect()) {
+      OutputStream outputStream = socket.getOutputStream();
+      new DataOutputStream(outputStream).writeInt(MAX_FRAME_SIZE + 1);
+      outputStream.flush();
+      assertEquals(-1, socket.getInputStream().read());
+    }
+  }
+
+  private void start(boolean keepAlive) throws IOException {
+    server = new NioServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 10, keepAlive, 60000,
+        MAX_FRAME_SIZE, NioServerTest::answer, message -> null, message -> executor, NioServerTest::digest,
+        streamExecutor, new NodeMetrics());
+    Thread listener = new Thread(() -> {
+      try {
+        server.listen();
+      } catch (IOException e) {
+        // the server was closed
+      }
+    });
+    listener.setDaemon(true);
+    listener.start();
+  }
+
+  private Socket connect() throws IOException {
+    Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getLocalAddress().getPort());
+    socket.setSoTimeout(10000);
+    return socket;
+  }
+
+  private static Message receive(Socket socket) throws IOException {
+    return MessageUtil.parseMessage(MessageUtil.getMessageBytes(socket, MAX_FRAME_SIZE));
+  }
+
+  private static Message chunkRequest(int chunkIndex) {
+    return Message.newBuilder().
+        setType(Message.Type.CHUNK_REQUEST).
+        setChunkRequest(ChunkRequest.newBuilder().setChunkIndex(chunkIndex)).
+        build();
+  }
+
+  private static Message answer(String client, Message message) {
+    return chunkResponse(ByteString.copyFromUtf8("chunk " + message.getChunkRequest().getChunkIndex()));
+  }
+
+  // reads in small steps with pauses, so the pipe fills up and the client has to wait
+  private static Message digest(String client, InputStream inputStream) throws IOException {
+    try {
+      MessageDigest md = MessageDigest.getInstance("MD5");
+      byte[] buffer = new byte[16 * 1024];
+      int bytesRead;
+      int reads = 0;
+      while ((bytesRead = inputStream.read(buffer)) != -1) {
+        md.update(buffer, 0, bytesRead);
+        if (++reads % 16 == 0) {
+          Thread.sleep(10);
+        }
+      }
+      return chunkResponse(ByteString.copyFrom(md.digest()));
+    } catch (NoSuchAlgorithmException | InterruptedException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private static Message chunkResponse(ByteString data) {
+    return Message.newBuilder().
+        setType(Message.Type.CHUNK_RESPONSE).
+        setChunkResponse(ChunkResponse.newBuilder().
+            setStatus(Status.SUCCESS).
+            setData(data)).
+        build();
+  }
+}
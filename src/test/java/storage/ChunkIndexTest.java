@@ -0,0 +1,87 @@
+package storage;
+
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkIndexTest {
+
+  /**
+   * Hashes that all land on a few slots make long probe runs, which deleting must keep intact.
+   */
+  @Test
+  public void collidingHashesSurviveAddsAndRemoves() {
+    ChunkIndex index = new ChunkIndex();
+    Map<ByteString, Extent> extents = new HashMap<>();
+    Map<ByteString, Integer> references = new HashMap<>();
+    List<ByteString> hashes = new ArrayList<>();
+    Random random = new Random(1);
+    for (int i = 0; i < 2000; i++) {
+      hashes.add(collidingHash(random, i % 3));
+    }
+    for (int step = 0; step < 20000; step++) {
+      ByteString hash = hashes.get(random.nextInt(hashes.size()));
+      if (random.nextInt(3) > 0) {
+        Extent extent = new Extent(0, step, 1, ByteBuffer.allocate(0));
+        Extent shared = index.add(hash, extent);
+        assertSame(extents.get(hash), shared);
+        extents.putIfAbsent(hash, extent);
+        references.merge(hash, 1, Integer::sum);
+      } else if (references.containsKey(hash)) {
+        int left = references.merge(hash, -1, Integer::sum);
+        Extent unused = index.remove(hash);
+        if (left == 0) {
+          assertSame(extents.remove(hash), unused);
+          references.remove(hash);
+        } else {
+          assertNull(unused);
+        }
+      }
+    }
+    assertEquals(extents.size(), index.size());
+    for (ByteString hash : hashes) {
+      assertSame(extents.get(hash), index.get(hash));
+    }
+    assertEquals(extents.keySet(), new HashSet<>(index.select(extent -> true)));
+  }
+
+  @Test
+  public void replaceOnlyMovesTheExpectedExtent() {
+    ChunkIndex index = new ChunkIndex();
+    ByteString hash = collidingHash(new Random(2), 0);
+    Extent extent = new Extent(0, 0, 1, ByteBuffer.allocate(1));
+    Extent copy = new Extent(1, 0, 1, ByteBuffer.allocate(1));
+    index.add(hash, extent);
+    assertTrue(index.replace(hash, extent, copy));
+    assertEquals(false, index.replace(hash, extent, extent));
+    assertSame(copy, index.get(hash));
+    assertSame(copy, index.remove(hash));
+    assertNull(index.get(hash));
+    assertNull(index.get(ByteString.copyFromUtf8("not an MD5")));
+  }
+
+  // random apart from the bits that pick the stripe and the slot
+  private static ByteString collidingHash(Random random, int slot) {
+    byte[] hash = new byte[StoredFile.HASH_SIZE];
+    random.nextBytes(hash);
+    hash[8] = 0;
+    for (int i = 9; i < StoredFile.HASH_SIZE - 1; i++) {
+      hash[i] = 0;
+    }
+    hash[StoredFile.HASH_SIZE - 1] = (byte) slot;
+    // the high bytes of the first half keep the hashes apart
+    return ByteString.copyFrom(hash);
+  }
+}
@@ -0,0 +1,302 @@
+package storage;
+
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+import util.ChunkInfoUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkStoreTest {
+
+  private static final int FILE_SIZE = 8 * ChunkLayout.CHUNK_SIZE;
+
+  @Test
+  public void partialBytesMoveToStoredBytesOnPublish() throws IOException {
+    ChunkStore store = new ChunkStore();
+    byte[] content = randomBytes(1, FILE_SIZE);
+    ByteString fileHash = md5(content);
+    PendingFile pendingFile = store.resumeFile(fileHash, ChunkLayout.standard(FILE_SIZE));
+    putChunks(pendingFile, content, 0, 3);
+    assertEquals(3 * ChunkLayout.CHUNK_SIZE, store.getPartialBytes());
+    assertEquals(0, store.getStoredBytes());
+
+    putChunks(pendingFile, content, 3, 8);
+    store.publish("file", fileHash, pendingFile);
+    store.closeFile(fileHash, pendingFile);
+    assertEquals(0, store.getPartialBytes());
+    assertEquals(FILE_SIZE, store.getStoredBytes());
+    assertNull(store.getPartialFile(fileHash));
+  }
+
+  @Test
+  public void abandonedPartialFileExpires() throws Exception {
+    ChunkStore store = new ChunkStore(new MemoryStorageEngine(), null, 0, EvictionPolicy.LRU, false, 1);
+    byte[] content = randomBytes(2, FILE_SIZE);
+    ByteString fileHash = md5(content);
+    PendingFile pendingFile = store.resumeFile(fileHash, ChunkLayout.standard(FILE_SIZE));
+    putChunks(pendingFile, content, 0, 4);
+    store.closeFile(fileHash, pendingFile);
+    assertSame("A stopped replication is kept for the next one", pendingFile, store.getPartialFile(fileHash));
+
+    Thread.sleep(10);
+    byte[] other = randomBytes(3, FILE_SIZE);
+    PendingFile otherFile = store.resumeFile(md5(other), ChunkLayout.standard(FILE_SIZE));
+    assertNull(store.getPartialFile(fileHash));
+    assertEquals(0, store.getPartialBytes());
+    store.closeFile(md5(other), otherFile);
+  }
+
+  @Test
+  public void partialFileInUseNeverExpires() throws Exception {
+    ChunkStore store = new ChunkStore(new MemoryStorageEngine(), null, 0, EvictionPolicy.LRU, false, 1);
+    byte[] content = randomBytes(4, FILE_SIZE);
+    ByteString fileHash = md5(content);
+    PendingFile pendingFile = store.resumeFile(fileHash, ChunkLayout.standard(FILE_SIZE));
+    putChunks(pendingFile, content, 0, 4);
+
+    Thread.sleep(10);
+    byte[] other = randomBytes(5, FILE_SIZE);
+    store.resumeFile(md5(other), ChunkLayout.standard(FILE_SIZE));
+    assertSame(pendingFile, store.getPartialFile(fileHash));
+    putChunks(pendingFile, content, 4, 8);
+    assertNotNull(store.publish("file", fileHash, pendingFile));
+  }
+
+  @Test
+  public void abandonedPartialFilesMakeRoomFirst() throws IOException {
+    ChunkStore store = new ChunkStore(new MemoryStorageEngine(), null, 2 * FILE_SIZE, EvictionPolicy.LRU, false, 0);
+    byte[] stored = randomBytes(6, FILE_SIZE);
+    PendingFile storedFile = store.createFile(ChunkLayout.standard(FILE_SIZE));
+    putChunks(storedFile, stored, 0, 8);
+    store.publish("stored", md5(stored), storedFile);
+
+    byte[] abandoned = randomBytes(7, FILE_SIZE);
+    ByteString abandonedHash = md5(abandoned);
+    PendingFile abandonedFile = store.resumeFile(abandonedHash, ChunkLayout.standard(FILE_SIZE));
+    putChunks(abandonedFile, abandoned, 0, 6);
+    store.closeFile(abandonedHash, abandonedFile);
+    assertEquals(FILE_SIZE + 6 * ChunkLayout.CHUNK_SIZE, store.getStoredBytes() + store.getPartialBytes());
+
+    byte[] content = randomBytes(9, FILE_SIZE);
+    PendingFile pendingFile = store.resumeFile(md5(content), ChunkLayout.standard(FILE_SIZE));
+    assertTrue(store.reserve(pendingFile));
+    assertNull("The abandoned partial file was not discarded", store.getPartialFile(abandonedHash));
+    assertEquals(0, store.getPartialBytes());
+    assertTrue("A published file was evicted before the partial file", store.containsFileName("stored"));
+
+    try {
+      putChunks(abandonedFile, abandoned, 6, 8);
+      throw new AssertionError("A discarded file took more chunks");
+    } catch (IOException e) {
+      assertEquals(0, store.getPartialBytes());
+    }
+  }
+
+  @Test
+  public void chunksUseUpTheReservation() throws IOException {
+    ChunkStore store = new ChunkStore(new MemoryStorageEngine(), null, 4 * FILE_SIZE, EvictionPolicy.LRU, false, 0);
+    byte[] content = randomBytes(10, FILE_SIZE);
+    ByteString fileHash = md5(content);
+    PendingFile pendingFile = store.resumeFile(fileHash, ChunkLayout.standard(FILE_SIZE));
+    assertTrue(store.reserve(pendingFile));
+    assertEquals(FILE_SIZE, store.getReservedBytes());
+    putChunks(pendingFile, content, 0, 3);
+    assertEquals(5 * ChunkLayout.CHUNK_SIZE, store.getReservedBytes());
+    assertEquals(3 * ChunkLayout.CHUNK_SIZE, store.getPartialBytes());
+
+    // the reservation goes back when the replication stops, the chunks stay for the next one
+    store.closeFile(fileHash, pendingFile);
+    assertEquals(0, store.getReservedBytes());
+    assertEquals(3 * ChunkLayout.CHUNK_SIZE, store.getPartialBytes());
+
+    pendingFile = store.resumeFile(fileHash, ChunkLayout.standard(FILE_SIZE));
+    assertTrue(store.reserve(pendingFile));
+    assertEquals(5 * ChunkLayout.CHUNK_SIZE, store.getReservedBytes());
+    putChunks(pendingFile, content, 3, 8);
+    store.publish("file", fileHash, pendingFile);
+    store.closeFile(fileHash, pendingFile);
+    assertEquals(0, store.getReservedBytes());
+    assertEquals(0, store.getPartialBytes());
+    assertEquals(FILE_SIZE, store.getStoredBytes());
+  }
+
+  @Test
+  public void reservationsKeepConcurrentReplicationsWithinCapacity() throws IOException {
+    ChunkStore store = new ChunkStore(new MemoryStorageEngine(), null, 2 * FILE_SIZE, EvictionPolicy.LRU, false, 0);
+    PendingFile first = store.resumeFile(md5(randomBytes(11, FILE_SIZE)), ChunkLayout.standard(FILE_SIZE));
+    PendingFile second = store.resumeFile(md5(randomBytes(12, FILE_SIZE)), ChunkLayout.standard(FILE_SIZE));
+    PendingFile third = store.resumeFile(md5(randomBytes(13, FILE_SIZE)), ChunkLayout.standard(FILE_SIZE));
+    assertTrue(store.reserve(first));
+    assertTrue(store.reserve(second));
+    assertTrue("Room was promised twice", !store.reserve(third));
+  }
+
+  @Test
+  public void fileOfItsOwnIsDiscardedOnClose() throws IOException {
+    ChunkStore store = new ChunkStore();
+    byte[] content = randomBytes(8, FILE_SIZE);
+    ByteString fileHash = md5(content);
+    PendingFile partialFile = store.resumeFile(fileHash, ChunkLayout.standard(FILE_SIZE));
+    // another manifest for the same hash
+    PendingFile ownFile = store.resumeFile(fileHash, ChunkLayout.standard(FILE_SIZE - 1));
+    assertNotSame(partialFile, ownFile);
+    putChunks(ownFile, content, 0, 2);
+    assertEquals(2 * ChunkLayout.CHUNK_SIZE, store.getPartialBytes());
+
+    store.closeFile(fileHash, ownFile);
+    assertEquals(0, store.getPartialBytes());
+    assertSame(partialFile, store.getPartialFile(fileHash));
+  }
+
+  /**
+   * Compaction running while a file is published may move the chunks the store just took over from the file. Those
+   * must be freed once, by the compaction, and not once more when the published file lets go of its own chunks.
+   */
+  @Test
+  public void compactionWhilePublishingFreesEveryChunkOnce() throws IOException {
+    Runnable[] duringPublish = new Runnable[1];
+    MemoryStorageEngine engine = new MemoryStorageEngine() {
+      @Override
+      public void persistFile(ByteString fileHash, ChunkLayout layout, ByteString chunkHashes, List<Extent> chunks) {
+        if (duringPublish[0] != null) {
+          duringPublish[0].run();
+          duringPublish[0] = null;
+        }
+      }
+    };
+    ChunkStore store = new ChunkStore(engine, null, 0, EvictionPolicy.LRU, false, 0);
+    // a file nobody publishes, whose chunks stay where they are
+    PendingFile kept = store.createFile(ChunkLayout.standard(2 * FILE_SIZE));
+    putChunks(kept, randomBytes(14, 2 * FILE_SIZE), 0, 16);
+    byte[] content = randomBytes(15, FILE_SIZE);
+    PendingFile pendingFile = store.createFile(ChunkLayout.standard(FILE_SIZE));
+    putChunks(pendingFile, content, 0, 8);
+    // fills the rest of the slab and opens the next one
+    int fillerSize = 1100 * ChunkLayout.CHUNK_SIZE;
+    byte[] filler = randomBytes(16, fillerSize);
+    PendingFile fillerFile = store.createFile(ChunkLayout.standard(fillerSize));
+    putChunks(fillerFile, filler, 0, 1100);
+
+    // dropping the filler leaves the first slab mostly empty, so compaction moves the published chunks out of it
+    duringPublish[0] = () -> store.closeFile(md5(filler), fillerFile);
+    store.publish("file", md5(content), pendingFile);
+    assertNull(duringPublish[0]);
+    assertEquals(3 * FILE_SIZE, store.getStoredBytes() + store.getPartialBytes());
+    assertEquals(store.getStoredBytes() + store.getPartialBytes(), engine.getLiveBytes());
+    assertArrayEquals(content, store.getFile(md5(content)).getContent().toByteArray());
+  }
+
+  /**
+   * One file was served often but long ago, the other once but just now: LRU evicts the first, LFU the second.
+   */
+  @Test
+  public void policyPicksTheFileToEvict() throws IOException {
+    assertEquals("often", evictOneOf(EvictionPolicy.LRU));
+    assertEquals("recent", evictOneOf(EvictionPolicy.LFU));
+  }
+
+  @Test
+  public void pinnedUploadsAreNeverEvicted() throws IOException {
+    ChunkStore store = new ChunkStore(new MemoryStorageEngine(), null, 2 * FILE_SIZE, EvictionPolicy.LRU, true, 0);
+    byte[] uploaded = randomBytes(17, FILE_SIZE);
+    PendingFile uploadedFile = store.createFile(ChunkLayout.standard(FILE_SIZE));
+    putChunks(uploadedFile, uploaded, 0, 8);
+    store.publishUpload("uploaded", md5(uploaded), uploadedFile);
+    publish(store, "replicated", 18);
+    // the uploaded file was served least recently, yet the replicated one has to go
+    publish(store, "newest", 19);
+
+    assertTrue(store.containsFileName("uploaded"));
+    assertTrue(!store.containsFileName("replicated"));
+    assertTrue(store.containsFileName("newest"));
+    assertEquals(1, store.getEvictedFiles());
+    assertEquals(2 * FILE_SIZE, store.getStoredBytes());
+  }
+
+  /**
+   * With a spill engine an evicted file leaves the capacity but keeps its name and content, and is not evicted again.
+   */
+  @Test
+  public void evictedFileSpillsAndStaysAvailable() throws IOException {
+    MemoryStorageEngine spillEngine = new MemoryStorageEngine();
+    ChunkStore store = new ChunkStore(new MemoryStorageEngine(), spillEngine, 2 * FILE_SIZE, EvictionPolicy.LRU,
+        false, 0);
+    byte[] first = publish(store, "first", 20);
+    publish(store, "second", 21);
+    publish(store, "third", 22);
+
+    assertEquals(1, store.getEvictedFiles());
+    assertEquals(2 * FILE_SIZE, store.getStoredBytes());
+    assertEquals(FILE_SIZE, store.getSpilledBytes());
+    assertTrue(store.containsFileName("first"));
+    StoredFile spilled = store.getFile(md5(first));
+    assertTrue(spilled.isSpilled());
+    assertArrayEquals(first, spilled.getContent().toByteArray());
+    assertEquals(FILE_SIZE, spillEngine.getLiveBytes());
+
+    // the next eviction takes a file that is still in storage
+    publish(store, "fourth", 23);
+    assertEquals(2, store.getEvictedFiles());
+    assertEquals(2 * FILE_SIZE, store.getSpilledBytes());
+    assertTrue(store.getFile(md5(first)).isSpilled());
+    assertTrue(store.getFile(md5(randomBytes(21, FILE_SIZE))).isSpilled());
+  }
+
+  // stores two files, serves them, and publishes a third over the capacity; returns the name of the evicted one
+  private static String evictOneOf(EvictionPolicy evictionPolicy) throws IOException {
+    ChunkStore store = new ChunkStore(new MemoryStorageEngine(), null, 2 * FILE_SIZE, evictionPolicy, false, 0);
+    byte[] often = publish(store, "often", 24);
+    byte[] recent = publish(store, "recent", 25);
+    for (int i = 0; i < 3; i++) {
+      store.getFile(md5(often)).recordAccess();
+    }
+    store.getFile(md5(recent)).recordAccess();
+    publish(store, "newest", 26);
+
+    assertEquals(1, store.getEvictedFiles());
+    assertTrue(store.containsFileName("newest"));
+    if (!store.containsFileName("often")) {
+      assertTrue(store.containsFileName("recent"));
+      return "often";
+    }
+    assertTrue(!store.containsFileName("recent"));
+    assertNull(store.getFile(md5(recent)));
+    return "recent";
+  }
+
+  private static byte[] publish(ChunkStore store, String fileName, int seed) throws IOException {
+    byte[] content = randomBytes(seed, FILE_SIZE);
+    PendingFile pendingFile = store.createFile(ChunkLayout.standard(FILE_SIZE));
+    putChunks(pendingFile, content, 0, 8);
+    store.publish(fileName, md5(content), pendingFile);
+    return content;
+  }
+
+  private static void putChunks(PendingFile pendingFile, byte[] content, int from, int to) throws IOException {
+    for (int chunkIndex = from; chunkIndex < to; chunkIndex++) {
+      ByteBuffer chunk = ByteBuffer.wrap(content, chunkIndex * ChunkLayout.CHUNK_SIZE, ChunkLayout.CHUNK_SIZE);
+      pendingFile.putChunk(chunkIndex, ChunkInfoUtil.md5(chunk.duplicate()), chunk);
+    }
+  }
+
+  private static ByteString md5(byte[] content) {
+    return ChunkInfoUtil.md5(ByteBuffer.wrap(content));
+  }
+
+  private static byte[] randomBytes(int seed, int size) {
+    byte[] bytes = new byte[size];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,49 @@
+package storage;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class FileNameIndexTest {
+
+  @Test
+  public void candidatesHaveThePrefixAndTheLiteral() {
+    FileNameIndex index = new FileNameIndex();
+    for (String fileName : Arrays.asList("report-2019.csv", "report-2020.csv", "summary-2020.txt", "re")) {
+      index.add(fileName);
+    }
+    assertEquals(Arrays.asList("report-2020.csv", "summary-2020.txt"), sorted(index.getCandidates("", "2020")));
+    assertEquals(Collections.singletonList("report-2020.csv"), index.getCandidates("report", "2020"));
+    assertEquals(Arrays.asList("re", "report-2019.csv", "report-2020.csv"), sorted(index.getCandidates("re", "")));
+    // too short for a trigram, so every name is looked at
+    assertEquals(Arrays.asList("re", "report-2019.csv", "report-2020.csv"), sorted(index.getCandidates("", "re")));
+    assertEquals(Collections.emptyList(), index.getCandidates("", "2021"));
+    assertEquals(4, index.getCandidates("", "").size());
+  }
+
+  @Test
+  public void removedNamesLeaveNoTrigrams() {
+    FileNameIndex index = new FileNameIndex();
+    index.add("shared-a");
+    index.add("shared-b");
+    int gramsOfBoth = index.getGramCount();
+    index.add("other");
+    index.remove("other");
+    assertEquals(gramsOfBoth, index.getGramCount());
+    index.remove("shared-a");
+    assertEquals(Collections.singletonList("shared-b"), index.getCandidates("", "shared"));
+    index.remove("shared-b");
+    assertEquals(0, index.size());
+    assertEquals(0, index.getGramCount());
+    assertEquals(Collections.emptyList(), index.getCandidates("", "shared"));
+  }
+
+  private static List<String> sorted(List<String> names) {
+    Collections.sort(names);
+    return names;
+  }
+}
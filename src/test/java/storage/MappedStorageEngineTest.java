@@ -0,0 +1,294 @@
+package storage;
+
+import com.google.protobuf.ByteString;
+import node.FileInfo;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import util.ChunkInfoUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MappedStorageEngineTest {
+
+  private static final int SEGMENT_SIZE = 64 * 1024;
+  private static final int FILE_SIZE = 8 * ChunkLayout.CHUNK_SIZE;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Files, names, shared chunks and evictions all come back from the index log alone.
+   */
+  @Test
+  public void storeComesBackAfterReopen() throws IOException {
+    Path directory = folder.getRoot().toPath();
+    byte[] first = randomBytes(1, FILE_SIZE);
+    // shares all but its last chunk with the first file
+    byte[] second = first.clone();
+    second[FILE_SIZE - 1]++;
+    byte[] evicted = randomBytes(2, FILE_SIZE);
+    // uneven chunks, spread over two segments
+    byte[] uneven = randomBytes(3, 3 * SEGMENT_SIZE / 2);
+    // the last file published makes the oldest one go
+    ChunkStore store = new ChunkStore(new MappedStorageEngine(directory, SEGMENT_SIZE), null, 2 * FILE_SIZE + uneven.length,
+        EvictionPolicy.LRU, false, 0);
+    publish(store, "evicted", evicted);
+    publish(store, "first", first);
+    publish(store, "first copy", first);
+    publish(store, "second", second);
+    publishUneven(store, "uneven", uneven);
+    assertFalse(store.containsFileName("evicted"));
+    long storedBytes = store.getStoredBytes();
+    FileInfo unevenInfo = store.getFileInfo("uneven");
+    store.close();
+
+    ChunkStore reopened = new ChunkStore(new MappedStorageEngine(directory, SEGMENT_SIZE));
+    assertEquals(3, reopened.getFileCount());
+    assertContent(reopened, "first", first);
+    assertContent(reopened, "first copy", first);
+    assertContent(reopened, "second", second);
+    assertContent(reopened, "uneven", uneven);
+    assertNull(reopened.getFileHash("evicted"));
+    assertFalse(reopened.containsFile(md5(evicted)));
+    assertEquals(storedBytes, reopened.getStoredBytes());
+    assertEquals(2 * FILE_SIZE + uneven.length, reopened.getLogicalBytes());
+    assertEquals(unevenInfo, reopened.getFileInfo("uneven"));
+
+    // chunks written after a reopen go after the recovered ones
+    byte[] later = randomBytes(4, FILE_SIZE);
+    publish(reopened, "later", later);
+    reopened.close();
+    ChunkStore again = new ChunkStore(new MappedStorageEngine(directory, SEGMENT_SIZE));
+    assertContent(again, "later", later);
+    assertContent(again, "uneven", uneven);
+    again.close();
+  }
+
+  /**
+   * A crash in the middle of an index write leaves part of a record. The records before it are replayed, the rest is
+   * cut off, and records written afterwards are found on the next reopen.
+   */
+  @Test
+  public void tornTailIsCutOff() throws IOException {
+    Path directory = folder.getRoot().toPath();
+    byte[] kept = randomBytes(5, FILE_SIZE);
+    byte[] torn = randomBytes(6, FILE_SIZE);
+    ChunkStore store = new ChunkStore(new MappedStorageEngine(directory, SEGMENT_SIZE));
+    publish(store, "kept", kept);
+    long keptLength = Files.size(directory.resolve("index.log"));
+    publish(store, "torn", torn);
+    store.close();
+    try (FileChannel index = FileChannel.open(directory.resolve("index.log"), StandardOpenOption.WRITE)) {
+      // the name record of the torn file and half of its manifest are lost
+      long manifestLength = Files.size(directory.resolve("index.log")) - keptLength - nameRecordLength("torn");
+      index.truncate(keptLength + manifestLength / 2);
+    }
+
+    ChunkStore reopened = new ChunkStore(new MappedStorageEngine(directory, SEGMENT_SIZE));
+    assertContent(reopened, "kept", kept);
+    assertFalse(reopened.containsFile(md5(torn)));
+    assertEquals(keptLength, Files.size(directory.resolve("index.log")));
+    publish(reopened, "torn", torn);
+    reopened.close();
+
+    ChunkStore again = new ChunkStore(new MappedStorageEngine(directory, SEGMENT_SIZE));
+    assertContent(again, "kept", kept);
+    assertContent(again, "torn", torn);
+    again.close();
+  }
+
+  /**
+   * A record whose checksum does not match ends the replay, like a torn one.
+   */
+  @Test
+  public void corruptRecordEndsReplay() throws IOException {
+    Path directory = folder.getRoot().toPath();
+    byte[] kept = randomBytes(7, FILE_SIZE);
+    byte[] corrupt = randomBytes(8, FILE_SIZE);
+    ChunkStore store = new ChunkStore(new MappedStorageEngine(directory, SEGMENT_SIZE));
+    publish(store, "kept", kept);
+    long keptLength = Files.size(directory.resolve("index.log"));
+    publish(store, "corrupt", corrupt);
+    store.close();
+    try (FileChannel index = FileChannel.open(directory.resolve("index.log"), StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      // a byte in the middle of the manifest of the second file
+      ByteBuffer value = ByteBuffer.allocate(1);
+      index.read(value, keptLength + 40);
+      value.put(0, (byte) (value.get(0) ^ 0x10));
+      value.rewind();
+      index.write(value, keptLength + 40);
+    }
+
+    ChunkStore reopened = new ChunkStore(new MappedStorageEngine(directory, SEGMENT_SIZE));
+    assertEquals(1, reopened.getFileCount());
+    assertContent(reopened, "kept", kept);
+    assertNull(reopened.getFileHash("corrupt"));
+    assertEquals(keptLength, Files.size(directory.resolve("index.log")));
+    reopened.close();
+  }
+
+  /**
+   * Stores written before chunks were deduplicated keep every file in one contiguous extent, with or without the
+   * chunk hashes in the record. Both are split into chunks on reopen, and chunks they share are stored once.
+   */
+  @Test
+  public void contiguousRecordsAreSplitIntoChunks() throws IOException {
+    Path directory = folder.getRoot().toPath();
+    byte[] hashed = randomBytes(9, FILE_SIZE - 100);
+    byte[] listed = Arrays.copyOf(hashed, FILE_SIZE + 200);
+    System.arraycopy(randomBytes(10, 200), 0, listed, FILE_SIZE, 200);
+    byte[] segment = new byte[SEGMENT_SIZE];
+    System.arraycopy(hashed, 0, segment, 0, hashed.length);
+    System.arraycopy(listed, 0, segment, hashed.length, listed.length);
+    Files.write(directory.resolve("segment-00000.dat"), segment);
+
+    ByteArrayOutputStream index = new ByteArrayOutputStream();
+    // version 1: the chunk hashes are computed on reopen
+    writeRecord(index, contiguousRecord(1, hashed, 0));
+    // version 2: the chunk hashes follow the layout
+    Record listedRecord = contiguousRecord(3, listed, hashed.length);
+    for (ByteString chunkHash : ChunkInfoUtil.getChunkHashes(split(listed))) {
+      writeHash(listedRecord, chunkHash);
+    }
+    writeRecord(index, listedRecord);
+    writeRecord(index, nameRecord("hashed", md5(hashed)));
+    writeRecord(index, nameRecord("listed", md5(listed)));
+    Files.write(directory.resolve("index.log"), index.toByteArray());
+
+    ChunkStore store = new ChunkStore(new MappedStorageEngine(directory, SEGMENT_SIZE));
+    assertContent(store, "hashed", hashed);
+    assertContent(store, "listed", listed);
+    assertEquals(hashed.length + listed.length, store.getLogicalBytes());
+    // the first seven chunks are the same in both files
+    assertEquals(hashed.length + listed.length - 7 * ChunkLayout.CHUNK_SIZE, store.getStoredBytes());
+    assertEquals(ChunkInfoUtil.getChunkInfos(split(hashed)), store.getFileInfo("hashed").getChunksList());
+    assertEquals(ChunkInfoUtil.getChunkInfos(split(listed)), store.getFileInfo("listed").getChunksList());
+
+    // files published now go after the old extents and use the per-chunk record
+    byte[] later = randomBytes(11, FILE_SIZE);
+    publish(store, "later", later);
+    store.close();
+    ChunkStore reopened = new ChunkStore(new MappedStorageEngine(directory, SEGMENT_SIZE));
+    assertContent(reopened, "hashed", hashed);
+    assertContent(reopened, "listed", listed);
+    assertContent(reopened, "later", later);
+    reopened.close();
+  }
+
+  private static void publish(ChunkStore store, String fileName, byte[] content) throws IOException {
+    ChunkLayout layout = ChunkLayout.standard(content.length);
+    PendingFile pendingFile = store.createFile(layout);
+    for (int i = 0; i < layout.getChunkCount(); i++) {
+      ByteBuffer chunk = ByteBuffer.wrap(content, layout.getChunkOffset(i), layout.getChunkSize(i));
+      pendingFile.putChunk(i, ChunkInfoUtil.md5(chunk.duplicate()), chunk);
+    }
+    store.publish(fileName, md5(content), pendingFile);
+  }
+
+  private static void publishUneven(ChunkStore store, String fileName, byte[] content) throws IOException {
+    int[] chunkSizes = {3000, 100, SEGMENT_SIZE, content.length - SEGMENT_SIZE - 3100};
+    ChunkLayout layout = ChunkLayout.fromChunkSizes(chunkSizes);
+    PendingFile pendingFile = store.createFile(layout);
+    for (int i = 0; i < layout.getChunkCount(); i++) {
+      ByteBuffer chunk = ByteBuffer.wrap(content, layout.getChunkOffset(i), layout.getChunkSize(i));
+      pendingFile.putChunk(i, ChunkInfoUtil.md5(chunk.duplicate()), chunk);
+    }
+    store.publish(fileName, md5(content), pendingFile);
+  }
+
+  private static void assertContent(ChunkStore store, String fileName, byte[] content) {
+    ByteString fileHash = store.getFileHash(fileName);
+    assertEquals(md5(content), fileHash);
+    assertTrue(store.containsFile(fileHash));
+    assertArrayEquals(content, store.getFile(fileHash).getContent().toByteArray());
+  }
+
+  private static List<ByteBuffer> split(byte[] content) {
+    ChunkLayout layout = ChunkLayout.standard(content.length);
+    List<ByteBuffer> chunks = new ArrayList<>();
+    for (int i = 0; i < layout.getChunkCount(); i++) {
+      chunks.add(ByteBuffer.wrap(content, layout.getChunkOffset(i), layout.getChunkSize(i)));
+    }
+    return chunks;
+  }
+
+  private static Record contiguousRecord(int type, byte[] content, long offset) throws IOException {
+    Record record = new Record();
+    record.writeByte(type);
+    writeHash(record, md5(content));
+    record.writeInt(content.length);
+    record.writeInt(0);
+    record.writeLong(offset);
+    record.writeInt(ChunkLayout.standard(content.length).getChunkCount());
+    record.writeBoolean(true);
+    return record;
+  }
+
+  private static Record nameRecord(String fileName, ByteString fileHash) throws IOException {
+    Record record = new Record();
+    record.writeByte(2);
+    record.writeUTF(fileName);
+    writeHash(record, fileHash);
+    return record;
+  }
+
+  private static int nameRecordLength(String fileName) throws IOException {
+    return 8 + nameRecord(fileName, md5(new byte[0])).size();
+  }
+
+  private static void writeHash(DataOutputStream record, ByteString hash) throws IOException {
+    record.writeShort(hash.size());
+    hash.writeTo(record);
+  }
+
+  // [length][crc32][payload], as the engine frames its records
+  private static void writeRecord(ByteArrayOutputStream index, Record record) throws IOException {
+    byte[] payload = record.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    DataOutputStream framed = new DataOutputStream(index);
+    framed.writeInt(payload.length);
+    framed.writeInt((int) crc.getValue());
+    framed.write(payload);
+  }
+
+  private static class Record extends DataOutputStream {
+    Record() {
+      super(new ByteArrayOutputStream());
+    }
+
+    byte[] toByteArray() {
+      return ((ByteArrayOutputStream) out).toByteArray();
+    }
+  }
+
+  private static ByteString md5(byte[] content) {
+    return ChunkInfoUtil.md5(ByteBuffer.wrap(content));
+  }
+
+  private static byte[] randomBytes(int seed, int size) {
+    byte[] bytes = new byte[size];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+}
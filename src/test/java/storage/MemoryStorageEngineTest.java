@@ -0,0 +1,85 @@
+package storage;
+
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+import util.ChunkInfoUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MemoryStorageEngineTest {
+
+  private static final int SLAB_SIZE = 1024 * 1024;
+
+  @Test
+  public void slabIsReleasedOnceNothingInItIsUsed() {
+    MemoryStorageEngine engine = new MemoryStorageEngine();
+    Extent first = engine.allocate(SLAB_SIZE / 8);
+    Extent[] others = new Extent[3];
+    for (int i = 0; i < others.length; i++) {
+      others[i] = engine.allocate(SLAB_SIZE / 4);
+    }
+    // does not fit in the first slab any more
+    engine.allocate(SLAB_SIZE / 4);
+    assertEquals(2, engine.getSlabCount());
+    assertFalse(engine.needsCompaction());
+
+    for (Extent other : others) {
+      engine.free(other);
+    }
+    assertTrue("A slab with an eighth in use is fragmented", engine.isFragmented(first));
+    assertTrue(engine.needsCompaction());
+    engine.free(first);
+    assertEquals(1, engine.getSlabCount());
+    assertFalse(engine.needsCompaction());
+  }
+
+  /**
+   * Two files written at the same time share every slab. Evicting the larger one must give the slabs back, by moving
+   * the chunks of the other file, which must read back unchanged.
+   */
+  @Test
+  public void evictionGivesSlabsBack() throws IOException {
+    int chunks = 2048;
+    MemoryStorageEngine engine = new MemoryStorageEngine();
+    ChunkStore store = new ChunkStore(engine, null, 16L * SLAB_SIZE, EvictionPolicy.LRU, true, 0);
+    byte[] kept = randomBytes(1, chunks * ChunkLayout.CHUNK_SIZE);
+    byte[] evicted = randomBytes(2, 4 * chunks * ChunkLayout.CHUNK_SIZE);
+    PendingFile keptFile = store.createFile(ChunkLayout.standard(kept.length));
+    PendingFile evictedFile = store.createFile(ChunkLayout.standard(evicted.length));
+    for (int chunkIndex = 0; chunkIndex < chunks; chunkIndex++) {
+      putChunk(keptFile, kept, chunkIndex);
+      for (int i = 0; i < 4; i++) {
+        putChunk(evictedFile, evicted, 4 * chunkIndex + i);
+      }
+    }
+    ByteString keptHash = ChunkInfoUtil.md5(ByteBuffer.wrap(kept));
+    store.publishUpload("kept", keptHash, keptFile);
+    store.publish("evicted", ChunkInfoUtil.md5(ByteBuffer.wrap(evicted)), evictedFile);
+    assertEquals(10, engine.getSlabCount());
+
+    PendingFile incoming = store.createFile(ChunkLayout.standard(12 * SLAB_SIZE));
+    assertTrue(store.reserve(incoming));
+    assertFalse(store.containsFileName("evicted"));
+    assertFalse(engine.needsCompaction());
+    assertTrue("Slabs were kept for " + chunks + " chunks: " + engine.getSlabCount(), engine.getSlabCount() <= 3);
+    assertArrayEquals(kept, store.getFile(keptHash).getContent().toByteArray());
+  }
+
+  private static void putChunk(PendingFile pendingFile, byte[] content, int chunkIndex) throws IOException {
+    ByteBuffer chunk = ByteBuffer.wrap(content, chunkIndex * ChunkLayout.CHUNK_SIZE, ChunkLayout.CHUNK_SIZE);
+    pendingFile.putChunk(chunkIndex, ChunkInfoUtil.md5(chunk.duplicate()), chunk);
+  }
+
+  private static byte[] randomBytes(int seed, int size) {
+    byte[] bytes = new byte[size];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,92 @@
+package util;
+
+import com.google.protobuf.ByteString;
+import handlers.ChunkRequestHandler;
+import node.ChunkRequest;
+import node.ChunkResponse;
+import node.Message;
+import node.Status;
+import org.junit.Test;
+import storage.ChunkLayout;
+import storage.ChunkStore;
+import storage.EvictionPolicy;
+import storage.MemoryStorageEngine;
+import storage.PendingFile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkResponseCacheTest {
+
+  private static final ByteString FILE_HASH = ByteString.copyFrom(new byte[16]);
+
+  @Test
+  public void staysWithinItsBytesAndKeepsWhatIsRead() throws IOException {
+    Message response = chunkResponse(1000);
+    int frameSize = MessageUtil.toFrame(response).remaining();
+    ChunkResponseCache cache = new ChunkResponseCache(100L * frameSize);
+    for (int chunkIndex = 0; chunkIndex < 100; chunkIndex++) {
+      cache.put(FILE_HASH, chunkIndex, false, response);
+    }
+    assertEquals(100L * frameSize, cache.getBytes());
+
+    // a popular chunk, read between every two new ones
+    for (int chunkIndex = 100; chunkIndex < 1000; chunkIndex++) {
+      assertNotNull(cache.get(FILE_HASH, 7, false));
+      cache.put(FILE_HASH, chunkIndex, false, response);
+      assertTrue(cache.getBytes() <= 100L * frameSize);
+    }
+    assertNotNull("The popular chunk was swept out", cache.get(FILE_HASH, 7, false));
+    assertNull(cache.get(FILE_HASH, 0, false));
+  }
+
+  @Test
+  public void framesOfAnEvictedFileGo() throws IOException {
+    int fileSize = 8 * ChunkLayout.CHUNK_SIZE;
+    ChunkStore store = new ChunkStore(new MemoryStorageEngine(), null, fileSize, EvictionPolicy.LRU, false, 0);
+    ChunkResponseCache cache = new ChunkResponseCache(1024 * 1024);
+    store.addListener(cache::invalidate);
+    ByteString first = publish(store, "first", 1, fileSize);
+    Message request = Message.newBuilder().
+        setType(Message.Type.CHUNK_REQUEST).
+        setChunkRequest(ChunkRequest.newBuilder().setFileHash(first).setChunkIndex(3)).
+        build();
+    ChunkRequestHandler.handleChunkRequest(request, store, cache, null);
+    assertNotNull(ChunkRequestHandler.getCachedResponse(request, store, cache));
+
+    // no room for both, so the first file is dropped
+    publish(store, "second", 2, fileSize);
+    assertTrue(!store.containsFile(first));
+    assertNull(cache.get(first, 3, false));
+    assertEquals(0, cache.getBytes());
+  }
+
+  private static Message chunkResponse(int size) {
+    return Message.newBuilder().
+        setType(Message.Type.CHUNK_RESPONSE).
+        setChunkResponse(ChunkResponse.newBuilder().
+            setStatus(Status.SUCCESS).
+            setData(ByteString.copyFrom(new byte[size]))).
+        build();
+  }
+
+  private static ByteString publish(ChunkStore store, String fileName, int seed, int size) throws IOException {
+    byte[] content = new byte[size];
+    new Random(seed).nextBytes(content);
+    ChunkLayout layout = ChunkLayout.standard(size);
+    PendingFile pendingFile = store.createFile(layout);
+    for (int i = 0; i < layout.getChunkCount(); i++) {
+      ByteBuffer chunk = ByteBuffer.wrap(content, layout.getChunkOffset(i), layout.getChunkSize(i));
+      pendingFile.putChunk(i, ChunkInfoUtil.md5(chunk.duplicate()), chunk);
+    }
+    ByteString fileHash = ChunkInfoUtil.md5(ByteBuffer.wrap(content));
+    store.publish(fileName, fileHash, pendingFile);
+    return fileHash;
+  }
+}
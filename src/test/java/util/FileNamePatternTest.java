@@ -0,0 +1,105 @@
+package util;
+
+import org.junit.Test;
+import storage.FileNameIndex;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FileNamePatternTest {
+
+  // regex, the prefix and the literal extracted from it, and a name it matches
+  private static final String[][] CASES = {
+      {"report.csv", "report", "report", "report-csv"},
+      {"^report", "report", "report", "report"},
+      {"ab?c", "a", "a", "ac"},
+      {"abc*d", "ab", "ab", "abd"},
+      {"abc*?d", "ab", "ab", "abccd"},
+      {"a+bcd", "a", "bcd", "aaabcd"},
+      {"x{2,3}yz", "", "yz", "xxxyz"},
+      {"xy{0}z", "x", "x", "xz"},
+      {"log\\.\\d+\\.txt", "log.", "log.", "log.12.txt"},
+      {"\\\\share\\\\data", "\\share\\data", "\\share\\data", "\\share\\data"},
+      {"[abc]def", "", "def", "bdef"},
+      {"[]x]yz", "", "yz", "]yz"},
+      {"[^a-c]+file", "", "file", "zzfile"},
+      {"(ab)+cd", "", "cd", "ababcd"},
+      {"(a[)]b)?cd", "", "cd", "a)bcd"},
+      {"name$", "name", "name", "name"},
+      {".*\\bbackup\\b.*", "", "backup", "old backup 1"},
+      // alternation, flags, quoting and escapes with arguments give no literals
+      {"a|bcd", "", "", "a"},
+      {"(?i)abc", "", "", "ABC"},
+      {"\\Qa.b\\E", "", "", "a.b"},
+      {"\\p{Lu}bcd", "", "", "Abcd"},
+      {"\\x41bcd", "", "", "Abcd"},
+      {"(a)\\1bcd", "", "", "aabcd"},
+  };
+
+  @Test
+  public void literalsAreExtracted() {
+    for (String[] row : CASES) {
+      FileNamePattern pattern = FileNamePattern.compile(row[0]);
+      assertEquals(row[0], row[1], pattern.getPrefix());
+      assertEquals(row[0], row[2], pattern.getLiteral());
+      assertTrue(row[0], pattern.getPattern().matcher(row[3]).matches());
+      assertTrue(row[0], row[3].startsWith(pattern.getPrefix()) && row[3].contains(pattern.getLiteral()));
+    }
+  }
+
+  /**
+   * Every name a regex matches must be among the candidates of the index. Names over a small alphabet are all tried
+   * against many random regexes, so most of them match something.
+   */
+  @Test
+  public void prefilterNeverDropsAMatch() {
+    List<String> names = new ArrayList<>();
+    names.add("");
+    for (int length = 1, from = 0; length <= 5; length++) {
+      int to = names.size();
+      for (int i = from; i < to; i++) {
+        for (char c : "ab.]".toCharArray()) {
+          names.add(names.get(i) + c);
+        }
+      }
+      from = to;
+    }
+    FileNameIndex index = new FileNameIndex();
+    names.forEach(index::add);
+
+    String[] atoms = {"a", "b", "ab", "aba", "\\.", ".", "]", "[ab]", "[^a]", "[]a]", "(ab)", "(a.)", "\\w", "\\b"};
+    String[] quantifiers = {"", "", "", "?", "*", "+", "{2}", "{0,2}", "*?", "+?", "?+"};
+    Random random = new Random(1);
+    int checked = 0;
+    for (int round = 0; round < 3000; round++) {
+      StringBuilder regex = new StringBuilder(random.nextInt(4) == 0 ? "^" : "");
+      for (int atom = random.nextInt(5); atom >= 0; atom--) {
+        regex.append(atoms[random.nextInt(atoms.length)]).append(quantifiers[random.nextInt(quantifiers.length)]);
+      }
+      FileNamePattern pattern;
+      try {
+        pattern = FileNamePattern.compile(regex.toString());
+      } catch (PatternSyntaxException e) {
+        continue;
+      }
+      Set<String> candidates = new HashSet<>(index.getCandidates(pattern.getPrefix(), pattern.getLiteral()));
+      Pattern compiled = pattern.getPattern();
+      for (String name : names) {
+        if (compiled.matcher(name).matches()) {
+          assertTrue("'" + regex + "' matches '" + name + "' but the index dropped it, prefix '" +
+              pattern.getPrefix() + "' literal '" + pattern.getLiteral() + "'", candidates.contains(name));
+          checked++;
+        }
+      }
+    }
+    assertTrue(checked > 10000);
+  }
+}
@@ -0,0 +1,173 @@
+package util;
+
+import com.google.protobuf.ByteString;
+import node.FileInfo;
+import node.IndexEntry;
+import node.Node;
+import node.NodeConfiguration;
+import node.NodeSettings;
+import node.OriginDigest;
+import node.OriginUpdate;
+import org.junit.After;
+import org.junit.Test;
+import storage.ChunkLayout;
+import storage.ChunkStore;
+import storage.PendingFile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class GossipIndexTest {
+
+  private static final NodeConfiguration LOCAL = new NodeConfiguration("127.0.0.1", 1);
+  private static final NodeConfiguration OTHER = new NodeConfiguration("127.0.0.2", 1);
+  private static final NodeConfiguration ORIGIN = new NodeConfiguration("127.0.0.3", 1);
+
+  private final List<GossipIndex> indexes = new ArrayList<>();
+  private final PeerClient peerClient = new PeerClient(new NodeSettings());
+
+  @After
+  public void tearDown() {
+    for (GossipIndex index : indexes) {
+      index.close();
+    }
+    peerClient.close();
+  }
+
+  @Test
+  public void indexAnswersWithTheWholeManifest() throws IOException {
+    ChunkStore store = new ChunkStore();
+    publish(store, "standard", randomBytes(1, 5 * ChunkLayout.CHUNK_SIZE + 17), ChunkLayout.standard(5 * ChunkLayout.CHUNK_SIZE + 17));
+    publish(store, "uneven", randomBytes(2, 700), ChunkLayout.fromChunkSizes(new int[]{300, 400}));
+    GossipIndex origin = newIndex(LOCAL, store, 5000);
+    GossipIndex index = newIndex(OTHER, new ChunkStore(), 5000);
+
+    index.merge(origin.getUpdates(Collections.emptyList()));
+    assertEquals(store.getFileInfo("standard"), index.getFileInfo(LOCAL, "standard"));
+    assertEquals(store.getFileInfo("uneven"), index.getFileInfo(LOCAL, "uneven"));
+    assertEquals(Collections.singletonList("standard"), index.getFileNameCandidates(LOCAL, "stand", "stand"));
+  }
+
+  @Test
+  public void onlyNewerEntriesAreSent() throws IOException {
+    ChunkStore store = new ChunkStore();
+    publish(store, "first", randomBytes(3, 100), ChunkLayout.standard(100));
+    GossipIndex origin = newIndex(LOCAL, store, 5000);
+    OriginDigest known = origin.getUpdates(Collections.emptyList()).get(0).getOrigin();
+
+    publish(store, "second", randomBytes(4, 100), ChunkLayout.standard(100));
+    List<OriginUpdate> updates = origin.getUpdates(Collections.singletonList(known));
+    assertEquals(1, updates.size());
+    assertEquals(1, updates.get(0).getEntriesCount());
+    assertEquals("second", updates.get(0).getEntries(0).getFilename());
+
+    OriginDigest current = updates.get(0).getOrigin();
+    assertTrue("Nothing new to send", origin.getUpdates(Collections.singletonList(current)).isEmpty());
+  }
+
+  @Test
+  public void tombstoneRemovesTheName() {
+    GossipIndex index = newIndex(LOCAL, new ChunkStore(), 5000);
+    index.merge(update(1, 1, 1, entry("a", 1, false), entry("b", 1, false)));
+    long version = index.getVersion();
+
+    index.merge(update(1, 2, 2, entry("a", 2, true)));
+    assertNull(index.getFileInfo(ORIGIN, "a"));
+    assertEquals(Collections.singletonList("b"), index.getFileNameCandidates(ORIGIN, "", ""));
+    assertTrue(index.getVersion() > version);
+
+    // an older copy of the entry, from a peer that has not heard of the removal, does not bring it back
+    index.merge(update(1, 1, 3, entry("a", 1, false)));
+    assertNull(index.getFileInfo(ORIGIN, "a"));
+  }
+
+  @Test
+  public void restartedOriginStartsOver() {
+    GossipIndex index = newIndex(LOCAL, new ChunkStore(), 5000);
+    index.merge(update(1, 2, 1, entry("a", 1, false), entry("b", 2, false)));
+
+    index.merge(update(2, 1, 1, entry("c", 1, false)));
+    assertNull(index.getFileInfo(ORIGIN, "a"));
+    assertNull(index.getFileInfo(ORIGIN, "b"));
+    assertEquals("c", index.getFileInfo(ORIGIN, "c").getFilename());
+
+    // news of the earlier incarnation are too late
+    index.merge(update(1, 3, 5, entry("d", 3, false)));
+    assertNull(index.getFileInfo(ORIGIN, "d"));
+  }
+
+  @Test
+  public void originGoesStaleWithoutHeartbeat() throws InterruptedException {
+    GossipIndex index = newIndex(LOCAL, new ChunkStore(), 100);
+    assertFalse("Nothing heard yet", index.isFresh(ORIGIN));
+    index.merge(update(1, 1, 1, entry("a", 1, false)));
+    assertTrue(index.isFresh(ORIGIN));
+
+    Thread.sleep(200);
+    assertFalse(index.isFresh(ORIGIN));
+    // the same heartbeat again, relayed by another peer, says nothing new about the origin
+    index.merge(update(1, 1, 1));
+    assertFalse(index.isFresh(ORIGIN));
+    index.merge(update(1, 1, 2));
+    assertTrue(index.isFresh(ORIGIN));
+  }
+
+  private GossipIndex newIndex(NodeConfiguration node, ChunkStore store, int staleMillis) {
+    Properties properties = new Properties();
+    // rounds never run, the tests merge by hand
+    properties.setProperty("gossip-interval-ms", "3600000");
+    properties.setProperty("gossip-stale-ms", String.valueOf(staleMillis));
+    GossipIndex index = new GossipIndex(node, Collections.emptyList(), store, peerClient, new NodeSettings(properties));
+    indexes.add(index);
+    return index;
+  }
+
+  private static List<OriginUpdate> update(long incarnation, long version, long heartbeat, IndexEntry... entries) {
+    OriginUpdate.Builder update = OriginUpdate.newBuilder().
+        setOrigin(OriginDigest.newBuilder().
+            setNode(Node.newBuilder().setHost(ORIGIN.getAddr()).setPort(ORIGIN.getPort())).
+            setIncarnation(incarnation).
+            setVersion(version).
+            setHeartbeat(heartbeat));
+    for (IndexEntry entry : entries) {
+      update.addEntries(entry);
+    }
+    return Collections.singletonList(update.build());
+  }
+
+  private static IndexEntry entry(String fileName, long version, boolean removed) {
+    return IndexEntry.newBuilder().
+        setFilename(fileName).
+        setHash(ByteString.copyFrom(new byte[16])).
+        setSize(10).
+        setVersion(version).
+        setRemoved(removed).
+        setChunkHashes(ByteString.copyFrom(new byte[16])).
+        build();
+  }
+
+  private static void publish(ChunkStore store, String fileName, byte[] content, ChunkLayout layout) throws IOException {
+    PendingFile pendingFile = store.createFile(layout);
+    for (int i = 0; i < layout.getChunkCount(); i++) {
+      ByteBuffer chunk = ByteBuffer.wrap(content, layout.getChunkOffset(i), layout.getChunkSize(i));
+      pendingFile.putChunk(i, ChunkInfoUtil.md5(chunk.duplicate()), chunk);
+    }
+    store.publish(fileName, ChunkInfoUtil.md5(ByteBuffer.wrap(content)), pendingFile);
+  }
+
+  private static byte[] randomBytes(int seed, int size) {
+    byte[] bytes = new byte[size];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+}
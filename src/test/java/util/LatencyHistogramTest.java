@@ -0,0 +1,49 @@
+package util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void smallValuesAreExact() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getPercentile(0.5));
+    for (int value = 0; value < 100; value++) {
+      histogram.record(value);
+    }
+    histogram.record(-5);
+    assertEquals(101, histogram.getCount());
+    assertEquals(49, histogram.getPercentile(0.5));
+    assertEquals(99, histogram.getPercentile(1));
+    assertEquals(99, histogram.getMax());
+    assertEquals(4950 / 101.0, histogram.getMean(), 1e-9);
+  }
+
+  /**
+   * Percentiles of latencies spread over six orders of magnitude stay within the bucket precision, and never above the
+   * largest value recorded.
+   */
+  @Test
+  public void percentilesAreWithinTheBucketPrecision() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    Random random = new Random(8);
+    long[] values = new long[100000];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = (long) Math.pow(10, 3 + 6 * random.nextDouble());
+      histogram.record(values[i]);
+    }
+    Arrays.sort(values);
+    for (double fraction : new double[]{0.01, 0.5, 0.9, 0.99, 0.999, 1}) {
+      long exact = values[(int) Math.ceil(fraction * values.length) - 1];
+      long estimate = histogram.getPercentile(fraction);
+      assertTrue(fraction + ": " + estimate + " for " + exact, estimate >= exact && estimate <= exact * 1.016);
+    }
+    assertEquals(values[values.length - 1], histogram.getPercentile(1));
+  }
+}
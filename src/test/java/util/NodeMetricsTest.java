@@ -0,0 +1,66 @@
+package util;
+
+import node.ChunkResponse;
+import node.Message;
+import node.NodeConfiguration;
+import node.Status;
+import org.junit.Test;
+import storage.ChunkStore;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class NodeMetricsTest {
+
+  @Test
+  public void missingOrErrorResponsesCountAsFailures() {
+    NodeMetrics metrics = new NodeMetrics();
+    metrics.recordRequest(Message.Type.CHUNK_REQUEST, 1000, chunkResponse(Status.SUCCESS));
+    // the node just did not have the chunk
+    metrics.recordRequest(Message.Type.CHUNK_REQUEST, 1000, chunkResponse(Status.UNABLE_TO_COMPLETE));
+    metrics.recordRequest(Message.Type.CHUNK_REQUEST, 1000, chunkResponse(Status.PROCESSING_ERROR));
+    metrics.recordRequest(Message.Type.CHUNK_REQUEST, 1000, (Message) null);
+
+    RequestMetrics chunkRequests = metrics.getRequestMetrics(Message.Type.CHUNK_REQUEST);
+    assertEquals(4, chunkRequests.getCount());
+    assertEquals(2, chunkRequests.getErrors());
+    assertEquals(0, metrics.getRequestMetrics(Message.Type.SEARCH_REQUEST).getCount());
+  }
+
+  /**
+   * Request types and peers show up over JMX under the node name, peers as soon as they are first asked, and all of
+   * them go away with the node.
+   */
+  @Test
+  public void metricsAreExposedOverJmx() throws Exception {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    NodeMetrics metrics = new NodeMetrics();
+    metrics.register("metrics-test", new ChunkStore(), null, null, null);
+    try {
+      metrics.recordRequest(Message.Type.CHUNK_REQUEST, 2000000, false);
+      metrics.recordBytesIn(100);
+      metrics.recordPeerRequest(new NodeConfiguration("127.0.0.1", 4000), 3000000, true);
+
+      ObjectName chunkRequests = new ObjectName("Torrent:type=Request,node=metrics-test,message=CHUNK_REQUEST");
+      assertEquals(1L, server.getAttribute(chunkRequests, "Count"));
+      assertEquals(2.0, (Double) server.getAttribute(chunkRequests, "MaxMillis"), 0.01);
+      assertEquals(100L, server.getAttribute(new ObjectName("Torrent:type=Node,node=metrics-test"), "BytesIn"));
+      ObjectName peer = new ObjectName("Torrent:type=Peer,node=metrics-test,peer=127.0.0.1-4000");
+      assertEquals(1L, server.getAttribute(peer, "Errors"));
+    } finally {
+      metrics.unregister();
+    }
+    assertFalse(server.queryNames(new ObjectName("Torrent:node=metrics-test,*"), null).iterator().hasNext());
+  }
+
+  private static Message chunkResponse(Status status) {
+    return Message.newBuilder().
+        setType(Message.Type.CHUNK_RESPONSE).
+        setChunkResponse(ChunkResponse.newBuilder().setStatus(status)).
+        build();
+  }
+}
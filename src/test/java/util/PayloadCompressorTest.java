@@ -0,0 +1,56 @@
+package util;
+
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class PayloadCompressorTest {
+
+  @Test
+  public void inflatesDataSpreadOverManyPieces() throws DataFormatException {
+    PayloadCompressor compressor = new PayloadCompressor();
+    ByteString text = text(300 * 1024);
+    ByteString deflated = compressor.deflate(text);
+    assertNotNull(deflated);
+    // a rope of small pieces, as data cut out of frames arrives
+    ByteString pieces = ByteString.EMPTY;
+    for (int offset = 0; offset < deflated.size(); offset += 1000) {
+      pieces = pieces.concat(deflated.substring(offset, Math.min(deflated.size(), offset + 1000)));
+    }
+    assertEquals(text, compressor.inflate(pieces, text.size()));
+  }
+
+  @Test(expected = DataFormatException.class)
+  public void refusesToInflateMoreThanExpected() throws DataFormatException {
+    PayloadCompressor compressor = new PayloadCompressor();
+    ByteString text = text(100 * 1024);
+    compressor.inflate(compressor.deflate(text), text.size() - 1);
+  }
+
+  @Test(expected = DataFormatException.class)
+  public void refusesTrailingInput() throws DataFormatException {
+    PayloadCompressor compressor = new PayloadCompressor();
+    ByteString text = text(100 * 1024);
+    compressor.inflate(compressor.deflate(text).concat(ByteString.copyFrom(new byte[3])), text.size());
+  }
+
+  @Test
+  public void largeDataIsSentAsItIs() {
+    PayloadCompressor compressor = new PayloadCompressor();
+    assertNull(compressor.deflate(text(4 * 1024 * 1024)));
+  }
+
+  private static ByteString text(int size) {
+    StringBuilder text = new StringBuilder(size + 100);
+    for (int line = 0; text.length() < size; line++) {
+      text.append("line ").append(line).append(": the quick brown fox jumps over the lazy dog\n");
+    }
+    return ByteString.copyFrom(text.substring(0, size), StandardCharsets.US_ASCII);
+  }
+}
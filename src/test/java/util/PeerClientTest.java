@@ -0,0 +1,175 @@
+package util;
+
+import com.google.protobuf.ByteString;
+import node.ChunkRequest;
+import node.ChunkResponse;
+import node.Message;
+import node.NodeConfiguration;
+import node.NodeSettings;
+import node.Status;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class PeerClientTest {
+
+  private static final Message CHUNK_REQUEST = Message.newBuilder().
+      setType(Message.Type.CHUNK_REQUEST).
+      setChunkRequest(ChunkRequest.newBuilder().setFileHash(ByteString.copyFrom(new byte[16]))).
+      build();
+  private static final Message GOSSIP_REQUEST = Message.newBuilder().
+      setType(Message.Type.GOSSIP_REQUEST).
+      build();
+
+  private FakeNode fakeNode;
+  private PeerClient peerClient;
+
+  @After
+  public void tearDown() throws IOException {
+    if (peerClient != null) {
+      peerClient.close();
+    }
+    if (fakeNode != null) {
+      fakeNode.close();
+    }
+  }
+
+  @Test
+  public void keepsConnectionsToANodeThatDropsAnUnknownMessage() throws Exception {
+    fakeNode = new FakeNode(true);
+    peerClient = newPeerClient();
+    NodeConfiguration node = fakeNode.getConfiguration();
+
+    assertNotNull(peerClient.request(node, CHUNK_REQUEST));
+    assertNull(peerClient.request(node, GOSSIP_REQUEST));
+    for (int i = 0; i < 10; i++) {
+      assertNotNull(peerClient.request(node, CHUNK_REQUEST));
+    }
+    // the unknown message is sent once more on a new connection, since the node may only have closed an idle one;
+    // the chunk requests after it share one connection again
+    assertEquals(3, fakeNode.getConnections());
+  }
+
+  @Test
+  public void sendsOneRequestPerConnectionToALegacyNode() throws Exception {
+    fakeNode = new FakeNode(false);
+    peerClient = newPeerClient();
+    NodeConfiguration node = fakeNode.getConfiguration();
+
+    for (int i = 0; i < 10; i++) {
+      assertNotNull(peerClient.request(node, CHUNK_REQUEST));
+    }
+    // no request went to a connection the node had already closed
+    assertEquals(10, fakeNode.getConnections());
+    assertEquals(10, fakeNode.getRequests());
+  }
+
+  @Test
+  public void slowNodeIsNotAskedTwice() throws Exception {
+    fakeNode = new FakeNode(true);
+    Properties properties = new Properties();
+    properties.setProperty("keep-alive", "true");
+    properties.setProperty("read-timeout-ms", "200");
+    peerClient = new PeerClient(new NodeSettings(properties));
+    NodeConfiguration node = fakeNode.getConfiguration();
+
+    assertNotNull(peerClient.request(node, CHUNK_REQUEST));
+    fakeNode.setDelayMillis(500);
+    try {
+      peerClient.request(node, CHUNK_REQUEST);
+      fail("The node answered after the read timeout");
+    } catch (SocketTimeoutException e) {
+      // the node may still be working on the request, so it must not get it again
+    }
+    Thread.sleep(1000);
+    assertEquals(2, fakeNode.getRequests());
+  }
+
+  private static PeerClient newPeerClient() {
+    Properties properties = new Properties();
+    properties.setProperty("keep-alive", "true");
+    return new PeerClient(new NodeSettings(properties));
+  }
+
+  /**
+   * Answers chunk requests, one at a time, and closes the connection on anything else. Only a node that keeps
+   * connections alive says so in its responses and waits for another request.
+   */
+  private static class FakeNode {
+    private final ServerSocket server;
+    private final boolean keepAlive;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile int delayMillis;
+
+    FakeNode(boolean keepAlive) throws IOException {
+      this.server = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+      this.keepAlive = keepAlive;
+      Thread thread = new Thread(this::serve);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    private void serve() {
+      while (!server.isClosed()) {
+        try (Socket socket = server.accept()) {
+          connections.incrementAndGet();
+          byte[] request;
+          while ((request = MessageUtil.getMessageBytes(socket, 1024 * 1024)) != null) {
+            requests.incrementAndGet();
+            if (MessageUtil.parseMessage(request).getType() != Message.Type.CHUNK_REQUEST) {
+              break;
+            }
+            if (delayMillis > 0) {
+              Thread.sleep(delayMillis);
+            }
+            Message response = Message.newBuilder().
+                setType(Message.Type.CHUNK_RESPONSE).
+                setChunkResponse(ChunkResponse.newBuilder().setStatus(Status.UNABLE_TO_COMPLETE)).
+                build();
+            MessageUtil.sendMessage(socket, keepAlive ? MessageUtil.withKeepAlive(response) : response);
+            if (!keepAlive) {
+              break;
+            }
+          }
+        } catch (IOException e) {
+          // the connection or the server was closed
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+
+    NodeConfiguration getConfiguration() {
+      return new NodeConfiguration("127.0.0.1", server.getLocalPort());
+    }
+
+    void setDelayMillis(int delayMillis) {
+      this.delayMillis = delayMillis;
+    }
+
+    int getConnections() {
+      return connections.get();
+    }
+
+    int getRequests() {
+      return requests.get();
+    }
+
+    void close() throws IOException {
+      server.close();
+    }
+  }
+}
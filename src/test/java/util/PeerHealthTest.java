@@ -0,0 +1,201 @@
+package util;
+
+import com.google.protobuf.ByteString;
+import node.ChunkRequest;
+import node.ChunkResponse;
+import node.Message;
+import node.NodeConfiguration;
+import node.NodeSettings;
+import node.Status;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PeerHealthTest {
+
+  private static final int NEVER = 3600 * 1000;
+
+  @Test
+  public void circuitOpensAfterConsecutiveFailures() {
+    PeerHealth peerHealth = new PeerHealth(3, NEVER, peer -> { });
+    NodeConfiguration peer = node(1);
+    peerHealth.recordFailure(peer);
+    peerHealth.recordFailure(peer);
+    // a success in between starts the count over
+    peerHealth.recordSuccess(peer, 1000000);
+    peerHealth.recordFailure(peer);
+    peerHealth.recordFailure(peer);
+    assertTrue(peerHealth.isAvailable(peer));
+    peerHealth.recordFailure(peer);
+    assertFalse(peerHealth.isAvailable(peer));
+    assertTrue(peerHealth.isAvailable(node(2)));
+    peerHealth.close();
+  }
+
+  @Test
+  public void probeClosesTheCircuitOnceThePeerAnswers() throws InterruptedException {
+    NodeConfiguration peer = node(1);
+    AtomicInteger probes = new AtomicInteger();
+    CountDownLatch answered = new CountDownLatch(1);
+    PeerHealth[] peerHealth = new PeerHealth[1];
+    // the first probe fails as well, the second one gets an answer
+    peerHealth[0] = new PeerHealth(2, 50, probed -> {
+      if (probes.incrementAndGet() == 1) {
+        peerHealth[0].recordFailure(probed);
+      } else {
+        peerHealth[0].recordSuccess(probed, 1000000);
+        answered.countDown();
+      }
+    });
+    Thread.sleep(200);
+    assertEquals("Peers with a closed circuit are not probed", 0, probes.get());
+
+    peerHealth[0].recordFailure(peer);
+    peerHealth[0].recordFailure(peer);
+    assertFalse(peerHealth[0].isAvailable(peer));
+    assertTrue(answered.await(5, TimeUnit.SECONDS));
+    assertTrue(peerHealth[0].isAvailable(peer));
+    assertEquals(2, probes.get());
+    peerHealth[0].close();
+  }
+
+  @Test
+  public void rankPutsHealthyPeersFirstAndLeavesOpenOnesOut() {
+    PeerHealth peerHealth = new PeerHealth(2, NEVER, peer -> { });
+    NodeConfiguration unknown = node(1);
+    NodeConfiguration fast = node(2);
+    NodeConfiguration slow = node(3);
+    NodeConfiguration flaky = node(4);
+    NodeConfiguration open = node(5);
+    peerHealth.recordSuccess(fast, TimeUnit.MILLISECONDS.toNanos(10));
+    peerHealth.recordSuccess(slow, TimeUnit.MILLISECONDS.toNanos(50));
+    // faster than every other peer, but its last request failed
+    peerHealth.recordSuccess(flaky, TimeUnit.MILLISECONDS.toNanos(5));
+    peerHealth.recordFailure(flaky);
+    peerHealth.recordFailure(open);
+    peerHealth.recordFailure(open);
+
+    assertEquals(Arrays.asList(unknown, fast, slow, flaky),
+        peerHealth.rank(Arrays.asList(open, flaky, slow, fast, unknown)));
+    assertEquals(Collections.emptyList(), peerHealth.rank(Collections.singletonList(open)));
+    peerHealth.close();
+  }
+
+  /**
+   * A peer that stops answering in time opens its circuit; requests then fail without a connection being made, until
+   * the probe finds the peer answering again.
+   */
+  @Test
+  public void requestsFailFastWhileTheCircuitIsOpen() throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty("read-timeout-ms", "100");
+    properties.setProperty("circuit-failure-threshold", "2");
+    properties.setProperty("circuit-probe-interval-ms", "300");
+    PeerClient peerClient = new PeerClient(new NodeSettings(properties));
+    try (SilentNode silentNode = new SilentNode()) {
+      NodeConfiguration node = silentNode.getConfiguration();
+      silentNode.silent = true;
+      for (int i = 0; i < 2; i++) {
+        try {
+          peerClient.request(node, chunkRequest());
+          fail("The node does not answer");
+        } catch (SocketTimeoutException e) {
+          // expected
+        }
+      }
+      assertFalse(peerClient.getPeerHealth().isAvailable(node));
+
+      int connections = silentNode.connections.get();
+      try {
+        peerClient.request(node, chunkRequest());
+        fail("The circuit is open");
+      } catch (ConnectException e) {
+        assertTrue(e.getMessage(), e.getMessage().startsWith("Circuit open"));
+      }
+      assertEquals(connections, silentNode.connections.get());
+
+      silentNode.silent = false;
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+      while (!peerClient.getPeerHealth().isAvailable(node) && System.nanoTime() < deadline) {
+        Thread.sleep(20);
+      }
+      assertTrue(peerClient.getPeerHealth().isAvailable(node));
+      assertNotNull(peerClient.request(node, chunkRequest()));
+    } finally {
+      peerClient.close();
+    }
+  }
+
+  private static Message chunkRequest() {
+    return Message.newBuilder().
+        setType(Message.Type.CHUNK_REQUEST).
+        setChunkRequest(ChunkRequest.newBuilder().setFileHash(ByteString.copyFrom(new byte[16]))).
+        build();
+  }
+
+  private static NodeConfiguration node(int port) {
+    return new NodeConfiguration("127.0.0.1", port);
+  }
+
+  // answers chunk requests, or reads them and keeps quiet while silent
+  private static class SilentNode implements AutoCloseable {
+    private final ServerSocket server;
+    private final AtomicInteger connections = new AtomicInteger();
+    private volatile boolean silent;
+
+    SilentNode() throws IOException {
+      this.server = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+      Thread thread = new Thread(this::serve);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    private void serve() {
+      while (!server.isClosed()) {
+        try (Socket socket = server.accept()) {
+          connections.incrementAndGet();
+          if (MessageUtil.getMessageBytes(socket, 1024 * 1024) == null) {
+            continue;
+          }
+          if (silent) {
+            // until the client gives up and closes the connection
+            socket.getInputStream().read();
+            continue;
+          }
+          MessageUtil.sendMessage(socket, Message.newBuilder().
+              setType(Message.Type.CHUNK_RESPONSE).
+              setChunkResponse(ChunkResponse.newBuilder().setStatus(Status.UNABLE_TO_COMPLETE)).
+              build());
+        } catch (IOException e) {
+          // the connection or the server was closed
+        }
+      }
+    }
+
+    NodeConfiguration getConfiguration() {
+      return new NodeConfiguration("127.0.0.1", server.getLocalPort());
+    }
+
+    @Override
+    public void close() throws IOException {
+      server.close();
+    }
+  }
+}
@@ -0,0 +1,67 @@
+package util;
+
+import node.Message;
+import node.SearchResponse;
+import node.Status;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SearchCacheTest {
+
+  /**
+   * A search that throws must answer the identical searches waiting for it with an error, and the next search must
+   * run again instead of getting the failure.
+   */
+  @Test
+  public void failedSearchAnswersWaitersAndIsNotKept() throws Exception {
+    SearchCache searchCache = new SearchCache(16, 60000);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch fail = new CountDownLatch(1);
+    AtomicInteger searches = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<Message> owner = executor.submit(() -> searchCache.get("a.*", 0, () -> {
+        searches.incrementAndGet();
+        started.countDown();
+        try {
+          fail.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        throw new IllegalStateException("node list changed");
+      }));
+      assertTrue(started.await(10, TimeUnit.SECONDS));
+      Future<Message> waiter = executor.submit(() -> searchCache.get("a.*", 0, () -> {
+        throw new AssertionError("The waiter started its own search");
+      }));
+      while (searchCache.getCoalesced() == 0) {
+        Thread.sleep(1);
+      }
+      fail.countDown();
+
+      assertEquals(Status.PROCESSING_ERROR, owner.get(10, TimeUnit.SECONDS).getSearchResponse().getStatus());
+      assertEquals(Status.PROCESSING_ERROR, waiter.get(10, TimeUnit.SECONDS).getSearchResponse().getStatus());
+
+      Message response = searchCache.get("a.*", 0, () -> {
+        searches.incrementAndGet();
+        return Message.newBuilder().
+            setType(Message.Type.SEARCH_RESPONSE).
+            setSearchResponse(SearchResponse.newBuilder().setStatus(Status.SUCCESS)).
+            build();
+      });
+      assertEquals(Status.SUCCESS, response.getSearchResponse().getStatus());
+      assertEquals(2, searches.get());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}